@@ -0,0 +1,154 @@
+/**
+ * 
+ */
+package inrae.bibs.gui;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+
+import ij.IJ;
+
+/**
+ * Runs the computations triggered by widgets on a single background thread,
+ * such that the Swing event dispatch thread remains responsive.
+ * 
+ * Submitting a new computation cancels the computation in progress, by
+ * interrupting the background thread. Long computations are expected to check
+ * the interruption status of the thread regularly. When a computation
+ * terminates, its result is published on the event dispatch thread only if no
+ * other computation was submitted in the meantime.
+ * 
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	updater.submit(() -> computeResult(params), result -> showResult(result));
+ *}</pre>
+ * 
+ * @author dlegland
+ *
+ */
+public class BackgroundUpdater
+{
+    // ===================================================================
+    // Class variables
+    
+    /** The executor running the computations */
+    final ExecutorService executor;
+    
+    /** The computation currently in progress or waiting to be processed */
+    Future<?> current = null;
+    
+    /**
+     * The index of the last submitted computation. Only the result of the
+     * last computation is published.
+     */
+    volatile long generation = 0;
+    
+    
+    // ===================================================================
+    // Constructor
+    
+    /**
+     * Creates a new updater with its own background thread.
+     * 
+     * @param name
+     *            the name of the background thread
+     */
+    public BackgroundUpdater(String name)
+    {
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    
+    // ===================================================================
+    // Methods
+    
+    /**
+     * Submits a new computation, cancelling the computation in progress. When
+     * the computation terminates, the publisher is called on the event
+     * dispatch thread with the result of the computation, unless another
+     * computation was submitted in the meantime.
+     * 
+     * @param <T>
+     *            the type of the result of the computation
+     * @param computation
+     *            the computation to run in background
+     * @param publisher
+     *            the operation that uses the result of the computation, for
+     *            example to update the display
+     */
+    public synchronized <T> void submit(Callable<T> computation, Consumer<T> publisher)
+    {
+        long index = ++this.generation;
+        if (this.current != null)
+        {
+            this.current.cancel(true);
+        }
+        
+        this.current = executor.submit(() -> 
+        {
+            T result;
+            try
+            {
+                result = computation.call();
+            }
+            catch (CancellationException ex)
+            {
+                return;
+            }
+            catch (Exception ex)
+            {
+                if (index == this.generation)
+                {
+                    IJ.handleException(ex);
+                }
+                return;
+            }
+            
+            // publish the result if no other computation has been submitted
+            if (index != this.generation)
+            {
+                return;
+            }
+            SwingUtilities.invokeLater(() -> 
+            {
+                if (index == this.generation)
+                {
+                    publisher.accept(result);
+                }
+            });
+        });
+    }
+    
+    /**
+     * Cancels the computation in progress, if any.
+     */
+    public synchronized void cancel()
+    {
+        this.generation++;
+        if (this.current != null)
+        {
+            this.current.cancel(true);
+            this.current = null;
+        }
+    }
+    
+    /**
+     * Cancels the computation in progress and stops the background thread.
+     */
+    public void shutdown()
+    {
+        cancel();
+        this.executor.shutdownNow();
+    }
+}
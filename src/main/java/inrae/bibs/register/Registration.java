@@ -17,6 +17,11 @@ import ij.process.ImageProcessor;
 import inrae.bibs.register.image.Image3D;
 import inrae.bibs.register.image.Images3D;
 import inrae.bibs.register.io.JsonRegistrationWriter;
+import inrae.bibs.register.resample.Interpolation;
+import inrae.bibs.register.resample.Resampler2D;
+import inrae.bibs.register.resample.Resampler3D;
+import inrae.bibs.util.Parallel;
+import inrae.bibs.util.ProgressCounter;
 
 /**
  * Utility methods for registration.
@@ -41,35 +46,53 @@ public class Registration
      */
     public static final ImageProcessor computeTransformedImage(ImageProcessor reference, Transform2D transform, ImageProcessor movingImage)
     {
-        // retrieve result image size
-        int sizeX = reference.getWidth();
-        int sizeY = reference.getHeight();
-        
-        // size of moving image
-        int sizeX2 = movingImage.getWidth();
-        int sizeY2 = movingImage.getHeight();
-        
-        // create result image
-        ImageProcessor result = reference.createProcessor(sizeX, sizeY);
-        
-        // iterate over pixels of result image
-        for (int y = 0; y < sizeY; y++)
-        {
-            for (int x = 0; x < sizeX; x++)
-            {
-                Point2D p = transform.transform(new Point2D(x, y));
-                
-                // nearest-neighbor interpolation
-                int xi = (int) Math.round(p.x);
-                int yi = (int) Math.round(p.y);
-                
-                if (xi < 0 || xi >= sizeX2) continue;
-                if (yi < 0 || yi >= sizeY2) continue;
-                
-                result.setf(x, y, movingImage.getf(xi, yi));
-            }
-        }
-        return result;
+        return new Resampler2D(transform).resample(reference, movingImage);
+    }
+
+    /**
+     * Computes the result of a transform applied to an image using a reference
+     * image to define the position of the sampling grid. Bands of rows of the
+     * result image are distributed over the specified number of threads.
+     * 
+     * @param reference
+     *            the image used for sampling the reference grid
+     * @param transform
+     *            the geometric transformation applied to each point in the
+     *            reference image
+     * @param movingImage
+     *            the image to interpolate
+     * @param nThreads
+     *            the number of threads used for computing the result
+     * @return a new image with the same size as the reference image
+     */
+    public static final ImageProcessor computeTransformedImage(ImageProcessor reference, Transform2D transform, ImageProcessor movingImage, int nThreads)
+    {
+        Resampler2D resampler = new Resampler2D(transform);
+        resampler.setThreadCount(nThreads);
+        return resampler.resample(reference, movingImage);
+    }
+
+    /**
+     * Computes the result of a transform applied to an image using a reference
+     * image to define the position of the sampling grid, and the specified
+     * interpolation method.
+     * 
+     * @param reference
+     *            the image used for sampling the reference grid
+     * @param transform
+     *            the geometric transformation applied to each point in the
+     *            reference image
+     * @param movingImage
+     *            the image to interpolate
+     * @param interpolation
+     *            the method used to interpolate the values of the moving image
+     * @return a new image with the same size as the reference image
+     */
+    public static final ImageProcessor computeTransformedImage(ImageProcessor reference, Transform2D transform, ImageProcessor movingImage, Interpolation interpolation)
+    {
+        Resampler2D resampler = new Resampler2D(transform);
+        resampler.setInterpolation(interpolation);
+        return resampler.resample(reference, movingImage);
     }
 
     /**
@@ -86,6 +109,27 @@ public class Registration
      * @return a new image with the same size as the reference image
      */
     public static final Image3D computeTransformedImage(Image3D reference, Transform3D transform, Image3D movingImage)
+    {
+        return computeTransformedImage(reference, transform, movingImage, Parallel.defaultThreadCount());
+    }
+
+    /**
+     * Computes the result of a transform applied to an image using a reference
+     * image to define the position of the sampling grid. Slices of the result
+     * image are distributed over the specified number of threads.
+     * 
+     * @param reference
+     *            the image used for sampling the reference grid
+     * @param transform
+     *            the geometric transformation applied to each point in the
+     *            reference image
+     * @param movingImage
+     *            the image to interpolate
+     * @param nThreads
+     *            the number of threads used for computing the result
+     * @return a new image with the same size as the reference image
+     */
+    public static final Image3D computeTransformedImage(Image3D reference, Transform3D transform, Image3D movingImage, int nThreads)
     {
         // retrieve result image size
         int sizeX = reference.getSize(0);
@@ -103,35 +147,34 @@ public class Registration
         
         // iterate over voxels of result image
         IJ.showStatus("Apply transform to image");
-        for (int z = 0; z < sizeZ; z++)
+        ProgressCounter progress = new ProgressCounter(sizeZ);
+        Parallel.forEachChunk(sizeZ, nThreads, (z0, z1) -> 
         {
-            IJ.log("z = " + z);
-            IJ.showProgress(z, sizeZ);
-            for (int y = 0; y < sizeY; y++)
+            for (int z = z0; z < z1; z++)
             {
-//                IJ.log("y = " + y);
-                for (int x = 0; x < sizeX; x++)
+                for (int y = 0; y < sizeY; y++)
                 {
-//                    IJ.log("x = " + x);
-                    Point3D p = transform.transform(new Point3D(x, y, z));
-
-                    // nearest-neighbor interpolation
-                    int xi = (int) Math.round(p.x);
-                    int yi = (int) Math.round(p.y);
-                    int zi = (int) Math.round(p.z);
-
-                    if (xi < 0 || xi >= sizeX2) continue;
-                    if (yi < 0 || yi >= sizeY2) continue;
-                    if (zi < 0 || zi >= sizeZ2) continue;
-
-//                    IJ.log("update value");
-                    result.setValue(x, y, z, movingImage.getValue(xi, yi, zi));
+                    for (int x = 0; x < sizeX; x++)
+                    {
+                        Point3D p = transform.transform(new Point3D(x, y, z));
+                        
+                        // nearest-neighbor interpolation
+                        int xi = (int) Math.round(p.x);
+                        int yi = (int) Math.round(p.y);
+                        int zi = (int) Math.round(p.z);
+                        
+                        if (xi < 0 || xi >= sizeX2) continue;
+                        if (yi < 0 || yi >= sizeY2) continue;
+                        if (zi < 0 || zi >= sizeZ2) continue;
+                        
+                        result.setValue(x, y, z, movingImage.getValue(xi, yi, zi));
+                    }
                 }
+                progress.increment();
             }
-        }
+        });
         IJ.showStatus("image transformed");
         
-        IJ.showProgress(sizeZ, sizeZ);
         return result;
     }
 
@@ -150,50 +193,84 @@ public class Registration
      */
     public static final ImageStack computeTransformedImage(ImageStack refStack, Transform3D transform, ImageStack movingStack)
     {
-        // retrieve result image size
-        Image3D reference = Images3D.createWrapper(refStack);
-        int sizeX = reference.getSize(0);
-        int sizeY = reference.getSize(1);
-        int sizeZ = reference.getSize(2);
-        
-        // size of moving image
-        Image3D movingImage = Images3D.createWrapper(movingStack);
-        int sizeX2 = movingImage.getSize(0);
-        int sizeY2 = movingImage.getSize(1);
-        int sizeZ2 = movingImage.getSize(2);
-        
-        // create result image
-        ImageStack resultStack = ImageStack.create(sizeX, sizeY, sizeZ, reference.getBitDepth());
-        Image3D result = Images3D.createWrapper(resultStack);
-        
-        // iterate over voxels of result image
-        IJ.showStatus("Apply transform to image");
-        for (int z = 0; z < sizeZ; z++)
-        {
-            IJ.showProgress(z, sizeZ);
-            for (int y = 0; y < sizeY; y++)
-            {
-                for (int x = 0; x < sizeX; x++)
-                {
-                    Point3D p = transform.transform(new Point3D(x, y, z));
+        return new Resampler3D(transform).resample(refStack, movingStack);
+    }
 
-                    // nearest-neighbor interpolation
-                    int xi = (int) Math.round(p.x);
-                    int yi = (int) Math.round(p.y);
-                    int zi = (int) Math.round(p.z);
+    /**
+     * Computes the result of a transform applied to an image using a reference
+     * image to define the position of the sampling grid. Slices of the result
+     * image are distributed over the specified number of threads.
+     * 
+     * @param refStack
+     *            the image used for sampling the reference grid
+     * @param transform
+     *            the geometric transformation applied to each point in the
+     *            reference image
+     * @param movingStack
+     *            the image to interpolate
+     * @param nThreads
+     *            the number of threads used for computing the result
+     * @return a new image with the same size as the reference image
+     */
+    public static final ImageStack computeTransformedImage(ImageStack refStack, Transform3D transform, ImageStack movingStack, int nThreads)
+    {
+        Resampler3D resampler = new Resampler3D(transform);
+        resampler.setThreadCount(nThreads);
+        return resampler.resample(refStack, movingStack);
+    }
 
-                    if (xi < 0 || xi >= sizeX2) continue;
-                    if (yi < 0 || yi >= sizeY2) continue;
-                    if (zi < 0 || zi >= sizeZ2) continue;
+    /**
+     * Computes the result of a transform applied to an image using a reference
+     * image to define the position of the sampling grid, and the specified
+     * interpolation method.
+     * 
+     * @param refStack
+     *            the image used for sampling the reference grid
+     * @param transform
+     *            the geometric transformation applied to each point in the
+     *            reference image
+     * @param movingStack
+     *            the image to interpolate
+     * @param interpolation
+     *            the method used to interpolate the values of the moving image
+     * @return a new image with the same size as the reference image
+     */
+    public static final ImageStack computeTransformedImage(ImageStack refStack, Transform3D transform, ImageStack movingStack, Interpolation interpolation)
+    {
+        Resampler3D resampler = new Resampler3D(transform);
+        resampler.setInterpolation(interpolation);
+        return resampler.resample(refStack, movingStack);
+    }
 
-                    result.setValue(x, y, z, movingImage.getValue(xi, yi, zi));
-                }
-            }
+    /**
+     * Computes the display of a reference image together with the result of a
+     * transform applied to a moving image. When the display can combine
+     * images row by row, the result of the transform is not stored, and only
+     * the display image is allocated. Otherwise, the transformed image is
+     * computed first, then combined with the reference image.
+     * 
+     * @param refStack
+     *            the image used for sampling the reference grid
+     * @param transform
+     *            the geometric transformation applied to each point in the
+     *            reference image
+     * @param movingStack
+     *            the image to interpolate
+     * @param display
+     *            the method used to combine the reference and transformed
+     *            images
+     * @return the display of the pair of images, with the same size as the
+     *         reference image
+     */
+    public static final ImageStack computeTransformedDisplay(ImageStack refStack, Transform3D transform, ImageStack movingStack, ImagePairDisplay display)
+    {
+        if (display instanceof RowPairDisplay)
+        {
+            return new Resampler3D(transform).resampleAndCombine(refStack, movingStack, (RowPairDisplay) display);
         }
-        IJ.showStatus("image transformed");
         
-        IJ.showProgress(sizeZ, sizeZ);
-        return resultStack;
+        ImageStack registered = computeTransformedImage(refStack, transform, movingStack);
+        return display.compute(refStack, registered);
     }
 
     public static final void saveRegistration(File file,
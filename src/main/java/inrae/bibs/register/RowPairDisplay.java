@@ -0,0 +1,49 @@
+/**
+ *
+ */
+package inrae.bibs.register;
+
+import ij.process.ImageProcessor;
+
+/**
+ * An ImagePairDisplay that can combine the images row by row, making it
+ * possible to compute the display directly from the rows of the registered
+ * image, without storing the whole registered image.
+ *
+ * For each slice, the result slice is first created from the reference slice,
+ * then each row of the result slice is computed from the corresponding row of
+ * the reference slice and the row of registered values.
+ *
+ * @see inrae.bibs.register.resample.Resampler3D#resampleAndCombine(ij.ImageStack, ij.ImageStack, RowPairDisplay)
+ *
+ * @author dlegland
+ */
+public interface RowPairDisplay extends ImagePairDisplay
+{
+    /**
+     * Creates the slice that will contain the display of the given slice of
+     * the reference image. The values of the slice are computed by the
+     * combineRow method.
+     *
+     * @param refSlice
+     *            a slice of the reference image
+     * @return a new empty slice with the same size as the reference slice
+     */
+    public ImageProcessor createSlice(ImageProcessor refSlice);
+
+    /**
+     * Computes a row of the display, and writes it into the result slice.
+     *
+     * @param refSlice
+     *            the slice of the reference image
+     * @param registeredRow
+     *            an image with one row, with the same width and type as the
+     *            reference slice, containing the values of the registered
+     *            image for the row
+     * @param resSlice
+     *            the slice of the display, created by the createSlice method
+     * @param y
+     *            the index of the row within the slices
+     */
+    public void combineRow(ImageProcessor refSlice, ImageProcessor registeredRow, ImageProcessor resSlice, int y);
+}
@@ -5,6 +5,14 @@ package inrae.bibs.register;
 
 /**
  * The definition of a transformation model.
+ * 
+ * Besides the transform of a single point, the interface provides methods for
+ * transforming a batch of coordinates stored in arrays, either as separate
+ * arrays for each coordinate, or as a single array of interleaved
+ * coordinates. The results are written into arrays provided by the caller,
+ * that may be the same as the input arrays. The default implementations use
+ * the transform of a single point, and are overridden by transforms that can
+ * avoid the creation of intermediate points.
  *  
  * @author dlegland
  */
@@ -12,4 +20,59 @@ public interface Transform2D extends Transform
 {
     public Point2D transform(Point2D point);
 
+    /**
+     * Transforms a batch of points whose coordinates are stored in separate
+     * arrays. The output arrays may be the same as the input arrays, with
+     * xsOut equal to xs and ysOut equal to ys.
+     * 
+     * @param xs
+     *            the x-coordinates of the points
+     * @param ys
+     *            the y-coordinates of the points
+     * @param xsOut
+     *            the array to write the x-coordinates of the transformed points
+     *            into
+     * @param ysOut
+     *            the array to write the y-coordinates of the transformed points
+     *            into
+     * @param n
+     *            the number of points to transform
+     */
+    public default void transform(double[] xs, double[] ys, double[] xsOut, double[] ysOut, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            Point2D p = transform(new Point2D(xs[i], ys[i]));
+            xsOut[i] = p.getX();
+            ysOut[i] = p.getY();
+        }
+    }
+
+    /**
+     * Transforms a batch of points whose coordinates are interleaved within a
+     * single array, as x0, y0, x1, y1... The output array may be the same as
+     * the input array, using the same offset. Other overlapping ranges within
+     * the same array are not supported.
+     * 
+     * @param coords
+     *            the coordinates of the points
+     * @param srcOffset
+     *            the index of the first coordinate within the input array
+     * @param coordsOut
+     *            the array to write the coordinates of the transformed points
+     *            into
+     * @param dstOffset
+     *            the index of the first coordinate within the output array
+     * @param n
+     *            the number of points to transform
+     */
+    public default void transform(double[] coords, int srcOffset, double[] coordsOut, int dstOffset, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            Point2D p = transform(new Point2D(coords[srcOffset + 2 * i], coords[srcOffset + 2 * i + 1]));
+            coordsOut[dstOffset + 2 * i] = p.getX();
+            coordsOut[dstOffset + 2 * i + 1] = p.getY();
+        }
+    }
 }
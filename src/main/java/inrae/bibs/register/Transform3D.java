@@ -5,11 +5,79 @@ package inrae.bibs.register;
 
 /**
  * The definition of a transformation model in 3D.
+ * 
+ * As for Transform2D, batches of coordinates stored in separate or interleaved
+ * arrays can be transformed with a single call, without creating intermediate
+ * points when the transform overrides the default implementations.
  *  
+ * @see Transform2D
+ * 
  * @author dlegland
  */
 public interface Transform3D extends Transform
 {
     public Point3D transform(Point3D point);
 
+    /**
+     * Transforms a batch of points whose coordinates are stored in separate
+     * arrays. The output arrays may be the same as the input arrays.
+     * 
+     * @param xs
+     *            the x-coordinates of the points
+     * @param ys
+     *            the y-coordinates of the points
+     * @param zs
+     *            the z-coordinates of the points
+     * @param xsOut
+     *            the array to write the x-coordinates of the transformed points
+     *            into
+     * @param ysOut
+     *            the array to write the y-coordinates of the transformed points
+     *            into
+     * @param zsOut
+     *            the array to write the z-coordinates of the transformed points
+     *            into
+     * @param n
+     *            the number of points to transform
+     */
+    public default void transform(double[] xs, double[] ys, double[] zs,
+            double[] xsOut, double[] ysOut, double[] zsOut, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            Point3D p = transform(new Point3D(xs[i], ys[i], zs[i]));
+            xsOut[i] = p.getX();
+            ysOut[i] = p.getY();
+            zsOut[i] = p.getZ();
+        }
+    }
+
+    /**
+     * Transforms a batch of points whose coordinates are interleaved within a
+     * single array, as x0, y0, z0, x1, y1, z1... The output array may be the
+     * same as the input array, using the same offset.
+     * 
+     * @param coords
+     *            the coordinates of the points
+     * @param srcOffset
+     *            the index of the first coordinate within the input array
+     * @param coordsOut
+     *            the array to write the coordinates of the transformed points
+     *            into
+     * @param dstOffset
+     *            the index of the first coordinate within the output array
+     * @param n
+     *            the number of points to transform
+     */
+    public default void transform(double[] coords, int srcOffset, double[] coordsOut, int dstOffset, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            int i3 = 3 * i;
+            Point3D p = transform(new Point3D(coords[srcOffset + i3], coords[srcOffset + i3 + 1], coords[srcOffset + i3 + 2]));
+            coordsOut[dstOffset + i3] = p.getX();
+            coordsOut[dstOffset + i3 + 1] = p.getY();
+            coordsOut[dstOffset + i3 + 2] = p.getZ();
+        }
+    }
 }
@@ -7,8 +7,9 @@ import ij.IJ;
 import ij.ImageStack;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
-import inrae.bibs.register.ImagePairDisplay;
+import inrae.bibs.register.RowPairDisplay;
 import inrae.bibs.register.image.Images3D;
+import inrae.bibs.util.Parallel;
 
 /**
  * Display the combination of two input images using a checker board display.
@@ -18,7 +19,7 @@ import inrae.bibs.register.image.Images3D;
  * @author dlegland
  *
  */
-public class CheckerBoardDisplay implements ImagePairDisplay
+public class CheckerBoardDisplay implements RowPairDisplay
 {
     int tileSizeX;
     int tileSizeY;
@@ -50,31 +51,67 @@ public class CheckerBoardDisplay implements ImagePairDisplay
         
         ByteProcessor result = new ByteProcessor(sizeX, sizeY);
         
-        for (int y = 0; y < sizeY; y++)
+        // process rows by bands, in parallel
+        Parallel.forEachChunk(sizeY, Parallel.defaultThreadCount(), (y0, y1) -> 
         {
-            int tileIndexY = (int) Math.floor(((double) y) / tileSizeY);
-            boolean oddY = (tileIndexY & 0x01) > 0;
-            
-            for (int x = 0; x < sizeX; x++)
+            for (int y = y0; y < y1; y++)
             {
-                int tileIndexX = (int) Math.floor(((double) x) / tileSizeX);
-                boolean oddX = (tileIndexX & 0x01) > 0;
-                
-                // "^" stands for "exclusive or"
-                if (oddX ^ oddY)
-                {
-                    result.set(x, y, image1.get(x, y));
-                }
-                else
+                int tileIndexY = (int) Math.floor(((double) y) / tileSizeY);
+                boolean oddY = (tileIndexY & 0x01) > 0;
+            
+                for (int x = 0; x < sizeX; x++)
                 {
-                    result.set(x, y, image2.get(x, y));
+                    int tileIndexX = (int) Math.floor(((double) x) / tileSizeX);
+                    boolean oddX = (tileIndexX & 0x01) > 0;
+                
+                    // "^" stands for "exclusive or"
+                    if (oddX ^ oddY)
+                    {
+                        result.set(x, y, image1.get(x, y));
+                    }
+                    else
+                    {
+                        result.set(x, y, image2.get(x, y));
+                    }
                 }
             }
-        }
+        });
 
         return result;
     }
 
+    @Override
+    public ImageProcessor createSlice(ImageProcessor refSlice)
+    {
+        if (!(refSlice instanceof ByteProcessor))
+        {
+            throw new RuntimeException("Input images must be instances of ByteProcessor");
+        }
+        return new ByteProcessor(refSlice.getWidth(), refSlice.getHeight());
+    }
+
+    @Override
+    public void combineRow(ImageProcessor refSlice, ImageProcessor registeredRow, ImageProcessor resSlice, int y)
+    {
+        byte[] pixels1 = (byte[]) refSlice.getPixels();
+        byte[] row2 = (byte[]) registeredRow.getPixels();
+        byte[] res = (byte[]) resSlice.getPixels();
+        
+        int tileIndexY = (int) Math.floor(((double) y) / tileSizeY);
+        boolean oddY = (tileIndexY & 0x01) > 0;
+        
+        int sizeX = refSlice.getWidth();
+        int offset = y * sizeX;
+        for (int x = 0; x < sizeX; x++)
+        {
+            int tileIndexX = (int) Math.floor(((double) x) / tileSizeX);
+            boolean oddX = (tileIndexX & 0x01) > 0;
+            
+            // "^" stands for "exclusive or"
+            res[offset + x] = (oddX ^ oddY) ? pixels1[offset + x] : row2[x];
+        }
+    }
+
     @Override
     public ImageStack compute(ImageStack image1, ImageStack image2)
     {
@@ -95,6 +132,7 @@ public class CheckerBoardDisplay implements ImagePairDisplay
         // iterate on slices
         for (int z = 0; z < sizeZ; z++)
         {
+            Parallel.checkCancelled();
             IJ.showProgress(z, sizeZ);
             ImageProcessor slice1 = image1.getProcessor(z + 1);
             ImageProcessor slice2 = image2.getProcessor(z + 1);
@@ -5,9 +5,11 @@ package inrae.bibs.register.display;
 
 import ij.IJ;
 import ij.ImageStack;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
-import inrae.bibs.register.ImagePairDisplay;
+import inrae.bibs.register.RowPairDisplay;
 import inrae.bibs.register.image.Images3D;
+import inrae.bibs.util.Parallel;
 
 /**
  * Display the combination of two input images by computing the difference of
@@ -16,7 +18,7 @@ import inrae.bibs.register.image.Images3D;
  * @author dlegland
  *
  */
-public class DifferenceOfIntensitiesDisplay implements ImagePairDisplay
+public class DifferenceOfIntensitiesDisplay implements RowPairDisplay
 {
     @Override
     public ImageProcessor compute(ImageProcessor image1, ImageProcessor image2)
@@ -30,20 +32,45 @@ public class DifferenceOfIntensitiesDisplay implements ImagePairDisplay
         
         ImageProcessor result = image1.createProcessor(sizeX, sizeY);
         
-        for (int y = 0; y < sizeY; y++)
+        // process rows by bands, in parallel
+        Parallel.forEachChunk(sizeY, Parallel.defaultThreadCount(), (y0, y1) -> 
         {
-            for (int x = 0; x < sizeX; x++)
+            for (int y = y0; y < y1; y++)
             {
-                float v1 = image1.getf(x, y);
-                float v2 = image2.getf(x, y);
-                result.setf(x, y, (float) ((v1 - v2) * 0.5 + 127.0));
+                for (int x = 0; x < sizeX; x++)
+                {
+                    float v1 = image1.getf(x, y);
+                    float v2 = image2.getf(x, y);
+                    result.setf(x, y, (float) ((v1 - v2) * 0.5 + 127.0));
+                }
             }
-        }
+        });
         
         result.setMinAndMax(0, 255);
         return result;
     }
 
+    /**
+     * Creates a byte slice, as for the display of 3D images.
+     */
+    @Override
+    public ImageProcessor createSlice(ImageProcessor refSlice)
+    {
+        return new ByteProcessor(refSlice.getWidth(), refSlice.getHeight());
+    }
+
+    @Override
+    public void combineRow(ImageProcessor refSlice, ImageProcessor registeredRow, ImageProcessor resSlice, int y)
+    {
+        int sizeX = refSlice.getWidth();
+        for (int x = 0; x < sizeX; x++)
+        {
+            float v1 = refSlice.getf(x, y);
+            float v2 = registeredRow.getf(x, 0);
+            resSlice.setf(x, y, (float) ((v1 - v2) * 0.5 + 127.0));
+        }
+    }
+
     @Override
     public ImageStack compute(ImageStack image1, ImageStack image2)
     {
@@ -64,6 +91,7 @@ public class DifferenceOfIntensitiesDisplay implements ImagePairDisplay
         // iterate on slices
         for (int z = 0; z < sizeZ; z++)
         {
+            Parallel.checkCancelled();
             IJ.showProgress(z, sizeZ);
             ImageProcessor slice1 = image1.getProcessor(z + 1);
             ImageProcessor slice2 = image2.getProcessor(z + 1);
@@ -0,0 +1,529 @@
+/**
+ *
+ */
+package inrae.bibs.register.display;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.function.IntConsumer;
+
+import javax.swing.SwingUtilities;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import inrae.bibs.register.ImagePairDisplay;
+import inrae.bibs.register.RowPairDisplay;
+import inrae.bibs.register.Transform3D;
+import inrae.bibs.register.resample.Interpolation;
+import inrae.bibs.register.resample.Resampler3D;
+
+/**
+ * A virtual stack that displays the result of a registration, computing each
+ * slice only when it is accessed.
+ *
+ * When a slice is requested, the corresponding slice of the moving image is
+ * resampled using the transform, and combined with the slice of the reference
+ * image using the display. Computed slices are kept in a cache with limited
+ * capacity, the least recently used slices being discarded first. After each
+ * access, the neighbor slices are computed in background, such that browsing
+ * the stack does not wait for computation.
+ *
+ * The event dispatch thread never waits for the computation of a slice. When
+ * a slice that is not computed yet is accessed from the event dispatch
+ * thread, an empty placeholder slice is returned, and the slice is computed
+ * by a dedicated background thread, with priority over the neighbor slices.
+ * When the slice is available, the slice listener is called on the event
+ * dispatch thread, typically to refresh the display. The slices to display
+ * first can be computed beforehand from another thread using the
+ * prefetchSlice method.
+ *
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	ImageStack stack = new LazyResultStack(refStack, movingStack, transform, new MagentaGreenDisplay());
+ *	new ImagePlus("Result", stack).show();
+ *}</pre>
+ *
+ * @author dlegland
+ *
+ */
+public class LazyResultStack extends VirtualStack
+{
+    // ===================================================================
+    // Static members
+
+    /** The default number of slices kept in cache */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    /** The default number of slices computed in background on each side of the accessed slice */
+    public static final int DEFAULT_PREFETCH_RADIUS = 2;
+
+    /**
+     * The thread used for computing slices in background, shared by all
+     * instances.
+     */
+    private static ExecutorService prefetcher = null;
+
+    private static synchronized ExecutorService prefetcher()
+    {
+        if (prefetcher == null)
+        {
+            prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Simple_Register prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return prefetcher;
+    }
+
+    /**
+     * The thread used for computing the slices accessed from the event
+     * dispatch thread, shared by all instances.
+     */
+    private static ExecutorService requester = null;
+
+    private static synchronized ExecutorService requester()
+    {
+        if (requester == null)
+        {
+            requester = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Simple_Register slice");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return requester;
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The image used for sampling the reference grid */
+    final ImageStack refStack;
+
+    /** The image to interpolate */
+    final ImageStack movingStack;
+
+    /** Computes the slices of the transformed moving image */
+    final Resampler3D resampler;
+
+    /** Combines the slices of the reference and transformed images */
+    final ImagePairDisplay display;
+
+    /** The number of slices computed in background on each side of the accessed slice */
+    int prefetchRadius = DEFAULT_PREFETCH_RADIUS;
+
+    /**
+     * The slices computed or being computed, indexed by slice index (starting
+     * from 1), in access order.
+     */
+    final LinkedHashMap<Integer, FutureTask<ImageProcessor>> cache;
+
+    /** The bit depth of the display, or 0 if it is not known yet */
+    volatile int bitDepth = 0;
+
+    /**
+     * The last slice accessed from the event dispatch thread. The slices
+     * requested before are not computed by the dedicated thread anymore.
+     */
+    volatile int requestedSlice = 0;
+
+    /**
+     * The operation called on the event dispatch thread when a slice
+     * accessed from the event dispatch thread has been computed, or null.
+     */
+    IntConsumer sliceListener = null;
+
+    /** Indicates whether slices should not be computed in background anymore */
+    volatile boolean disposed = false;
+
+
+    // ===================================================================
+    // Constructors
+
+    /**
+     * Creates a new lazy stack, keeping at most DEFAULT_CAPACITY slices in
+     * cache.
+     *
+     * @param refStack
+     *            the image used for sampling the reference grid
+     * @param movingStack
+     *            the image to interpolate
+     * @param transform
+     *            the geometric transformation applied to each point in the
+     *            reference image
+     * @param display
+     *            the method used to combine the reference and transformed
+     *            images
+     */
+    public LazyResultStack(ImageStack refStack, ImageStack movingStack, Transform3D transform, ImagePairDisplay display)
+    {
+        this(refStack, movingStack, transform, display, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new lazy stack, keeping at most the specified number of slices
+     * in cache.
+     *
+     * @param refStack
+     *            the image used for sampling the reference grid
+     * @param movingStack
+     *            the image to interpolate
+     * @param transform
+     *            the geometric transformation applied to each point in the
+     *            reference image
+     * @param display
+     *            the method used to combine the reference and transformed
+     *            images
+     * @param capacity
+     *            the maximum number of slices kept in cache
+     */
+    public LazyResultStack(ImageStack refStack, ImageStack movingStack, Transform3D transform, ImagePairDisplay display, int capacity)
+    {
+        super(refStack.getWidth(), refStack.getHeight());
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("Cache capacity must be positive, not " + capacity);
+        }
+
+        this.refStack = refStack;
+        this.movingStack = movingStack;
+        this.resampler = new Resampler3D(transform);
+        this.display = display;
+
+        this.cache = new LinkedHashMap<Integer, FutureTask<ImageProcessor>>(capacity * 2, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, FutureTask<ImageProcessor>> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+
+    // ===================================================================
+    // Accessors
+
+    public int getPrefetchRadius()
+    {
+        return prefetchRadius;
+    }
+
+    /**
+     * @param prefetchRadius
+     *            the number of slices computed in background on each side of
+     *            the accessed slice, or 0 to disable computation in background
+     */
+    public void setPrefetchRadius(int prefetchRadius)
+    {
+        if (prefetchRadius < 0)
+        {
+            throw new IllegalArgumentException("Prefetch radius must be positive or zero, not " + prefetchRadius);
+        }
+        this.prefetchRadius = prefetchRadius;
+    }
+
+    public Interpolation getInterpolation()
+    {
+        return resampler.getInterpolation();
+    }
+
+    /**
+     * Changes the method used to interpolate the moving image. The slices
+     * already computed are discarded.
+     *
+     * @param interpolation
+     *            the interpolation method
+     */
+    public void setInterpolation(Interpolation interpolation)
+    {
+        synchronized (cache)
+        {
+            resampler.setInterpolation(interpolation);
+            cache.clear();
+        }
+    }
+
+    /**
+     * Sets the operation called on the event dispatch thread with the index
+     * of a slice accessed from the event dispatch thread, once the slice has
+     * been computed. The operation typically refreshes the display of the
+     * slice, replacing the placeholder.
+     *
+     * @param listener
+     *            the operation to call, or null
+     */
+    public void setSliceListener(IntConsumer listener)
+    {
+        this.sliceListener = listener;
+    }
+
+    /**
+     * Stops the computation of neighbor slices in background. Slices can
+     * still be accessed, and are computed within the calling thread, or in
+     * background when accessed from the event dispatch thread.
+     */
+    public void dispose()
+    {
+        this.disposed = true;
+    }
+
+
+    // ===================================================================
+    // Computation of slices
+
+    /**
+     * Returns the task computing the specified slice, creating it if
+     * necessary.
+     *
+     * @param n
+     *            the index of the slice, starting from 1
+     * @param created
+     *            an array of one element, set to true if the task was created
+     * @return the task computing the slice
+     */
+    private FutureTask<ImageProcessor> getTask(int n, boolean[] created)
+    {
+        synchronized (cache)
+        {
+            FutureTask<ImageProcessor> task = cache.get(n);
+            created[0] = task == null;
+            if (task == null)
+            {
+                task = new FutureTask<ImageProcessor>(() -> computeSlice(n));
+                cache.put(n, task);
+            }
+            return task;
+        }
+    }
+
+    private ImageProcessor computeSlice(int n)
+    {
+        ImageProcessor result;
+        if (display instanceof RowPairDisplay)
+        {
+            // avoid the computation of the whole registered slice
+            result = resampler.resampleAndCombineSlice(refStack, movingStack, (RowPairDisplay) display, n - 1);
+        }
+        else
+        {
+            ImageProcessor registered = resampler.resampleSlice(refStack, movingStack, n - 1);
+            result = display.compute(refStack.getProcessor(n), registered);
+        }
+        this.bitDepth = result.getBitDepth();
+        return result;
+    }
+
+    /**
+     * Computes in background the slices around the specified slice that are
+     * not yet in cache.
+     */
+    private void prefetch(int n)
+    {
+        int nSlices = getSize();
+        boolean[] created = new boolean[1];
+        for (int d = 1; d <= prefetchRadius; d++)
+        {
+            for (int n2 : new int[] {n + d, n - d})
+            {
+                if (n2 < 1 || n2 > nSlices)
+                {
+                    continue;
+                }
+                FutureTask<ImageProcessor> task = getTask(n2, created);
+                if (created[0])
+                {
+                    prefetcher().execute(() ->
+                    {
+                        if (!disposed)
+                        {
+                            task.run();
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Computes a slice accessed from the event dispatch thread on the
+     * dedicated thread, unless another slice has been accessed in the
+     * meantime, and calls the slice listener when the slice is available.
+     */
+    private void requestSlice(int n, FutureTask<ImageProcessor> task)
+    {
+        requester().execute(() ->
+        {
+            if (n != this.requestedSlice)
+            {
+                return;
+            }
+
+            // running a task already computed or being computed has no effect
+            task.run();
+            SwingUtilities.invokeLater(() ->
+            {
+                if (this.sliceListener != null && task.isDone())
+                {
+                    this.sliceListener.accept(n);
+                }
+            });
+        });
+    }
+
+    /**
+     * Computes the specified slice within the calling thread if it is not in
+     * cache, and waits for the result. This method is intended to be called
+     * from a background thread before displaying the stack, such that the
+     * first displayed slice and the bit depth are known without computation
+     * on the event dispatch thread.
+     *
+     * @param n
+     *            the index of the slice, starting from 1
+     */
+    public void prefetchSlice(int n)
+    {
+        if (n < 1 || n > getSize())
+        {
+            throw new IllegalArgumentException("Slice index out of bounds: " + n);
+        }
+
+        boolean[] created = new boolean[1];
+        FutureTask<ImageProcessor> task = getTask(n, created);
+        task.run();
+        waitFor(n, task);
+    }
+
+    /**
+     * Waits for the task computing the specified slice, and returns its
+     * result. If the computation failed, the task is removed from the cache
+     * such that the slice can be computed again.
+     */
+    private ImageProcessor waitFor(int n, FutureTask<ImageProcessor> task)
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        catch (ExecutionException ex)
+        {
+            // discard the failed task, so that it can be computed again
+            synchronized (cache)
+            {
+                cache.remove(n, task);
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+
+    // ===================================================================
+    // Override VirtualStack methods
+
+    /**
+     * Returns the processor for the specified slice, computing it if
+     * necessary. When called from the event dispatch thread, the slice is
+     * computed in background, and an empty placeholder slice is returned
+     * until the slice is available.
+     *
+     * @param n
+     *            the index of the slice, starting from 1
+     * @return the processor containing the display of the slice
+     */
+    @Override
+    public ImageProcessor getProcessor(int n)
+    {
+        if (n < 1 || n > getSize())
+        {
+            throw new IllegalArgumentException("Slice index out of bounds: " + n);
+        }
+
+        boolean[] created = new boolean[1];
+        FutureTask<ImageProcessor> task = getTask(n, created);
+
+        if (SwingUtilities.isEventDispatchThread())
+        {
+            this.requestedSlice = n;
+            if (!task.isDone())
+            {
+                requestSlice(n, task);
+                if (!disposed)
+                {
+                    prefetch(n);
+                }
+                return ImageStack.create(getWidth(), getHeight(), 1, getBitDepth()).getProcessor(1);
+            }
+        }
+        else
+        {
+            // compute the slice within the calling thread, unless it is (or
+            // is being) computed in background
+            task.run();
+        }
+
+        if (!disposed)
+        {
+            prefetch(n);
+        }
+
+        return waitFor(n, task);
+    }
+
+    @Override
+    public Object getPixels(int n)
+    {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public int getSize()
+    {
+        return refStack.getSize();
+    }
+
+    @Override
+    public int size()
+    {
+        return getSize();
+    }
+
+    @Override
+    public String getSliceLabel(int n)
+    {
+        return null;
+    }
+
+    /**
+     * Returns the bit depth of the display. If no slice has been computed
+     * yet, the bit depth is obtained by computing the display of images with
+     * a single voxel, such that no slice is computed.
+     *
+     * @return the bit depth of the display
+     */
+    @Override
+    public int getBitDepth()
+    {
+        if (this.bitDepth == 0)
+        {
+            ImageProcessor voxel = ImageStack.create(1, 1, 1, refStack.getBitDepth()).getProcessor(1);
+            this.bitDepth = display.compute(voxel, voxel.duplicate()).getBitDepth();
+        }
+        return this.bitDepth;
+    }
+}
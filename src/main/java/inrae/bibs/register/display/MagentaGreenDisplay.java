@@ -8,8 +8,9 @@ import ij.ImageStack;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
-import inrae.bibs.register.ImagePairDisplay;
+import inrae.bibs.register.RowPairDisplay;
 import inrae.bibs.register.image.Images3D;
+import inrae.bibs.util.Parallel;
 
 /**
  * Display a pair of registered images as a color image, the first one in red
@@ -21,7 +22,7 @@ import inrae.bibs.register.image.Images3D;
  * @author dlegland
  *
  */
-public class MagentaGreenDisplay implements ImagePairDisplay
+public class MagentaGreenDisplay implements RowPairDisplay
 {
 
     @Override
@@ -45,19 +46,48 @@ public class MagentaGreenDisplay implements ImagePairDisplay
         
         ColorProcessor result = new ColorProcessor(sizeX, sizeY);
         
-        for (int y = 0; y < sizeY; y++)
+        // process rows by bands, in parallel
+        Parallel.forEachChunk(sizeY, Parallel.defaultThreadCount(), (y0, y1) -> 
         {
-            for (int x = 0; x < sizeX; x++)
+            for (int y = y0; y < y1; y++)
             {
-                int v1 = image1.get(x, y);
-                int v2 = image2.get(x, y);
-                result.set(x, y, intCode(v1, v2));
+                for (int x = 0; x < sizeX; x++)
+                {
+                    int v1 = image1.get(x, y);
+                    int v2 = image2.get(x, y);
+                    result.set(x, y, intCode(v1, v2));
+                }
             }
-        }
+        });
 
         return result;
     }
     
+    @Override
+    public ImageProcessor createSlice(ImageProcessor refSlice)
+    {
+        if (!(refSlice instanceof ByteProcessor))
+        {
+            throw new RuntimeException("Input images must be instances of ByteProcessor");
+        }
+        return new ColorProcessor(refSlice.getWidth(), refSlice.getHeight());
+    }
+
+    @Override
+    public void combineRow(ImageProcessor refSlice, ImageProcessor registeredRow, ImageProcessor resSlice, int y)
+    {
+        byte[] pixels1 = (byte[]) refSlice.getPixels();
+        byte[] row2 = (byte[]) registeredRow.getPixels();
+        int[] res = (int[]) resSlice.getPixels();
+        
+        int sizeX = refSlice.getWidth();
+        int offset = y * sizeX;
+        for (int x = 0; x < sizeX; x++)
+        {
+            res[offset + x] = intCode(pixels1[offset + x], row2[x]);
+        }
+    }
+    
     private static final int intCode(int v1, int v2)
     {
         return (v1 & 0x00FF) << 16 | (v2 & 0x00FF) << 8 | (v1 & 0x00FF); 
@@ -83,6 +113,7 @@ public class MagentaGreenDisplay implements ImagePairDisplay
         // iterate on slices
         for (int z = 0; z < sizeZ; z++)
         {
+            Parallel.checkCancelled();
             IJ.showProgress(z, sizeZ);
             ImageProcessor slice1 = image1.getProcessor(z + 1);
             ImageProcessor slice2 = image2.getProcessor(z + 1);
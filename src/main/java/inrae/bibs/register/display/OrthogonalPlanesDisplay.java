@@ -0,0 +1,212 @@
+/**
+ *
+ */
+package inrae.bibs.register.display;
+
+import java.awt.Color;
+
+import ij.ImageStack;
+import ij.gui.Line;
+import ij.gui.Overlay;
+import ij.process.ImageProcessor;
+import inrae.bibs.register.ImagePairDisplay;
+import inrae.bibs.register.Transform3D;
+import inrae.bibs.register.resample.Resampler3D;
+import inrae.bibs.register.resample.Resampler3D.Plane;
+import inrae.bibs.register.transforms.Translation3D;
+import inrae.bibs.util.Parallel;
+
+/**
+ * Displays the result of a 3D registration on the three orthogonal planes
+ * going through a cursor position, without computing the whole result image.
+ *
+ * The three planes are combined into a single image, with the XY plane in the
+ * upper-left corner, the YZ plane on its right, and the XZ plane below it, as
+ * in the "Orthogonal Views" of ImageJ.
+ *
+ * <pre>
+ * +--------+---+
+ * |   XY   |YZ |
+ * +--------+---+
+ * |   XZ   |
+ * +--------+
+ * </pre>
+ *
+ * @author dlegland
+ *
+ */
+public class OrthogonalPlanesDisplay
+{
+    // ===================================================================
+    // Static members
+
+    /** The number of pixels between the planes within the result image */
+    public static final int GAP = 4;
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The image used for sampling the reference grid */
+    final ImageStack refStack;
+
+    /** The image to interpolate */
+    final ImageStack movingStack;
+
+    /** The size of the reference image */
+    final int sizeX;
+    final int sizeY;
+    final int sizeZ;
+
+
+    // ===================================================================
+    // Constructor
+
+    /**
+     * Creates a new display of orthogonal planes for the given pair of images.
+     *
+     * @param refStack
+     *            the image used for sampling the reference grid
+     * @param movingStack
+     *            the image to interpolate
+     */
+    public OrthogonalPlanesDisplay(ImageStack refStack, ImageStack movingStack)
+    {
+        this.refStack = refStack;
+        this.movingStack = movingStack;
+        this.sizeX = refStack.getWidth();
+        this.sizeY = refStack.getHeight();
+        this.sizeZ = refStack.getSize();
+    }
+
+
+    // ===================================================================
+    // Methods
+
+    /**
+     * Computes the display of the three orthogonal planes going through the
+     * cursor position.
+     *
+     * @param transform
+     *            the geometric transformation applied to each point in the
+     *            reference image
+     * @param display
+     *            the method used to combine the reference and transformed
+     *            images
+     * @param x
+     *            the x-coordinate of the cursor
+     * @param y
+     *            the y-coordinate of the cursor
+     * @param z
+     *            the z-coordinate of the cursor
+     * @return the image containing the display of the three planes
+     */
+    public ImageProcessor compute(Transform3D transform, ImagePairDisplay display, int x, int y, int z)
+    {
+        // the reference planes are obtained by applying identity
+        Resampler3D identity = new Resampler3D(new Translation3D(0, 0, 0));
+        Resampler3D resampler = new Resampler3D(transform);
+
+        ImageProcessor[] planes = new ImageProcessor[3];
+        int[] positions = new int[] {z, y, x};
+        Plane[] orientations = new Plane[] {Plane.XY, Plane.XZ, Plane.YZ};
+        for (int i = 0; i < 3; i++)
+        {
+            Parallel.checkCancelled();
+            ImageProcessor refPlane = identity.resamplePlane(refStack, refStack, orientations[i], positions[i]);
+            ImageProcessor registered = resampler.resamplePlane(refStack, movingStack, orientations[i], positions[i]);
+            planes[i] = display.compute(refPlane, registered);
+        }
+
+        // combine the three planes into a single image
+        ImageProcessor result = planes[0].createProcessor(getWidth(), getHeight());
+        result.insert(planes[0], 0, 0);
+        result.insert(planes[1], 0, sizeY + GAP);
+        result.insert(planes[2], sizeX + GAP, 0);
+        return result;
+    }
+
+    /**
+     * Creates an overlay showing the position of the cursor on each plane.
+     *
+     * @param x
+     *            the x-coordinate of the cursor
+     * @param y
+     *            the y-coordinate of the cursor
+     * @param z
+     *            the z-coordinate of the cursor
+     * @return an overlay containing the lines of the cursor
+     */
+    public Overlay createCursorOverlay(int x, int y, int z)
+    {
+        double xc = x + 0.5;
+        double yc = y + 0.5;
+        double zc = z + 0.5;
+        int x2 = sizeX + GAP;
+        int y2 = sizeY + GAP;
+
+        Overlay overlay = new Overlay();
+        overlay.add(new Line(xc, 0, xc, sizeY));
+        overlay.add(new Line(0, yc, sizeX, yc));
+        overlay.add(new Line(xc, y2, xc, y2 + sizeZ));
+        overlay.add(new Line(0, y2 + zc, sizeX, y2 + zc));
+        overlay.add(new Line(x2 + zc, 0, x2 + zc, sizeY));
+        overlay.add(new Line(x2, yc, x2 + sizeZ, yc));
+        overlay.setStrokeColor(Color.YELLOW);
+        return overlay;
+    }
+
+    /**
+     * Converts a position within the display into a new cursor position. The
+     * coordinate that does not correspond to the clicked plane is kept from
+     * the current cursor.
+     *
+     * @param px
+     *            the x-coordinate of the position within the display
+     * @param py
+     *            the y-coordinate of the position within the display
+     * @param cursor
+     *            the current position of the cursor, as an array of three
+     *            coordinates
+     * @return the new position of the cursor, or null if the position is not
+     *         within one of the planes
+     */
+    public int[] cursorPosition(int px, int py, int[] cursor)
+    {
+        if (px < 0 || py < 0)
+        {
+            return null;
+        }
+        if (px < sizeX && py < sizeY)
+        {
+            return new int[] {px, py, cursor[2]};
+        }
+        int qy = py - sizeY - GAP;
+        if (px < sizeX && qy >= 0 && qy < sizeZ)
+        {
+            return new int[] {px, cursor[1], qy};
+        }
+        int qx = px - sizeX - GAP;
+        if (qx >= 0 && qx < sizeZ && py < sizeY)
+        {
+            return new int[] {cursor[0], py, qx};
+        }
+        return null;
+    }
+
+    /**
+     * @return the width of the image containing the three planes.
+     */
+    public int getWidth()
+    {
+        return sizeX + GAP + sizeZ;
+    }
+
+    /**
+     * @return the height of the image containing the three planes.
+     */
+    public int getHeight()
+    {
+        return sizeY + GAP + sizeZ;
+    }
+}
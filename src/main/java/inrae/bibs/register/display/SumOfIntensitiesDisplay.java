@@ -6,8 +6,9 @@ package inrae.bibs.register.display;
 import ij.IJ;
 import ij.ImageStack;
 import ij.process.ImageProcessor;
-import inrae.bibs.register.ImagePairDisplay;
+import inrae.bibs.register.RowPairDisplay;
 import inrae.bibs.register.image.Images3D;
+import inrae.bibs.util.Parallel;
 
 /**
  * Display the combination of two input images by summing intensities of both
@@ -16,7 +17,7 @@ import inrae.bibs.register.image.Images3D;
  * @author dlegland
  *
  */
-public class SumOfIntensitiesDisplay implements ImagePairDisplay
+public class SumOfIntensitiesDisplay implements RowPairDisplay
 {
     @Override
     public ImageProcessor compute(ImageProcessor image1, ImageProcessor image2)
@@ -30,19 +31,45 @@ public class SumOfIntensitiesDisplay implements ImagePairDisplay
         
         ImageProcessor result = image1.createProcessor(sizeX, sizeY);
         
-        for (int y = 0; y < sizeY; y++)
+        // process rows by bands, in parallel
+        Parallel.forEachChunk(sizeY, Parallel.defaultThreadCount(), (y0, y1) -> 
         {
-            for (int x = 0; x < sizeX; x++)
+            for (int y = y0; y < y1; y++)
             {
-                float v1 = image1.getf(x, y);
-                float v2 = image2.getf(x, y);
-                result.setf(x, y, v1 + v2);
+                for (int x = 0; x < sizeX; x++)
+                {
+                    float v1 = image1.getf(x, y);
+                    float v2 = image2.getf(x, y);
+                    result.setf(x, y, v1 + v2);
+                }
             }
-        }
+        });
 
         return result;
     }
 
+    /**
+     * Creates a slice with the same type as the reference slice, as for the
+     * compute method.
+     */
+    @Override
+    public ImageProcessor createSlice(ImageProcessor refSlice)
+    {
+        return refSlice.createProcessor(refSlice.getWidth(), refSlice.getHeight());
+    }
+
+    @Override
+    public void combineRow(ImageProcessor refSlice, ImageProcessor registeredRow, ImageProcessor resSlice, int y)
+    {
+        int sizeX = refSlice.getWidth();
+        for (int x = 0; x < sizeX; x++)
+        {
+            float v1 = refSlice.getf(x, y);
+            float v2 = registeredRow.getf(x, 0);
+            resSlice.setf(x, y, v1 + v2);
+        }
+    }
+
     @Override
     public ImageStack compute(ImageStack image1, ImageStack image2)
     {
@@ -57,12 +84,13 @@ public class SumOfIntensitiesDisplay implements ImagePairDisplay
         int sizeY = image1.getHeight();
         int sizeZ = image1.getSize();
         
-        // allocate result
-        ImageStack result = ImageStack.create(sizeX, sizeY, sizeZ, 32);
+        // allocate result, with the type of the slices computed by the 2D method
+        ImageStack result = ImageStack.create(sizeX, sizeY, sizeZ, image1.getBitDepth());
         
         // iterate on slices
         for (int z = 0; z < sizeZ; z++)
         {
+            Parallel.checkCancelled();
             IJ.showProgress(z, sizeZ);
             ImageProcessor slice1 = image1.getProcessor(z + 1);
             ImageProcessor slice2 = image2.getProcessor(z + 1);
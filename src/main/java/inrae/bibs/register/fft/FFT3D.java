@@ -0,0 +1,328 @@
+/**
+ *
+ */
+package inrae.bibs.register.fft;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import inrae.bibs.util.Parallel;
+
+/**
+ * The discrete Fourier transform of real 3D arrays, computed as a real
+ * transform along the X direction followed by complex transforms along the Y
+ * and Z directions. Planar arrays are obtained with a size of one along the Z
+ * direction.
+ *
+ * Real arrays contain sizeX * sizeY * sizeZ values, with the X index varying
+ * fastest. As the transform of a real array has hermitian symmetry, only the
+ * coefficients with X frequency between 0 and sizeX/2 are computed. They are
+ * stored within separate arrays of real and imaginary parts, containing
+ * (sizeX/2+1) * sizeY * sizeZ values, again with the X index varying fastest.
+ *
+ * The lines along each direction are processed in parallel. The plans and the
+ * work arrays of the threads are kept by the transform, such that repeated
+ * transforms of arrays with the same size do not allocate memory.
+ *
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	FFT3D fft = new FFT3D(sizeX, sizeY, sizeZ);
+ *	double[] re = new double[fft.spectrumLength()];
+ *	double[] im = new double[fft.spectrumLength()];
+ *	fft.forward(values, re, im);
+ *	// (process the coefficients)
+ *	fft.inverse(re, im, values);
+ *}</pre>
+ *
+ * @see FFTPlan
+ * @see RealFFTPlan
+ *
+ * @author dlegland
+ *
+ */
+public class FFT3D
+{
+    // ===================================================================
+    // Inner classes
+
+    /**
+     * The work arrays used by a thread for the transform of a line.
+     */
+    private static final class Workspace
+    {
+        final double[] lineRe;
+        final double[] lineIm;
+        final double[][] buffers;
+
+        Workspace(int length)
+        {
+            this.lineRe = new double[length];
+            this.lineIm = new double[length];
+            this.buffers = new double[4][length];
+        }
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    final int sizeX;
+    final int sizeY;
+    final int sizeZ;
+
+    /** The number of coefficients along the X direction */
+    final int sizeXh;
+
+    final RealFFTPlan planX;
+    final FFTPlan planY;
+    final FFTPlan planZ;
+
+    /** The work arrays that are not used by a thread */
+    private final ConcurrentLinkedQueue<Workspace> workspaces = new ConcurrentLinkedQueue<Workspace>();
+
+    /** The number of threads used for the transforms */
+    int threadCount = Parallel.defaultThreadCount();
+
+
+    // ===================================================================
+    // Constructor
+
+    /**
+     * Creates a new transform for real arrays with the specified size.
+     *
+     * @param sizeX
+     *            the size along the X direction, that must be even
+     * @param sizeY
+     *            the size along the Y direction
+     * @param sizeZ
+     *            the size along the Z direction, one for planar arrays
+     */
+    public FFT3D(int sizeX, int sizeY, int sizeZ)
+    {
+        if (sizeY < 1 || sizeZ < 1)
+        {
+            throw new IllegalArgumentException("Sizes must be positive");
+        }
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.sizeXh = sizeX / 2 + 1;
+        this.planX = RealFFTPlan.create(sizeX);
+        this.planY = FFTPlan.create(sizeY);
+        this.planZ = FFTPlan.create(sizeZ);
+    }
+
+
+    // ===================================================================
+    // Accessors
+
+    /**
+     * @return the size of the arrays along the X direction
+     */
+    public int getSizeX()
+    {
+        return sizeX;
+    }
+
+    /**
+     * @return the size of the arrays along the Y direction
+     */
+    public int getSizeY()
+    {
+        return sizeY;
+    }
+
+    /**
+     * @return the size of the arrays along the Z direction
+     */
+    public int getSizeZ()
+    {
+        return sizeZ;
+    }
+
+    /**
+     * @return the number of values within real arrays
+     */
+    public int length()
+    {
+        return sizeX * sizeY * sizeZ;
+    }
+
+    /**
+     * @return the number of coefficients computed by the forward transform
+     */
+    public int spectrumLength()
+    {
+        return sizeXh * sizeY * sizeZ;
+    }
+
+    /**
+     * @return the number of threads used for the transforms
+     */
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * @param threadCount
+     *            the number of threads used for the transforms
+     */
+    public void setThreadCount(int threadCount)
+    {
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("Number of threads must be positive, not " + threadCount);
+        }
+        this.threadCount = threadCount;
+    }
+
+
+    // ===================================================================
+    // Methods
+
+    /**
+     * Computes the transform of a real array. The result is not normalized.
+     *
+     * @param values
+     *            the real array, with length() elements
+     * @param re
+     *            the array receiving the real parts of the coefficients, with
+     *            spectrumLength() elements
+     * @param im
+     *            the array receiving the imaginary parts of the coefficients,
+     *            with spectrumLength() elements
+     */
+    public void forward(double[] values, double[] re, double[] im)
+    {
+        Parallel.forEachChunk(sizeY * sizeZ, threadCount, (r0, r1) ->
+        {
+            Workspace ws = acquire();
+            for (int r = r0; r < r1; r++)
+            {
+                planX.forward(values, r * sizeX, re, im, r * sizeXh, ws.buffers);
+            }
+            workspaces.add(ws);
+        });
+
+        transformY(re, im, false);
+        transformZ(re, im, false);
+    }
+
+    /**
+     * Computes a real array from the coefficients of its transform, as
+     * computed by the forward method. The result is normalized, such that the
+     * inverse transform of the forward transform returns the original array.
+     * The arrays of coefficients are modified.
+     *
+     * @param re
+     *            the real parts of the coefficients
+     * @param im
+     *            the imaginary parts of the coefficients
+     * @param values
+     *            the array receiving the real values
+     */
+    public void inverse(double[] re, double[] im, double[] values)
+    {
+        transformZ(re, im, true);
+        transformY(re, im, true);
+
+        double scale = 1.0 / length();
+        Parallel.forEachChunk(sizeY * sizeZ, threadCount, (r0, r1) ->
+        {
+            Workspace ws = acquire();
+            for (int r = r0; r < r1; r++)
+            {
+                planX.inverse(re, im, r * sizeXh, values, r * sizeX, ws.buffers);
+                for (int x = r * sizeX; x < (r + 1) * sizeX; x++)
+                {
+                    values[x] *= scale;
+                }
+            }
+            workspaces.add(ws);
+        });
+    }
+
+    /**
+     * Transforms the lines of coefficients along the Y direction, in place.
+     */
+    private void transformY(double[] re, double[] im, boolean inverse)
+    {
+        if (sizeY == 1)
+        {
+            return;
+        }
+        transformLines(re, im, sizeZ * sizeXh, sizeXh, planY, inverse, line ->
+        {
+            int z = line / sizeXh;
+            int x = line % sizeXh;
+            return z * sizeXh * sizeY + x;
+        });
+    }
+
+    /**
+     * Transforms the lines of coefficients along the Z direction, in place.
+     */
+    private void transformZ(double[] re, double[] im, boolean inverse)
+    {
+        if (sizeZ == 1)
+        {
+            return;
+        }
+        transformLines(re, im, sizeY * sizeXh, sizeXh * sizeY, planZ, inverse, line -> line);
+    }
+
+    /**
+     * The index of the first coefficient of a line along the Y or Z direction.
+     */
+    private interface LineStart
+    {
+        public int index(int line);
+    }
+
+    private void transformLines(double[] re, double[] im, int lineCount, int stride, FFTPlan plan, boolean inverse, LineStart start)
+    {
+        int n = plan.length();
+        Parallel.forEachChunk(lineCount, threadCount, (l0, l1) ->
+        {
+            Workspace ws = acquire();
+            double[] lineRe = ws.lineRe, lineIm = ws.lineIm;
+            for (int line = l0; line < l1; line++)
+            {
+                int index0 = start.index(line);
+                for (int i = 0, index = index0; i < n; i++, index += stride)
+                {
+                    lineRe[i] = re[index];
+                    lineIm[i] = im[index];
+                }
+                if (inverse)
+                {
+                    plan.inverse(lineRe, lineIm, ws.buffers[0], ws.buffers[1]);
+                }
+                else
+                {
+                    plan.forward(lineRe, lineIm, ws.buffers[0], ws.buffers[1]);
+                }
+                for (int i = 0, index = index0; i < n; i++, index += stride)
+                {
+                    re[index] = lineRe[i];
+                    im[index] = lineIm[i];
+                }
+            }
+            workspaces.add(ws);
+        });
+    }
+
+    /**
+     * Returns unused work arrays, or creates new ones.
+     */
+    private Workspace acquire()
+    {
+        Workspace ws = workspaces.poll();
+        if (ws == null)
+        {
+            ws = new Workspace(Math.max(sizeXh, Math.max(sizeY, sizeZ)));
+        }
+        return ws;
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ *
+ */
+package inrae.bibs.register.fft;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The precomputed data for the discrete Fourier transform of complex
+ * sequences with a given length: the factorization of the length and the
+ * table of twiddle factors.
+ *
+ * The transform uses the self-sorting mixed-radix algorithm of Stockham,
+ * that alternates between the data arrays and work arrays of the same
+ * length, without bit-reversal permutation. Radices 2, 3 and 4 use dedicated
+ * butterflies, other prime factors use a direct DFT of the size of the
+ * factor. The computation time is proportional to n log n when the length
+ * only contains small prime factors, see the goodSize method.
+ *
+ * Plans are immutable, and can be shared by several threads, each thread
+ * providing its own work arrays. Plans are cached by the create method.
+ *
+ * @see RealFFTPlan
+ * @see FFT3D
+ *
+ * @author dlegland
+ *
+ */
+public final class FFTPlan
+{
+    // ===================================================================
+    // Static members
+
+    /** The plans created so far, indexed by length */
+    private static final ConcurrentHashMap<Integer, FFTPlan> plans = new ConcurrentHashMap<Integer, FFTPlan>();
+
+    /**
+     * Returns the plan for the specified length, creating it the first time
+     * it is requested.
+     *
+     * @param n
+     *            the length of the sequences
+     * @return the plan for sequences with the specified length
+     */
+    public static final FFTPlan create(int n)
+    {
+        if (n < 1)
+        {
+            throw new IllegalArgumentException("Length must be positive, not " + n);
+        }
+        return plans.computeIfAbsent(n, FFTPlan::new);
+    }
+
+    /**
+     * Returns the smallest length greater than or equal to n whose prime
+     * factors are only 2, 3 and 5, leading to efficient transforms.
+     *
+     * @param n
+     *            the minimal length
+     * @return a length suitable for efficient transforms
+     */
+    public static final int goodSize(int n)
+    {
+        int size = Math.max(n, 1);
+        while (!isGoodSize(size))
+        {
+            size++;
+        }
+        return size;
+    }
+
+    private static final boolean isGoodSize(int n)
+    {
+        for (int p : new int[] {2, 3, 5})
+        {
+            while (n % p == 0)
+            {
+                n /= p;
+            }
+        }
+        return n == 1;
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The length of the sequences */
+    final int n;
+
+    /** The radices of the successive stages */
+    final int[] factors;
+
+    /** The twiddle factors exp(-2 i pi t / n), for t between 0 and n-1 */
+    final double[] cos;
+    final double[] sin;
+
+
+    // ===================================================================
+    // Constructor
+
+    private FFTPlan(int n)
+    {
+        this.n = n;
+
+        // factorize, using radix 4 as much as possible
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        int rem = n;
+        for (int p : new int[] {4, 2, 3})
+        {
+            while (rem % p == 0)
+            {
+                list.add(p);
+                rem /= p;
+            }
+        }
+        for (int p = 5; rem > 1; p += 2)
+        {
+            while (rem % p == 0)
+            {
+                list.add(p);
+                rem /= p;
+            }
+        }
+        this.factors = new int[list.size()];
+        for (int i = 0; i < this.factors.length; i++)
+        {
+            this.factors[i] = list.get(i);
+        }
+
+        this.cos = new double[n];
+        this.sin = new double[n];
+        for (int t = 0; t < n; t++)
+        {
+            double angle = -2 * Math.PI * t / n;
+            this.cos[t] = Math.cos(angle);
+            this.sin[t] = Math.sin(angle);
+        }
+    }
+
+
+    // ===================================================================
+    // Methods
+
+    /**
+     * @return the length of the sequences
+     */
+    public int length()
+    {
+        return n;
+    }
+
+    /**
+     * Computes the forward transform of a complex sequence, in place. The
+     * result is not normalized.
+     *
+     * @param re
+     *            the real parts of the sequence, replaced by the real parts of
+     *            the transform
+     * @param im
+     *            the imaginary parts of the sequence, replaced by the
+     *            imaginary parts of the transform
+     * @param workRe
+     *            a work array with at least n elements
+     * @param workIm
+     *            a work array with at least n elements
+     */
+    public void forward(double[] re, double[] im, double[] workRe, double[] workIm)
+    {
+        double[] srcRe = re, srcIm = im;
+        double[] dstRe = workRe, dstIm = workIm;
+        int stride = 1;
+        int length = this.n;
+        for (int radix : this.factors)
+        {
+            int m = length / radix;
+            switch (radix)
+            {
+            case 2:
+                radix2(srcRe, srcIm, dstRe, dstIm, stride, m);
+                break;
+            case 3:
+                radix3(srcRe, srcIm, dstRe, dstIm, stride, m);
+                break;
+            case 4:
+                radix4(srcRe, srcIm, dstRe, dstIm, stride, m);
+                break;
+            default:
+                radixGeneric(srcRe, srcIm, dstRe, dstIm, stride, m, radix);
+            }
+
+            // the result of the stage is the input of the next one
+            double[] tmp = srcRe;
+            srcRe = dstRe;
+            dstRe = tmp;
+            tmp = srcIm;
+            srcIm = dstIm;
+            dstIm = tmp;
+            length = m;
+            stride *= radix;
+        }
+
+        if (srcRe != re)
+        {
+            System.arraycopy(srcRe, 0, re, 0, this.n);
+            System.arraycopy(srcIm, 0, im, 0, this.n);
+        }
+    }
+
+    /**
+     * Computes the inverse transform of a complex sequence, in place. The
+     * result is not normalized, and corresponds to n times the inverse
+     * transform.
+     *
+     * @param re
+     *            the real parts of the transform, replaced by the real parts
+     *            of the sequence
+     * @param im
+     *            the imaginary parts of the transform, replaced by the
+     *            imaginary parts of the sequence
+     * @param workRe
+     *            a work array with at least n elements
+     * @param workIm
+     *            a work array with at least n elements
+     */
+    public void inverse(double[] re, double[] im, double[] workRe, double[] workIm)
+    {
+        // swapping real and imaginary parts conjugates the transform
+        forward(im, re, workIm, workRe);
+    }
+
+
+    // ===================================================================
+    // Butterflies of the Stockham stages
+
+    /*
+     * Each stage of length radix * m and stride s reads the elements
+     * src[q + s * (p + j * m)] for j between 0 and radix-1, computes their
+     * DFT, multiplies the k-th result by the twiddle factor w^(p * k), and
+     * writes it into dst[q + s * (radix * p + k)].
+     */
+
+    private void radix2(double[] srcRe, double[] srcIm, double[] dstRe, double[] dstIm, int s, int m)
+    {
+        for (int p = 0; p < m; p++)
+        {
+            double wr = this.cos[p * s];
+            double wi = this.sin[p * s];
+            for (int q = 0; q < s; q++)
+            {
+                int i0 = q + s * p;
+                int i1 = i0 + s * m;
+                double ar = srcRe[i0], ai = srcIm[i0];
+                double br = srcRe[i1], bi = srcIm[i1];
+
+                int o = q + s * 2 * p;
+                dstRe[o] = ar + br;
+                dstIm[o] = ai + bi;
+                double dr = ar - br, di = ai - bi;
+                dstRe[o + s] = dr * wr - di * wi;
+                dstIm[o + s] = dr * wi + di * wr;
+            }
+        }
+    }
+
+    private void radix3(double[] srcRe, double[] srcIm, double[] dstRe, double[] dstIm, int s, int m)
+    {
+        final double c = Math.sqrt(3) / 2;
+        for (int p = 0; p < m; p++)
+        {
+            double w1r = this.cos[p * s], w1i = this.sin[p * s];
+            double w2r = this.cos[2 * p * s], w2i = this.sin[2 * p * s];
+            for (int q = 0; q < s; q++)
+            {
+                int i0 = q + s * p;
+                int i1 = i0 + s * m;
+                int i2 = i1 + s * m;
+                double a0r = srcRe[i0], a0i = srcIm[i0];
+                double tr = srcRe[i1] + srcRe[i2], ti = srcIm[i1] + srcIm[i2];
+                double dr = srcRe[i1] - srcRe[i2], di = srcIm[i1] - srcIm[i2];
+                double mr = a0r - 0.5 * tr, mi = a0i - 0.5 * ti;
+
+                int o = q + s * 3 * p;
+                dstRe[o] = a0r + tr;
+                dstIm[o] = a0i + ti;
+                double b1r = mr + c * di, b1i = mi - c * dr;
+                double b2r = mr - c * di, b2i = mi + c * dr;
+                dstRe[o + s] = b1r * w1r - b1i * w1i;
+                dstIm[o + s] = b1r * w1i + b1i * w1r;
+                dstRe[o + 2 * s] = b2r * w2r - b2i * w2i;
+                dstIm[o + 2 * s] = b2r * w2i + b2i * w2r;
+            }
+        }
+    }
+
+    private void radix4(double[] srcRe, double[] srcIm, double[] dstRe, double[] dstIm, int s, int m)
+    {
+        for (int p = 0; p < m; p++)
+        {
+            double w1r = this.cos[p * s], w1i = this.sin[p * s];
+            double w2r = this.cos[2 * p * s], w2i = this.sin[2 * p * s];
+            double w3r = this.cos[3 * p * s], w3i = this.sin[3 * p * s];
+            for (int q = 0; q < s; q++)
+            {
+                int i0 = q + s * p;
+                int i1 = i0 + s * m;
+                int i2 = i1 + s * m;
+                int i3 = i2 + s * m;
+                double t0r = srcRe[i0] + srcRe[i2], t0i = srcIm[i0] + srcIm[i2];
+                double t1r = srcRe[i0] - srcRe[i2], t1i = srcIm[i0] - srcIm[i2];
+                double t2r = srcRe[i1] + srcRe[i3], t2i = srcIm[i1] + srcIm[i3];
+                double t3r = srcRe[i1] - srcRe[i3], t3i = srcIm[i1] - srcIm[i3];
+
+                int o = q + s * 4 * p;
+                dstRe[o] = t0r + t2r;
+                dstIm[o] = t0i + t2i;
+                double b1r = t1r + t3i, b1i = t1i - t3r;
+                double b2r = t0r - t2r, b2i = t0i - t2i;
+                double b3r = t1r - t3i, b3i = t1i + t3r;
+                dstRe[o + s] = b1r * w1r - b1i * w1i;
+                dstIm[o + s] = b1r * w1i + b1i * w1r;
+                dstRe[o + 2 * s] = b2r * w2r - b2i * w2i;
+                dstIm[o + 2 * s] = b2r * w2i + b2i * w2r;
+                dstRe[o + 3 * s] = b3r * w3r - b3i * w3i;
+                dstIm[o + 3 * s] = b3r * w3i + b3i * w3r;
+            }
+        }
+    }
+
+    private void radixGeneric(double[] srcRe, double[] srcIm, double[] dstRe, double[] dstIm, int s, int m, int radix)
+    {
+        // the step within the twiddle table corresponding to exp(-2 i pi / radix)
+        int step = this.n / radix;
+        for (int p = 0; p < m; p++)
+        {
+            for (int q = 0; q < s; q++)
+            {
+                int i0 = q + s * p;
+                int o = q + s * radix * p;
+                for (int k = 0; k < radix; k++)
+                {
+                    double sumRe = 0, sumIm = 0;
+                    for (int j = 0; j < radix; j++)
+                    {
+                        int t = ((j * k) % radix) * step;
+                        double ar = srcRe[i0 + j * s * m], ai = srcIm[i0 + j * s * m];
+                        sumRe += ar * this.cos[t] - ai * this.sin[t];
+                        sumIm += ar * this.sin[t] + ai * this.cos[t];
+                    }
+                    int t = p * k * s;
+                    dstRe[o + k * s] = sumRe * this.cos[t] - sumIm * this.sin[t];
+                    dstIm[o + k * s] = sumRe * this.sin[t] + sumIm * this.cos[t];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/**
+ *
+ */
+package inrae.bibs.register.fft;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import inrae.bibs.register.Point2D;
+import inrae.bibs.register.Registration;
+import inrae.bibs.register.transforms.CenteredSimilarity2D;
+import inrae.bibs.register.transforms.Translation2D;
+import inrae.bibs.util.Parallel;
+
+/**
+ * Estimates the similarity between two planar images using the Fourier-Mellin
+ * transform.
+ *
+ * The magnitude of the Fourier transform does not depend on the translation
+ * between the images, and a rotation or a scaling of the image results in the
+ * same rotation or the inverse scaling of the magnitude. After resampling the
+ * magnitudes on a log-polar grid, the rotation and the scaling become
+ * translations, that are estimated by phase correlation. As the magnitude is
+ * symmetric, the rotation angle is known modulo 180 degrees. For both
+ * possible angles, the moving image is transformed back, and the translation
+ * is estimated by phase correlation. The angle with the highest correlation
+ * peak is retained.
+ *
+ * The estimation is not iterative. The log-polar grid has as many angles as
+ * the padded size of the images, and half as many radii, logarithmically
+ * spaced between two and half the padded size. The magnitudes are compressed
+ * with a logarithm and multiplied by a high-pass filter before resampling.
+ * The estimation therefore requires images with enough details, as the
+ * magnitude of very smooth images is concentrated at the lowest frequencies.
+ *
+ * The Fourier transform, the arrays and the lookup tables of the log-polar
+ * resampling are kept by the estimator, such that repeated estimations with
+ * images of the same size do not allocate them again.
+ *
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	FourierMellin estimator = new FourierMellin();
+ *	CenteredSimilarity2D transform = estimator.estimate(refImage, movingImage);
+ *}</pre>
+ *
+ * @see PhaseCorrelation
+ * @see CenteredSimilarity2D
+ *
+ * @author dlegland
+ *
+ */
+public class FourierMellin
+{
+    // ===================================================================
+    // Static members
+
+    /** The smallest radius of the log-polar grid, in frequency samples */
+    private static final double MIN_RADIUS = 2.0;
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The number of threads used for the transforms */
+    int threadCount = Parallel.defaultThreadCount();
+
+    /** The estimator of the translations between log-polar images */
+    PhaseCorrelation logPolarCorrelation = new PhaseCorrelation();
+
+    /** The estimator of the translation between the images */
+    PhaseCorrelation translationCorrelation = new PhaseCorrelation();
+
+    /** The height of the translation peak for the last estimation */
+    double peakValue = Double.NaN;
+
+    // the transform and the arrays used for the last estimation
+    FFT3D fft = null;
+    double[] values;
+    double[] re;
+    double[] im;
+
+    // the log-polar grid, with radii along X and angles along Y
+    int radiusCount;
+    int angleCount;
+    double logRadiusStep;
+
+    /**
+     * The indices of the four coefficients used for interpolating each
+     * sample of the log-polar grid, and their weights, that include the
+     * high-pass filter.
+     */
+    int[] lutIndices;
+    double[] lutWeights;
+
+    FloatProcessor refLogPolar;
+    FloatProcessor movingLogPolar;
+
+
+    // ===================================================================
+    // Constructor
+
+    /**
+     * Creates a new estimator of similarities.
+     */
+    public FourierMellin()
+    {
+    }
+
+
+    // ===================================================================
+    // Accessors
+
+    /**
+     * @return the number of threads used for the transforms
+     */
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * @param threadCount
+     *            the number of threads used for the transforms
+     */
+    public void setThreadCount(int threadCount)
+    {
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("Number of threads must be positive, not " + threadCount);
+        }
+        this.threadCount = threadCount;
+        this.logPolarCorrelation.setThreadCount(threadCount);
+        this.translationCorrelation.setThreadCount(threadCount);
+    }
+
+    /**
+     * Returns the height of the peak of the correlation between the reference
+     * image and the moving image transformed back by the last estimated
+     * rotation and scaling.
+     *
+     * @return the height of the translation peak
+     */
+    public double getPeakValue()
+    {
+        return peakValue;
+    }
+
+
+    // ===================================================================
+    // Methods
+
+    /**
+     * Estimates the similarity between two planar images. The similarity is
+     * centered on the center of the reference image, as for the transforms
+     * of the registration plugin.
+     *
+     * @param refImage
+     *            the reference image
+     * @param movingImage
+     *            the moving image
+     * @return the similarity mapping the reference image onto the moving
+     *         image
+     */
+    public CenteredSimilarity2D estimate(ImageProcessor refImage, ImageProcessor movingImage)
+    {
+        // use square arrays, such that rotations are preserved in frequency space
+        int size1 = Math.max(refImage.getWidth(), refImage.getHeight());
+        int size2 = Math.max(movingImage.getWidth(), movingImage.getHeight());
+        ensureCapacity(PhaseCorrelation.paddedSize(size1, size2, true));
+        fft.setThreadCount(threadCount);
+
+        computeLogPolarMagnitude(refImage, refLogPolar);
+        Parallel.checkCancelled();
+        computeLogPolarMagnitude(movingImage, movingLogPolar);
+        Parallel.checkCancelled();
+
+        // The moving magnitude is the reference one scaled by the inverse of
+        // the scaling factor, and rotated by the same angle.
+        Translation2D shift = logPolarCorrelation.estimate(refLogPolar, movingLogPolar);
+        double logScaling = -shift.shiftX * logRadiusStep / Math.log(2);
+        double angle = shift.shiftY * 180.0 / angleCount;
+
+        Point2D center = new Point2D(refImage.getWidth() / 2.0, refImage.getHeight() / 2.0);
+        CenteredSimilarity2D best = null;
+        this.peakValue = Double.NaN;
+        for (double candidate : new double[] {angle, angle > 0 ? angle - 180 : angle + 180})
+        {
+            Parallel.checkCancelled();
+
+            // transform back the moving image, and estimate remaining shift
+            CenteredSimilarity2D sim = new CenteredSimilarity2D(center, logScaling, candidate, 0, 0);
+            ImageProcessor transformed = Registration.computeTransformedImage(refImage, sim, movingImage);
+            Translation2D residual = translationCorrelation.estimate(refImage, transformed);
+            double peak = translationCorrelation.getPeakValue();
+            if (best != null && !(peak > this.peakValue))
+            {
+                continue;
+            }
+
+            // the residual shift is expressed in the reference image
+            double k = Math.pow(2, logScaling);
+            double theta = Math.toRadians(candidate);
+            double cot = Math.cos(theta);
+            double sit = Math.sin(theta);
+            double shiftX = k * (residual.shiftX * cot - residual.shiftY * sit);
+            double shiftY = k * (residual.shiftX * sit + residual.shiftY * cot);
+            best = new CenteredSimilarity2D(center, logScaling, candidate, shiftX, shiftY);
+            this.peakValue = peak;
+        }
+        return best;
+    }
+
+    /**
+     * Creates the transform, the arrays and the lookup tables, if the size
+     * differs from the one of the previous estimation.
+     */
+    private void ensureCapacity(int size)
+    {
+        if (fft != null && fft.getSizeX() == size)
+        {
+            return;
+        }
+
+        fft = new FFT3D(size, size, 1);
+        values = new double[fft.length()];
+        re = new double[fft.spectrumLength()];
+        im = new double[fft.spectrumLength()];
+
+        radiusCount = size / 2;
+        angleCount = size;
+        refLogPolar = new FloatProcessor(radiusCount, angleCount);
+        movingLogPolar = new FloatProcessor(radiusCount, angleCount);
+        computeLookupTables(size);
+    }
+
+    /**
+     * Computes the indices and the weights for the bilinear interpolation of
+     * the coefficients at each sample of the log-polar grid.
+     */
+    private void computeLookupTables(int size)
+    {
+        int sizeXh = size / 2 + 1;
+        double maxRadius = size / 2 - 1;
+        logRadiusStep = Math.log(maxRadius / MIN_RADIUS) / (radiusCount - 1);
+
+        int n = radiusCount * angleCount;
+        lutIndices = new int[4 * n];
+        lutWeights = new double[4 * n];
+        for (int a = 0; a < angleCount; a++)
+        {
+            double phi = Math.PI * a / angleCount;
+            double cosPhi = Math.cos(phi);
+            double sinPhi = Math.sin(phi);
+            for (int r = 0; r < radiusCount; r++)
+            {
+                double rho = MIN_RADIUS * Math.exp(r * logRadiusStep);
+                double u = rho * cosPhi;
+                double v = rho * sinPhi;
+
+                // only positive X frequencies are stored, use the symmetry
+                if (u < 0)
+                {
+                    u = -u;
+                    v = -v;
+                }
+
+                // high-pass filter, with frequencies in cycles per sample
+                double c = Math.cos(Math.PI * u / size) * Math.cos(Math.PI * v / size);
+                double filter = (1 - c) * (2 - c);
+
+                int x0 = (int) Math.floor(u);
+                int y0 = (int) Math.floor(v);
+                double dx = u - x0;
+                double dy = v - y0;
+                int x1 = Math.min(x0 + 1, sizeXh - 1);
+                int y1 = y0 + 1;
+                y0 = (y0 + size) % size;
+                y1 = (y1 + size) % size;
+
+                int i = 4 * (a * radiusCount + r);
+                lutIndices[i] = y0 * sizeXh + x0;
+                lutIndices[i + 1] = y0 * sizeXh + x1;
+                lutIndices[i + 2] = y1 * sizeXh + x0;
+                lutIndices[i + 3] = y1 * sizeXh + x1;
+                lutWeights[i] = (1 - dx) * (1 - dy) * filter;
+                lutWeights[i + 1] = dx * (1 - dy) * filter;
+                lutWeights[i + 2] = (1 - dx) * dy * filter;
+                lutWeights[i + 3] = dx * dy * filter;
+            }
+        }
+    }
+
+    /**
+     * Computes the magnitude of the Fourier transform of the image, and
+     * resamples it on the log-polar grid.
+     */
+    private void computeLogPolarMagnitude(ImageProcessor image, FloatProcessor result)
+    {
+        int size = fft.getSizeX();
+        PhaseCorrelation.fill(PhaseCorrelation.toStack(image), new int[3], values, size, size);
+        fft.forward(values, re, im);
+
+        // compress the dynamic of the magnitude
+        Parallel.forEachChunk(re.length, threadCount, (i0, i1) ->
+        {
+            for (int i = i0; i < i1; i++)
+            {
+                re[i] = Math.log1p(Math.hypot(re[i], im[i]));
+            }
+        });
+
+        float[] pixels = (float[]) result.getPixels();
+        Parallel.forEachChunk(pixels.length, threadCount, (i0, i1) ->
+        {
+            for (int i = i0; i < i1; i++)
+            {
+                double value = 0;
+                for (int k = 4 * i; k < 4 * i + 4; k++)
+                {
+                    value += lutWeights[k] * re[lutIndices[k]];
+                }
+                pixels[i] = (float) value;
+            }
+        });
+    }
+}
@@ -0,0 +1,490 @@
+/**
+ *
+ */
+package inrae.bibs.register.fft;
+
+import java.util.Arrays;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import inrae.bibs.register.transforms.Translation2D;
+import inrae.bibs.register.transforms.Translation3D;
+import inrae.bibs.util.Parallel;
+
+/**
+ * Estimates the translation between two images by phase correlation.
+ *
+ * Both images are multiplied by a Hann window after subtraction of their
+ * mean value, and padded with zeros to sizes whose prime factors are only 2,
+ * 3 and 5. The cross-power spectrum of the images is normalized to unit
+ * magnitude, such that its inverse transform is a sharp peak located at the
+ * translation between the images. The spectrum is also multiplied by a
+ * Gaussian function, resulting in a Gaussian peak whose location can be
+ * refined at sub-voxel precision from the values around the maximum. A second
+ * correlation is computed with the window of the moving image shifted by the
+ * first estimate, such that both windows cover the same content.
+ *
+ * The estimated translation maps the reference image onto the moving image:
+ * the voxel p of the reference image corresponds to the voxel p + shift of
+ * the moving image. As the correlation is circular, the translation along
+ * each direction is found between minus and plus half the padded size.
+ *
+ * The transforms and the arrays are kept by the estimator, such that
+ * repeated estimations with images of the same size do not allocate memory.
+ *
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	PhaseCorrelation estimator = new PhaseCorrelation();
+ *	Translation2D shift = estimator.estimate(refImage, movingImage);
+ *}</pre>
+ *
+ * @see FFT3D
+ *
+ * @author dlegland
+ *
+ */
+public class PhaseCorrelation
+{
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Returns the padded size of the arrays for images with the specified
+     * sizes along a direction.
+     *
+     * @param size1
+     *            the size of the first image along the direction
+     * @param size2
+     *            the size of the second image along the direction
+     * @param even
+     *            true if the padded size must be even
+     * @return the size of the arrays used for the transforms
+     */
+    static final int paddedSize(int size1, int size2, boolean even)
+    {
+        int size = Math.max(size1, size2);
+        return even ? 2 * FFTPlan.goodSize((size + 1) / 2) : FFTPlan.goodSize(size);
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /**
+     * The standard deviation of the Gaussian peak, in voxels. Larger values
+     * make the estimation more robust to noise, smaller values allow to
+     * distinguish between close peaks.
+     */
+    double peakWidth = 1.0;
+
+    /** The number of threads used for the transforms */
+    int threadCount = Parallel.defaultThreadCount();
+
+    /** The value of the correlation at the last estimated translation */
+    double peakValue = Double.NaN;
+
+    // the transform and the arrays used for the last estimation
+    FFT3D fft = null;
+    double[] values;
+    double[] refRe;
+    double[] refIm;
+    double[] movingRe;
+    double[] movingIm;
+
+
+    // ===================================================================
+    // Constructor
+
+    /**
+     * Creates a new estimator of translations.
+     */
+    public PhaseCorrelation()
+    {
+    }
+
+
+    // ===================================================================
+    // Accessors
+
+    /**
+     * @return the standard deviation of the Gaussian peak, in voxels
+     */
+    public double getPeakWidth()
+    {
+        return peakWidth;
+    }
+
+    /**
+     * @param peakWidth
+     *            the standard deviation of the Gaussian peak, in voxels
+     */
+    public void setPeakWidth(double peakWidth)
+    {
+        if (!(peakWidth > 0))
+        {
+            throw new IllegalArgumentException("Peak width must be positive, not " + peakWidth);
+        }
+        this.peakWidth = peakWidth;
+    }
+
+    /**
+     * @return the number of threads used for the transforms
+     */
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * @param threadCount
+     *            the number of threads used for the transforms
+     */
+    public void setThreadCount(int threadCount)
+    {
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("Number of threads must be positive, not " + threadCount);
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Returns the value of the correlation at the last estimated translation,
+     * close to one when the images only differ by a translation, and close to
+     * zero when they are unrelated.
+     *
+     * @return the height of the correlation peak
+     */
+    public double getPeakValue()
+    {
+        return peakValue;
+    }
+
+
+    // ===================================================================
+    // Methods
+
+    /**
+     * Estimates the translation between two planar images.
+     *
+     * @param refImage
+     *            the reference image
+     * @param movingImage
+     *            the moving image
+     * @return the translation mapping the reference image onto the moving
+     *         image
+     */
+    public Translation2D estimate(ImageProcessor refImage, ImageProcessor movingImage)
+    {
+        double[] shift = estimateShift(toStack(refImage), toStack(movingImage));
+        return new Translation2D(shift[0], shift[1]);
+    }
+
+    /**
+     * Estimates the translation between two 3D images.
+     *
+     * @param refImage
+     *            the reference image
+     * @param movingImage
+     *            the moving image
+     * @return the translation mapping the reference image onto the moving
+     *         image
+     */
+    public Translation3D estimate(ImageStack refImage, ImageStack movingImage)
+    {
+        double[] shift = estimateShift(refImage, movingImage);
+        return new Translation3D(shift[0], shift[1], shift[2]);
+    }
+
+    static final ImageStack toStack(ImageProcessor image)
+    {
+        ImageStack stack = new ImageStack(image.getWidth(), image.getHeight());
+        stack.addSlice(image);
+        return stack;
+    }
+
+    /**
+     * Estimates the translation between two images, that can have different
+     * sizes.
+     *
+     * @param refImage
+     *            the reference image
+     * @param movingImage
+     *            the moving image
+     * @return the shift along each direction, as an array with three elements
+     */
+    public double[] estimateShift(ImageStack refImage, ImageStack movingImage)
+    {
+        int sizeX = paddedSize(refImage.getWidth(), movingImage.getWidth(), true);
+        int sizeY = paddedSize(refImage.getHeight(), movingImage.getHeight(), false);
+        int sizeZ = paddedSize(refImage.getSize(), movingImage.getSize(), false);
+        ensureCapacity(sizeX, sizeY, sizeZ);
+        fft.setThreadCount(threadCount);
+
+        fill(refImage, new int[3], values, sizeX, sizeY);
+        fft.forward(values, refRe, refIm);
+        double[] shift = correlate(movingImage, new int[3]);
+
+        // The window does not move with the content of the images, biasing
+        // the estimate towards zero. The moving image is processed again
+        // with the window shifted by the rounded estimate.
+        int[] offset = new int[3];
+        for (int d = 0; d < 3; d++)
+        {
+            offset[d] = (int) Math.round(shift[d]);
+        }
+        if (offset[0] != 0 || offset[1] != 0 || offset[2] != 0)
+        {
+            shift = correlate(movingImage, offset);
+        }
+        return shift;
+    }
+
+    /**
+     * Computes the correlation of the moving image with the reference image,
+     * whose transform has already been computed, and returns the location of
+     * the peak.
+     */
+    private double[] correlate(ImageStack movingImage, int[] windowOffset)
+    {
+        Parallel.checkCancelled();
+        fill(movingImage, windowOffset, values, fft.getSizeX(), fft.getSizeY());
+        fft.forward(values, movingRe, movingIm);
+        Parallel.checkCancelled();
+
+        computeCrossPowerSpectrum();
+        fft.inverse(movingRe, movingIm, values);
+        return findPeak();
+    }
+
+    /**
+     * Creates the transform and the arrays, if the size differs from the one
+     * of the previous estimation.
+     */
+    private void ensureCapacity(int sizeX, int sizeY, int sizeZ)
+    {
+        if (fft != null && fft.getSizeX() == sizeX && fft.getSizeY() == sizeY && fft.getSizeZ() == sizeZ)
+        {
+            return;
+        }
+
+        // release the previous arrays before allocating the new ones
+        fft = null;
+        values = refRe = refIm = movingRe = movingIm = null;
+
+        fft = new FFT3D(sizeX, sizeY, sizeZ);
+        int n = fft.spectrumLength();
+        values = new double[fft.length()];
+        refRe = new double[n];
+        refIm = new double[n];
+        movingRe = new double[n];
+        movingIm = new double[n];
+    }
+
+    /**
+     * Fills an array of values with the image, after subtraction of the
+     * weighted mean and multiplication by the Hann window, shifted by the
+     * specified offset. The values outside of the image are set to zero.
+     *
+     * @param image
+     *            the image
+     * @param windowOffset
+     *            the shift of the window along each direction
+     * @param values
+     *            the array of values, with dimensions dimX, dimY, and at least
+     *            the size of the image along the Z direction
+     * @param dimX
+     *            the size of the array along the X direction
+     * @param dimY
+     *            the size of the array along the Y direction
+     */
+    static final void fill(ImageStack image, int[] windowOffset, double[] values, int dimX, int dimY)
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+        double[] wx = hannWindow(sizeX, windowOffset[0]);
+        double[] wy = hannWindow(sizeY, windowOffset[1]);
+        double[] wz = hannWindow(sizeZ, windowOffset[2]);
+
+        // weighted mean of the image
+        double sum = 0, sumWeights = 0;
+        for (int z = 0; z < sizeZ; z++)
+        {
+            ImageProcessor slice = image.getProcessor(z + 1);
+            for (int y = 0; y < sizeY; y++)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    double w = wx[x] * wy[y] * wz[z];
+                    sum += w * slice.getf(x, y);
+                    sumWeights += w;
+                }
+            }
+        }
+        double mean = sum / sumWeights;
+
+        Arrays.fill(values, 0.0);
+        for (int z = 0; z < sizeZ; z++)
+        {
+            ImageProcessor slice = image.getProcessor(z + 1);
+            for (int y = 0; y < sizeY; y++)
+            {
+                int offset = (z * dimY + y) * dimX;
+                for (int x = 0; x < sizeX; x++)
+                {
+                    values[offset + x] = (slice.getf(x, y) - mean) * wx[x] * wy[y] * wz[z];
+                }
+            }
+        }
+    }
+
+    private static final double[] hannWindow(int size, int offset)
+    {
+        double[] window = new double[size];
+        for (int i = Math.max(offset, 0); i < Math.min(size + offset, size); i++)
+        {
+            window[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * (i - offset + 0.5) / size);
+        }
+        return window;
+    }
+
+    /**
+     * Replaces the coefficients of the moving image by the normalized
+     * cross-power spectrum, multiplied by the Gaussian function.
+     */
+    private void computeCrossPowerSpectrum()
+    {
+        int sizeXh = fft.getSizeX() / 2 + 1;
+        int sizeY = fft.getSizeY();
+        int sizeZ = fft.getSizeZ();
+        double[] gx = gaussianWeights(fft.getSizeX(), sizeXh);
+        double[] gy = gaussianWeights(sizeY, sizeY);
+        double[] gz = gaussianWeights(sizeZ, sizeZ);
+
+        Parallel.forEachChunk(sizeY * sizeZ, threadCount, (r0, r1) ->
+        {
+            for (int r = r0; r < r1; r++)
+            {
+                double gyz = gy[r % sizeY] * gz[r / sizeY];
+                for (int x = 0, i = r * sizeXh; x < sizeXh; x++, i++)
+                {
+                    // conj(F) * G
+                    double re = refRe[i] * movingRe[i] + refIm[i] * movingIm[i];
+                    double im = refRe[i] * movingIm[i] - refIm[i] * movingRe[i];
+                    double norm = Math.hypot(re, im);
+                    double w = norm > 0 ? gx[x] * gyz / norm : 0;
+                    movingRe[i] = re * w;
+                    movingIm[i] = im * w;
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes the values of the transform of the Gaussian peak for the
+     * frequency indices along a direction.
+     */
+    private double[] gaussianWeights(int size, int count)
+    {
+        double[] weights = new double[count];
+        double k = 2 * Math.PI * Math.PI * peakWidth * peakWidth;
+        for (int i = 0; i < count; i++)
+        {
+            double f = (i <= size / 2 ? i : i - size) / (double) size;
+            weights[i] = Math.exp(-k * f * f);
+        }
+        return weights;
+    }
+
+    /**
+     * Finds the maximum of the correlation, and refines its location by
+     * fitting a Gaussian along each direction.
+     */
+    private double[] findPeak()
+    {
+        int sizeX = fft.getSizeX();
+        int sizeY = fft.getSizeY();
+        int sizeZ = fft.getSizeZ();
+
+        int indMax = 0;
+        for (int i = 1; i < values.length; i++)
+        {
+            if (values[i] > values[indMax])
+            {
+                indMax = i;
+            }
+        }
+        int x = indMax % sizeX;
+        int y = (indMax / sizeX) % sizeY;
+        int z = indMax / (sizeX * sizeY);
+
+        // normalize by the height of the Gaussian peak for identical images
+        double peak = values[indMax];
+        double maxHeight = 1.0;
+        for (int size : new int[] {sizeX, sizeY, sizeZ})
+        {
+            double sum = 0;
+            for (double w : gaussianWeights(size, size))
+            {
+                sum += w;
+            }
+            maxHeight *= sum / size;
+        }
+        this.peakValue = peak / maxHeight;
+
+        double[] shift = new double[3];
+        shift[0] = x + refine(value(x - 1, y, z), peak, value(x + 1, y, z));
+        shift[1] = sizeY > 2 ? y + refine(value(x, y - 1, z), peak, value(x, y + 1, z)) : y;
+        shift[2] = sizeZ > 2 ? z + refine(value(x, y, z - 1), peak, value(x, y, z + 1)) : z;
+
+        // the correlation is circular
+        int[] sizes = new int[] {sizeX, sizeY, sizeZ};
+        for (int d = 0; d < 3; d++)
+        {
+            if (shift[d] > sizes[d] / 2.0)
+            {
+                shift[d] -= sizes[d];
+            }
+        }
+        return shift;
+    }
+
+    /**
+     * Returns the value of the correlation at the specified indices, with
+     * periodic boundary conditions.
+     */
+    private double value(int x, int y, int z)
+    {
+        int sizeX = fft.getSizeX();
+        int sizeY = fft.getSizeY();
+        int sizeZ = fft.getSizeZ();
+        x = (x + sizeX) % sizeX;
+        y = (y + sizeY) % sizeY;
+        z = (z + sizeZ) % sizeZ;
+        return values[(z * sizeY + y) * sizeX + x];
+    }
+
+    /**
+     * Computes the location of the maximum of the function passing through
+     * three values, relative to the middle value. A Gaussian is used when all
+     * the values are positive, a parabola otherwise.
+     */
+    private static final double refine(double v1, double v2, double v3)
+    {
+        if (v1 > 0 && v3 > 0)
+        {
+            v1 = Math.log(v1);
+            v2 = Math.log(v2);
+            v3 = Math.log(v3);
+        }
+        double denom = v1 - 2 * v2 + v3;
+        if (denom >= 0)
+        {
+            return 0;
+        }
+        double delta = 0.5 * (v1 - v3) / denom;
+        return Math.max(-0.5, Math.min(0.5, delta));
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ *
+ */
+package inrae.bibs.register.fft;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The discrete Fourier transform of real sequences with an even length n.
+ *
+ * The n real values are packed into a complex sequence of length n/2, whose
+ * transform is computed by a FFTPlan, and the n/2+1 first coefficients of the
+ * transform of the real sequence are recovered from the coefficients of the
+ * packed sequence. The remaining coefficients are the complex conjugates of
+ * the first ones. This halves both the computation time and the memory
+ * compared to the transform of a complex sequence with zero imaginary parts.
+ *
+ * As for FFTPlan, plans are immutable and cached by the create method.
+ *
+ * @see FFTPlan
+ *
+ * @author dlegland
+ *
+ */
+public final class RealFFTPlan
+{
+    // ===================================================================
+    // Static members
+
+    /** The plans created so far, indexed by length */
+    private static final ConcurrentHashMap<Integer, RealFFTPlan> plans = new ConcurrentHashMap<Integer, RealFFTPlan>();
+
+    /**
+     * Returns the plan for the specified length, creating it the first time
+     * it is requested.
+     *
+     * @param n
+     *            the length of the real sequences, that must be even
+     * @return the plan for sequences with the specified length
+     */
+    public static final RealFFTPlan create(int n)
+    {
+        if (n < 2 || n % 2 != 0)
+        {
+            throw new IllegalArgumentException("Length of real sequences must be even, not " + n);
+        }
+        return plans.computeIfAbsent(n, RealFFTPlan::new);
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The length of the real sequences */
+    final int n;
+
+    /** The plan for the packed sequences with length n/2 */
+    final FFTPlan halfPlan;
+
+    /** The factors exp(-2 i pi k / n), for k between 0 and n/2 */
+    final double[] cos;
+    final double[] sin;
+
+
+    // ===================================================================
+    // Constructor
+
+    private RealFFTPlan(int n)
+    {
+        this.n = n;
+        int h = n / 2;
+        this.halfPlan = FFTPlan.create(h);
+        this.cos = new double[h + 1];
+        this.sin = new double[h + 1];
+        for (int k = 0; k <= h; k++)
+        {
+            double angle = -2 * Math.PI * k / n;
+            this.cos[k] = Math.cos(angle);
+            this.sin[k] = Math.sin(angle);
+        }
+    }
+
+
+    // ===================================================================
+    // Methods
+
+    /**
+     * @return the length of the real sequences
+     */
+    public int length()
+    {
+        return n;
+    }
+
+    /**
+     * Computes the n/2+1 first coefficients of the transform of a real
+     * sequence. The result is not normalized.
+     *
+     * @param values
+     *            the array containing the real sequence
+     * @param valuesOffset
+     *            the index of the first value of the sequence
+     * @param re
+     *            the array receiving the real parts of the coefficients
+     * @param im
+     *            the array receiving the imaginary parts of the coefficients
+     * @param offset
+     *            the index of the first coefficient within the re and im
+     *            arrays
+     * @param buffers
+     *            four work arrays with at least n/2 elements
+     */
+    public void forward(double[] values, int valuesOffset, double[] re, double[] im, int offset, double[][] buffers)
+    {
+        int h = n / 2;
+        double[] zr = buffers[0], zi = buffers[1];
+        for (int k = 0; k < h; k++)
+        {
+            zr[k] = values[valuesOffset + 2 * k];
+            zi[k] = values[valuesOffset + 2 * k + 1];
+        }
+        halfPlan.forward(zr, zi, buffers[2], buffers[3]);
+
+        for (int k = 0; k <= h; k++)
+        {
+            // Z[k] and the conjugate of Z[h-k]
+            int k1 = k % h;
+            int k2 = (h - k) % h;
+            double ar = zr[k1], ai = zi[k1];
+            double br = zr[k2], bi = -zi[k2];
+
+            // transforms of the even and odd samples
+            double er = 0.5 * (ar + br), ei = 0.5 * (ai + bi);
+            double or = 0.5 * (ai - bi), oi = -0.5 * (ar - br);
+
+            re[offset + k] = er + or * cos[k] - oi * sin[k];
+            im[offset + k] = ei + or * sin[k] + oi * cos[k];
+        }
+    }
+
+    /**
+     * Computes a real sequence from the n/2+1 first coefficients of its
+     * transform. The result is not normalized, and corresponds to n times the
+     * inverse transform.
+     *
+     * @param re
+     *            the array containing the real parts of the coefficients
+     * @param im
+     *            the array containing the imaginary parts of the coefficients
+     * @param offset
+     *            the index of the first coefficient within the re and im
+     *            arrays
+     * @param values
+     *            the array receiving the real sequence
+     * @param valuesOffset
+     *            the index of the first value of the sequence
+     * @param buffers
+     *            four work arrays with at least n/2 elements
+     */
+    public void inverse(double[] re, double[] im, int offset, double[] values, int valuesOffset, double[][] buffers)
+    {
+        int h = n / 2;
+        double[] zr = buffers[0], zi = buffers[1];
+        for (int k = 0; k < h; k++)
+        {
+            // X[k] and the conjugate of X[h-k]
+            double ar = re[offset + k], ai = im[offset + k];
+            double br = re[offset + h - k], bi = -im[offset + h - k];
+
+            double er = 0.5 * (ar + br), ei = 0.5 * (ai + bi);
+            double dr = 0.5 * (ar - br), di = 0.5 * (ai - bi);
+
+            // divide the difference by exp(-2 i pi k / n)
+            double or = dr * cos[k] + di * sin[k];
+            double oi = di * cos[k] - dr * sin[k];
+
+            zr[k] = er - oi;
+            zi[k] = ei + or;
+        }
+        halfPlan.inverse(zr, zi, buffers[2], buffers[3]);
+
+        // the inverse of the half transform is scaled by n/2
+        for (int k = 0; k < h; k++)
+        {
+            values[valuesOffset + 2 * k] = 2 * zr[k];
+            values[valuesOffset + 2 * k + 1] = 2 * zi[k];
+        }
+    }
+}
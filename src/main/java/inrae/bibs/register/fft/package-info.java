@@ -0,0 +1,8 @@
+/**
+ * Fast Fourier transforms of 2D and 3D arrays, and the registration methods
+ * based on them.
+ *
+ * @author dlegland
+ *
+ */
+package inrae.bibs.register.fft;
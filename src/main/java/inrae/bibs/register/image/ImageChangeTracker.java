@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package inrae.bibs.register.image;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Detects the modifications of image stacks without reading their voxels,
+ * such that caches of data computed from images can check their validity
+ * for each request at low cost.
+ *
+ * The state of a stack is summarized by a stamp, computed from the size of
+ * the stack, the identity of its pixel arrays, and the number of
+ * modifications of the stack. Modifications are counted when ImageJ notifies
+ * the update of a displayed image whose stack is this stack, as done after
+ * filters and edits of voxels, or when the modification is signaled by the
+ * markModified method. The pixel arrays of virtual stacks are not accessed, such that
+ * their slices are not read again.
+ *
+ * As ImageJ notifies the image listeners on the event dispatch thread, the
+ * modifications of an image are detected by the requests processed after the
+ * pending events.
+ *
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	long stamp = ImageChangeTracker.stamp(stack);
+ *	// ...
+ *	if (ImageChangeTracker.stamp(stack) != stamp)
+ *	{
+ *		// the data computed from the stack must be computed again
+ *	}
+ *}</pre>
+ *
+ * @see ImagePyramidCache
+ * @see inrae.bibs.register.resample.BSplineCoefficientCache
+ *
+ * @author dlegland
+ *
+ */
+public final class ImageChangeTracker
+{
+    // ===================================================================
+    // Static members
+
+    /**
+     * The number of modifications of the stacks whose stamp has been
+     * computed. Stacks are compared by identity, and can be garbage
+     * collected.
+     */
+    private static final Map<ImageStack, Long> counts = new WeakHashMap<ImageStack, Long>();
+
+    /** Indicates whether the image listener has been registered */
+    private static boolean listening = false;
+
+
+    // ===================================================================
+    // Constructor
+
+    /**
+     * Private constructor to prevent class instantiation.
+     */
+    private ImageChangeTracker()
+    {
+    }
+
+
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Computes the stamp of a stack, that changes when the stack is modified.
+     * The cost does not depend on the number of voxels.
+     *
+     * @param stack
+     *            the stack
+     * @return the stamp of the stack
+     */
+    public static final long stamp(ImageStack stack)
+    {
+        long hash = stack.getWidth();
+        hash = hash * 31 + stack.getHeight();
+        hash = hash * 31 + stack.getSize();
+
+        // virtual stacks return null, and their slices are not stored
+        Object[] arrays = stack.getImageArray();
+        if (arrays != null)
+        {
+            for (int i = 0; i < stack.getSize(); i++)
+            {
+                hash = hash * 31 + System.identityHashCode(arrays[i]);
+            }
+        }
+        return hash * 31 + getModificationCount(stack);
+    }
+
+    /**
+     * Returns the number of modifications of the stack counted since its
+     * first use by this class.
+     *
+     * @param stack
+     *            the stack
+     * @return the number of modifications of the stack
+     */
+    public static final synchronized long getModificationCount(ImageStack stack)
+    {
+        if (!listening)
+        {
+            ImagePlus.addImageListener(new Listener());
+            listening = true;
+        }
+
+        Long count = counts.get(stack);
+        if (count == null)
+        {
+            count = 0L;
+            counts.put(stack, count);
+        }
+        return count;
+    }
+
+    /**
+     * Signals the modification of a stack, for example when its voxels are
+     * modified without updating the image displaying it.
+     *
+     * @param stack
+     *            the modified stack
+     */
+    public static final synchronized void markModified(ImageStack stack)
+    {
+        Long count = counts.get(stack);
+        if (count != null)
+        {
+            counts.put(stack, count + 1);
+        }
+    }
+
+
+    // ===================================================================
+    // Inner class
+
+    /**
+     * Counts the updates of displayed images notified by ImageJ.
+     */
+    private static final class Listener implements ImageListener
+    {
+        @Override
+        public void imageOpened(ImagePlus image)
+        {
+        }
+
+        @Override
+        public void imageClosed(ImagePlus image)
+        {
+        }
+
+        @Override
+        public void imageUpdated(ImagePlus image)
+        {
+            // images without window are also notified when they are created
+            if (image.getWindow() != null)
+            {
+                markModified(image.getStack());
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/**
+ *
+ */
+package inrae.bibs.register.image;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ij.ImageStack;
+import ij.process.ColorProcessor;
+import inrae.bibs.util.Parallel;
+
+/**
+ * A Gaussian pyramid of a 3D image, containing versions of the image whose
+ * size is divided by two from one level to the next one. Level zero is the
+ * original image. Each level is obtained from the previous one by a separable
+ * Gaussian smoothing followed by a decimation, such that the voxel (x, y, z)
+ * of level k corresponds to the voxel (x, y, z) * 2^k of the original image.
+ * Planar images remain planar.
+ *
+ * Levels are computed on demand, the first time they are requested, and kept
+ * by the pyramid. The levels have the same type as the original image. The
+ * channels of color images are reduced independently.
+ *
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	ImagePyramid pyramid = new ImagePyramid(stack);
+ *	// image with size divided by four in each direction
+ *	ImageStack level2 = pyramid.getLevel(2);
+ *}</pre>
+ *
+ * @see ImagePyramidCache
+ *
+ * @author dlegland
+ *
+ */
+public class ImagePyramid
+{
+    // ===================================================================
+    // Static members
+
+    /**
+     * The weights of the Gaussian kernel with a standard deviation of one
+     * voxel, truncated at two voxels, from the center to the border.
+     */
+    private static final float[] KERNEL = createKernel(1.0, 2);
+
+    private static final float[] createKernel(double sigma, int radius)
+    {
+        float[] kernel = new float[radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++)
+        {
+            sum += Math.exp(-i * i / (2 * sigma * sigma));
+        }
+        for (int i = 0; i <= radius; i++)
+        {
+            kernel[i] = (float) (Math.exp(-i * i / (2 * sigma * sigma)) / sum);
+        }
+        return kernel;
+    }
+
+
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Computes the next level of a Gaussian pyramid, by smoothing the image
+     * and keeping one voxel every two voxels in each direction, using the
+     * default number of threads.
+     *
+     * @param image
+     *            the image to reduce
+     * @return a new image with size approximately divided by two
+     */
+    public static final ImageStack reduce(ImageStack image)
+    {
+        return reduce(image, Parallel.defaultThreadCount());
+    }
+
+    /**
+     * Computes the next level of a Gaussian pyramid, by smoothing the image
+     * and keeping one voxel every two voxels in each direction. The smoothing
+     * is computed only for the kept voxels, by successive passes along each
+     * direction, using float values for intermediate results.
+     *
+     * @param image
+     *            the image to reduce
+     * @param nThreads
+     *            the number of threads to use
+     * @return a new image with size approximately divided by two
+     */
+    public static final ImageStack reduce(ImageStack image, int nThreads)
+    {
+        int bitDepth = image.getBitDepth();
+        if (bitDepth == 24)
+        {
+            return reduceColor(image, nThreads);
+        }
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+        {
+            throw new IllegalArgumentException("Can not manage image stacks with bit depth " + bitDepth);
+        }
+
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+        int sizeX2 = (sizeX + 1) / 2;
+        int sizeY2 = (sizeY + 1) / 2;
+        int sizeZ2 = (sizeZ + 1) / 2;
+
+        // reduce each slice along the X and Y directions
+        float[][] planes = new float[sizeZ][];
+        Parallel.forEachChunk(sizeZ, nThreads, (z0, z1) ->
+        {
+            float[] line = new float[Math.max(sizeX, sizeY)];
+            float[] reduced = new float[Math.max(sizeX2, sizeY2)];
+            for (int z = z0; z < z1; z++)
+            {
+                // the values may be the pixel array of a float image
+                float[] values = (float[]) image.getProcessor(z + 1).convertToFloatProcessor().getPixels();
+
+                // reduce rows
+                float[] rows = new float[sizeX2 * sizeY];
+                for (int y = 0; y < sizeY; y++)
+                {
+                    System.arraycopy(values, y * sizeX, line, 0, sizeX);
+                    reduceLine(line, sizeX, reduced);
+                    System.arraycopy(reduced, 0, rows, y * sizeX2, sizeX2);
+                }
+
+                // reduce columns
+                float[] plane = new float[sizeX2 * sizeY2];
+                for (int x = 0; x < sizeX2; x++)
+                {
+                    for (int y = 0; y < sizeY; y++)
+                    {
+                        line[y] = rows[y * sizeX2 + x];
+                    }
+                    reduceLine(line, sizeY, reduced);
+                    for (int y = 0; y < sizeY2; y++)
+                    {
+                        plane[y * sizeX2 + x] = reduced[y];
+                    }
+                }
+                planes[z] = plane;
+            }
+        });
+
+        // reduce along the Z direction, and convert to the type of the image
+        ImageStack result = ImageStack.create(sizeX2, sizeY2, sizeZ2, bitDepth);
+        int radius = KERNEL.length - 1;
+        Parallel.forEachChunk(sizeZ2, nThreads, (z0, z1) ->
+        {
+            float[] buffer = new float[sizeX2 * sizeY2];
+            for (int z = z0; z < z1; z++)
+            {
+                Arrays.fill(buffer, 0.0f);
+                for (int k = -radius; k <= radius; k++)
+                {
+                    float[] plane = planes[clamp(2 * z + k, sizeZ)];
+                    float w = KERNEL[Math.abs(k)];
+                    for (int i = 0; i < buffer.length; i++)
+                    {
+                        buffer[i] += w * plane[i];
+                    }
+                }
+                setSlice(result.getPixels(z + 1), buffer);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Computes the next level of a Gaussian pyramid of a color image, by
+     * reducing each channel as an 8-bit image.
+     */
+    private static final ImageStack reduceColor(ImageStack image, int nThreads)
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+
+        // split the channels
+        ImageStack[] channels = new ImageStack[3];
+        for (int c = 0; c < 3; c++)
+        {
+            channels[c] = new ImageStack(sizeX, sizeY);
+        }
+        for (int z = 0; z < sizeZ; z++)
+        {
+            byte[][] rgb = new byte[3][sizeX * sizeY];
+            ((ColorProcessor) image.getProcessor(z + 1)).getRGB(rgb[0], rgb[1], rgb[2]);
+            for (int c = 0; c < 3; c++)
+            {
+                channels[c].addSlice(null, rgb[c]);
+            }
+        }
+
+        // reduce each channel, and merge the results
+        for (int c = 0; c < 3; c++)
+        {
+            channels[c] = reduce(channels[c], nThreads);
+        }
+        ImageStack result = ImageStack.create(channels[0].getWidth(), channels[0].getHeight(), channels[0].getSize(), 24);
+        for (int z = 1; z <= result.getSize(); z++)
+        {
+            ((ColorProcessor) result.getProcessor(z)).setRGB(
+                    (byte[]) channels[0].getPixels(z), 
+                    (byte[]) channels[1].getPixels(z), 
+                    (byte[]) channels[2].getPixels(z));
+        }
+        return result;
+    }
+
+    /**
+     * Smoothes the first values of the line, and stores every other smoothed
+     * value into the result array.
+     */
+    private static final void reduceLine(float[] line, int length, float[] result)
+    {
+        int radius = KERNEL.length - 1;
+        int length2 = (length + 1) / 2;
+        for (int i2 = 0; i2 < length2; i2++)
+        {
+            int i = 2 * i2;
+            float sum = KERNEL[0] * line[i];
+            for (int k = 1; k <= radius; k++)
+            {
+                sum += KERNEL[k] * (line[clamp(i - k, length)] + line[clamp(i + k, length)]);
+            }
+            result[i2] = sum;
+        }
+    }
+
+    private static final int clamp(int index, int size)
+    {
+        return index < 0 ? 0 : (index >= size ? size - 1 : index);
+    }
+
+    /**
+     * Copies the float values into the pixel array of a slice, rounding and
+     * clamping the values for integer types.
+     */
+    private static final void setSlice(Object pixels, float[] values)
+    {
+        if (pixels instanceof float[])
+        {
+            System.arraycopy(values, 0, pixels, 0, values.length);
+        }
+        else if (pixels instanceof byte[])
+        {
+            byte[] array = (byte[]) pixels;
+            for (int i = 0; i < values.length; i++)
+            {
+                array[i] = (byte) Math.min(Math.max(Math.round(values[i]), 0), 255);
+            }
+        }
+        else
+        {
+            short[] array = (short[]) pixels;
+            for (int i = 0; i < values.length; i++)
+            {
+                array[i] = (short) Math.min(Math.max(Math.round(values[i]), 0), 65535);
+            }
+        }
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The levels computed so far, the first one being the original image */
+    private final ArrayList<ImageStack> levels = new ArrayList<ImageStack>();
+
+    /**
+     * The number of bytes used by the computed levels, except level zero. It
+     * can be read without waiting for the computation of a level.
+     */
+    private volatile long bytes = 0;
+
+
+    // ===================================================================
+    // Constructor
+
+    /**
+     * Creates a new pyramid for the specified image. No level is computed.
+     *
+     * @param image
+     *            the original image, corresponding to level zero
+     */
+    public ImagePyramid(ImageStack image)
+    {
+        this.levels.add(image);
+    }
+
+
+    // ===================================================================
+    // Methods
+
+    /**
+     * Returns the image at the specified level, computing it and the levels
+     * in between if necessary.
+     *
+     * @param level
+     *            the index of the level, zero for the original image
+     * @return the image at the specified level
+     */
+    public synchronized ImageStack getLevel(int level)
+    {
+        if (level < 0)
+        {
+            throw new IllegalArgumentException("Level index must be positive or zero, not " + level);
+        }
+        while (this.levels.size() <= level)
+        {
+            ImageStack image = reduce(this.levels.get(this.levels.size() - 1));
+            this.levels.add(image);
+            int bytesPerVoxel = image.getBitDepth() == 24 ? 4 : image.getBitDepth() / 8;
+            this.bytes += (long) image.getWidth() * image.getHeight() * image.getSize() * bytesPerVoxel;
+        }
+        return this.levels.get(level);
+    }
+
+    /**
+     * @return the original image, corresponding to level zero
+     */
+    public ImageStack getImage()
+    {
+        return this.levels.get(0);
+    }
+
+    /**
+     * @return the number of levels already computed, including the original
+     *         image
+     */
+    public synchronized int computedLevelCount()
+    {
+        return this.levels.size();
+    }
+
+    /**
+     * @return the number of bytes used by the computed levels, not including
+     *         the original image
+     */
+    public long getUsedBytes()
+    {
+        return this.bytes;
+    }
+}
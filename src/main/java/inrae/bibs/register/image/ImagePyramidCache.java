@@ -0,0 +1,306 @@
+/**
+ *
+ */
+package inrae.bibs.register.image;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Keeps the Gaussian pyramids of the images recently used for registration,
+ * such that each level of an image is computed only once, and can be shared
+ * by the preview, the metric evaluation and the registration.
+ *
+ * Entries are identified by the identity of the ImagePlus. To detect the
+ * modifications of the image, including the replacement of its stack, the
+ * stack and its stamp computed by ImageChangeTracker are stored with the
+ * pyramid, and compared with the current ones when a level is requested. In
+ * that case, a new pyramid is created. The stamp does not depend on the
+ * voxel values, such that the levels already computed are obtained without
+ * reading the image again.
+ *
+ * The total memory used by the computed levels is bounded. When the budget is
+ * exceeded, the pyramids of the least recently used images are discarded. The
+ * cache does not prevent the images from being garbage collected.
+ *
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	// image with size divided by four in each direction
+ *	ImageStack level2 = ImagePyramidCache.getDefault().getLevel(imagePlus, 2);
+ *}</pre>
+ *
+ * @see ImagePyramid
+ * @see ImageChangeTracker
+ *
+ * @author dlegland
+ *
+ */
+public class ImagePyramidCache
+{
+    // ===================================================================
+    // Static members
+
+    /** The cache shared by the plugins */
+    private static ImagePyramidCache defaultCache = null;
+
+    /**
+     * Returns the cache shared by the plugins. The default memory budget is
+     * an eighth of the maximum memory of the virtual machine.
+     *
+     * @return the default cache
+     */
+    public static synchronized ImagePyramidCache getDefault()
+    {
+        if (defaultCache == null)
+        {
+            defaultCache = new ImagePyramidCache(Runtime.getRuntime().maxMemory() / 8);
+        }
+        return defaultCache;
+    }
+
+
+    // ===================================================================
+    // Inner classes
+
+    /**
+     * The key of an entry, comparing images by identity.
+     */
+    private static final class Key
+    {
+        final WeakReference<ImagePlus> image;
+        final int hash;
+
+        Key(ImagePlus image)
+        {
+            this.image = new WeakReference<ImagePlus>(image);
+            this.hash = System.identityHashCode(image);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            ImagePlus image = this.image.get();
+            return image != null && image == ((Key) obj).image.get();
+        }
+    }
+
+    /**
+     * The pyramid of an image, together with the stack of the image and its
+     * stamp when the pyramid was created.
+     */
+    private static final class Entry
+    {
+        final ImageStack stack;
+        final long stamp;
+        final ImagePyramid pyramid;
+
+        Entry(ImageStack stack, long stamp, ImagePyramid pyramid)
+        {
+            this.stack = stack;
+            this.stamp = stamp;
+            this.pyramid = pyramid;
+        }
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The entries, in access order */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /** The maximum number of bytes used by the computed levels */
+    private long maxBytes;
+
+
+    // ===================================================================
+    // Constructor
+
+    /**
+     * Creates a new cache with the specified memory budget.
+     *
+     * @param maxBytes
+     *            the maximum number of bytes used by the computed levels
+     */
+    public ImagePyramidCache(long maxBytes)
+    {
+        setMaxBytes(maxBytes);
+    }
+
+
+    // ===================================================================
+    // Accessors
+
+    public synchronized long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * Changes the memory budget, discarding the least recently used entries
+     * if necessary.
+     *
+     * @param maxBytes
+     *            the maximum number of bytes used by the computed levels
+     */
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        if (maxBytes < 0)
+        {
+            throw new IllegalArgumentException("Memory budget must be positive or zero, not " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        evict(null);
+    }
+
+    /**
+     * @return the number of bytes used by the computed levels of all the
+     *         pyramids.
+     */
+    public synchronized long getUsedBytes()
+    {
+        long bytes = 0;
+        for (Entry entry : entries.values())
+        {
+            bytes += entry.pyramid.getUsedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of images whose pyramid is cached.
+     */
+    public synchronized int size()
+    {
+        purge();
+        return entries.size();
+    }
+
+
+    // ===================================================================
+    // Methods
+
+    /**
+     * Returns the specified level of the pyramid of an image, computing it if
+     * necessary.
+     *
+     * @param image
+     *            the image
+     * @param level
+     *            the index of the level, zero for the stack of the image
+     * @return the image at the specified level
+     */
+    public ImageStack getLevel(ImagePlus image, int level)
+    {
+        if (level == 0)
+        {
+            return image.getStack();
+        }
+
+        ImagePyramid pyramid = getPyramid(image);
+        ImageStack result = pyramid.getLevel(level);
+
+        // the memory used by the pyramid may have increased
+        synchronized (this)
+        {
+            evict(new Key(image));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the pyramid of an image, creating a new pyramid if the image is
+     * not in the cache or if it has been modified since the pyramid was
+     * created. The levels of the pyramid are computed on demand.
+     *
+     * @param image
+     *            the image
+     * @return the pyramid of the image
+     */
+    public ImagePyramid getPyramid(ImagePlus image)
+    {
+        ImageStack stack = image.getStack();
+        long stamp = ImageChangeTracker.stamp(stack);
+
+        Key key = new Key(image);
+        synchronized (this)
+        {
+            purge();
+            Entry entry = entries.get(key);
+            if (entry == null || entry.stack != stack || entry.stamp != stamp)
+            {
+                entry = new Entry(stack, stamp, new ImagePyramid(stack));
+                entries.put(key, entry);
+            }
+            return entry.pyramid;
+        }
+    }
+
+    /**
+     * Discards the pyramid of the specified image, if it is in the cache.
+     *
+     * @param image
+     *            the image whose pyramid should be discarded
+     */
+    public synchronized void remove(ImagePlus image)
+    {
+        entries.remove(new Key(image));
+    }
+
+    /**
+     * Discards all the cached pyramids.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Discards the least recently used entries until the memory budget is
+     * respected, keeping the entry with the specified key.
+     */
+    private void evict(Key keep)
+    {
+        long usedBytes = getUsedBytes();
+        Iterator<Map.Entry<Key, Entry>> iter = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && iter.hasNext())
+        {
+            Map.Entry<Key, Entry> eldest = iter.next();
+            if (eldest.getKey().equals(keep))
+            {
+                continue;
+            }
+            usedBytes -= eldest.getValue().pyramid.getUsedBytes();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Discards the entries whose image has been garbage collected.
+     */
+    private void purge()
+    {
+        Iterator<Map.Entry<Key, Entry>> iter = entries.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            if (iter.next().getKey().image.get() == null)
+            {
+                iter.remove();
+            }
+        }
+    }
+}
@@ -12,6 +12,7 @@ import ij.ImagePlus;
 import inrae.bibs.register.Transform;
 import inrae.bibs.register.Transform2D;
 import inrae.bibs.register.Transform3D;
+import inrae.bibs.register.transforms.AffineTransform2D;
 import inrae.bibs.register.transforms.AffineTransform3D;
 import inrae.bibs.register.transforms.CenteredMotion2D;
 import inrae.bibs.register.transforms.CenteredSimilarity2D;
@@ -166,6 +167,17 @@ public class JsonRegistrationWriter
             writeValue("shiftX", simil.shiftX);
             writeValue("shiftY", simil.shiftY);
         }
+        else if (transform instanceof AffineTransform2D)
+        {
+            AffineTransform2D affine = (AffineTransform2D) transform;
+            double[][] mat = affine.affineMatrix();
+            writeString("type", "AffineTransform2D");
+            writer.name("params");
+            writer.beginArray();
+            writer.value(mat[0][0]).value(mat[0][1]).value(mat[0][2]);
+            writer.value(mat[1][0]).value(mat[1][1]).value(mat[1][2]);
+            writer.endArray();
+        }
         else
         {
             throw new RuntimeException("Unknown transform type: " + transform.getClass().getName());
@@ -0,0 +1,26 @@
+/**
+ *
+ */
+package inrae.bibs.register.optim;
+
+/**
+ * A function of several parameters, to be minimized by an Optimizer.
+ *
+ * @see Optimizer
+ *
+ * @author dlegland
+ *
+ */
+public interface CostFunction
+{
+    /**
+     * Evaluates the function for the specified parameters. The array of
+     * parameters must not be modified.
+     *
+     * @param params
+     *            the values of the parameters
+     * @return the value of the function, that may be infinite for invalid
+     *         parameters
+     */
+    public double evaluate(double[] params);
+}
@@ -0,0 +1,462 @@
+/**
+ *
+ */
+package inrae.bibs.register.optim;
+
+import java.util.Arrays;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import inrae.bibs.register.Transform2D;
+import inrae.bibs.register.Transform3D;
+import inrae.bibs.register.image.Images3D;
+import inrae.bibs.util.Parallel;
+
+/**
+ * A measure of the dissimilarity between a reference image and a moving image
+ * transformed into the reference space, used as cost function for automatic
+ * registration. Lower values correspond to better registrations.
+ *
+ * The metric is computed over the voxels of the reference image whose
+ * transformed position falls within the moving image. The moving image is
+ * sampled with (bi/tri)linear interpolation. The rows of the reference image
+ * are split into a fixed number of slabs, processed in parallel, each slab
+ * having its own buffers for the transformed positions and its own partial
+ * sums. The buffers are allocated once, such that no memory is allocated for
+ * each voxel or each row during evaluation. The partial sums are combined in
+ * a fixed order, such that the result does not depend on the scheduling of
+ * the threads.
+ *
+ * Implementations only combine the sums computed over the overlapping voxels.
+ * Instances are not thread-safe.
+ *
+ * @see MeanSquaredError
+ * @see NormalizedCrossCorrelation
+ *
+ * @author dlegland
+ *
+ */
+public abstract class ImageMetric
+{
+    // ===================================================================
+    // Static constants
+
+    /** The index of the number of overlapping voxels within the sums */
+    protected static final int COUNT = 0;
+    /** The index of the sum of reference values within the sums */
+    protected static final int SUM_REF = 1;
+    /** The index of the sum of moving values within the sums */
+    protected static final int SUM_MOVING = 2;
+    /** The index of the sum of squared reference values within the sums */
+    protected static final int SUM_REF_REF = 3;
+    /** The index of the sum of squared moving values within the sums */
+    protected static final int SUM_MOVING_MOVING = 4;
+    /** The index of the sum of products within the sums */
+    protected static final int SUM_REF_MOVING = 5;
+
+    /** The number of slabs created for each thread */
+    private static final int SLABS_PER_THREAD = 4;
+
+
+    // ===================================================================
+    // Inner class
+
+    /**
+     * The buffers and the partial sums of a range of rows of the reference
+     * image.
+     */
+    private static final class Slab
+    {
+        final int rowStart;
+        final int rowEnd;
+        final double[] ys;
+        final double[] zs;
+        final double[] xsOut;
+        final double[] ysOut;
+        final double[] zsOut;
+        final double[] sums = new double[6];
+
+        Slab(int rowStart, int rowEnd, int rowLength)
+        {
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.ys = new double[rowLength];
+            this.zs = new double[rowLength];
+            this.xsOut = new double[rowLength];
+            this.ysOut = new double[rowLength];
+            this.zsOut = new double[rowLength];
+        }
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The values of the reference image, as one array per slice */
+    final float[][] refSlices;
+    final int refSizeX;
+    final int refSizeY;
+    final int refSizeZ;
+
+    /** The values of the moving image, as one array per slice */
+    final float[][] movingSlices;
+    final int movingSizeX;
+    final int movingSizeY;
+    final int movingSizeZ;
+
+    /** The x-coordinates of the voxels of a row, shared by all slabs */
+    final double[] xs;
+
+    /**
+     * The minimal fraction of reference voxels that must overlap the moving
+     * image for the metric to be finite.
+     */
+    double minOverlap = 0.1;
+
+    int threadCount = Parallel.defaultThreadCount();
+
+    /** The slabs of rows, created for the current number of threads */
+    private Slab[] slabs = null;
+
+    /** The sums over all the slabs */
+    private final double[] totals = new double[6];
+
+
+    // ===================================================================
+    // Constructors
+
+    /**
+     * Creates a new metric for comparing two planar images.
+     *
+     * @param reference
+     *            the reference image
+     * @param moving
+     *            the moving image
+     */
+    protected ImageMetric(ImageProcessor reference, ImageProcessor moving)
+    {
+        this(createStack(reference), createStack(moving));
+    }
+
+    /**
+     * Creates a new metric for comparing two 3D images.
+     *
+     * @param reference
+     *            the reference image
+     * @param moving
+     *            the moving image
+     */
+    protected ImageMetric(ImageStack reference, ImageStack moving)
+    {
+        this.refSlices = floatSlices(reference);
+        this.refSizeX = reference.getWidth();
+        this.refSizeY = reference.getHeight();
+        this.refSizeZ = reference.getSize();
+        this.movingSlices = floatSlices(moving);
+        this.movingSizeX = moving.getWidth();
+        this.movingSizeY = moving.getHeight();
+        this.movingSizeZ = moving.getSize();
+
+        this.xs = new double[this.refSizeX];
+        for (int x = 0; x < this.refSizeX; x++)
+        {
+            this.xs[x] = x;
+        }
+    }
+
+    private static final ImageStack createStack(ImageProcessor image)
+    {
+        ImageStack stack = new ImageStack(image.getWidth(), image.getHeight());
+        stack.addSlice(image);
+        return stack;
+    }
+
+    private static final float[][] floatSlices(ImageStack image)
+    {
+        if (image.getBitDepth() == 32)
+        {
+            return Images3D.getFloatArrays(image);
+        }
+
+        int nSlices = image.getSize();
+        float[][] slices = new float[nSlices][];
+        for (int z = 0; z < nSlices; z++)
+        {
+            slices[z] = (float[]) image.getProcessor(z + 1).convertToFloatProcessor().getPixels();
+        }
+        return slices;
+    }
+
+
+    // ===================================================================
+    // Settings
+
+    /**
+     * @return the number of threads used for evaluating the metric
+     */
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * @param threadCount
+     *            the number of threads used for evaluating the metric
+     */
+    public void setThreadCount(int threadCount)
+    {
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("Number of threads must be positive, not " + threadCount);
+        }
+        this.threadCount = threadCount;
+        this.slabs = null;
+    }
+
+    /**
+     * @return the minimal fraction of reference voxels that must overlap the
+     *         moving image for the metric to be finite
+     */
+    public double getMinOverlap()
+    {
+        return minOverlap;
+    }
+
+    /**
+     * Changes the minimal fraction of reference voxels that must overlap the
+     * moving image. When the overlap is smaller, the metric is infinite, such
+     * that optimizers do not converge to transforms moving the images apart.
+     *
+     * @param minOverlap
+     *            the minimal fraction of overlapping voxels, between 0 and 1
+     */
+    public void setMinOverlap(double minOverlap)
+    {
+        this.minOverlap = minOverlap;
+    }
+
+
+    // ===================================================================
+    // Evaluation
+
+    /**
+     * Computes the metric between the reference image and the moving image
+     * transformed by the specified transform. Both images must be planar.
+     *
+     * @param transform
+     *            the transform from the reference space to the moving image
+     *            space
+     * @return the value of the metric
+     */
+    public double evaluate2D(Transform2D transform)
+    {
+        if (this.refSizeZ != 1 || this.movingSizeZ != 1)
+        {
+            throw new IllegalArgumentException("Planar transforms require planar images");
+        }
+        Slab[] slabs = getSlabs();
+        Parallel.forEachChunk(slabs.length, this.threadCount, (s0, s1) ->
+        {
+            for (int s = s0; s < s1; s++)
+            {
+                accumulate2D(transform, slabs[s]);
+            }
+        });
+        return computeValue();
+    }
+
+    /**
+     * Computes the metric between the reference image and the moving image
+     * transformed by the specified transform.
+     *
+     * @param transform
+     *            the transform from the reference space to the moving image
+     *            space
+     * @return the value of the metric
+     */
+    public double evaluate3D(Transform3D transform)
+    {
+        Slab[] slabs = getSlabs();
+        Parallel.forEachChunk(slabs.length, this.threadCount, (s0, s1) ->
+        {
+            for (int s = s0; s < s1; s++)
+            {
+                accumulate3D(transform, slabs[s]);
+            }
+        });
+        return computeValue();
+    }
+
+    /**
+     * Combines the sums computed over the overlapping voxels into the value
+     * of the metric. The array contains the values at the indices COUNT,
+     * SUM_REF, SUM_MOVING, SUM_REF_REF, SUM_MOVING_MOVING and SUM_REF_MOVING.
+     *
+     * @param sums
+     *            the sums computed over the overlapping voxels
+     * @return the value of the metric
+     */
+    protected abstract double computeValue(double[] sums);
+
+    private double computeValue()
+    {
+        Arrays.fill(this.totals, 0.0);
+        for (Slab slab : this.slabs)
+        {
+            for (int i = 0; i < this.totals.length; i++)
+            {
+                this.totals[i] += slab.sums[i];
+            }
+        }
+
+        double voxelCount = (double) this.refSizeX * this.refSizeY * this.refSizeZ;
+        if (this.totals[COUNT] == 0 || this.totals[COUNT] < this.minOverlap * voxelCount)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        return computeValue(this.totals);
+    }
+
+    private Slab[] getSlabs()
+    {
+        if (this.slabs == null)
+        {
+            int rowCount = this.refSizeY * this.refSizeZ;
+            int nSlabs = Math.max(Math.min(rowCount, this.threadCount * SLABS_PER_THREAD), 1);
+            this.slabs = new Slab[nSlabs];
+            for (int s = 0; s < nSlabs; s++)
+            {
+                int start = (int) ((long) rowCount * s / nSlabs);
+                int end = (int) ((long) rowCount * (s + 1) / nSlabs);
+                this.slabs[s] = new Slab(start, end, this.refSizeX);
+            }
+        }
+        return this.slabs;
+    }
+
+    private void accumulate2D(Transform2D transform, Slab slab)
+    {
+        int sizeX = this.refSizeX;
+        float[] refSlice = this.refSlices[0];
+        float[] movingSlice = this.movingSlices[0];
+        double maxX = this.movingSizeX - 1;
+        double maxY = this.movingSizeY - 1;
+
+        double n = 0, sr = 0, sm = 0, srr = 0, smm = 0, srm = 0;
+        for (int y = slab.rowStart; y < slab.rowEnd; y++)
+        {
+            Arrays.fill(slab.ys, y);
+            transform.transform(this.xs, slab.ys, slab.xsOut, slab.ysOut, sizeX);
+
+            int offset = y * sizeX;
+            for (int x = 0; x < sizeX; x++)
+            {
+                double xm = slab.xsOut[x];
+                double ym = slab.ysOut[x];
+                if (!(xm >= 0 && xm <= maxX && ym >= 0 && ym <= maxY))
+                {
+                    continue;
+                }
+
+                double vr = refSlice[offset + x];
+                double vm = interpolate(movingSlice, xm, ym);
+                n++;
+                sr += vr;
+                sm += vm;
+                srr += vr * vr;
+                smm += vm * vm;
+                srm += vr * vm;
+            }
+        }
+        setSums(slab.sums, n, sr, sm, srr, smm, srm);
+    }
+
+    private void accumulate3D(Transform3D transform, Slab slab)
+    {
+        int sizeX = this.refSizeX;
+        int sizeY = this.refSizeY;
+        double maxX = this.movingSizeX - 1;
+        double maxY = this.movingSizeY - 1;
+        double maxZ = this.movingSizeZ - 1;
+
+        double n = 0, sr = 0, sm = 0, srr = 0, smm = 0, srm = 0;
+        for (int row = slab.rowStart; row < slab.rowEnd; row++)
+        {
+            int y = row % sizeY;
+            int z = row / sizeY;
+            Arrays.fill(slab.ys, y);
+            Arrays.fill(slab.zs, z);
+            transform.transform(this.xs, slab.ys, slab.zs, slab.xsOut, slab.ysOut, slab.zsOut, sizeX);
+
+            float[] refSlice = this.refSlices[z];
+            int offset = y * sizeX;
+            for (int x = 0; x < sizeX; x++)
+            {
+                double xm = slab.xsOut[x];
+                double ym = slab.ysOut[x];
+                double zm = slab.zsOut[x];
+                if (!(xm >= 0 && xm <= maxX && ym >= 0 && ym <= maxY && zm >= 0 && zm <= maxZ))
+                {
+                    continue;
+                }
+
+                double vr = refSlice[offset + x];
+                double vm = interpolate(xm, ym, zm);
+                n++;
+                sr += vr;
+                sm += vm;
+                srr += vr * vr;
+                smm += vm * vm;
+                srm += vr * vm;
+            }
+        }
+        setSums(slab.sums, n, sr, sm, srr, smm, srm);
+    }
+
+    private static final void setSums(double[] sums, double n, double sr, double sm, double srr, double smm, double srm)
+    {
+        sums[COUNT] = n;
+        sums[SUM_REF] = sr;
+        sums[SUM_MOVING] = sm;
+        sums[SUM_REF_REF] = srr;
+        sums[SUM_MOVING_MOVING] = smm;
+        sums[SUM_REF_MOVING] = srm;
+    }
+
+    /**
+     * Bilinear interpolation within a slice of the moving image, for a
+     * position within the bounds of the image.
+     */
+    private double interpolate(float[] slice, double x, double y)
+    {
+        int i0 = (int) x;
+        int j0 = (int) y;
+        int i1 = i0 + 1 < this.movingSizeX ? i0 + 1 : i0;
+        int j1 = j0 + 1 < this.movingSizeY ? j0 + 1 : j0;
+        double dx = x - i0;
+        double dy = y - j0;
+
+        int row0 = j0 * this.movingSizeX;
+        int row1 = j1 * this.movingSizeX;
+        double v0 = slice[row0 + i0] + dx * (slice[row0 + i1] - slice[row0 + i0]);
+        double v1 = slice[row1 + i0] + dx * (slice[row1 + i1] - slice[row1 + i0]);
+        return v0 + dy * (v1 - v0);
+    }
+
+    /**
+     * Trilinear interpolation within the moving image, for a position within
+     * the bounds of the image.
+     */
+    private double interpolate(double x, double y, double z)
+    {
+        int k0 = (int) z;
+        int k1 = k0 + 1 < this.movingSizeZ ? k0 + 1 : k0;
+        double v0 = interpolate(this.movingSlices[k0], x, y);
+        if (k1 == k0)
+        {
+            return v0;
+        }
+        double v1 = interpolate(this.movingSlices[k1], x, y);
+        return v0 + (z - k0) * (v1 - v0);
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package inrae.bibs.register.optim;
+
+import java.util.function.Function;
+
+import inrae.bibs.register.Transform2D;
+import inrae.bibs.register.Transform3D;
+
+/**
+ * Automatic registration of a pair of images, by optimization of the
+ * parameters of a transform model with respect to an image metric.
+ *
+ * The transform model is a function that creates a transform from an array
+ * of parameters, for example the shifts and the rotation angle of a motion.
+ * The optimization starts from initial parameters, typically the values
+ * chosen manually by the user, and the steps give the order of magnitude of
+ * the expected variations of each parameter.
+ *
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	ImageMetric metric = new MeanSquaredError(refImage, movingImage);
+ *	IntensityRegistration registration = new IntensityRegistration(metric, new NelderMeadOptimizer());
+ *	double[] shift = registration.register2D(p -> new Translation2D(p[0], p[1]),
+ *	        new double[] {0, 0}, new double[] {1, 1});
+ *}</pre>
+ *
+ * @author dlegland
+ *
+ */
+public class IntensityRegistration
+{
+    // ===================================================================
+    // Class variables
+
+    /** The metric comparing the reference and the transformed moving images */
+    ImageMetric metric;
+
+    /** The method used for optimizing the parameters */
+    Optimizer optimizer;
+
+
+    // ===================================================================
+    // Constructor
+
+    /**
+     * Creates a new registration.
+     *
+     * @param metric
+     *            the metric comparing the reference and the transformed moving
+     *            images
+     * @param optimizer
+     *            the method used for optimizing the parameters
+     */
+    public IntensityRegistration(ImageMetric metric, Optimizer optimizer)
+    {
+        this.metric = metric;
+        this.optimizer = optimizer;
+    }
+
+
+    // ===================================================================
+    // Registration methods
+
+    /**
+     * Searches for the parameters of a planar transform model that minimize
+     * the metric.
+     *
+     * @param model
+     *            the function creating a transform from parameters
+     * @param initialParams
+     *            the initial values of the parameters
+     * @param steps
+     *            the initial variations of the parameters
+     * @return the optimized parameters
+     */
+    public double[] register2D(Function<double[], ? extends Transform2D> model, double[] initialParams, double[] steps)
+    {
+        return this.optimizer.optimize(params -> this.metric.evaluate2D(model.apply(params)), initialParams, steps);
+    }
+
+    /**
+     * Searches for the parameters of a 3D transform model that minimize the
+     * metric.
+     *
+     * @param model
+     *            the function creating a transform from parameters
+     * @param initialParams
+     *            the initial values of the parameters
+     * @param steps
+     *            the initial variations of the parameters
+     * @return the optimized parameters
+     */
+    public double[] register3D(Function<double[], ? extends Transform3D> model, double[] initialParams, double[] steps)
+    {
+        return this.optimizer.optimize(params -> this.metric.evaluate3D(model.apply(params)), initialParams, steps);
+    }
+
+
+    // ===================================================================
+    // Accessors
+
+    /**
+     * @return the metric comparing the reference and the transformed moving
+     *         images
+     */
+    public ImageMetric getMetric()
+    {
+        return metric;
+    }
+
+    /**
+     * @return the method used for optimizing the parameters
+     */
+    public Optimizer getOptimizer()
+    {
+        return optimizer;
+    }
+}
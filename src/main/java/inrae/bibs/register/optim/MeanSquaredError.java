@@ -0,0 +1,52 @@
+/**
+ *
+ */
+package inrae.bibs.register.optim;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * The mean of the squared differences between the reference image and the
+ * transformed moving image, computed over the overlapping voxels. This metric
+ * is adapted to images acquired with the same modality and the same
+ * intensity settings.
+ *
+ * @author dlegland
+ *
+ */
+public class MeanSquaredError extends ImageMetric
+{
+    /**
+     * Creates a new metric for comparing two planar images.
+     *
+     * @param reference
+     *            the reference image
+     * @param moving
+     *            the moving image
+     */
+    public MeanSquaredError(ImageProcessor reference, ImageProcessor moving)
+    {
+        super(reference, moving);
+    }
+
+    /**
+     * Creates a new metric for comparing two 3D images.
+     *
+     * @param reference
+     *            the reference image
+     * @param moving
+     *            the moving image
+     */
+    public MeanSquaredError(ImageStack reference, ImageStack moving)
+    {
+        super(reference, moving);
+    }
+
+    @Override
+    protected double computeValue(double[] sums)
+    {
+        double sum = sums[SUM_REF_REF] - 2 * sums[SUM_REF_MOVING] + sums[SUM_MOVING_MOVING];
+        return Math.max(sum, 0.0) / sums[COUNT];
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ *
+ */
+package inrae.bibs.register.optim;
+
+import inrae.bibs.util.Parallel;
+
+/**
+ * The downhill simplex method of Nelder and Mead. The simplex initially
+ * contains the initial parameters, and the initial parameters shifted by the
+ * step of each parameter. At each iteration, the worst vertex of the simplex
+ * is reflected, expanded or contracted through the centroid of the other
+ * vertices, or the whole simplex is shrunk towards the best vertex.
+ *
+ * The method does not require derivatives of the cost function, and usually
+ * needs one or two evaluations of the function per iteration. The arrays used
+ * during the iterations are allocated once at the beginning of the
+ * optimization.
+ *
+ * @author dlegland
+ *
+ */
+public class NelderMeadOptimizer extends Optimizer
+{
+    /** The coefficient of the reflection */
+    private static final double REFLECTION = 1.0;
+
+    /** The coefficient of the expansion */
+    private static final double EXPANSION = 2.0;
+
+    /** The coefficient of the contraction */
+    private static final double CONTRACTION = 0.5;
+
+    /** The coefficient of the shrink */
+    private static final double SHRINK = 0.5;
+
+    @Override
+    public double[] optimize(CostFunction function, double[] initialParams, double[] steps)
+    {
+        int n = initialParams.length;
+        if (steps.length != n)
+        {
+            throw new IllegalArgumentException("Parameters and steps must have the same length");
+        }
+        this.iterationCount = 0;
+        this.evaluationCount = 0;
+
+        // create the initial simplex
+        double[][] simplex = new double[n + 1][];
+        double[] values = new double[n + 1];
+        for (int i = 0; i <= n; i++)
+        {
+            simplex[i] = initialParams.clone();
+            if (i > 0)
+            {
+                simplex[i][i - 1] += steps[i - 1];
+            }
+            values[i] = evaluate(function, simplex[i]);
+        }
+
+        double[] centroid = new double[n];
+        double[] trial = new double[n];
+        double[] trial2 = new double[n];
+        while (true)
+        {
+            Parallel.checkCancelled();
+            sort(simplex, values);
+            if (this.iterationCount >= this.maxIterations || isConverged(simplex, values, steps))
+            {
+                break;
+            }
+            this.iterationCount++;
+
+            // centroid of the vertices except the worst one
+            for (int k = 0; k < n; k++)
+            {
+                double sum = 0;
+                for (int i = 0; i < n; i++)
+                {
+                    sum += simplex[i][k];
+                }
+                centroid[k] = sum / n;
+            }
+            double[] worst = simplex[n];
+
+            // reflection of the worst vertex
+            move(centroid, worst, REFLECTION, trial);
+            double valueR = evaluate(function, trial);
+            if (valueR < values[0])
+            {
+                // try to go further in the same direction
+                move(centroid, worst, EXPANSION, trial2);
+                double valueE = evaluate(function, trial2);
+                if (valueE < valueR)
+                {
+                    replaceWorst(simplex, values, trial2, valueE);
+                }
+                else
+                {
+                    replaceWorst(simplex, values, trial, valueR);
+                }
+            }
+            else if (valueR < values[n - 1])
+            {
+                replaceWorst(simplex, values, trial, valueR);
+            }
+            else
+            {
+                // contraction, outside or inside of the simplex
+                double coef = valueR < values[n] ? CONTRACTION : -CONTRACTION;
+                move(centroid, worst, coef, trial2);
+                double valueC = evaluate(function, trial2);
+                if (valueC < Math.min(valueR, values[n]))
+                {
+                    replaceWorst(simplex, values, trial2, valueC);
+                }
+                else
+                {
+                    // shrink the simplex towards the best vertex
+                    for (int i = 1; i <= n; i++)
+                    {
+                        for (int k = 0; k < n; k++)
+                        {
+                            simplex[i][k] = simplex[0][k] + SHRINK * (simplex[i][k] - simplex[0][k]);
+                        }
+                        values[i] = evaluate(function, simplex[i]);
+                    }
+                }
+            }
+        }
+
+        this.bestValue = values[0];
+        return simplex[0].clone();
+    }
+
+    /**
+     * Computes the point centroid + coef * (centroid - vertex), and stores it
+     * into the destination array.
+     */
+    private static final void move(double[] centroid, double[] vertex, double coef, double[] dest)
+    {
+        for (int k = 0; k < centroid.length; k++)
+        {
+            dest[k] = centroid[k] + coef * (centroid[k] - vertex[k]);
+        }
+    }
+
+    private static final void replaceWorst(double[][] simplex, double[] values, double[] params, double value)
+    {
+        int n = values.length - 1;
+        System.arraycopy(params, 0, simplex[n], 0, params.length);
+        values[n] = value;
+    }
+
+    /**
+     * Sorts the vertices of the simplex by increasing values, using insertion
+     * sort as the simplex is almost sorted after each iteration.
+     */
+    private static final void sort(double[][] simplex, double[] values)
+    {
+        for (int i = 1; i < values.length; i++)
+        {
+            double value = values[i];
+            double[] vertex = simplex[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] > value)
+            {
+                values[j + 1] = values[j];
+                simplex[j + 1] = simplex[j];
+                j--;
+            }
+            values[j + 1] = value;
+            simplex[j + 1] = vertex;
+        }
+    }
+
+    private boolean isConverged(double[][] simplex, double[] values, double[] steps)
+    {
+        int n = values.length - 1;
+        if (!isCostConverged(values[0], values[n]))
+        {
+            return false;
+        }
+        for (int i = 1; i <= n; i++)
+        {
+            for (int k = 0; k < n; k++)
+            {
+                if (Math.abs(simplex[i][k] - simplex[0][k]) > this.parameterTolerance * Math.abs(steps[k]))
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ *
+ */
+package inrae.bibs.register.optim;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * A metric based on the correlation coefficient between the values of the
+ * reference image and of the transformed moving image, computed over the
+ * overlapping voxels. As metrics are minimized, the value of the metric is one
+ * minus the correlation coefficient, between 0 (perfect linear relationship)
+ * and 2. This metric is insensitive to linear changes of intensity between
+ * the images.
+ *
+ * @author dlegland
+ *
+ */
+public class NormalizedCrossCorrelation extends ImageMetric
+{
+    /**
+     * Creates a new metric for comparing two planar images.
+     *
+     * @param reference
+     *            the reference image
+     * @param moving
+     *            the moving image
+     */
+    public NormalizedCrossCorrelation(ImageProcessor reference, ImageProcessor moving)
+    {
+        super(reference, moving);
+    }
+
+    /**
+     * Creates a new metric for comparing two 3D images.
+     *
+     * @param reference
+     *            the reference image
+     * @param moving
+     *            the moving image
+     */
+    public NormalizedCrossCorrelation(ImageStack reference, ImageStack moving)
+    {
+        super(reference, moving);
+    }
+
+    @Override
+    protected double computeValue(double[] sums)
+    {
+        double n = sums[COUNT];
+        double covariance = sums[SUM_REF_MOVING] - sums[SUM_REF] * sums[SUM_MOVING] / n;
+        double varRef = sums[SUM_REF_REF] - sums[SUM_REF] * sums[SUM_REF] / n;
+        double varMoving = sums[SUM_MOVING_MOVING] - sums[SUM_MOVING] * sums[SUM_MOVING] / n;
+
+        // constant images are not correlated
+        if (varRef <= 0 || varMoving <= 0)
+        {
+            return 1.0;
+        }
+        return 1.0 - covariance / Math.sqrt(varRef * varMoving);
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ *
+ */
+package inrae.bibs.register.optim;
+
+/**
+ * Searches for the parameters that minimize a cost function, starting from
+ * initial values and initial steps. The steps give the order of magnitude of
+ * the variations of each parameter, and are also used for expressing the
+ * tolerance on parameters independently of their units.
+ *
+ * The optimization stops when the maximal number of iterations is reached, or
+ * when the variations of the cost and of the parameters become smaller than
+ * the tolerances, as detailed by each implementation. Implementations check
+ * the interruption status of the calling thread at each iteration, and throw
+ * a CancellationException if the thread was interrupted.
+ *
+ * @see NelderMeadOptimizer
+ * @see PatternSearchOptimizer
+ *
+ * @author dlegland
+ *
+ */
+public abstract class Optimizer
+{
+    // ===================================================================
+    // Class variables
+
+    /** The maximal number of iterations */
+    int maxIterations = 200;
+
+    /** The tolerance on the relative variation of the cost */
+    double costTolerance = 1e-6;
+
+    /** The tolerance on the variation of the parameters, relative to steps */
+    double parameterTolerance = 1e-2;
+
+    /** The number of iterations of the last optimization */
+    int iterationCount = 0;
+
+    /** The number of evaluations of the cost function of the last optimization */
+    int evaluationCount = 0;
+
+    /** The value of the cost function for the result of the last optimization */
+    double bestValue = Double.NaN;
+
+
+    // ===================================================================
+    // Abstract methods
+
+    /**
+     * Searches for the parameters that minimize the cost function.
+     *
+     * @param function
+     *            the function to minimize
+     * @param initialParams
+     *            the initial values of the parameters
+     * @param steps
+     *            the initial variations of the parameters
+     * @return the parameters corresponding to the smallest value found for the
+     *         cost function
+     * @throws java.util.concurrent.CancellationException
+     *             if the calling thread was interrupted during optimization
+     */
+    public abstract double[] optimize(CostFunction function, double[] initialParams, double[] steps);
+
+
+    // ===================================================================
+    // Stopping criteria
+
+    /**
+     * @return the maximal number of iterations
+     */
+    public int getMaxIterations()
+    {
+        return maxIterations;
+    }
+
+    /**
+     * @param maxIterations
+     *            the maximal number of iterations
+     */
+    public void setMaxIterations(int maxIterations)
+    {
+        if (maxIterations < 1)
+        {
+            throw new IllegalArgumentException("Number of iterations must be positive, not " + maxIterations);
+        }
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * @return the tolerance on the relative variation of the cost
+     */
+    public double getCostTolerance()
+    {
+        return costTolerance;
+    }
+
+    /**
+     * @param costTolerance
+     *            the tolerance on the relative variation of the cost
+     */
+    public void setCostTolerance(double costTolerance)
+    {
+        this.costTolerance = costTolerance;
+    }
+
+    /**
+     * @return the tolerance on the variation of the parameters, as a fraction
+     *         of the initial steps
+     */
+    public double getParameterTolerance()
+    {
+        return parameterTolerance;
+    }
+
+    /**
+     * @param parameterTolerance
+     *            the tolerance on the variation of the parameters, as a
+     *            fraction of the initial steps
+     */
+    public void setParameterTolerance(double parameterTolerance)
+    {
+        this.parameterTolerance = parameterTolerance;
+    }
+
+
+    // ===================================================================
+    // Results of the last optimization
+
+    /**
+     * @return the number of iterations of the last optimization
+     */
+    public int getIterationCount()
+    {
+        return iterationCount;
+    }
+
+    /**
+     * @return the number of evaluations of the cost function of the last
+     *         optimization
+     */
+    public int getEvaluationCount()
+    {
+        return evaluationCount;
+    }
+
+    /**
+     * @return the value of the cost function for the result of the last
+     *         optimization
+     */
+    public double getBestValue()
+    {
+        return bestValue;
+    }
+
+
+    // ===================================================================
+    // Utility methods
+
+    /**
+     * Checks if the difference between two values of the cost is small
+     * compared to the values.
+     */
+    boolean isCostConverged(double value1, double value2)
+    {
+        if (Double.isInfinite(value1) || Double.isInfinite(value2))
+        {
+            return false;
+        }
+        double diff = Math.abs(value1 - value2);
+        return diff <= this.costTolerance * (Math.abs(value1) + Math.abs(value2)) * 0.5 + Double.MIN_NORMAL;
+    }
+
+    /**
+     * Evaluates the function, and updates the number of evaluations.
+     */
+    double evaluate(CostFunction function, double[] params)
+    {
+        this.evaluationCount++;
+        double value = function.evaluate(params);
+        return Double.isNaN(value) ? Double.POSITIVE_INFINITY : value;
+    }
+}
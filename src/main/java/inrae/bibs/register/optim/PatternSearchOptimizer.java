@@ -0,0 +1,72 @@
+/**
+ *
+ */
+package inrae.bibs.register.optim;
+
+import inrae.bibs.util.Parallel;
+
+/**
+ * A compass search, that automates the manual registration with the +/-
+ * buttons of the plugins. At each iteration, each parameter is increased and
+ * decreased by its current step, and the first modification that
+ * significantly decreases the cost is retained. When no modification
+ * decreases the cost, all the steps are divided by two. The optimization
+ * stops when the steps become smaller than the tolerance on parameters.
+ *
+ * This method is more robust than the Nelder-Mead method for noisy cost
+ * functions, but usually requires more evaluations of the function.
+ *
+ * @author dlegland
+ *
+ */
+public class PatternSearchOptimizer extends Optimizer
+{
+    @Override
+    public double[] optimize(CostFunction function, double[] initialParams, double[] steps)
+    {
+        int n = initialParams.length;
+        if (steps.length != n)
+        {
+            throw new IllegalArgumentException("Parameters and steps must have the same length");
+        }
+        this.iterationCount = 0;
+        this.evaluationCount = 0;
+
+        double[] current = initialParams.clone();
+        double value = evaluate(function, current);
+        double[] trial = new double[n];
+
+        // the ratio between the current steps and the initial steps
+        double scale = 1.0;
+        while (this.iterationCount < this.maxIterations && scale > this.parameterTolerance)
+        {
+            Parallel.checkCancelled();
+            this.iterationCount++;
+
+            boolean improved = false;
+            for (int k = 0; k < n && !improved; k++)
+            {
+                for (int sign = 1; sign >= -1 && !improved; sign -= 2)
+                {
+                    System.arraycopy(current, 0, trial, 0, n);
+                    trial[k] += sign * scale * steps[k];
+                    double trialValue = evaluate(function, trial);
+                    if (trialValue < value && !isCostConverged(trialValue, value))
+                    {
+                        System.arraycopy(trial, 0, current, 0, n);
+                        value = trialValue;
+                        improved = true;
+                    }
+                }
+            }
+
+            if (!improved)
+            {
+                scale *= 0.5;
+            }
+        }
+
+        this.bestValue = value;
+        return current;
+    }
+}
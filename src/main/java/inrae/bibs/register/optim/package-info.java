@@ -0,0 +1,8 @@
+/**
+ * Automatic registration, by optimization of the parameters of a transform
+ * model with respect to a similarity metric between images.
+ *
+ * @author dlegland
+ *
+ */
+package inrae.bibs.register.optim;
\ No newline at end of file
@@ -7,6 +7,7 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Locale;
 
 import javax.swing.*;
@@ -19,17 +20,38 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.GUI;
+import ij.gui.ImageCanvas;
+import ij.gui.ImageWindow;
+import ij.gui.Overlay;
 import ij.gui.StackWindow;
+import ij.measure.Calibration;
 import ij.plugin.frame.PlugInFrame;
+import ij.process.ImageProcessor;
+import inrae.bibs.gui.BackgroundUpdater;
 import inrae.bibs.gui.GuiHelper;
 import inrae.bibs.register.ImagePairDisplay;
+import inrae.bibs.register.Point3D;
 import inrae.bibs.register.Registration;
 import inrae.bibs.register.Transform3D;
 import inrae.bibs.register.display.CheckerBoardDisplay;
 import inrae.bibs.register.display.DifferenceOfIntensitiesDisplay;
+import inrae.bibs.register.display.LazyResultStack;
 import inrae.bibs.register.display.MagentaGreenDisplay;
+import inrae.bibs.register.display.OrthogonalPlanesDisplay;
 import inrae.bibs.register.display.SumOfIntensitiesDisplay;
+import inrae.bibs.register.fft.PhaseCorrelation;
+import inrae.bibs.register.image.ImagePyramidCache;
+import inrae.bibs.register.optim.ImageMetric;
+import inrae.bibs.register.optim.IntensityRegistration;
+import inrae.bibs.register.optim.MeanSquaredError;
+import inrae.bibs.register.optim.NelderMeadOptimizer;
+import inrae.bibs.register.optim.NormalizedCrossCorrelation;
+import inrae.bibs.register.optim.Optimizer;
+import inrae.bibs.register.optim.PatternSearchOptimizer;
+import inrae.bibs.register.resample.BSplineCoefficientCache;
+import inrae.bibs.register.resample.Interpolation;
 import inrae.bibs.register.transforms.AffineTransform3D;
+import inrae.bibs.register.transforms.MatrixAffineTransform3D;
 import inrae.bibs.register.transforms.Translation3D;
 
 /**
@@ -55,6 +77,20 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
         SUM
     };
     
+    /**
+     * The initial steps of the parameters for automatic registration, equal
+     * to the increments of the +/- buttons: shifts X, Y and Z, then rotation
+     * angles around the X, Y and Z axes.
+     */
+    private static final double[] PARAMETER_STEPS = new double[] {1.0, 1.0, 1.0, 1.0, 1.0, 1.0};
+    
+    /**
+     * The maximal number of voxels of the images used for shift estimation.
+     * Larger images are replaced by a level of their pyramid, limiting the
+     * memory used by the Fourier transforms to about a hundred megabytes.
+     */
+    private static final long PHASE_CORRELATION_MAX_VOXELS = 1L << 22;
+    
     
     // ====================================================
     // Class properties
@@ -80,12 +116,44 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
     /** The transform model from reference space to moving image space */
     Transform3D transform = new Translation3D(0, 0, 0);
     
-    /** The result of the transform applied on the moving image */
-    ImageStack registeredImage; 
-    
     ImagePairDisplay resultDisplay = new MagentaGreenDisplay();
     
-    ImagePlus resultImagePlus = null;
+    /** The stack displaying the full resolution result, computed on demand */
+    LazyResultStack resultStack = null;
+    
+    /**
+     * Computes the result of registration in background, keeping only the
+     * result of the last request.
+     */
+    BackgroundUpdater updater = new BackgroundUpdater("Simple Register 3D update");
+    
+    /**
+     * Computes the full resolution result once the registration parameters
+     * have not been modified for a given delay.
+     */
+    Timer refineTimer;
+    
+    /**
+     * Provides the subsampled images used for computing preview and coarse
+     * registration, as levels of Gaussian pyramids.
+     */
+    ImagePyramidCache pyramidCache = ImagePyramidCache.getDefault();
+    
+    /**
+     * Estimates the shift between the images, keeping the Fourier transforms
+     * for the next estimations.
+     */
+    PhaseCorrelation phaseCorrelation = new PhaseCorrelation();
+    
+    /** Computes the preview of orthogonal planes */
+    OrthogonalPlanesDisplay orthoDisplay = null;
+    
+    /** The images used for computing the preview of orthogonal planes */
+    ImagePlus orthoReferenceSource = null;
+    ImagePlus orthoMovingSource = null;
+    
+    /** The position of the intersection of orthogonal planes */
+    int[] cursor = new int[3];
     
     
     // ====================================================
@@ -101,6 +169,10 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
     JComboBox<String> imageNames2Combo;
     
     JComboBox<String> displayTypeCombo;
+    JComboBox<Interpolation> interpolationCombo;
+    
+    JComboBox<String> previewCombo;
+    JTextField refineDelayTextField;
     
     JComboBox<String> registrationTypeCombo;
 
@@ -137,12 +209,24 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
     JButton scalingDec;
     JButton scalingInc;
     
+    JComboBox<String> metricCombo;
+    JComboBox<String> optimizerCombo;
+    JTextField maxIterationsTextField;
+    
     JCheckBox autoUpdateCheckBox;
     JButton runButton;
+    JButton autoRegisterButton;
+    JButton estimateShiftButton;
     
     
     StackWindow resultFrame = null;
     
+    /** The subsampling factor of the stack shown in the result frame */
+    int resultFactor = 1;
+    
+    /** The frame displaying the preview of orthogonal planes */
+    ImageWindow orthoFrame = null;
+    
     JFileChooser saveWindow;
     
     /**
@@ -212,6 +296,18 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
         this.displayTypeCombo.setSelectedIndex(1);
         this.displayTypeCombo.addItemListener(this);
         
+        this.interpolationCombo = new JComboBox<Interpolation>(Interpolation.values());
+        this.interpolationCombo.setSelectedItem(Interpolation.NEAREST);
+        this.interpolationCombo.addItemListener(this);
+        
+        this.previewCombo = new JComboBox<String>();
+        this.previewCombo.addItem("None");
+        this.previewCombo.addItem("1/4");
+        this.previewCombo.addItem("1/8");
+        this.previewCombo.addItem("Orthogonal Planes");
+        this.previewCombo.setSelectedIndex(1);
+        this.refineDelayTextField = new JTextField("500", 10);
+        
         this.registrationTypeCombo = new JComboBox<String>();
         this.registrationTypeCombo.addItem("Translation");
         this.registrationTypeCombo.addItem("Motion (Translation+Rotation)");
@@ -258,6 +354,23 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
         
         this.runButton = new JButton("Run");
         this.runButton.addActionListener(this);
+        
+        this.metricCombo = new JComboBox<String>();
+        this.metricCombo.addItem("Mean Squared Error");
+        this.metricCombo.addItem("Normalized Cross-Correlation");
+        this.optimizerCombo = new JComboBox<String>();
+        this.optimizerCombo.addItem("Nelder-Mead Simplex");
+        this.optimizerCombo.addItem("Pattern Search");
+        this.maxIterationsTextField = new JTextField("200", 10);
+        
+        this.autoRegisterButton = new JButton("Auto-Register");
+        this.autoRegisterButton.addActionListener(this);
+        
+        this.estimateShiftButton = new JButton("Estimate Shift");
+        this.estimateShiftButton.addActionListener(this);
+        
+        this.refineTimer = new Timer(500, evt -> runRegistration());
+        this.refineTimer.setRepeats(false);
     }
     
     private JTextField createNumericTextField(double initialValue)
@@ -289,9 +402,15 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
         imagesPanel.add(this.imageNames2Combo);
 
         JPanel displayOptionsPanel = GuiHelper.createOptionsPanel("Display Options");
-        displayOptionsPanel.setLayout(new GridLayout(1, 2));
+        displayOptionsPanel.setLayout(new GridLayout(4, 2));
         displayOptionsPanel.add(new JLabel("Display Type:"));
         displayOptionsPanel.add(this.displayTypeCombo);
+        displayOptionsPanel.add(new JLabel("Interpolation:"));
+        displayOptionsPanel.add(this.interpolationCombo);
+        displayOptionsPanel.add(new JLabel("Auto-Update Preview:"));
+        displayOptionsPanel.add(this.previewCombo);
+        displayOptionsPanel.add(new JLabel("Refine Delay (ms):"));
+        displayOptionsPanel.add(this.refineDelayTextField);
         
         JPanel registrationPanel = GuiHelper.createOptionsPanel("Registration");
         registrationPanel.setLayout(new GridLayout(8, 2));
@@ -313,11 +432,21 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
         registrationPanel.add(createPanel(scalingFactorLogTextField, scalingDec, scalingInc));
         updateEnabledRegistrationWidgets();
         
+        JPanel autoRegistrationPanel = GuiHelper.createOptionsPanel("Auto-Registration");
+        autoRegistrationPanel.setLayout(new GridLayout(3, 2));
+        autoRegistrationPanel.add(new JLabel("Metric:"));
+        autoRegistrationPanel.add(metricCombo);
+        autoRegistrationPanel.add(new JLabel("Optimizer:"));
+        autoRegistrationPanel.add(optimizerCombo);
+        autoRegistrationPanel.add(new JLabel("Max. Iterations:"));
+        autoRegistrationPanel.add(maxIterationsTextField);
+        
         mainPanel.add(imagesPanel);
         mainPanel.add(displayOptionsPanel);
         mainPanel.add(registrationPanel);
+        mainPanel.add(autoRegistrationPanel);
          
-        GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, autoUpdateCheckBox, runButton);
+        GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, autoUpdateCheckBox, runButton, autoRegisterButton, estimateShiftButton);
         
         this.setLayout(new BorderLayout());
         this.add(mainPanel, BorderLayout.CENTER);
@@ -378,6 +507,7 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
     private void runRegistration()
     {
         IJ.log("Run registration!");
+        this.refineTimer.stop();
         
         updateInputImages();
         
@@ -390,12 +520,325 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
         // need to update transform after updating images (to compute center)
         updateTransform();
         
-        // apply transform on moving image
-        updateRegisteredImage();
+        // apply transform on moving image, and compute display
+        showLazyResult();
+    }
+    
+    /**
+     * Displays the result of registration with the current transform and
+     * display, using a stack whose slices are computed when they are
+     * displayed. The first displayed slices are computed in background before
+     * the stack is shown, such that the event dispatch thread does not wait
+     * for them.
+     */
+    private void showLazyResult()
+    {
+        if (this.resultStack != null)
+        {
+            this.resultStack.dispose();
+        }
+        ImageStack movingStack = movingImagePlus.getStack();
+        Interpolation interpolation = getInterpolation();
+        LazyResultStack stack = new LazyResultStack(referenceImagePlus.getStack(), movingStack, this.transform, this.resultDisplay);
+        stack.setInterpolation(interpolation);
+        stack.setSliceListener(n -> refreshResultSlice(stack, n));
+        this.resultStack = stack;
+        
+        // the slice currently displayed, that will be kept by the new display
+        int slice = this.resultFrame != null ? (this.resultFrame.getImagePlus().getSlice() - 1) * this.resultFactor + 1 : 1;
+        slice = Math.min(Math.max(slice, 1), stack.getSize());
+        int visibleSlice = slice;
+        
+        // submitting cancels the previews being computed
+        this.updater.submit(() -> 
+        {
+            // compute the B-spline coefficients of the moving image, if they
+            // are not in cache yet
+            if (interpolation == Interpolation.BSPLINE)
+            {
+                BSplineCoefficientCache.getDefault().getCoefficients(movingStack);
+            }
+            
+            // the first slice is accessed when the stack is wrapped into an ImagePlus
+            stack.prefetchSlice(1);
+            stack.prefetchSlice(visibleSlice);
+            return stack;
+        }, 
+        this::showResultDisplay);
+    }
+    
+    /**
+     * Replaces the placeholder displayed for a slice of the lazy result stack
+     * by the computed slice, if the slice is still displayed.
+     * 
+     * @param stack
+     *            the lazy result stack
+     * @param n
+     *            the index of the computed slice, starting from 1
+     */
+    private void refreshResultSlice(LazyResultStack stack, int n)
+    {
+        if (this.resultFrame == null)
+        {
+            return;
+        }
+        ImagePlus resultPlus = this.resultFrame.getImagePlus();
+        if (resultPlus.getStack() == stack && resultPlus.getCurrentSlice() == n)
+        {
+            resultPlus.updateVirtualSlice();
+            resultPlus.updateAndDraw();
+        }
+    }
+    
+    /**
+     * Updates the result after a modification of the registration parameters
+     * in Auto-Update mode. If preview is enabled, a preview is computed from
+     * subsampled images, and the full resolution result is computed after the
+     * parameters have not been modified during the refine delay. If the
+     * preview of orthogonal planes is selected, only the preview is updated.
+     * Otherwise, the full resolution result is computed immediately.
+     */
+    private void runAutoUpdate()
+    {
+        if (this.previewCombo.getSelectedIndex() == 3)
+        {
+            runOrthogonalPreview();
+            return;
+        }
         
-        updateResultDisplay();
+        int factor = getPreviewFactor();
+        if (factor <= 1)
+        {
+            runRegistration();
+            return;
+        }
+        
+        runPreview(factor);
+        
+        // (re)start the countdown for computing the full resolution result
+        this.refineTimer.setInitialDelay(parseRefineDelay());
+        this.refineTimer.restart();
+    }
+    
+    /**
+     * Computes the result of registration on subsampled versions of the
+     * reference and moving images, and displays it with the size of the
+     * reference image. The subsampled images are obtained from the pyramids
+     * of the images, computed the first time they are requested.
+     * 
+     * @param factor
+     *            the subsampling factor, as a power of two
+     */
+    private void runPreview(int factor)
+    {
+        updateInputImages();
+        
+        parseRegistrationParameters();
+        if (!this.validParams)
+        {
+            return;
+        }
+        updateTransform();
+        
+        // avoid computing slices of the previous result in background
+        if (this.resultStack != null)
+        {
+            this.resultStack.dispose();
+        }
+        
+        // keep current state for computing the preview in background
+        ImagePlus image1 = this.referenceImagePlus;
+        ImagePlus image2 = this.movingImagePlus;
+        int level = Integer.numberOfTrailingZeros(factor);
+        Transform3D transform = createPreviewTransform(this.transform, factor);
+        ImagePairDisplay display = this.resultDisplay;
+        
+        // the subsampled display is magnified by the result frame
+        this.updater.submit(() -> 
+        {
+            ImageStack imageStack1 = this.pyramidCache.getLevel(image1, level);
+            ImageStack imageStack2 = this.pyramidCache.getLevel(image2, level);
+            return Registration.computeTransformedDisplay(imageStack1, transform, imageStack2, display);
+        }, 
+        result -> showResultDisplay(result, factor));
+    }
+    
+    /**
+     * Computes the result of registration on the three orthogonal planes going
+     * through the cursor, and displays them in a dedicated frame.
+     */
+    private void runOrthogonalPreview()
+    {
+        updateInputImages();
+        
+        parseRegistrationParameters();
+        if (!this.validParams)
+        {
+            return;
+        }
+        updateTransform();
+        
+        // create a new display if the input images have changed
+        ImageStack imageStack1 = this.referenceImagePlus.getStack();
+        ImageStack imageStack2 = this.movingImagePlus.getStack();
+        if (this.orthoDisplay == null || this.orthoReferenceSource != this.referenceImagePlus
+                || this.orthoMovingSource != this.movingImagePlus)
+        {
+            this.orthoDisplay = new OrthogonalPlanesDisplay(imageStack1, imageStack2);
+            this.orthoReferenceSource = this.referenceImagePlus;
+            this.orthoMovingSource = this.movingImagePlus;
+            this.cursor = new int[] {imageStack1.getWidth() / 2, imageStack1.getHeight() / 2, imageStack1.getSize() / 2};
+        }
+        
+        // keep current state for computing the planes in background
+        OrthogonalPlanesDisplay ortho = this.orthoDisplay;
+        Transform3D transform = this.transform;
+        ImagePairDisplay display = this.resultDisplay;
+        int[] pos = this.cursor;
+        
+        this.updater.submit(() -> ortho.compute(transform, display, pos[0], pos[1], pos[2]), 
+                result -> showOrthogonalPlanes(result, ortho.createCursorOverlay(pos[0], pos[1], pos[2])));
+    }
+    
+    /**
+     * Shows the display of orthogonal planes in the orthogonal preview frame,
+     * creating the frame if necessary.
+     * 
+     * @param planes
+     *            the image containing the display of the three planes
+     * @param cursorOverlay
+     *            the overlay showing the position of the cursor
+     */
+    private void showOrthogonalPlanes(ImageProcessor planes, Overlay cursorOverlay)
+    {
+        ImagePlus planesPlus = new ImagePlus("Orthogonal Preview", planes);
+        planesPlus.setOverlay(cursorOverlay);
+        
+        // create frame if necessary, with a listener for moving the cursor
+        if (this.orthoFrame == null || this.orthoFrame.isClosed())
+        {
+            this.orthoFrame = new ImageWindow(planesPlus);
+            this.orthoFrame.getCanvas().addMouseListener(new MouseAdapter()
+            {
+                @Override
+                public void mouseClicked(MouseEvent evt)
+                {
+                    moveCursor(evt);
+                }
+            });
+        }
+        
+        // update display frame, keeping the previous magnification
+        double mag = this.orthoFrame.getCanvas().getMagnification();
+        this.orthoFrame.setImage(planesPlus);
+        this.orthoFrame.getCanvas().setMagnification(mag);
+        this.orthoFrame.setVisible(true);
+    }
+    
+    /**
+     * Moves the cursor to the position clicked within the orthogonal preview
+     * frame, and updates the preview.
+     */
+    private void moveCursor(MouseEvent evt)
+    {
+        if (this.orthoDisplay == null)
+        {
+            return;
+        }
+        
+        ImageCanvas canvas = this.orthoFrame.getCanvas();
+        int px = canvas.offScreenX(evt.getX());
+        int py = canvas.offScreenY(evt.getY());
+        int[] pos = this.orthoDisplay.cursorPosition(px, py, this.cursor);
+        if (pos != null)
+        {
+            this.cursor = pos;
+            runOrthogonalPreview();
+        }
+    }
+    
+    /**
+     * Converts a transform between the reference and moving images into a
+     * transform between the subsampled versions of the images.
+     * 
+     * @param transform
+     *            the transform between the full resolution images
+     * @param factor
+     *            the subsampling factor
+     * @return the transform between the subsampled images
+     */
+    private static final Transform3D createPreviewTransform(Transform3D transform, int factor)
+    {
+        if (factor == 1)
+        {
+            return transform;
+        }
+        
+        if (transform instanceof Translation3D)
+        {
+            Translation3D translation = (Translation3D) transform;
+            return new Translation3D(translation.shiftX / factor, translation.shiftY / factor, translation.shiftZ / factor);
+        }
+        
+        if (transform instanceof AffineTransform3D)
+        {
+            // conjugation by an isotropic scaling only divides the translation
+            double[][] mat = ((AffineTransform3D) transform).affineMatrix();
+            return new MatrixAffineTransform3D(
+                    mat[0][0], mat[0][1], mat[0][2], mat[0][3] / factor, 
+                    mat[1][0], mat[1][1], mat[1][2], mat[1][3] / factor, 
+                    mat[2][0], mat[2][1], mat[2][2], mat[2][3] / factor);
+        }
+        
+        return point -> 
+        {
+            Point3D p = transform.transform(new Point3D(point.getX() * factor, point.getY() * factor, point.getZ() * factor));
+            return new Point3D(p.getX() / factor, p.getY() / factor, p.getZ() / factor);
+        };
+    }
+    
+    /**
+     * @return the subsampling factor selected for preview, or 1 if preview is
+     *         disabled.
+     */
+    private int getPreviewFactor()
+    {
+        switch (this.previewCombo.getSelectedIndex())
+        {
+        case 1:
+            return 4;
+        case 2:
+            return 8;
+        default:
+            return 1;
+        }
     }
     
+    /**
+     * @return the delay (in milliseconds) before computing the full resolution
+     *         result, or a default value if the text can not be parsed.
+     */
+    private int parseRefineDelay()
+    {
+        try
+        {
+            return Math.max(Integer.parseInt(this.refineDelayTextField.getText().trim()), 0);
+        }
+        catch (NumberFormatException ex)
+        {
+            return 500;
+        }
+    }
+
+    /**
+     * Returns the interpolation used for computing the full resolution
+     * result. Previews always use nearest-neighbor interpolation.
+     */
+    private Interpolation getInterpolation()
+    {
+        return (Interpolation) this.interpolationCombo.getSelectedItem();
+    }
+
     private void updateInputImages()
     {
         // retrieve name of images
@@ -448,87 +891,308 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
     {
         IJ.log("Update transform");
         int transfoIndex = this.registrationTypeCombo.getSelectedIndex();
-        
+        if (transfoIndex < 0 || transfoIndex > 1)
+        {
+            IJ.error("Input Error", "This transformation is not implemented");
+            return;
+        }
+        this.transform = createTransform(transfoIndex, imageCenter(), getParameters(transfoIndex));
+    }
+    
+    /**
+     * Creates a transform from the type of transform and the array of
+     * parameters, containing the shifts X, Y and Z, then the rotation angles
+     * around the X, Y and Z axes in degrees (for Motion). Rotations are
+     * applied around the image center, followed by the shift, and are
+     * computed directly as a single matrix.
+     */
+    private static final Transform3D createTransform(int transfoIndex, Point3D center, double[] params)
+    {
         switch (transfoIndex)
         {
         case 0:
-            this.transform = new Translation3D(this.xShift, this.yShift, this.zShift);
-            break;
-            
+            return new Translation3D(params[0], params[1], params[2]);
         case 1:
+            return AffineTransform3D.createCenteredRotation(center, 
+                    Math.toRadians(params[3]), 
+                    Math.toRadians(params[4]), 
+                    Math.toRadians(params[5]), 
+                    new Point3D(params[0], params[1], params[2]));
+        default:
+            throw new IllegalArgumentException("Unknown type of transform: " + transfoIndex);
+        }
+    }
+    
+    /**
+     * @return the parameters of the specified type of transform, from the
+     *         current values of the widgets.
+     */
+    private double[] getParameters(int transfoIndex)
+    {
+        if (transfoIndex == 0)
         {
-            double sizeX = this.referenceImagePlus.getWidth();
-            double sizeY = this.referenceImagePlus.getHeight();
-            double sizeZ = this.referenceImagePlus.getStackSize();
-            AffineTransform3D tra1 = AffineTransform3D.createTranslation(-sizeX/2, -sizeY/2, -sizeZ/2); 
-            AffineTransform3D rot1 = AffineTransform3D.createRotationOx(Math.toRadians(this.rotationAngle1));
-            AffineTransform3D rot2 = AffineTransform3D.createRotationOy(Math.toRadians(this.rotationAngle2));
-            AffineTransform3D rot3 = AffineTransform3D.createRotationOz(Math.toRadians(this.rotationAngle3));
-            AffineTransform3D tra2 = AffineTransform3D.createTranslation(sizeX/2, sizeY/2, sizeZ/2); 
-            AffineTransform3D tra3 = AffineTransform3D.createTranslation(this.xShift, this.yShift, this.zShift);
-            this.transform = tra3.compose(tra2).compose(rot3).compose(rot2).compose(rot1).compose(tra1);
-            break;
+            return new double[] {this.xShift, this.yShift, this.zShift};
         }
-//        case 2:
-//        {
-//            double sizeX = this.referenceImagePlus.getWidth();
-//            double sizeY = this.referenceImagePlus.getHeight();
-//            Point2D center = new Point2D(sizeX/2, sizeY/2);
-//            this.transform = new CenteredSimilarity2D(center, this.logScaling, this.rotationAngle, this.xShift, this.yShift);
-//            break;
-//        }
-        default:
-                IJ.error("Input Error", "This transformation is not implemented");
+        return new double[] {this.xShift, this.yShift, this.zShift, 
+                this.rotationAngle1, this.rotationAngle2, this.rotationAngle3};
+    }
+    
+    /**
+     * Updates the registration parameters and the widgets from an array of
+     * parameters, in the same order as for the createTransform method.
+     */
+    private void setParameters(double[] params)
+    {
+        this.xShift = params[0];
+        this.yShift = params[1];
+        this.zShift = params[2];
+        xShiftTextField.setText(doubleToString(this.xShift));
+        yShiftTextField.setText(doubleToString(this.yShift));
+        zShiftTextField.setText(doubleToString(this.zShift));
+        if (params.length > 3)
+        {
+            this.rotationAngle1 = params[3];
+            this.rotationAngle2 = params[4];
+            this.rotationAngle3 = params[5];
+            rotationXAngleTextField.setText(doubleToString(this.rotationAngle1));
+            rotationYAngleTextField.setText(doubleToString(this.rotationAngle2));
+            rotationZAngleTextField.setText(doubleToString(this.rotationAngle3));
         }
     }
-
+    
+    private Point3D imageCenter()
+    {
+        double sizeX = this.referenceImagePlus.getWidth();
+        double sizeY = this.referenceImagePlus.getHeight();
+        double sizeZ = this.referenceImagePlus.getStackSize();
+        return new Point3D(sizeX/2, sizeY/2, sizeZ/2);
+    }
+    
     /**
-     * Applies the current transform on the moving image.
+     * Optimizes the parameters of the selected transform model with respect
+     * to the selected metric, starting from the current parameters. If
+     * preview is enabled, the parameters are optimized from coarse to fine,
+     * using the levels of the pyramids of the images from the level used for
+     * preview to the full resolution images. The optimization runs in
+     * background, and the result is updated with the optimized parameters
+     * when it terminates.
      */
-    public void updateRegisteredImage()
+    private void runAutoRegistration()
     {
-        IJ.log("Update Registered image");
-
-        // get image stacks
-        ImageStack imageStack1 = referenceImagePlus.getStack();
-        ImageStack imageStack2 = movingImagePlus.getStack();
+        IJ.log("Run auto-registration");
+        this.refineTimer.stop();
+        
+        updateInputImages();
+        
+        parseRegistrationParameters();
+        if (!this.validParams)
+        {
+            return;
+        }
         
-//        // convert to Image3D instances
-//        Image3D image1 = Images3D.createWrapper(imageStack1);
-//        Image3D image2 = Images3D.createWrapper(imageStack2);
+        // keep current state for optimizing in background
+        ImagePlus image1 = this.referenceImagePlus;
+        ImagePlus image2 = this.movingImagePlus;
+        int coarsestLevel = Integer.numberOfTrailingZeros(getPreviewFactor());
+        int transfoIndex = this.registrationTypeCombo.getSelectedIndex();
+        Point3D center = imageCenter();
+        double[] initialParams = getParameters(transfoIndex);
+        double[] steps = Arrays.copyOf(PARAMETER_STEPS, initialParams.length);
+        int metricIndex = this.metricCombo.getSelectedIndex();
+        Optimizer optimizer = createOptimizer();
+        
+        IJ.showStatus("Auto-registration...");
+        this.updater.submit(() -> 
+        {
+            double[] params = initialParams;
+            for (int level = coarsestLevel; level >= 0; level--)
+            {
+                // shift steps of one voxel of the current level
+                int factor = 1 << level;
+                double[] levelSteps = steps.clone();
+                for (int i = 0; i < 3; i++)
+                {
+                    levelSteps[i] *= factor;
+                }
+                
+                ImageStack imageStack1 = this.pyramidCache.getLevel(image1, level);
+                ImageStack imageStack2 = this.pyramidCache.getLevel(image2, level);
+                ImageMetric metric = createMetric(metricIndex, imageStack1, imageStack2);
+                IntensityRegistration registration = new IntensityRegistration(metric, optimizer);
+                params = registration.register3D(p -> createPreviewTransform(createTransform(transfoIndex, center, p), factor), params, levelSteps);
+            }
+            return params;
+        }, 
+        params -> 
+        {
+            IJ.log(String.format(Locale.ENGLISH, "Auto-registration: %d iterations, metric=%g", 
+                    optimizer.getIterationCount(), optimizer.getBestValue()));
+            IJ.showStatus("Auto-registration done");
+            setParameters(params);
+            runRegistration();
+        });
+    }
+    
+    /**
+     * Estimates the shift between the reference and the moving images by
+     * phase correlation, and updates the shift parameters. The other
+     * parameters are not modified. Large images are replaced by the first
+     * level of their pyramids whose number of voxels is small enough.
+     */
+    private void runShiftEstimation()
+    {
+        IJ.log("Run shift estimation");
+        this.refineTimer.stop();
+        
+        updateInputImages();
+        
+        parseRegistrationParameters();
+        if (!this.validParams)
+        {
+            return;
+        }
+        
+        ImagePlus image1 = this.referenceImagePlus;
+        ImagePlus image2 = this.movingImagePlus;
+        int level = Math.max(shiftEstimationLevel(image1), shiftEstimationLevel(image2));
+        int factor = 1 << level;
+        
+        IJ.showStatus("Shift estimation...");
+        this.updater.submit(() -> 
+        {
+            ImageStack imageStack1 = this.pyramidCache.getLevel(image1, level);
+            ImageStack imageStack2 = this.pyramidCache.getLevel(image2, level);
+            return this.phaseCorrelation.estimate(imageStack1, imageStack2);
+        }, 
+        shift -> 
+        {
+            IJ.log(String.format(Locale.ENGLISH, "Estimated shift: (%.3f, %.3f, %.3f), level=%d, peak=%.3f", 
+                    shift.shiftX * factor, shift.shiftY * factor, shift.shiftZ * factor, 
+                    level, this.phaseCorrelation.getPeakValue()));
+            IJ.showStatus("Shift estimation done");
+            this.xShift = shift.shiftX * factor;
+            this.yShift = shift.shiftY * factor;
+            this.zShift = shift.shiftZ * factor;
+            xShiftTextField.setText(doubleToString(this.xShift));
+            yShiftTextField.setText(doubleToString(this.yShift));
+            zShiftTextField.setText(doubleToString(this.zShift));
+            runRegistration();
+        });
+    }
+    
+    /**
+     * @return the index of the first level of the pyramid of the image whose
+     *         number of voxels is small enough for shift estimation.
+     */
+    private static final int shiftEstimationLevel(ImagePlus image)
+    {
+        long sizeX = image.getWidth();
+        long sizeY = image.getHeight();
+        long sizeZ = image.getStackSize();
+        int level = 0;
+        while (sizeX * sizeY * sizeZ > PHASE_CORRELATION_MAX_VOXELS)
+        {
+            sizeX = (sizeX + 1) / 2;
+            sizeY = (sizeY + 1) / 2;
+            sizeZ = (sizeZ + 1) / 2;
+            level++;
+        }
+        return level;
+    }
+    
+    private static final ImageMetric createMetric(int metricIndex, ImageStack image1, ImageStack image2)
+    {
+        return metricIndex == 1 ? new NormalizedCrossCorrelation(image1, image2) : new MeanSquaredError(image1, image2);
+    }
+    
+    /**
+     * @return the optimizer selected for auto-registration, using the
+     *         maximal number of iterations, or a default value if the text can
+     *         not be parsed.
+     */
+    private Optimizer createOptimizer()
+    {
+        Optimizer optimizer = this.optimizerCombo.getSelectedIndex() == 1 ? new PatternSearchOptimizer() : new NelderMeadOptimizer();
+        try 
+        {
+            optimizer.setMaxIterations(Math.max(Integer.parseInt(this.maxIterationsTextField.getText().trim()), 1));
+        }
+        catch (NumberFormatException ex)
+        {
+            // keep default number of iterations
+        }
+        return optimizer;
+    }
 
-        // apply transform on moving image
-        registeredImage = Registration.computeTransformedImage(imageStack1, this.transform, imageStack2);
-        resultImagePlus = new ImagePlus("Result", registeredImage); 
+    /**
+     * Updates the display of the result after a change of display type, using
+     * the current transform.
+     */
+    private void startResultDisplayUpdate()
+    {
+        if (this.resultStack == null)
+        {
+            return;
+        }
+        showLazyResult();
     }
     
+    /**
+     * Shows the stack computed from the reference image and the result of
+     * registration in the result frame.
+     * 
+     * @param result
+     *            the stack to display
+     */
+    private void showResultDisplay(ImageStack result)
+    {
+        showResultDisplay(result, 1);
+    }
     
     /**
-     * Updates the current display of result, by combining the result of
-     * registration with the reference image.
+     * Shows the stack computed from subsampled versions of the reference
+     * image and of the result of registration in the result frame. The voxels
+     * are not replicated: the stack is magnified by the canvas, such that it
+     * is displayed with the size of the reference image, and is calibrated
+     * accordingly.
+     * 
+     * @param result
+     *            the stack to display
+     * @param factor
+     *            the subsampling factor of the stack, 1 for full resolution
      */
-    public void updateResultDisplay()
+    private void showResultDisplay(ImageStack result, int factor)
     {
-        // retrieve image data
-        ImageStack imageStack1 = referenceImagePlus.getStack();
-        ImageStack imageStack2 = resultImagePlus.getStack();
-        
-        // compute display result
-        ImageStack result = resultDisplay.compute(imageStack1, imageStack2);
         ImagePlus resultPlus = new ImagePlus("Result", result);
+        Calibration calib = this.referenceImagePlus.getCalibration().copy();
+        calib.pixelWidth *= factor;
+        calib.pixelHeight *= factor;
+        calib.pixelDepth *= factor;
+        resultPlus.setCalibration(calib);
         
         // retrieve frame for displaying result
-        if (this.resultFrame == null)
+        boolean created = this.resultFrame == null;
+        if (created)
         {
             this.resultFrame = new StackWindow(resultPlus);
         }
         
-        // update display frame, keeping the previous magnification
-        double mag = this.resultFrame.getCanvas().getMagnification();
-        int slice = this.resultFrame.getImagePlus().getSlice();
-        resultPlus.setSlice(slice);
+        // the magnification and the slice index relative to the reference image
+        ImageCanvas canvas = this.resultFrame.getCanvas();
+        double mag = created && factor > 1 ? 1.0 : canvas.getMagnification() * this.resultFactor;
+        int z = (this.resultFrame.getImagePlus().getSlice() - 1) * this.resultFactor;
+        
+        // update display frame, keeping the previous magnification and slice
+        resultPlus.setSlice(Math.min(z / factor + 1, result.getSize()));
         this.resultFrame.setImage(resultPlus);
-        this.resultFrame.getCanvas().setMagnification(mag);
+        double resultMag = mag / factor;
+        canvas.setMagnification(resultMag);
+        if (factor != this.resultFactor)
+        {
+            canvas.setSize((int) Math.round(result.getWidth() * resultMag), (int) Math.round(result.getHeight() * resultMag));
+            this.resultFrame.pack();
+        }
+        this.resultFactor = factor;
         this.resultFrame.setVisible(true);
     }
     
@@ -582,6 +1246,16 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
         {
             runRegistration();
         }
+        else if (evt.getSource() == autoRegisterButton)
+        {
+            runAutoRegistration();
+            return;
+        }
+        else if (evt.getSource() == estimateShiftButton)
+        {
+            runShiftEstimation();
+            return;
+        }
         else if (evt.getSource() == xShiftInc)
         {
             // add the value 1 to x shift
@@ -681,7 +1355,7 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
         if (this.autoUpdateCheckBox.isSelected())
         {
             IJ.log("(auto-update)");
-            runRegistration();
+            runAutoUpdate();
         }
     }
     
@@ -697,6 +1371,15 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
             updateResultDisplayType();
         }
     
+        if (src == interpolationCombo && evt.getStateChange() == ItemEvent.SELECTED)
+        {
+            // updates current display
+            if (this.autoUpdateCheckBox.isSelected() && this.transform != null)
+            {
+                startResultDisplayUpdate();
+            }
+        }
+    
         if (src == registrationTypeCombo && evt.getStateChange() == ItemEvent.SELECTED)
         {
             updateEnabledRegistrationWidgets();
@@ -708,7 +1391,7 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
             updateInputImages();
             if (this.autoUpdateCheckBox.isSelected())
             {
-                runRegistration();
+                runAutoUpdate();
             }
         }
     }
@@ -736,7 +1419,7 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
         // updates current display
         if (this.autoUpdateCheckBox.isSelected() && this.transform != null)
         {
-            updateResultDisplay();
+            startResultDisplayUpdate();
         }
     }
     
@@ -852,7 +1535,7 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
         
         if (this.autoUpdateCheckBox.isSelected())
         {
-            runRegistration();
+            runAutoUpdate();
             textField.requestFocus();
         }
     }
@@ -869,6 +1552,22 @@ public class SimpleRegister3DPlugin extends PlugInFrame implements ActionListene
     /** Overrides close() in PlugInFrame. */
     public void close()
     {
+        this.refineTimer.stop();
+        this.updater.shutdown();
+        if (this.resultStack != null)
+        {
+            this.resultStack.dispose();
+        }
+        if (this.movingImagePlus != null)
+        {
+            // release the B-spline coefficients computed for the session
+            BSplineCoefficientCache.getDefault().remove(this.movingImagePlus.getStack());
+            this.pyramidCache.remove(this.movingImagePlus);
+        }
+        if (this.referenceImagePlus != null)
+        {
+            this.pyramidCache.remove(this.referenceImagePlus);
+        }
         super.close();
     }
     
@@ -7,6 +7,7 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Locale;
 
 import javax.swing.*;
@@ -21,6 +22,7 @@ import ij.gui.GUI;
 import ij.gui.ImageWindow;
 import ij.plugin.frame.PlugInFrame;
 import ij.process.ImageProcessor;
+import inrae.bibs.gui.BackgroundUpdater;
 import inrae.bibs.gui.GuiHelper;
 import inrae.bibs.register.ImagePairDisplay;
 import inrae.bibs.register.Point2D;
@@ -30,6 +32,15 @@ import inrae.bibs.register.display.CheckerBoardDisplay;
 import inrae.bibs.register.display.DifferenceOfIntensitiesDisplay;
 import inrae.bibs.register.display.MagentaGreenDisplay;
 import inrae.bibs.register.display.SumOfIntensitiesDisplay;
+import inrae.bibs.register.fft.FourierMellin;
+import inrae.bibs.register.fft.PhaseCorrelation;
+import inrae.bibs.register.optim.ImageMetric;
+import inrae.bibs.register.optim.IntensityRegistration;
+import inrae.bibs.register.optim.MeanSquaredError;
+import inrae.bibs.register.optim.NelderMeadOptimizer;
+import inrae.bibs.register.optim.NormalizedCrossCorrelation;
+import inrae.bibs.register.optim.Optimizer;
+import inrae.bibs.register.optim.PatternSearchOptimizer;
 import inrae.bibs.register.transforms.CenteredMotion2D;
 import inrae.bibs.register.transforms.CenteredSimilarity2D;
 import inrae.bibs.register.transforms.Translation2D;
@@ -57,6 +68,13 @@ public class SimpleRegisterPlugin extends PlugInFrame implements KeyListener
         SUM
     };
     
+    /**
+     * The initial steps of the parameters for automatic registration, equal
+     * to the increments of the +/- buttons: shifts X and Y, rotation angle,
+     * and log of the scaling factor.
+     */
+    private static final double[] PARAMETER_STEPS = new double[] {1.0, 1.0, 1.0, 0.01};
+    
     
     // ====================================================
     // Class properties
@@ -86,6 +104,24 @@ public class SimpleRegisterPlugin extends PlugInFrame implements KeyListener
     
     ImagePlus resultImagePlus = null;
     
+    /**
+     * Computes the result of registration in background, keeping only the
+     * result of the last request.
+     */
+    BackgroundUpdater updater = new BackgroundUpdater("Simple Register update");
+    
+    /**
+     * Estimates the shift between the images, keeping the Fourier transforms
+     * for the next estimations.
+     */
+    PhaseCorrelation phaseCorrelation = new PhaseCorrelation();
+    
+    /**
+     * Estimates the similarity between the images, keeping the Fourier
+     * transforms and the log-polar lookup tables for the next estimations.
+     */
+    FourierMellin fourierMellin = new FourierMellin();
+    
     
     // ====================================================
     // Menu items
@@ -120,8 +156,15 @@ public class SimpleRegisterPlugin extends PlugInFrame implements KeyListener
     JButton scalingDec;
     JButton scalingInc;
     
+    JComboBox<String> metricCombo;
+    JComboBox<String> optimizerCombo;
+    JTextField maxIterationsTextField;
+    
     JCheckBox autoUpdateCheckBox;
     JButton runButton;
+    JButton autoRegisterButton;
+    JButton estimateShiftButton;
+    JButton estimateSimilarityButton;
     
     
     ImageWindow resultFrame = null;
@@ -299,6 +342,23 @@ public class SimpleRegisterPlugin extends PlugInFrame implements KeyListener
         
         this.runButton = new JButton("Run");
         this.runButton.addActionListener(evt -> runRegistration());
+        
+        this.metricCombo = new JComboBox<String>();
+        this.metricCombo.addItem("Mean Squared Error");
+        this.metricCombo.addItem("Normalized Cross-Correlation");
+        this.optimizerCombo = new JComboBox<String>();
+        this.optimizerCombo.addItem("Nelder-Mead Simplex");
+        this.optimizerCombo.addItem("Pattern Search");
+        this.maxIterationsTextField = new JTextField("200", 10);
+        
+        this.autoRegisterButton = new JButton("Auto-Register");
+        this.autoRegisterButton.addActionListener(evt -> runAutoRegistration());
+        
+        this.estimateShiftButton = new JButton("Estimate Shift");
+        this.estimateShiftButton.addActionListener(evt -> runShiftEstimation());
+        
+        this.estimateSimilarityButton = new JButton("Estimate Similarity");
+        this.estimateSimilarityButton.addActionListener(evt -> runSimilarityEstimation());
     }
     
     private JTextField createNumericTextField(double initialValue)
@@ -348,11 +408,21 @@ public class SimpleRegisterPlugin extends PlugInFrame implements KeyListener
         registrationPanel.add(createPanel(logScalingTextField, scalingDec, scalingInc));
         updateEnabledRegistrationWidgets();
         
+        JPanel autoRegistrationPanel = GuiHelper.createOptionsPanel("Auto-Registration");
+        autoRegistrationPanel.setLayout(new GridLayout(3, 2));
+        autoRegistrationPanel.add(new JLabel("Metric:"));
+        autoRegistrationPanel.add(metricCombo);
+        autoRegistrationPanel.add(new JLabel("Optimizer:"));
+        autoRegistrationPanel.add(optimizerCombo);
+        autoRegistrationPanel.add(new JLabel("Max. Iterations:"));
+        autoRegistrationPanel.add(maxIterationsTextField);
+        
         mainPanel.add(imagesPanel);
         mainPanel.add(displayOptionsPanel);
         mainPanel.add(registrationPanel);
+        mainPanel.add(autoRegistrationPanel);
          
-        GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, autoUpdateCheckBox, runButton);
+        GuiHelper.addInLine(mainPanel, FlowLayout.CENTER, autoUpdateCheckBox, runButton, autoRegisterButton, estimateShiftButton, estimateSimilarityButton);
         
         this.setLayout(new BorderLayout());
         this.add(mainPanel, BorderLayout.CENTER);
@@ -426,10 +496,24 @@ public class SimpleRegisterPlugin extends PlugInFrame implements KeyListener
         // need to update transform after updating images (to compute center)
         updateTransform();
         
-        // apply transform on moving image
-        updateRegisteredImage();
+        // keep current state for computing the result in background
+        ImageProcessor image1 = referenceImagePlus.getProcessor();
+        ImageProcessor image2 = movingImagePlus.getProcessor();
+        Transform2D transform = this.transform;
+        ImagePairDisplay display = this.resultDisplay;
         
-        updateResultDisplay();
+        // apply transform on moving image, and compute display
+        this.updater.submit(() -> 
+        {
+            ImageProcessor registered = Registration.computeTransformedImage(image1, transform, image2);
+            ImageProcessor result = display.compute(image1, registered);
+            return new ImageProcessor[] {registered, result};
+        }, 
+        images -> 
+        {
+            this.registeredImage = images[0];
+            showResultDisplay(images[1]);
+        });
     }
     
     private void updateInputImages()
@@ -479,32 +563,209 @@ public class SimpleRegisterPlugin extends PlugInFrame implements KeyListener
     public void updateTransform()
     {
         int transfoIndex = this.registrationTypeCombo.getSelectedIndex();
-        
+        if (transfoIndex < 0 || transfoIndex > 2)
+        {
+            IJ.error("Input Error", "This transformation is not implemented");
+            return;
+        }
+        this.transform = createTransform(transfoIndex, imageCenter(), getParameters(transfoIndex));
+    }
+    
+    /**
+     * Creates a transform from the type of transform and the array of
+     * parameters, containing the shifts X and Y, then the rotation angle in
+     * degrees (for Motion and Similarity), then the log of the scaling factor
+     * (for Similarity).
+     */
+    private static final Transform2D createTransform(int transfoIndex, Point2D center, double[] params)
+    {
         switch (transfoIndex)
         {
         case 0:
-            this.transform = new Translation2D(this.xShift, this.yShift);
-            break;
-            
+            return new Translation2D(params[0], params[1]);
         case 1:
+            return new CenteredMotion2D(center, params[2], params[0], params[1]);
+        case 2:
+            return new CenteredSimilarity2D(center, params[3], params[2], params[0], params[1]);
+        default:
+            throw new IllegalArgumentException("Unknown type of transform: " + transfoIndex);
+        }
+    }
+    
+    /**
+     * @return the parameters of the specified type of transform, from the
+     *         current values of the widgets.
+     */
+    private double[] getParameters(int transfoIndex)
+    {
+        double[] params = new double[] {this.xShift, this.yShift, this.rotationAngle, this.logScaling};
+        return Arrays.copyOf(params, transfoIndex + 2);
+    }
+    
+    /**
+     * Updates the registration parameters and the widgets from an array of
+     * parameters, in the same order as for the createTransform method.
+     */
+    private void setParameters(double[] params)
+    {
+        this.xShift = params[0];
+        this.yShift = params[1];
+        xShiftTextField.setText(doubleToString(this.xShift));
+        yShiftTextField.setText(doubleToString(this.yShift));
+        if (params.length > 2)
         {
-            double sizeX = this.referenceImagePlus.getWidth();
-            double sizeY = this.referenceImagePlus.getHeight();
-            Point2D center = new Point2D(sizeX/2, sizeY/2);
-            this.transform = new CenteredMotion2D(center, this.rotationAngle, this.xShift, this.yShift);
-            break;
+            this.rotationAngle = params[2];
+            rotationAngleTextField.setText(doubleToString(this.rotationAngle));
         }
-        case 2:
+        if (params.length > 3)
         {
-            double sizeX = this.referenceImagePlus.getWidth();
-            double sizeY = this.referenceImagePlus.getHeight();
-            Point2D center = new Point2D(sizeX/2, sizeY/2);
-            this.transform = new CenteredSimilarity2D(center, this.logScaling, this.rotationAngle, this.xShift, this.yShift);
-            break;
+            this.logScaling = params[3];
+            logScalingTextField.setText(doubleToString(this.logScaling));
         }
-        default:
-                IJ.error("Input Error", "This transformation is not implemented");
+    }
+    
+    private Point2D imageCenter()
+    {
+        double sizeX = this.referenceImagePlus.getWidth();
+        double sizeY = this.referenceImagePlus.getHeight();
+        return new Point2D(sizeX/2, sizeY/2);
+    }
+    
+    /**
+     * Optimizes the parameters of the selected transform model with respect
+     * to the selected metric, starting from the current parameters. The
+     * optimization runs in background, and the result is updated with the
+     * optimized parameters when it terminates.
+     */
+    private void runAutoRegistration()
+    {
+        IJ.log("Run auto-registration");
+        
+        updateInputImages();
+        
+        parseRegistrationParameters();
+        if (!this.validParams)
+        {
+            return;
         }
+        
+        // keep current state for optimizing in background
+        ImageProcessor image1 = referenceImagePlus.getProcessor();
+        ImageProcessor image2 = movingImagePlus.getProcessor();
+        int transfoIndex = this.registrationTypeCombo.getSelectedIndex();
+        Point2D center = imageCenter();
+        double[] initialParams = getParameters(transfoIndex);
+        double[] steps = Arrays.copyOf(PARAMETER_STEPS, initialParams.length);
+        int metricIndex = this.metricCombo.getSelectedIndex();
+        Optimizer optimizer = createOptimizer();
+        
+        IJ.showStatus("Auto-registration...");
+        this.updater.submit(() -> 
+        {
+            ImageMetric metric = createMetric(metricIndex, image1, image2);
+            IntensityRegistration registration = new IntensityRegistration(metric, optimizer);
+            return registration.register2D(params -> createTransform(transfoIndex, center, params), initialParams, steps);
+        }, 
+        params -> 
+        {
+            IJ.log(String.format(Locale.ENGLISH, "Auto-registration: %d iterations, metric=%g", 
+                    optimizer.getIterationCount(), optimizer.getBestValue()));
+            IJ.showStatus("Auto-registration done");
+            setParameters(params);
+            runRegistration();
+        });
+    }
+    
+    /**
+     * Estimates the shift between the reference and the moving images by
+     * phase correlation, and updates the shift parameters. The other
+     * parameters are not modified.
+     */
+    private void runShiftEstimation()
+    {
+        IJ.log("Run shift estimation");
+        
+        updateInputImages();
+        
+        parseRegistrationParameters();
+        if (!this.validParams)
+        {
+            return;
+        }
+        
+        ImageProcessor image1 = referenceImagePlus.getProcessor();
+        ImageProcessor image2 = movingImagePlus.getProcessor();
+        
+        IJ.showStatus("Shift estimation...");
+        this.updater.submit(() -> this.phaseCorrelation.estimate(image1, image2), 
+        shift -> 
+        {
+            IJ.log(String.format(Locale.ENGLISH, "Estimated shift: (%.3f, %.3f), peak=%.3f", 
+                    shift.shiftX, shift.shiftY, this.phaseCorrelation.getPeakValue()));
+            IJ.showStatus("Shift estimation done");
+            this.xShift = shift.shiftX;
+            this.yShift = shift.shiftY;
+            xShiftTextField.setText(doubleToString(this.xShift));
+            yShiftTextField.setText(doubleToString(this.yShift));
+            runRegistration();
+        });
+    }
+    
+    /**
+     * Estimates the similarity between the reference and the moving images
+     * using the Fourier-Mellin transform, selects the similarity model, and
+     * updates all the parameters.
+     */
+    private void runSimilarityEstimation()
+    {
+        IJ.log("Run similarity estimation");
+        
+        updateInputImages();
+        
+        parseRegistrationParameters();
+        if (!this.validParams)
+        {
+            return;
+        }
+        
+        ImageProcessor image1 = referenceImagePlus.getProcessor();
+        ImageProcessor image2 = movingImagePlus.getProcessor();
+        
+        IJ.showStatus("Similarity estimation...");
+        this.updater.submit(() -> this.fourierMellin.estimate(image1, image2), 
+        sim -> 
+        {
+            IJ.log(String.format(Locale.ENGLISH, "Estimated similarity: shift=(%.3f, %.3f), angle=%.3f, logScaling=%.4f, peak=%.3f", 
+                    sim.shiftX, sim.shiftY, sim.angleDeg, sim.logScaling, this.fourierMellin.getPeakValue()));
+            IJ.showStatus("Similarity estimation done");
+            this.registrationTypeCombo.setSelectedIndex(2);
+            setParameters(new double[] {sim.shiftX, sim.shiftY, sim.angleDeg, sim.logScaling});
+            runRegistration();
+        });
+    }
+    
+    private static final ImageMetric createMetric(int metricIndex, ImageProcessor image1, ImageProcessor image2)
+    {
+        return metricIndex == 1 ? new NormalizedCrossCorrelation(image1, image2) : new MeanSquaredError(image1, image2);
+    }
+    
+    /**
+     * @return the optimizer selected for auto-registration, using the
+     *         maximal number of iterations, or a default value if the text can
+     *         not be parsed.
+     */
+    private Optimizer createOptimizer()
+    {
+        Optimizer optimizer = this.optimizerCombo.getSelectedIndex() == 1 ? new PatternSearchOptimizer() : new NelderMeadOptimizer();
+        try 
+        {
+            optimizer.setMaxIterations(Math.max(Integer.parseInt(this.maxIterationsTextField.getText().trim()), 1));
+        }
+        catch (NumberFormatException ex)
+        {
+            // keep default number of iterations
+        }
+        return optimizer;
     }
 
     /**
@@ -532,6 +793,37 @@ public class SimpleRegisterPlugin extends PlugInFrame implements KeyListener
         
         // compute display result
         ImageProcessor result = resultDisplay.compute(image1, registeredImage);
+        showResultDisplay(result);
+    }
+    
+    /**
+     * Updates the display of the result in background, using the current
+     * result of registration.
+     */
+    private void startResultDisplayUpdate()
+    {
+        if (this.registeredImage == null)
+        {
+            return;
+        }
+        
+        // keep current state for computing the display in background
+        ImageProcessor image1 = referenceImagePlus.getProcessor();
+        ImageProcessor image2 = this.registeredImage;
+        ImagePairDisplay display = this.resultDisplay;
+        
+        this.updater.submit(() -> display.compute(image1, image2), this::showResultDisplay);
+    }
+    
+    /**
+     * Shows the image computed from the reference image and the result of
+     * registration in the result frame.
+     * 
+     * @param result
+     *            the image to display
+     */
+    private void showResultDisplay(ImageProcessor result)
+    {
         ImagePlus resultPlus = new ImagePlus("Result", result);
         
         // retrieve frame for displaying result
@@ -611,7 +903,7 @@ public class SimpleRegisterPlugin extends PlugInFrame implements KeyListener
         // updates current display
         if (this.autoUpdateCheckBox.isSelected() && this.transform != null)
         {
-            updateResultDisplay();
+            startResultDisplayUpdate();
         }
     }
     
@@ -714,6 +1006,7 @@ public class SimpleRegisterPlugin extends PlugInFrame implements KeyListener
     /** Overrides close() in PlugInFrame. */
     public void close()
     {
+        this.updater.shutdown();
         super.close();
     }
     
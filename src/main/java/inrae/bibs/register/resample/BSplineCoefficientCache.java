@@ -0,0 +1,319 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import ij.ImageStack;
+import inrae.bibs.register.image.ImageChangeTracker;
+
+/**
+ * Keeps the B-spline coefficients of the images recently resampled with cubic
+ * B-spline interpolation, such that the prefilter is computed only once for
+ * each moving image.
+ *
+ * Entries are identified by the identity of the ImageStack. To detect the
+ * modifications of the image, the stamp of the image computed by
+ * ImageChangeTracker is stored with the coefficients, and compared with the
+ * current stamp when the coefficients are requested. The stamp does not
+ * depend on the voxel values, such that cached coefficients are obtained
+ * without reading the image.
+ *
+ * The total memory used by the coefficients is bounded. When a new entry
+ * exceeds the memory budget, the least recently used entries are discarded.
+ * Images whose coefficients are larger than the budget are not cached. The
+ * cache does not prevent the images from being garbage collected.
+ *
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	ImageStack coeffs = BSplineCoefficientCache.getDefault().getCoefficients(movingStack);
+ *}</pre>
+ *
+ * @see BSplineCoefficients
+ * @see ImageChangeTracker
+ *
+ * @author dlegland
+ *
+ */
+public class BSplineCoefficientCache
+{
+    // ===================================================================
+    // Static members
+
+    /** The cache shared by all the resamplers */
+    private static BSplineCoefficientCache defaultCache = null;
+
+    /**
+     * Returns the cache shared by all the resamplers. The default memory
+     * budget is a quarter of the maximum memory of the virtual machine.
+     *
+     * @return the default cache
+     */
+    public static synchronized BSplineCoefficientCache getDefault()
+    {
+        if (defaultCache == null)
+        {
+            defaultCache = new BSplineCoefficientCache(Runtime.getRuntime().maxMemory() / 4);
+        }
+        return defaultCache;
+    }
+
+
+    // ===================================================================
+    // Inner classes
+
+    /**
+     * The key of an entry, comparing images by identity.
+     */
+    private static final class Key
+    {
+        final WeakReference<ImageStack> image;
+        final int hash;
+
+        Key(ImageStack image)
+        {
+            this.image = new WeakReference<ImageStack>(image);
+            this.hash = System.identityHashCode(image);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            ImageStack image = this.image.get();
+            return image != null && image == ((Key) obj).image.get();
+        }
+    }
+
+    /**
+     * The coefficients computed (or being computed) for an image, together
+     * with the stamp of the image when the computation started.
+     */
+    private static final class Entry
+    {
+        final long stamp;
+        final long bytes;
+        final FutureTask<ImageStack> task;
+
+        Entry(long stamp, long bytes, FutureTask<ImageStack> task)
+        {
+            this.stamp = stamp;
+            this.bytes = bytes;
+            this.task = task;
+        }
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The entries, in access order */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /** The maximum number of bytes used by the cached coefficients */
+    private long maxBytes;
+
+    /** The number of bytes used by the cached coefficients */
+    private long usedBytes = 0;
+
+
+    // ===================================================================
+    // Constructor
+
+    /**
+     * Creates a new cache with the specified memory budget.
+     *
+     * @param maxBytes
+     *            the maximum number of bytes used by the cached coefficients
+     */
+    public BSplineCoefficientCache(long maxBytes)
+    {
+        setMaxBytes(maxBytes);
+    }
+
+
+    // ===================================================================
+    // Accessors
+
+    public synchronized long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * Changes the memory budget, discarding the least recently used entries
+     * if necessary.
+     *
+     * @param maxBytes
+     *            the maximum number of bytes used by the cached coefficients
+     */
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        if (maxBytes < 0)
+        {
+            throw new IllegalArgumentException("Memory budget must be positive or zero, not " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        evict(null);
+    }
+
+    /**
+     * @return the number of bytes used by the cached coefficients.
+     */
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    /**
+     * @return the number of images whose coefficients are cached.
+     */
+    public synchronized int size()
+    {
+        purge();
+        return entries.size();
+    }
+
+
+    // ===================================================================
+    // Methods
+
+    /**
+     * Returns the B-spline coefficients of the specified image, computing
+     * them if the image is not in the cache or if it has been modified since
+     * the coefficients were computed.
+     *
+     * @param image
+     *            the image to interpolate
+     * @return the float image of B-spline coefficients
+     */
+    public ImageStack getCoefficients(ImageStack image)
+    {
+        long stamp = ImageChangeTracker.stamp(image);
+        long bytes = 4L * image.getWidth() * image.getHeight() * image.getSize();
+
+        Key key = new Key(image);
+        Entry entry;
+        synchronized (this)
+        {
+            purge();
+            entry = entries.get(key);
+            if (entry == null || entry.stamp != stamp)
+            {
+                remove(key);
+                entry = new Entry(stamp, bytes, new FutureTask<ImageStack>(() -> BSplineCoefficients.compute(image)));
+                if (bytes <= maxBytes)
+                {
+                    entries.put(key, entry);
+                    usedBytes += bytes;
+                    evict(key);
+                }
+            }
+        }
+
+        // compute the coefficients within the calling thread, unless they are
+        // (or are being) computed by another thread
+        entry.task.run();
+        try
+        {
+            return entry.task.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        catch (ExecutionException ex)
+        {
+            // discard the failed entry, so that it can be computed again
+            synchronized (this)
+            {
+                if (entries.get(key) == entry)
+                {
+                    remove(key);
+                }
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * Discards the coefficients of the specified image, if they are in the
+     * cache.
+     *
+     * @param image
+     *            the image whose coefficients should be discarded
+     */
+    public synchronized void remove(ImageStack image)
+    {
+        remove(new Key(image));
+    }
+
+    /**
+     * Discards all the cached coefficients.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    private void remove(Key key)
+    {
+        Entry entry = entries.remove(key);
+        if (entry != null)
+        {
+            usedBytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * Discards the least recently used entries until the memory budget is
+     * respected, keeping the entry with the specified key.
+     */
+    private void evict(Key keep)
+    {
+        Iterator<Map.Entry<Key, Entry>> iter = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && iter.hasNext())
+        {
+            Map.Entry<Key, Entry> eldest = iter.next();
+            if (eldest.getKey() == keep)
+            {
+                continue;
+            }
+            usedBytes -= eldest.getValue().bytes;
+            iter.remove();
+        }
+    }
+
+    /**
+     * Discards the entries whose image has been garbage collected.
+     */
+    private void purge()
+    {
+        Iterator<Map.Entry<Key, Entry>> iter = entries.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry<Key, Entry> entry = iter.next();
+            if (entry.getKey().image.get() == null)
+            {
+                usedBytes -= entry.getValue().bytes;
+                iter.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import inrae.bibs.util.Parallel;
+
+/**
+ * Computes the coefficients of the cubic B-spline that interpolates the
+ * values of an image.
+ *
+ * The coefficients are obtained by applying a recursive prefilter along each
+ * axis of the image (Unser, 1999, "Splines: a perfect fit for signal and image
+ * processing"), using mirror boundary conditions. The result is a float image
+ * with the same size as the input image. Interpolating the coefficients with
+ * the cubic B-spline kernel then gives back the values of the image at integer
+ * positions.
+ *
+ * The computation processes the whole image several times, and requires a
+ * float copy of the image. For repeated resampling of the same image, the
+ * coefficients should be obtained from the BSplineCoefficientCache.
+ *
+ * @see BSplineCoefficientCache
+ * @see BSplineRowSampler
+ *
+ * @author dlegland
+ *
+ */
+public class BSplineCoefficients
+{
+    // ===================================================================
+    // Static constants
+
+    /** The pole of the recursive filter for cubic B-splines */
+    private static final double POLE = Math.sqrt(3.0) - 2.0;
+
+    /** The gain of the recursive filter */
+    private static final double GAIN = (1.0 - POLE) * (1.0 - 1.0 / POLE);
+
+    /**
+     * The number of terms used to initialize the causal filter, such that the
+     * neglected terms are lower than 1e-9.
+     */
+    private static final int HORIZON = (int) Math.ceil(Math.log(1e-9) / Math.log(Math.abs(POLE)));
+
+
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Computes the coefficients of the cubic B-spline interpolating the
+     * values of the image. The slices of the image are processed in parallel.
+     *
+     * @param image
+     *            the image to interpolate, with 8, 16 or 32 bits per voxel
+     * @return a new float image containing the B-spline coefficients
+     */
+    public static final ImageStack compute(ImageStack image)
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        int sizeZ = image.getSize();
+
+        // create a float copy of the image, and filter along X and Y
+        ImageStack result = new ImageStack(sizeX, sizeY, sizeZ);
+        float[][] slices = new float[sizeZ][];
+        Parallel.forEachChunk(sizeZ, Parallel.defaultThreadCount(), (z0, z1) ->
+        {
+            double[][] lines = new double[sizeY][sizeX];
+            for (int z = z0; z < z1; z++)
+            {
+                ImageProcessor slice = image.getProcessor(z + 1);
+                float[] coeffs = new float[sizeX * sizeY];
+
+                for (int y = 0; y < sizeY; y++)
+                {
+                    double[] row = lines[y];
+                    int offset = y * sizeX;
+                    for (int x = 0; x < sizeX; x++)
+                    {
+                        row[x] = slice.getf(offset + x);
+                    }
+                    filter(row, sizeX);
+                }
+
+                filterLines(lines, sizeY, sizeX);
+                for (int y = 0; y < sizeY; y++)
+                {
+                    int offset = y * sizeX;
+                    for (int x = 0; x < sizeX; x++)
+                    {
+                        coeffs[offset + x] = (float) lines[y][x];
+                    }
+                }
+                slices[z] = coeffs;
+            }
+        });
+        for (int z = 0; z < sizeZ; z++)
+        {
+            result.setPixels(slices[z], z + 1);
+        }
+
+        // filter along Z, processing one row of each slice at a time
+        if (sizeZ > 1)
+        {
+            Parallel.forEachChunk(sizeY, Parallel.defaultThreadCount(), (y0, y1) ->
+            {
+                double[][] lines = new double[sizeZ][sizeX];
+                for (int y = y0; y < y1; y++)
+                {
+                    int offset = y * sizeX;
+                    for (int z = 0; z < sizeZ; z++)
+                    {
+                        for (int x = 0; x < sizeX; x++)
+                        {
+                            lines[z][x] = slices[z][offset + x];
+                        }
+                    }
+                    filterLines(lines, sizeZ, sizeX);
+                    for (int z = 0; z < sizeZ; z++)
+                    {
+                        for (int x = 0; x < sizeX; x++)
+                        {
+                            slices[z][offset + x] = (float) lines[z][x];
+                        }
+                    }
+                }
+            });
+        }
+
+        return result;
+    }
+
+    /**
+     * Applies the B-spline prefilter to m signals of length n, stored such
+     * that the k-th element of the j-th signal is <code>c[k][j]</code>.
+     *
+     * Processing several signals at once makes it possible to access the
+     * image values in contiguous order when filtering along the Y and Z axes.
+     */
+    private static final void filterLines(double[][] c, int n, int m)
+    {
+        if (n == 1)
+        {
+            return;
+        }
+
+        // apply gain
+        for (int k = 0; k < n; k++)
+        {
+            for (int j = 0; j < m; j++)
+            {
+                c[k][j] *= GAIN;
+            }
+        }
+
+        // causal initialization, assuming mirror boundary conditions
+        double[] c0 = c[0];
+        if (HORIZON < n)
+        {
+            double zn = POLE;
+            for (int k = 1; k < HORIZON; k++)
+            {
+                for (int j = 0; j < m; j++)
+                {
+                    c0[j] += zn * c[k][j];
+                }
+                zn *= POLE;
+            }
+        }
+        else
+        {
+            double zn = POLE;
+            double iz = 1.0 / POLE;
+            double z2n = Math.pow(POLE, n - 1);
+            double[] sum = new double[m];
+            for (int j = 0; j < m; j++)
+            {
+                sum[j] = c0[j] + z2n * c[n - 1][j];
+            }
+            z2n *= z2n * iz;
+            for (int k = 1; k < n - 1; k++)
+            {
+                for (int j = 0; j < m; j++)
+                {
+                    sum[j] += (zn + z2n) * c[k][j];
+                }
+                zn *= POLE;
+                z2n *= iz;
+            }
+            for (int j = 0; j < m; j++)
+            {
+                c0[j] = sum[j] / (1.0 - zn * zn);
+            }
+        }
+
+        // causal recursion
+        for (int k = 1; k < n; k++)
+        {
+            double[] ck = c[k];
+            double[] cp = c[k - 1];
+            for (int j = 0; j < m; j++)
+            {
+                ck[j] += POLE * cp[j];
+            }
+        }
+
+        // anti-causal initialization
+        double[] cn = c[n - 1];
+        double[] cn1 = c[n - 2];
+        double factor = POLE / (POLE * POLE - 1.0);
+        for (int j = 0; j < m; j++)
+        {
+            cn[j] = factor * (POLE * cn1[j] + cn[j]);
+        }
+
+        // anti-causal recursion
+        for (int k = n - 2; k >= 0; k--)
+        {
+            double[] ck = c[k];
+            double[] cn2 = c[k + 1];
+            for (int j = 0; j < m; j++)
+            {
+                ck[j] = POLE * (cn2[j] - ck[j]);
+            }
+        }
+    }
+
+    /**
+     * Applies the B-spline prefilter to a single signal of length n.
+     */
+    private static final void filter(double[] c, int n)
+    {
+        if (n == 1)
+        {
+            return;
+        }
+
+        // apply gain
+        for (int k = 0; k < n; k++)
+        {
+            c[k] *= GAIN;
+        }
+
+        // causal initialization, assuming mirror boundary conditions
+        if (HORIZON < n)
+        {
+            double zn = POLE;
+            double sum = c[0];
+            for (int k = 1; k < HORIZON; k++)
+            {
+                sum += zn * c[k];
+                zn *= POLE;
+            }
+            c[0] = sum;
+        }
+        else
+        {
+            double zn = POLE;
+            double iz = 1.0 / POLE;
+            double z2n = Math.pow(POLE, n - 1);
+            double sum = c[0] + z2n * c[n - 1];
+            z2n *= z2n * iz;
+            for (int k = 1; k < n - 1; k++)
+            {
+                sum += (zn + z2n) * c[k];
+                zn *= POLE;
+                z2n *= iz;
+            }
+            c[0] = sum / (1.0 - zn * zn);
+        }
+
+        // causal recursion
+        for (int k = 1; k < n; k++)
+        {
+            c[k] += POLE * c[k - 1];
+        }
+
+        // anti-causal initialization and recursion
+        c[n - 1] = (POLE / (POLE * POLE - 1.0)) * (POLE * c[n - 2] + c[n - 1]);
+        for (int k = n - 2; k >= 0; k--)
+        {
+            c[k] = POLE * (c[k + 1] - c[k]);
+        }
+    }
+
+    /**
+     * Private constructor to prevent class instantiation.
+     */
+    private BSplineCoefficients()
+    {
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import ij.ImageStack;
+import inrae.bibs.register.image.Images3D;
+
+/**
+ * Samples rows of a moving 3D image using cubic B-spline interpolation. The
+ * value at a given position is obtained by combining the B-spline
+ * coefficients of the 4x4x4 surrounding voxels, weighted by the cubic
+ * B-spline kernel.
+ *
+ * The sampler works on the float image of coefficients computed by the
+ * BSplineCoefficients class, not on the moving image itself. Neighbors
+ * outside of the image are obtained by mirroring the coefficients, consistently
+ * with the boundary conditions of the prefilter, such that the values of the
+ * moving image are retrieved at integer positions, including on the borders.
+ *
+ * @see BSplineCoefficients
+ * @see BSplineCoefficientCache
+ *
+ * @author dlegland
+ *
+ */
+final class BSplineRowSampler extends InterpolatingRowSampler
+{
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Computes the weights of the four neighbors located at offsets -1, 0, 1
+     * and 2 from the floor of the position, using the cubic B-spline.
+     *
+     * @param t
+     *            the fractional part of the position, between 0 and 1
+     * @param weights
+     *            the array of four weights to populate
+     */
+    static final void bsplineWeights(double t, double[] weights)
+    {
+        double t2 = t * t;
+        double t3 = t2 * t;
+        double u = 1 - t;
+        weights[0] = u * u * u / 6.0;
+        weights[1] = (3 * t3 - 6 * t2 + 4) / 6.0;
+        weights[2] = (-3 * t3 + 3 * t2 + 3 * t + 1) / 6.0;
+        weights[3] = t3 / 6.0;
+    }
+
+    /**
+     * Mirrors an index outside of the range [0, size-1], with the same
+     * boundary conditions as the prefilter.
+     *
+     * @param index
+     *            the index of a neighbor
+     * @param size
+     *            the size of the image along the dimension
+     * @return the index of the mirrored neighbor within the image
+     */
+    static final int mirrorIndex(int index, int size)
+    {
+        if (size == 1)
+        {
+            return 0;
+        }
+        int period = 2 * size - 2;
+        index = Math.abs(index) % period;
+        return index < size ? index : period - index;
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The slices of the coefficient image */
+    final float[][] slices;
+
+
+    // ===================================================================
+    // Constructor
+
+    /**
+     * Creates a new B-spline sampler.
+     *
+     * @param coefficients
+     *            the float image of B-spline coefficients of the moving image
+     * @param rowLength
+     *            the maximal number of voxels in a row of the result image
+     */
+    BSplineRowSampler(ImageStack coefficients, int rowLength)
+    {
+        super(coefficients, rowLength, -1, 4);
+        if (coefficients.getBitDepth() != 32)
+        {
+            throw new IllegalArgumentException("B-spline coefficients must be stored in a float image");
+        }
+        this.slices = Images3D.getFloatArrays(coefficients);
+    }
+
+
+    // ===================================================================
+    // Implementation of InterpolatingRowSampler methods
+
+    @Override
+    void computeWeights(double t, double[] weights)
+    {
+        bsplineWeights(t, weights);
+    }
+
+    /**
+     * Mirrors the indices outside of the image, with the same boundary
+     * conditions as the prefilter.
+     */
+    @Override
+    int borderIndex(int index, int size)
+    {
+        return mirrorIndex(index, size);
+    }
+
+    @Override
+    void sampleInterior(double x0, double y0, double z0,
+            double dx, double dy, double dz, double[] values, int xStart, int xEnd)
+    {
+        for (int x = xStart; x < xEnd; x++)
+        {
+            double xp = x0 + x * dx;
+            double yp = y0 + x * dy;
+            double zp = z0 + x * dz;
+
+            // positions are positive within the interior range
+            int xi = (int) xp;
+            int yi = (int) yp;
+            int zi = (int) zp;
+            bsplineWeights(xp - xi, wx);
+            bsplineWeights(yp - yi, wy);
+            bsplineWeights(zp - zi, wz);
+            double wx0 = wx[0];
+            double wx1 = wx[1];
+            double wx2 = wx[2];
+            double wx3 = wx[3];
+
+            // combine the 4x4 neighbors within each of the four slices
+            double value = 0;
+            int offset0 = (yi - 1) * sizeX + xi - 1;
+            for (int k = 0; k < 4; k++)
+            {
+                float[] slice = slices[zi + (k - 1) * zStep];
+                int i0 = offset0;
+                int i1 = i0 + sizeX;
+                int i2 = i1 + sizeX;
+                int i3 = i2 + sizeX;
+                double r0 = wx0 * slice[i0] + wx1 * slice[i0 + 1] + wx2 * slice[i0 + 2] + wx3 * slice[i0 + 3];
+                double r1 = wx0 * slice[i1] + wx1 * slice[i1 + 1] + wx2 * slice[i1 + 2] + wx3 * slice[i1 + 3];
+                double r2 = wx0 * slice[i2] + wx1 * slice[i2 + 1] + wx2 * slice[i2 + 2] + wx3 * slice[i2 + 3];
+                double r3 = wx0 * slice[i3] + wx1 * slice[i3 + 1] + wx2 * slice[i3 + 2] + wx3 * slice[i3 + 3];
+                value += wz[k] * (wy[0] * r0 + wy[1] * r1 + wy[2] * r2 + wy[3] * r3);
+            }
+            values[x] = value;
+        }
+    }
+}
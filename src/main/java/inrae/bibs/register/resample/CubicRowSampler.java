@@ -0,0 +1,267 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import ij.ImageStack;
+import inrae.bibs.register.image.Images3D;
+
+/**
+ * Samples rows of a moving 3D image using cubic convolution interpolation.
+ * The value at a given position is obtained by combining the values of the
+ * 4x4x4 surrounding voxels, weighted by the Catmull-Rom cubic spline (cubic
+ * convolution kernel with parameter a=-0.5). When the moving image has a
+ * single slice, bicubic interpolation is used.
+ *
+ * As the kernel has negative lobes, interpolated values may exceed the range
+ * of the neighbor values. Values are clamped to the range of the result type
+ * when they are converted.
+ *
+ * One implementation of the inner loop is provided for each data type of the
+ * moving image.
+ *
+ * @see InterpolatingRowSampler
+ *
+ * @author dlegland
+ *
+ */
+abstract class CubicRowSampler extends InterpolatingRowSampler
+{
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Creates a new cubic sampler for the given moving image.
+     *
+     * @param movingStack
+     *            the image to sample
+     * @param rowLength
+     *            the maximal number of voxels in a row of the result image
+     * @return a new sampler adapted to the moving image type
+     */
+    static final CubicRowSampler create(ImageStack movingStack, int rowLength)
+    {
+        switch (movingStack.getBitDepth())
+        {
+        case 8:
+            return new ByteSampler(movingStack, rowLength);
+        case 16:
+            return new ShortSampler(movingStack, rowLength);
+        case 32:
+            return new FloatSampler(movingStack, rowLength);
+        default:
+            throw new IllegalArgumentException(
+                    "Can not manage image stacks with bit depth " + movingStack.getBitDepth());
+        }
+    }
+
+    /**
+     * Computes the weights of the four neighbors located at offsets -1, 0, 1
+     * and 2 from the floor of the position, using the Catmull-Rom spline.
+     *
+     * @param t
+     *            the fractional part of the position, between 0 and 1
+     * @param weights
+     *            the array of four weights to populate
+     */
+    static final void cubicWeights(double t, double[] weights)
+    {
+        double t2 = t * t;
+        double t3 = t2 * t;
+        weights[0] = -0.5 * t3 + t2 - 0.5 * t;
+        weights[1] = 1.5 * t3 - 2.5 * t2 + 1;
+        weights[2] = -1.5 * t3 + 2 * t2 + 0.5 * t;
+        weights[3] = 0.5 * t3 - 0.5 * t2;
+    }
+
+
+    // ===================================================================
+    // Constructor
+
+    protected CubicRowSampler(ImageStack movingStack, int rowLength)
+    {
+        super(movingStack, rowLength, -1, 4);
+    }
+
+
+    // ===================================================================
+    // Implementation of InterpolatingRowSampler methods
+
+    @Override
+    final void computeWeights(double t, double[] weights)
+    {
+        cubicWeights(t, weights);
+    }
+
+
+    // ===================================================================
+    // Implementations
+
+    /**
+     * Sampler for moving images containing byte values.
+     */
+    static final class ByteSampler extends CubicRowSampler
+    {
+        final byte[][] slices;
+
+        ByteSampler(ImageStack movingStack, int rowLength)
+        {
+            super(movingStack, rowLength);
+            this.slices = Images3D.getByteArrays(movingStack);
+        }
+
+        @Override
+        void sampleInterior(double x0, double y0, double z0,
+                double dx, double dy, double dz, double[] values, int xStart, int xEnd)
+        {
+            for (int x = xStart; x < xEnd; x++)
+            {
+                double xp = x0 + x * dx;
+                double yp = y0 + x * dy;
+                double zp = z0 + x * dz;
+
+                // positions are positive within the interior range
+                int xi = (int) xp;
+                int yi = (int) yp;
+                int zi = (int) zp;
+                cubicWeights(xp - xi, wx);
+                cubicWeights(yp - yi, wy);
+                cubicWeights(zp - zi, wz);
+                double wx0 = wx[0];
+                double wx1 = wx[1];
+                double wx2 = wx[2];
+                double wx3 = wx[3];
+
+                // combine the 4x4 neighbors within each of the four slices
+                double value = 0;
+                int offset0 = (yi - 1) * sizeX + xi - 1;
+                for (int k = 0; k < 4; k++)
+                {
+                    byte[] slice = slices[zi + (k - 1) * zStep];
+                    int i0 = offset0;
+                    int i1 = i0 + sizeX;
+                    int i2 = i1 + sizeX;
+                    int i3 = i2 + sizeX;
+                    double r0 = wx0 * (slice[i0] & 0x00FF) + wx1 * (slice[i0 + 1] & 0x00FF) + wx2 * (slice[i0 + 2] & 0x00FF) + wx3 * (slice[i0 + 3] & 0x00FF);
+                    double r1 = wx0 * (slice[i1] & 0x00FF) + wx1 * (slice[i1 + 1] & 0x00FF) + wx2 * (slice[i1 + 2] & 0x00FF) + wx3 * (slice[i1 + 3] & 0x00FF);
+                    double r2 = wx0 * (slice[i2] & 0x00FF) + wx1 * (slice[i2 + 1] & 0x00FF) + wx2 * (slice[i2 + 2] & 0x00FF) + wx3 * (slice[i2 + 3] & 0x00FF);
+                    double r3 = wx0 * (slice[i3] & 0x00FF) + wx1 * (slice[i3 + 1] & 0x00FF) + wx2 * (slice[i3 + 2] & 0x00FF) + wx3 * (slice[i3 + 3] & 0x00FF);
+                    value += wz[k] * (wy[0] * r0 + wy[1] * r1 + wy[2] * r2 + wy[3] * r3);
+                }
+                values[x] = value;
+            }
+        }
+    }
+
+    /**
+     * Sampler for moving images containing short values.
+     */
+    static final class ShortSampler extends CubicRowSampler
+    {
+        final short[][] slices;
+
+        ShortSampler(ImageStack movingStack, int rowLength)
+        {
+            super(movingStack, rowLength);
+            this.slices = Images3D.getShortArrays(movingStack);
+        }
+
+        @Override
+        void sampleInterior(double x0, double y0, double z0,
+                double dx, double dy, double dz, double[] values, int xStart, int xEnd)
+        {
+            for (int x = xStart; x < xEnd; x++)
+            {
+                double xp = x0 + x * dx;
+                double yp = y0 + x * dy;
+                double zp = z0 + x * dz;
+
+                // positions are positive within the interior range
+                int xi = (int) xp;
+                int yi = (int) yp;
+                int zi = (int) zp;
+                cubicWeights(xp - xi, wx);
+                cubicWeights(yp - yi, wy);
+                cubicWeights(zp - zi, wz);
+                double wx0 = wx[0];
+                double wx1 = wx[1];
+                double wx2 = wx[2];
+                double wx3 = wx[3];
+
+                // combine the 4x4 neighbors within each of the four slices
+                double value = 0;
+                int offset0 = (yi - 1) * sizeX + xi - 1;
+                for (int k = 0; k < 4; k++)
+                {
+                    short[] slice = slices[zi + (k - 1) * zStep];
+                    int i0 = offset0;
+                    int i1 = i0 + sizeX;
+                    int i2 = i1 + sizeX;
+                    int i3 = i2 + sizeX;
+                    double r0 = wx0 * (slice[i0] & 0x00FFFF) + wx1 * (slice[i0 + 1] & 0x00FFFF) + wx2 * (slice[i0 + 2] & 0x00FFFF) + wx3 * (slice[i0 + 3] & 0x00FFFF);
+                    double r1 = wx0 * (slice[i1] & 0x00FFFF) + wx1 * (slice[i1 + 1] & 0x00FFFF) + wx2 * (slice[i1 + 2] & 0x00FFFF) + wx3 * (slice[i1 + 3] & 0x00FFFF);
+                    double r2 = wx0 * (slice[i2] & 0x00FFFF) + wx1 * (slice[i2 + 1] & 0x00FFFF) + wx2 * (slice[i2 + 2] & 0x00FFFF) + wx3 * (slice[i2 + 3] & 0x00FFFF);
+                    double r3 = wx0 * (slice[i3] & 0x00FFFF) + wx1 * (slice[i3 + 1] & 0x00FFFF) + wx2 * (slice[i3 + 2] & 0x00FFFF) + wx3 * (slice[i3 + 3] & 0x00FFFF);
+                    value += wz[k] * (wy[0] * r0 + wy[1] * r1 + wy[2] * r2 + wy[3] * r3);
+                }
+                values[x] = value;
+            }
+        }
+    }
+
+    /**
+     * Sampler for moving images containing float values.
+     */
+    static final class FloatSampler extends CubicRowSampler
+    {
+        final float[][] slices;
+
+        FloatSampler(ImageStack movingStack, int rowLength)
+        {
+            super(movingStack, rowLength);
+            this.slices = Images3D.getFloatArrays(movingStack);
+        }
+
+        @Override
+        void sampleInterior(double x0, double y0, double z0,
+                double dx, double dy, double dz, double[] values, int xStart, int xEnd)
+        {
+            for (int x = xStart; x < xEnd; x++)
+            {
+                double xp = x0 + x * dx;
+                double yp = y0 + x * dy;
+                double zp = z0 + x * dz;
+
+                // positions are positive within the interior range
+                int xi = (int) xp;
+                int yi = (int) yp;
+                int zi = (int) zp;
+                cubicWeights(xp - xi, wx);
+                cubicWeights(yp - yi, wy);
+                cubicWeights(zp - zi, wz);
+                double wx0 = wx[0];
+                double wx1 = wx[1];
+                double wx2 = wx[2];
+                double wx3 = wx[3];
+
+                // combine the 4x4 neighbors within each of the four slices
+                double value = 0;
+                int offset0 = (yi - 1) * sizeX + xi - 1;
+                for (int k = 0; k < 4; k++)
+                {
+                    float[] slice = slices[zi + (k - 1) * zStep];
+                    int i0 = offset0;
+                    int i1 = i0 + sizeX;
+                    int i2 = i1 + sizeX;
+                    int i3 = i2 + sizeX;
+                    double r0 = wx0 * slice[i0] + wx1 * slice[i0 + 1] + wx2 * slice[i0 + 2] + wx3 * slice[i0 + 3];
+                    double r1 = wx0 * slice[i1] + wx1 * slice[i1 + 1] + wx2 * slice[i1 + 2] + wx3 * slice[i1 + 3];
+                    double r2 = wx0 * slice[i2] + wx1 * slice[i2 + 1] + wx2 * slice[i2 + 2] + wx3 * slice[i2 + 3];
+                    double r3 = wx0 * slice[i3] + wx1 * slice[i3 + 1] + wx2 * slice[i3 + 2] + wx3 * slice[i3 + 3];
+                    value += wz[k] * (wy[0] * r0 + wy[1] * r1 + wy[2] * r2 + wy[3] * r3);
+                }
+                values[x] = value;
+            }
+        }
+    }
+}
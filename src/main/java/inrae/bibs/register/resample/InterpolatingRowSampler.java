@@ -0,0 +1,439 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import java.util.Arrays;
+
+import ij.ImageStack;
+
+/**
+ * Samples rows of a moving 3D image using an interpolation kernel that
+ * combines the values of several neighbor voxels along each axis, such as
+ * linear or cubic interpolation.
+ *
+ * Interpolated values are computed as doubles into a row buffer, then
+ * converted into the result array by the methods of the RowConverters class.
+ * For each row, three ranges of voxels are identified:
+ * <ul>
+ * <li>the voxels whose nearest voxel is outside of the moving image, that are
+ * set to zero (as for nearest-neighbor interpolation),</li>
+ * <li>the interior voxels, whose neighbors are all within the moving image,
+ * that are computed by a loop specialized for the kernel and for the data type
+ * of the moving image, without bound checks,</li>
+ * <li>the voxels close to the border of the moving image, whose neighbors are
+ * clamped to the bounds of the moving image.</li>
+ * </ul>
+ *
+ * When the voxels of the row are mapped onto a row of the moving image with a
+ * unit step (as for translations), the fractional part of the position is the
+ * same for all the voxels of the row, and for all the rows of the image. In
+ * that case, the kernel weights are computed only when the fractional part
+ * changes, the rows of the moving image around the mapped row are first
+ * combined into a single line buffer, and each voxel is obtained by combining
+ * a few consecutive values of the line buffer.
+ *
+ * @see LinearRowSampler
+ * @see CubicRowSampler
+ * @see BSplineRowSampler
+ *
+ * @author dlegland
+ *
+ */
+abstract class InterpolatingRowSampler extends RowSampler
+{
+    // ===================================================================
+    // Class variables
+
+    /** The pixel arrays of the slices of the moving image */
+    final Object[] pixelArrays;
+
+    /**
+     * The offset of the first neighbor with respect to the floor of the
+     * position, along each axis.
+     */
+    final int firstTap;
+
+    /** The number of neighbors along each axis */
+    final int tapCount;
+
+    /**
+     * The index difference between two neighbor slices. Set to zero when the
+     * moving image contains a single slice, such that planar images can be
+     * interpolated with the same code.
+     */
+    final int zStep;
+
+    /**
+     * The bounds of the floor of the positions whose neighbors are all within
+     * the moving image, along each axis (lower bound inclusive, upper bound
+     * exclusive).
+     */
+    final int minIndexXY;
+    final int maxIndexX;
+    final int maxIndexY;
+    final int minIndexZ;
+    final int maxIndexZ;
+
+    /** The interpolated values of the current row */
+    final double[] values;
+
+    /** Used to compute the range of interior voxels */
+    final RowClipper interior = new RowClipper();
+
+    /** Kernel weights along each axis, for the voxel being computed */
+    final double[] wx;
+    final double[] wy;
+    final double[] wz;
+
+    /** Kernel weights along each axis, used for translated rows */
+    final double[] twx;
+    final double[] twy;
+    final double[] twz;
+
+    /** The fractional parts used to compute the weights of translated rows */
+    double lastFx = Double.NaN;
+    double lastFy = Double.NaN;
+    double lastFz = Double.NaN;
+
+    /** The weighted sum of moving image rows, used for translated rows */
+    double[] line = null;
+
+
+    // ===================================================================
+    // Constructor
+
+    protected InterpolatingRowSampler(ImageStack movingStack, int rowLength, int firstTap, int tapCount)
+    {
+        super(movingStack);
+        this.pixelArrays = new Object[sizeZ];
+        for (int z = 0; z < sizeZ; z++)
+        {
+            this.pixelArrays[z] = movingStack.getPixels(z + 1);
+        }
+        this.firstTap = firstTap;
+        this.tapCount = tapCount;
+        this.zStep = sizeZ > 1 ? 1 : 0;
+
+        this.minIndexXY = -firstTap;
+        this.maxIndexX = sizeX - tapCount - firstTap + 1;
+        this.maxIndexY = sizeY - tapCount - firstTap + 1;
+        this.minIndexZ = zStep > 0 ? -firstTap : 0;
+        this.maxIndexZ = zStep > 0 ? sizeZ - tapCount - firstTap + 1 : 1;
+        this.values = new double[rowLength];
+
+        this.wx = new double[tapCount];
+        this.wy = new double[tapCount];
+        this.wz = new double[tapCount];
+        this.twx = new double[tapCount];
+        this.twy = new double[tapCount];
+        this.twz = new double[tapCount];
+    }
+
+
+    // ===================================================================
+    // Abstract methods
+
+    /**
+     * Computes the weights of the neighbors along one axis.
+     *
+     * @param t
+     *            the fractional part of the position, between 0 and 1
+     * @param weights
+     *            the array of tapCount weights to populate
+     */
+    abstract void computeWeights(double t, double[] weights);
+
+    /**
+     * Computes the interpolated values of the voxels of the row between
+     * xStart and xEnd, whose neighbors are all within the moving image.
+     */
+    abstract void sampleInterior(double x0, double y0, double z0,
+            double dx, double dy, double dz, double[] values, int xStart, int xEnd);
+
+
+    // ===================================================================
+    // Implementation of RowSampler methods
+
+    @Override
+    final void sampleRow(double x0, double y0, double z0,
+            double dx, double dy, double dz, Object target, int offset, int xStart, int xEnd)
+    {
+        clipRow(x0, y0, z0, dx, dy, dz, xStart, xEnd);
+        int start = clipper.start;
+        int end = clipper.end;
+        Arrays.fill(values, xStart, start, 0.0);
+        Arrays.fill(values, end, xEnd, 0.0);
+
+        if (start < end)
+        {
+            if (dx == 1 && dy == 0 && dz == 0)
+            {
+                sampleTranslatedRow(x0, y0, z0, start, end);
+            }
+            else
+            {
+                // range of voxels whose neighbors are all within moving image
+                int s = start;
+                int e = end;
+                if (!isInterior(x0 + start * dx, y0 + start * dy, z0 + start * dz)
+                        || !isInterior(x0 + (end - 1) * dx, y0 + (end - 1) * dy, z0 + (end - 1) * dz))
+                {
+                    interior.reset(start, end);
+                    interior.clipFloor(x0, dx, minIndexXY, maxIndexX);
+                    interior.clipFloor(y0, dy, minIndexXY, maxIndexY);
+                    interior.clipFloor(z0, dz, minIndexZ, maxIndexZ);
+                    s = interior.isEmpty() ? end : interior.start;
+                    e = interior.isEmpty() ? end : interior.end;
+                }
+
+                for (int x = start; x < s; x++)
+                {
+                    values[x] = clampedValue(x0 + x * dx, y0 + x * dy, z0 + x * dz);
+                }
+                sampleInterior(x0, y0, z0, dx, dy, dz, values, s, e);
+                for (int x = e; x < end; x++)
+                {
+                    values[x] = clampedValue(x0 + x * dx, y0 + x * dy, z0 + x * dz);
+                }
+            }
+        }
+
+        RowConverters.convert(values, xStart, target, offset + xStart, xEnd - xStart);
+    }
+
+    @Override
+    final void sampleRow(double[] xs, double[] ys, double[] zs, Object target, int offset, int n)
+    {
+        for (int x = 0; x < n; x++)
+        {
+            values[x] = isRoundedInside(xs[x], ys[x], zs[x]) ? clampedValue(xs[x], ys[x], zs[x]) : 0.0;
+        }
+        RowConverters.convert(values, 0, target, offset, n);
+    }
+
+
+    // ===================================================================
+    // Sampling methods
+
+    /**
+     * Computes the values of the voxels of a row mapped with a unit step
+     * along the X axis of the moving image. The rows of the moving image
+     * around the mapped row are combined into the line buffer, then each
+     * value is computed by interpolating along the line buffer.
+     */
+    private void sampleTranslatedRow(double x0, double y0, double z0, int start, int end)
+    {
+        int xi = (int) Math.floor(x0);
+        int yi = (int) Math.floor(y0);
+        int zi = (int) Math.floor(z0);
+        updateTranslationWeights(x0 - xi, y0 - yi, z0 - zi);
+
+        // the range of columns of the moving image used by the row
+        int c0 = xi + start + firstTap;
+        int c1 = xi + end - 1 + firstTap + tapCount;
+        if (c0 < 0 || c1 > sizeX)
+        {
+            // neighbors outside of the image may refer to any column
+            c0 = 0;
+            c1 = sizeX;
+        }
+        if (line == null)
+        {
+            line = new double[sizeX];
+        }
+        Arrays.fill(line, c0, c1, 0.0);
+
+        // combine the rows of the moving image
+        for (int k = 0; k < tapCount; k++)
+        {
+            Object slice = pixelArrays[borderIndex(zi + firstTap + k, sizeZ)];
+            for (int j = 0; j < tapCount; j++)
+            {
+                double w = twy[j] * twz[k];
+                if (w == 0)
+                {
+                    continue;
+                }
+                int rowOffset = borderIndex(yi + firstTap + j, sizeY) * sizeX;
+                accumulateRow(slice, rowOffset, w, line, c0, c1);
+            }
+        }
+
+        // interpolate along the line buffer
+        for (int x = start; x < end; x++)
+        {
+            int px = xi + x + firstTap;
+            double value = 0;
+            if (px >= 0 && px + tapCount <= sizeX)
+            {
+                for (int i = 0; i < tapCount; i++)
+                {
+                    value += twx[i] * line[px + i];
+                }
+            }
+            else
+            {
+                for (int i = 0; i < tapCount; i++)
+                {
+                    value += twx[i] * line[borderIndex(px + i, sizeX)];
+                }
+            }
+            values[x] = value;
+        }
+    }
+
+    /**
+     * Computes the weights used for translated rows, if the fractional parts
+     * of the position have changed since the last call.
+     */
+    private void updateTranslationWeights(double fx, double fy, double fz)
+    {
+        if (fx != lastFx)
+        {
+            computeWeights(fx, twx);
+            lastFx = fx;
+        }
+        if (fy != lastFy)
+        {
+            computeWeights(fy, twy);
+            lastFy = fy;
+        }
+        if (fz != lastFz)
+        {
+            computeWeights(fz, twz);
+            lastFz = fz;
+        }
+    }
+
+    /**
+     * Checks if all the neighbors of the specified position are within the
+     * moving image. As positions vary monotonically along a row, checking the
+     * first and the last voxels is enough to know if the whole row is within
+     * the interior range.
+     */
+    private boolean isInterior(double x, double y, double z)
+    {
+        return isFloorInside(x, minIndexXY, maxIndexX)
+                && isFloorInside(y, minIndexXY, maxIndexY)
+                && isFloorInside(z, minIndexZ, maxIndexZ);
+    }
+
+    private static final boolean isFloorInside(double pos, int min, int max)
+    {
+        double index = Math.floor(pos);
+        return index >= min && index < max;
+    }
+
+    /**
+     * Computes the interpolated value at the specified position, replacing
+     * neighbors outside of the moving image by the closest voxels within the
+     * image. Used for the voxels close to the borders of the moving image.
+     */
+    final double clampedValue(double x, double y, double z)
+    {
+        int xi = (int) Math.floor(x);
+        int yi = (int) Math.floor(y);
+        int zi = (int) Math.floor(z);
+        computeWeights(x - xi, wx);
+        computeWeights(y - yi, wy);
+        computeWeights(z - zi, wz);
+
+        double value = 0;
+        for (int k = 0; k < tapCount; k++)
+        {
+            Object slice = pixelArrays[borderIndex(zi + firstTap + k, sizeZ)];
+            for (int j = 0; j < tapCount; j++)
+            {
+                double w = wy[j] * wz[k];
+                if (w == 0)
+                {
+                    continue;
+                }
+                int rowOffset = borderIndex(yi + firstTap + j, sizeY) * sizeX;
+                for (int i = 0; i < tapCount; i++)
+                {
+                    int index = rowOffset + borderIndex(xi + firstTap + i, sizeX);
+                    value += w * wx[i] * getValue(slice, index);
+                }
+            }
+        }
+        return value;
+    }
+
+
+    // ===================================================================
+    // Utility methods
+
+    /**
+     * Returns the index of the voxel used in place of a neighbor along one
+     * axis. The default implementation returns the closest index within the
+     * image, and can be overridden to change the boundary conditions.
+     *
+     * @param index
+     *            the index of the neighbor, possibly outside of the image
+     * @param size
+     *            the size of the image along the axis
+     * @return an index between 0 and size-1
+     */
+    int borderIndex(int index, int size)
+    {
+        return Math.min(Math.max(index, 0), size - 1);
+    }
+
+    /**
+     * Returns the value at the specified index of a pixel array.
+     */
+    private static final double getValue(Object slice, int index)
+    {
+        if (slice instanceof byte[])
+        {
+            return ((byte[]) slice)[index] & 0x00FF;
+        }
+        if (slice instanceof short[])
+        {
+            return ((short[]) slice)[index] & 0x00FFFF;
+        }
+        if (slice instanceof float[])
+        {
+            return ((float[]) slice)[index];
+        }
+        throw new IllegalArgumentException("Can not manage pixel arrays of type " + slice.getClass().getSimpleName());
+    }
+
+    /**
+     * Adds the values of a row of the moving image, multiplied by a weight,
+     * to the values of the line buffer between indices start and end.
+     */
+    private static final void accumulateRow(Object slice, int offset, double w, double[] line, int start, int end)
+    {
+        if (slice instanceof byte[])
+        {
+            byte[] src = (byte[]) slice;
+            for (int i = start; i < end; i++)
+            {
+                line[i] += w * (src[offset + i] & 0x00FF);
+            }
+        }
+        else if (slice instanceof short[])
+        {
+            short[] src = (short[]) slice;
+            for (int i = start; i < end; i++)
+            {
+                line[i] += w * (src[offset + i] & 0x00FFFF);
+            }
+        }
+        else if (slice instanceof float[])
+        {
+            float[] src = (float[]) slice;
+            for (int i = start; i < end; i++)
+            {
+                line[i] += w * src[offset + i];
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("Can not manage pixel arrays of type " + slice.getClass().getSimpleName());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+/**
+ * The methods available for interpolating the values of the moving image at
+ * non integer positions.
+ *
+ * For all methods, the voxels of the result whose nearest voxel is outside of
+ * the moving image are set to zero, such that the extent of the result does
+ * not depend on the interpolation method. Near the borders of the moving
+ * image, the neighbors outside of the image are replaced by the closest voxel
+ * within the image.
+ *
+ * @see Resampler2D
+ * @see Resampler3D
+ *
+ * @author dlegland
+ *
+ */
+public enum Interpolation
+{
+    /** Nearest-neighbor interpolation: the value of the closest voxel is used */
+    NEAREST("Nearest"),
+
+    /** Bilinear or trilinear interpolation, using 2 neighbors along each axis */
+    LINEAR("Linear"),
+
+    /**
+     * Cubic convolution interpolation (Catmull-Rom spline), using 4 neighbors
+     * along each axis
+     */
+    CUBIC("Cubic"),
+
+    /**
+     * Cubic B-spline interpolation, using 4 neighbors along each axis. The
+     * B-spline coefficients are computed by a prefilter over the whole moving
+     * image, and are kept in the BSplineCoefficientCache for 3D images.
+     *
+     * @see BSplineCoefficients
+     */
+    BSPLINE("Cubic B-Spline");
+
+    /** The label used to display the interpolation method */
+    private final String label;
+
+    private Interpolation(String label)
+    {
+        this.label = label;
+    }
+
+    /**
+     * @return the label used to display the interpolation method.
+     */
+    public String getLabel()
+    {
+        return label;
+    }
+
+    /**
+     * Returns the interpolation method corresponding to the given label.
+     *
+     * @param label
+     *            the label of the interpolation method
+     * @return the interpolation method
+     * @throws IllegalArgumentException
+     *             if the label does not correspond to any interpolation
+     */
+    public static Interpolation fromLabel(String label)
+    {
+        for (Interpolation interp : values())
+        {
+            if (interp.label.equalsIgnoreCase(label))
+            {
+                return interp;
+            }
+        }
+        throw new IllegalArgumentException("Unknown interpolation: " + label);
+    }
+
+    @Override
+    public String toString()
+    {
+        return label;
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import ij.ImageStack;
+import inrae.bibs.register.image.Images3D;
+
+/**
+ * Samples rows of a moving 3D image using trilinear interpolation. The value
+ * at a given position is obtained by combining the values of the eight
+ * surrounding voxels, weighted according to the fractional part of the
+ * position. When the moving image has a single slice, bilinear interpolation
+ * is used.
+ *
+ * One implementation of the inner loop is provided for each data type of the
+ * moving image.
+ *
+ * @see InterpolatingRowSampler
+ *
+ * @author dlegland
+ *
+ */
+abstract class LinearRowSampler extends InterpolatingRowSampler
+{
+    // ===================================================================
+    // Static factory
+
+    /**
+     * Creates a new linear sampler for the given moving image.
+     *
+     * @param movingStack
+     *            the image to sample
+     * @param rowLength
+     *            the maximal number of voxels in a row of the result image
+     * @return a new sampler adapted to the moving image type
+     */
+    static final LinearRowSampler create(ImageStack movingStack, int rowLength)
+    {
+        switch (movingStack.getBitDepth())
+        {
+        case 8:
+            return new ByteSampler(movingStack, rowLength);
+        case 16:
+            return new ShortSampler(movingStack, rowLength);
+        case 32:
+            return new FloatSampler(movingStack, rowLength);
+        default:
+            throw new IllegalArgumentException(
+                    "Can not manage image stacks with bit depth " + movingStack.getBitDepth());
+        }
+    }
+
+
+    // ===================================================================
+    // Constructor
+
+    protected LinearRowSampler(ImageStack movingStack, int rowLength)
+    {
+        super(movingStack, rowLength, 0, 2);
+    }
+
+
+    // ===================================================================
+    // Implementation of InterpolatingRowSampler methods
+
+    @Override
+    final void computeWeights(double t, double[] weights)
+    {
+        weights[0] = 1 - t;
+        weights[1] = t;
+    }
+
+
+    // ===================================================================
+    // Implementations
+
+    /**
+     * Sampler for moving images containing byte values.
+     */
+    static final class ByteSampler extends LinearRowSampler
+    {
+        final byte[][] slices;
+
+        ByteSampler(ImageStack movingStack, int rowLength)
+        {
+            super(movingStack, rowLength);
+            this.slices = Images3D.getByteArrays(movingStack);
+        }
+
+        @Override
+        void sampleInterior(double x0, double y0, double z0,
+                double dx, double dy, double dz, double[] values, int xStart, int xEnd)
+        {
+            for (int x = xStart; x < xEnd; x++)
+            {
+                double xp = x0 + x * dx;
+                double yp = y0 + x * dy;
+                double zp = z0 + x * dz;
+
+                // positions are positive within the interior range
+                int xi = (int) xp;
+                int yi = (int) yp;
+                int zi = (int) zp;
+                double fx = xp - xi;
+                double fy = yp - yi;
+                double fz = zp - zi;
+
+                // indices of the neighbors within the slices
+                int i00 = yi * sizeX + xi;
+                int i01 = i00 + sizeX;
+                byte[] s0 = slices[zi];
+                byte[] s1 = slices[zi + zStep];
+
+                // interpolate along x, then y, then z
+                double v00 = (s0[i00] & 0x00FF);
+                double v01 = (s0[i01] & 0x00FF);
+                double v10 = (s1[i00] & 0x00FF);
+                double v11 = (s1[i01] & 0x00FF);
+                v00 += fx * ((s0[i00 + 1] & 0x00FF) - v00);
+                v01 += fx * ((s0[i01 + 1] & 0x00FF) - v01);
+                v10 += fx * ((s1[i00 + 1] & 0x00FF) - v10);
+                v11 += fx * ((s1[i01 + 1] & 0x00FF) - v11);
+                double v0 = v00 + fy * (v01 - v00);
+                double v1 = v10 + fy * (v11 - v10);
+                values[x] = v0 + fz * (v1 - v0);
+            }
+        }
+    }
+
+    /**
+     * Sampler for moving images containing short values.
+     */
+    static final class ShortSampler extends LinearRowSampler
+    {
+        final short[][] slices;
+
+        ShortSampler(ImageStack movingStack, int rowLength)
+        {
+            super(movingStack, rowLength);
+            this.slices = Images3D.getShortArrays(movingStack);
+        }
+
+        @Override
+        void sampleInterior(double x0, double y0, double z0,
+                double dx, double dy, double dz, double[] values, int xStart, int xEnd)
+        {
+            for (int x = xStart; x < xEnd; x++)
+            {
+                double xp = x0 + x * dx;
+                double yp = y0 + x * dy;
+                double zp = z0 + x * dz;
+
+                // positions are positive within the interior range
+                int xi = (int) xp;
+                int yi = (int) yp;
+                int zi = (int) zp;
+                double fx = xp - xi;
+                double fy = yp - yi;
+                double fz = zp - zi;
+
+                // indices of the neighbors within the slices
+                int i00 = yi * sizeX + xi;
+                int i01 = i00 + sizeX;
+                short[] s0 = slices[zi];
+                short[] s1 = slices[zi + zStep];
+
+                // interpolate along x, then y, then z
+                double v00 = (s0[i00] & 0x00FFFF);
+                double v01 = (s0[i01] & 0x00FFFF);
+                double v10 = (s1[i00] & 0x00FFFF);
+                double v11 = (s1[i01] & 0x00FFFF);
+                v00 += fx * ((s0[i00 + 1] & 0x00FFFF) - v00);
+                v01 += fx * ((s0[i01 + 1] & 0x00FFFF) - v01);
+                v10 += fx * ((s1[i00 + 1] & 0x00FFFF) - v10);
+                v11 += fx * ((s1[i01 + 1] & 0x00FFFF) - v11);
+                double v0 = v00 + fy * (v01 - v00);
+                double v1 = v10 + fy * (v11 - v10);
+                values[x] = v0 + fz * (v1 - v0);
+            }
+        }
+    }
+
+    /**
+     * Sampler for moving images containing float values.
+     */
+    static final class FloatSampler extends LinearRowSampler
+    {
+        final float[][] slices;
+
+        FloatSampler(ImageStack movingStack, int rowLength)
+        {
+            super(movingStack, rowLength);
+            this.slices = Images3D.getFloatArrays(movingStack);
+        }
+
+        @Override
+        void sampleInterior(double x0, double y0, double z0,
+                double dx, double dy, double dz, double[] values, int xStart, int xEnd)
+        {
+            for (int x = xStart; x < xEnd; x++)
+            {
+                double xp = x0 + x * dx;
+                double yp = y0 + x * dy;
+                double zp = z0 + x * dz;
+
+                // positions are positive within the interior range
+                int xi = (int) xp;
+                int yi = (int) yp;
+                int zi = (int) zp;
+                double fx = xp - xi;
+                double fy = yp - yi;
+                double fz = zp - zi;
+
+                // indices of the neighbors within the slices
+                int i00 = yi * sizeX + xi;
+                int i01 = i00 + sizeX;
+                float[] s0 = slices[zi];
+                float[] s1 = slices[zi + zStep];
+
+                // interpolate along x, then y, then z
+                double v00 = s0[i00];
+                double v01 = s0[i01];
+                double v10 = s1[i00];
+                double v11 = s1[i01];
+                v00 += fx * (s0[i00 + 1] - v00);
+                v01 += fx * (s0[i01 + 1] - v01);
+                v10 += fx * (s1[i00 + 1] - v10);
+                v11 += fx * (s1[i01 + 1] - v11);
+                double v0 = v00 + fy * (v01 - v00);
+                double v1 = v10 + fy * (v11 - v10);
+                values[x] = v0 + fz * (v1 - v0);
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import java.util.Arrays;
+
+import ij.ImageStack;
+import inrae.bibs.register.image.Images3D;
+
+/**
+ * Samples rows of a moving 3D image using nearest-neighbor interpolation, and
+ * writes the sampled values into the pixel array of a slice of the result.
+ *
+ * One implementation is provided for each data type of the moving image, and
+ * the implementation is chosen once per resampling from the bit depth. When
+ * the result image has the same type as the moving image, raw values are
+ * copied without conversion. Otherwise, values are first copied into a row
+ * buffer, then converted into the result array by the methods of the
+ * RowConverters class. Rows that are shifted copies of a row of the moving
+ * image, as obtained for translations with integer shifts, are copied using
+ * System.arraycopy.
+ *
+ * Instances are not thread-safe, as they contain a row buffer. A new sampler
+ * should be created for each thread.
+ *
+ * @see RowSampler
+ * @see RowConverters
+ *
+ * @author dlegland
+ *
+ */
+abstract class NearestRowSampler extends RowSampler
+{
+    // ===================================================================
+    // Static factory
+
+    /**
+     * Creates a new sampler for the given moving image.
+     *
+     * @param movingStack
+     *            the image to sample
+     * @param targetBitDepth
+     *            the bit depth of the result image
+     * @param rowLength
+     *            the maximal number of voxels in a row of the result image
+     * @return a new sampler adapted to the moving image type
+     */
+    static final NearestRowSampler create(ImageStack movingStack, int targetBitDepth, int rowLength)
+    {
+        switch (movingStack.getBitDepth())
+        {
+        case 8:
+            return new ByteSampler(movingStack, targetBitDepth == 8, rowLength);
+        case 16:
+            return new ShortSampler(movingStack, targetBitDepth == 16, rowLength);
+        case 32:
+            return new FloatSampler(movingStack, targetBitDepth == 32, rowLength);
+        default:
+            throw new IllegalArgumentException(
+                    "Can not manage image stacks with bit depth " + movingStack.getBitDepth());
+        }
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /**
+     * Indicates whether the result has the same type as the moving image, in
+     * which case values can be copied directly.
+     */
+    final boolean sameType;
+
+
+    // ===================================================================
+    // Constructor
+
+    protected NearestRowSampler(ImageStack movingStack, boolean sameType)
+    {
+        super(movingStack);
+        this.sameType = sameType;
+    }
+
+
+    // ===================================================================
+    // Utility methods
+
+    /**
+     * Checks if a row is mapped with a unit step onto integer positions along
+     * the X axis of the moving image, as obtained for translations with an
+     * integer shift along X. In that case, the row is a shifted copy of a row
+     * of the moving image, and can be copied with System.arraycopy. The row
+     * must not be empty after clipping, as the Y and Z positions of the row
+     * are assumed to be within the moving image.
+     */
+    static final boolean isShiftedCopy(double x0, double dx, double dy, double dz)
+    {
+        return dx == 1 && dy == 0 && dz == 0 && x0 == Math.floor(x0);
+    }
+
+
+    // ===================================================================
+    // Implementations
+
+    /**
+     * Sampler for moving images containing byte values.
+     */
+    static final class ByteSampler extends NearestRowSampler
+    {
+        final byte[][] slices;
+        final byte[] buffer;
+
+        ByteSampler(ImageStack movingStack, boolean sameType, int rowLength)
+        {
+            super(movingStack, sameType);
+            this.slices = Images3D.getByteArrays(movingStack);
+            this.buffer = sameType ? null : new byte[rowLength];
+        }
+
+        @Override
+        void sampleRow(double x0, double y0, double z0,
+                double dx, double dy, double dz, Object target, int offset, int xStart, int xEnd)
+        {
+            byte[] res = sameType ? (byte[]) target : buffer;
+            int off = sameType ? offset : 0;
+            clipRow(x0, y0, z0, dx, dy, dz, xStart, xEnd);
+            Arrays.fill(res, off + xStart, off + clipper.start, (byte) 0);
+            if (clipper.start < clipper.end && isShiftedCopy(x0, dx, dy, dz))
+            {
+                int yi = (int) Math.round(y0);
+                int zi = (int) Math.round(z0);
+                int srcOffset = yi * sizeX + (int) x0 + clipper.start;
+                System.arraycopy(slices[zi], srcOffset, res, off + clipper.start, clipper.end - clipper.start);
+            }
+            else
+            {
+                for (int x = clipper.start; x < clipper.end; x++)
+                {
+                    int xi = (int) Math.round(x0 + x * dx);
+                    int yi = (int) Math.round(y0 + x * dy);
+                    int zi = (int) Math.round(z0 + x * dz);
+                    res[off + x] = slices[zi][yi * sizeX + xi];
+                }
+            }
+            Arrays.fill(res, off + clipper.end, off + xEnd, (byte) 0);
+            if (!sameType)
+            {
+                RowConverters.convert(buffer, xStart, target, offset + xStart, xEnd - xStart);
+            }
+        }
+
+        @Override
+        void sampleRow(double[] xs, double[] ys, double[] zs, Object target, int offset, int n)
+        {
+            byte[] res = sameType ? (byte[]) target : buffer;
+            int off = sameType ? offset : 0;
+            for (int x = 0; x < n; x++)
+            {
+                int xi = (int) Math.round(xs[x]);
+                int yi = (int) Math.round(ys[x]);
+                int zi = (int) Math.round(zs[x]);
+                if (xi < 0 || xi >= sizeX || yi < 0 || yi >= sizeY || zi < 0 || zi >= sizeZ)
+                {
+                    res[off + x] = 0;
+                    continue;
+                }
+                res[off + x] = slices[zi][yi * sizeX + xi];
+            }
+            if (!sameType)
+            {
+                RowConverters.convert(buffer, 0, target, offset, n);
+            }
+        }
+    }
+
+    /**
+     * Sampler for moving images containing short values.
+     */
+    static final class ShortSampler extends NearestRowSampler
+    {
+        final short[][] slices;
+        final short[] buffer;
+
+        ShortSampler(ImageStack movingStack, boolean sameType, int rowLength)
+        {
+            super(movingStack, sameType);
+            this.slices = Images3D.getShortArrays(movingStack);
+            this.buffer = sameType ? null : new short[rowLength];
+        }
+
+        @Override
+        void sampleRow(double x0, double y0, double z0,
+                double dx, double dy, double dz, Object target, int offset, int xStart, int xEnd)
+        {
+            short[] res = sameType ? (short[]) target : buffer;
+            int off = sameType ? offset : 0;
+            clipRow(x0, y0, z0, dx, dy, dz, xStart, xEnd);
+            Arrays.fill(res, off + xStart, off + clipper.start, (short) 0);
+            if (clipper.start < clipper.end && isShiftedCopy(x0, dx, dy, dz))
+            {
+                int yi = (int) Math.round(y0);
+                int zi = (int) Math.round(z0);
+                int srcOffset = yi * sizeX + (int) x0 + clipper.start;
+                System.arraycopy(slices[zi], srcOffset, res, off + clipper.start, clipper.end - clipper.start);
+            }
+            else
+            {
+                for (int x = clipper.start; x < clipper.end; x++)
+                {
+                    int xi = (int) Math.round(x0 + x * dx);
+                    int yi = (int) Math.round(y0 + x * dy);
+                    int zi = (int) Math.round(z0 + x * dz);
+                    res[off + x] = slices[zi][yi * sizeX + xi];
+                }
+            }
+            Arrays.fill(res, off + clipper.end, off + xEnd, (short) 0);
+            if (!sameType)
+            {
+                RowConverters.convert(buffer, xStart, target, offset + xStart, xEnd - xStart);
+            }
+        }
+
+        @Override
+        void sampleRow(double[] xs, double[] ys, double[] zs, Object target, int offset, int n)
+        {
+            short[] res = sameType ? (short[]) target : buffer;
+            int off = sameType ? offset : 0;
+            for (int x = 0; x < n; x++)
+            {
+                int xi = (int) Math.round(xs[x]);
+                int yi = (int) Math.round(ys[x]);
+                int zi = (int) Math.round(zs[x]);
+                if (xi < 0 || xi >= sizeX || yi < 0 || yi >= sizeY || zi < 0 || zi >= sizeZ)
+                {
+                    res[off + x] = 0;
+                    continue;
+                }
+                res[off + x] = slices[zi][yi * sizeX + xi];
+            }
+            if (!sameType)
+            {
+                RowConverters.convert(buffer, 0, target, offset, n);
+            }
+        }
+    }
+
+    /**
+     * Sampler for moving images containing float values.
+     */
+    static final class FloatSampler extends NearestRowSampler
+    {
+        final float[][] slices;
+        final float[] buffer;
+
+        FloatSampler(ImageStack movingStack, boolean sameType, int rowLength)
+        {
+            super(movingStack, sameType);
+            this.slices = Images3D.getFloatArrays(movingStack);
+            this.buffer = sameType ? null : new float[rowLength];
+        }
+
+        @Override
+        void sampleRow(double x0, double y0, double z0,
+                double dx, double dy, double dz, Object target, int offset, int xStart, int xEnd)
+        {
+            float[] res = sameType ? (float[]) target : buffer;
+            int off = sameType ? offset : 0;
+            clipRow(x0, y0, z0, dx, dy, dz, xStart, xEnd);
+            Arrays.fill(res, off + xStart, off + clipper.start, (float) 0);
+            if (clipper.start < clipper.end && isShiftedCopy(x0, dx, dy, dz))
+            {
+                int yi = (int) Math.round(y0);
+                int zi = (int) Math.round(z0);
+                int srcOffset = yi * sizeX + (int) x0 + clipper.start;
+                System.arraycopy(slices[zi], srcOffset, res, off + clipper.start, clipper.end - clipper.start);
+            }
+            else
+            {
+                for (int x = clipper.start; x < clipper.end; x++)
+                {
+                    int xi = (int) Math.round(x0 + x * dx);
+                    int yi = (int) Math.round(y0 + x * dy);
+                    int zi = (int) Math.round(z0 + x * dz);
+                    res[off + x] = slices[zi][yi * sizeX + xi];
+                }
+            }
+            Arrays.fill(res, off + clipper.end, off + xEnd, (float) 0);
+            if (!sameType)
+            {
+                RowConverters.convert(buffer, xStart, target, offset + xStart, xEnd - xStart);
+            }
+        }
+
+        @Override
+        void sampleRow(double[] xs, double[] ys, double[] zs, Object target, int offset, int n)
+        {
+            float[] res = sameType ? (float[]) target : buffer;
+            int off = sameType ? offset : 0;
+            for (int x = 0; x < n; x++)
+            {
+                int xi = (int) Math.round(xs[x]);
+                int yi = (int) Math.round(ys[x]);
+                int zi = (int) Math.round(zs[x]);
+                if (xi < 0 || xi >= sizeX || yi < 0 || yi >= sizeY || zi < 0 || zi >= sizeZ)
+                {
+                    res[off + x] = 0;
+                    continue;
+                }
+                res[off + x] = slices[zi][yi * sizeX + xi];
+            }
+            if (!sameType)
+            {
+                RowConverters.convert(buffer, 0, target, offset, n);
+            }
+        }
+    }
+}
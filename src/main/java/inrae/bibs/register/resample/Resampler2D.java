@@ -0,0 +1,559 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import inrae.bibs.register.Transform2D;
+import inrae.bibs.register.transforms.AffineTransform2D;
+import inrae.bibs.util.Parallel;
+import inrae.bibs.util.ProgressCounter;
+
+/**
+ * Resamples a 2D moving image on the sampling grid of a reference image.
+ *
+ * Values are read from and written to the pixel arrays of the images (byte,
+ * short, float or int arrays). If the moving image does not have the same type
+ * as the reference image, it is first converted to the type of the reference
+ * image, using the same rules as the getf and setf methods of ImageProcessor.
+ *
+ * For the transforms that can be represented by an affine matrix, the
+ * coefficients of the matrix are computed once, and the position of each pixel
+ * of a row within the moving image is obtained from the position of the first
+ * pixel of the row and the first column of the matrix. The range of pixels of
+ * each row that are mapped within the moving image is computed before
+ * sampling, such that the inner loop does not need to check bounds. Other
+ * transforms are processed pixel by pixel.
+ *
+ * The interpolation method is nearest-neighbor by default. Bilinear, bicubic
+ * and cubic B-spline interpolation are computed by the row samplers used for
+ * 3D images, the image being considered as a stack with a single slice. Color
+ * images are interpolated channel by channel. By default, rotations with
+ * linear or cubic interpolation are computed by decomposition into three
+ * shears. Scalings along the axes, such
+ * as similarities without rotation, are computed by separable passes using
+ * tables of neighbors and weights along each axis.
+ *
+ * The rows of the result image are processed by horizontal bands, in
+ * parallel, using by default the number of threads specified in ImageJ
+ * preferences. As each pixel is computed independently of the others, the
+ * result does not depend on the number of threads.
+ *
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	Transform2D transfo = new Translation2D(5, 4);
+ *	Resampler2D resampler = new Resampler2D(transfo);
+ *	ImageProcessor result = resampler.resample(refImage, movingImage);
+ *}</pre>
+ *
+ * @see Resampler3D
+ *
+ * @author dlegland
+ *
+ */
+public class Resampler2D
+{
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Returns the six coefficients of the affine matrix corresponding to the
+     * given transform, or null if the transform is not affine.
+     *
+     * @param transform
+     *            the transform
+     * @return the affine coefficients, in row-major order, or null if the
+     *         transform is not affine.
+     */
+    public static final double[] affineCoefficients(Transform2D transform)
+    {
+        if (transform instanceof AffineTransform2D)
+        {
+            double[][] mat = ((AffineTransform2D) transform).affineMatrix();
+            return new double[] {
+                    mat[0][0], mat[0][1], mat[0][2],
+                    mat[1][0], mat[1][1], mat[1][2] };
+        }
+        return null;
+    }
+
+    /**
+     * Converts the coefficients of a planar affine transform into the
+     * coefficients of the 3D affine transform that does not modify the Z
+     * coordinate, or returns null if the transform is not affine.
+     */
+    private static final double[] planarCoefficients(double[] coeffs)
+    {
+        if (coeffs == null)
+        {
+            return null;
+        }
+        return new double[] {
+                coeffs[0], coeffs[1], 0, coeffs[2],
+                coeffs[3], coeffs[4], 0, coeffs[5],
+                0, 0, 1, 0 };
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The transform from reference space to moving image space */
+    Transform2D transform;
+
+    /** The number of threads used for computing the result */
+    int threadCount = Parallel.defaultThreadCount();
+
+    /** The method used to interpolate the values of the moving image */
+    Interpolation interpolation = Interpolation.NEAREST;
+
+    /** Indicates whether rotations should be computed by decomposition into shears (the default) */
+    boolean shearRotation = true;
+
+
+    // ===================================================================
+    // Constructor
+
+    /**
+     * Creates a new resampler for the given transform.
+     *
+     * @param transform
+     *            the geometric transformation applied to each point in the
+     *            reference image
+     */
+    public Resampler2D(Transform2D transform)
+    {
+        this.transform = transform;
+    }
+
+
+    // ===================================================================
+    // Accessors
+
+    /**
+     * @return the number of threads used for computing the result
+     */
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * @param threadCount
+     *            the number of threads used for computing the result
+     */
+    public void setThreadCount(int threadCount)
+    {
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("Number of threads must be positive, not " + threadCount);
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @return the method used to interpolate the values of the moving image
+     */
+    public Interpolation getInterpolation()
+    {
+        return interpolation;
+    }
+
+    /**
+     * @param interpolation
+     *            the method used to interpolate the values of the moving image
+     */
+    public void setInterpolation(Interpolation interpolation)
+    {
+        if (interpolation == null)
+        {
+            throw new IllegalArgumentException("Interpolation must not be null");
+        }
+        this.interpolation = interpolation;
+    }
+
+
+    /**
+     * @return true if rotations are computed by decomposition into shears
+     */
+    public boolean isShearRotation()
+    {
+        return shearRotation;
+    }
+
+    /**
+     * Chooses whether rotations (followed by a translation) are computed by
+     * decomposition into three shears, when linear or cubic interpolation is
+     * used. Shears are used by default. The result then differs slightly
+     * from bilinear or bicubic interpolation, in particular near the borders
+     * of the moving image. Other transforms and interpolation methods are not
+     * affected.
+     *
+     * @param shearRotation
+     *            true to decompose rotations into shears
+     */
+    public void setShearRotation(boolean shearRotation)
+    {
+        this.shearRotation = shearRotation;
+    }
+
+
+    // ===================================================================
+    // Methods
+
+    /**
+     * Computes the result of the transform applied to the moving image, using
+     * the reference image to define the position of the sampling grid.
+     *
+     * @param reference
+     *            the image used for sampling the reference grid
+     * @param movingImage
+     *            the image to interpolate
+     * @return a new image with the same size and type as the reference image
+     */
+    public ImageProcessor resample(ImageProcessor reference, ImageProcessor movingImage)
+    {
+        // retrieve result image size
+        int sizeX = reference.getWidth();
+        int sizeY = reference.getHeight();
+
+        // create result image
+        ImageProcessor result = reference.createProcessor(sizeX, sizeY);
+
+        // convert moving image to the type of the result if necessary
+        ImageProcessor moving = convertType(movingImage, result);
+        if (this.interpolation != Interpolation.NEAREST)
+        {
+            resampleInterpolated(moving, result);
+            return result;
+        }
+
+        Object src = moving.getPixels();
+        Object res = result.getPixels();
+        int sizeX2 = moving.getWidth();
+        int sizeY2 = moving.getHeight();
+
+        // scaling along the axes, computed from tables of indices
+        double[] coeffs = affineCoefficients(this.transform);
+        SeparableResampler separable = SeparableResampler.create(planarCoefficients(coeffs), this.interpolation);
+        if (separable != null)
+        {
+            ImageStack movingStack = new ImageStack(sizeX2, sizeY2);
+            movingStack.addSlice(null, moving);
+            separable.threadCount = this.threadCount;
+            separable.resample(movingStack, new Object[] {res}, sizeX, sizeY, 1);
+            return result;
+        }
+
+        // iterate over bands of rows of result image
+        IJ.showStatus("Apply transform to image");
+        ProgressCounter progress = new ProgressCounter(sizeY);
+        Parallel.forEachChunk(sizeY, this.threadCount, (y0, y1) -> 
+        {
+            if (coeffs != null)
+            {
+                resampleAffineRows(coeffs, src, sizeX2, sizeY2, res, sizeX, y0, y1);
+            }
+            else
+            {
+                resampleRows(src, sizeX2, sizeY2, res, sizeX, y0, y1);
+            }
+            progress.increment(y1 - y0);
+        });
+        IJ.showStatus("image transformed");
+
+        return result;
+    }
+
+    /**
+     * Computes the result image using linear, cubic or B-spline
+     * interpolation. Color images are split into three channels, that are
+     * interpolated independently.
+     */
+    private void resampleInterpolated(ImageProcessor moving, ImageProcessor result)
+    {
+        IJ.showStatus("Apply transform to image");
+        if (result instanceof ColorProcessor)
+        {
+            int sizeX = result.getWidth();
+            int sizeY = result.getHeight();
+            ImageProcessor[] channels = splitChannels((ColorProcessor) moving);
+            byte[][] resChannels = new byte[3][];
+            ProgressCounter progress = new ProgressCounter(3 * sizeY);
+            for (int c = 0; c < 3; c++)
+            {
+                ImageProcessor resChannel = new ByteProcessor(sizeX, sizeY);
+                resampleInterpolated(channels[c], resChannel, progress);
+                resChannels[c] = (byte[]) resChannel.getPixels();
+            }
+            ((ColorProcessor) result).setRGB(resChannels[0], resChannels[1], resChannels[2]);
+        }
+        else
+        {
+            resampleInterpolated(moving, result, new ProgressCounter(result.getHeight()));
+        }
+        IJ.showStatus("image transformed");
+    }
+
+    /**
+     * Computes the result image from a moving image with the same type, using
+     * linear, cubic or B-spline interpolation. The moving image is
+     * considered as a stack with a single slice, such that the row samplers
+     * of 3D images can be used.
+     */
+    private void resampleInterpolated(ImageProcessor moving, ImageProcessor result, ProgressCounter progress)
+    {
+        int sizeX = result.getWidth();
+        int sizeY = result.getHeight();
+        Object res = result.getPixels();
+
+        ImageStack movingStack = new ImageStack(moving.getWidth(), moving.getHeight());
+        movingStack.addSlice(null, moving);
+        if (this.interpolation == Interpolation.BSPLINE)
+        {
+            // planar coefficients are cheap to compute, and are not cached
+            movingStack = BSplineCoefficients.compute(movingStack);
+        }
+        ImageStack source = movingStack;
+
+        double[] coeffs = affineCoefficients(this.transform);
+        ShearRotation shears = this.shearRotation ? ShearRotation.create(planarCoefficients(coeffs), this.interpolation) : null;
+        if (shears != null)
+        {
+            shears.threadCount = this.threadCount;
+            shears.resample(movingStack, new Object[] {res}, sizeX, sizeY, 1);
+            progress.increment(sizeY);
+            return;
+        }
+        SeparableResampler separable = SeparableResampler.create(planarCoefficients(coeffs), this.interpolation);
+        if (separable != null)
+        {
+            separable.threadCount = this.threadCount;
+            separable.resample(source, new Object[] {res}, sizeX, sizeY, 1);
+            progress.increment(sizeY);
+            return;
+        }
+
+        Parallel.forEachChunk(sizeY, this.threadCount, (yStart, yEnd) -> 
+        {
+            RowSampler sampler = RowSampler.create(source, result.getBitDepth(), sizeX, this.interpolation);
+            double[] xs = coeffs == null ? new double[sizeX] : null;
+            double[] ys = coeffs == null ? new double[sizeX] : null;
+            double[] zs = coeffs == null ? new double[sizeX] : null;
+            for (int y = yStart; y < yEnd; y++)
+            {
+                if (coeffs != null)
+                {
+                    // position of the first pixel of the row within moving image
+                    double x0 = y * coeffs[1] + coeffs[2];
+                    double y0 = y * coeffs[4] + coeffs[5];
+                    sampler.sampleRow(x0, y0, 0, coeffs[0], coeffs[3], 0, res, y * sizeX, 0, sizeX);
+                }
+                else
+                {
+                    for (int x = 0; x < sizeX; x++)
+                    {
+                        xs[x] = x;
+                    }
+                    Arrays.fill(ys, y);
+                    transform.transform(xs, ys, xs, ys, sizeX);
+                    sampler.sampleRow(xs, ys, zs, res, y * sizeX, sizeX);
+                }
+            }
+            progress.increment(yEnd - yStart);
+        });
+    }
+
+    /**
+     * Splits a color image into three byte images containing the red, green
+     * and blue channels.
+     */
+    private static final ImageProcessor[] splitChannels(ColorProcessor image)
+    {
+        int sizeX = image.getWidth();
+        int sizeY = image.getHeight();
+        byte[][] channels = new byte[3][sizeX * sizeY];
+        image.getRGB(channels[0], channels[1], channels[2]);
+        return new ImageProcessor[] {
+                new ByteProcessor(sizeX, sizeY, channels[0]),
+                new ByteProcessor(sizeX, sizeY, channels[1]),
+                new ByteProcessor(sizeX, sizeY, channels[2]) };
+    }
+
+    /**
+     * Computes the rows of the result image between yStart and yEnd, using the
+     * coefficients of an affine transform.
+     */
+    private static final void resampleAffineRows(double[] coeffs, Object src, int sizeX2, int sizeY2,
+            Object res, int sizeX, int yStart, int yEnd)
+    {
+        RowClipper clipper = new RowClipper();
+        for (int y = yStart; y < yEnd; y++)
+        {
+            // position of the first pixel of the row within moving image
+            double x0 = y * coeffs[1] + coeffs[2];
+            double y0 = y * coeffs[4] + coeffs[5];
+
+            // range of pixels within the moving image
+            clipper.reset(0, sizeX);
+            clipper.clipRounded(x0, coeffs[0], sizeX2);
+            clipper.clipRounded(y0, coeffs[3], sizeY2);
+            if (clipper.isEmpty())
+            {
+                continue;
+            }
+            sampleRow(src, sizeX2, x0, y0, coeffs[0], coeffs[3], res, y * sizeX, clipper.start, clipper.end);
+        }
+    }
+
+    /**
+     * Computes the rows of the result image between yStart and yEnd, by
+     * applying the transform to each pixel.
+     */
+    private void resampleRows(Object src, int sizeX2, int sizeY2, Object res, int sizeX, int yStart, int yEnd)
+    {
+        // the position of each pixel of the row within moving image
+        double[] xs = new double[sizeX];
+        double[] ys = new double[sizeX];
+        for (int y = yStart; y < yEnd; y++)
+        {
+            for (int x = 0; x < sizeX; x++)
+            {
+                xs[x] = x;
+            }
+            Arrays.fill(ys, y);
+            transform.transform(xs, ys, xs, ys, sizeX);
+
+            for (int x = 0; x < sizeX; x++)
+            {
+                // nearest-neighbor interpolation
+                int xi = (int) Math.round(xs[x]);
+                int yi = (int) Math.round(ys[x]);
+                if (xi < 0 || xi >= sizeX2) continue;
+                if (yi < 0 || yi >= sizeY2) continue;
+
+                copyValue(src, yi * sizeX2 + xi, res, y * sizeX + x);
+            }
+        }
+    }
+
+    /**
+     * Returns the moving image if it has the same type as the target image,
+     * or a converted copy of the moving image otherwise.
+     */
+    private static final ImageProcessor convertType(ImageProcessor moving, ImageProcessor target)
+    {
+        if (moving.getPixels().getClass() == target.getPixels().getClass())
+        {
+            return moving;
+        }
+
+        ImageProcessor converted = target.createProcessor(moving.getWidth(), moving.getHeight());
+        int n = moving.getPixelCount();
+        for (int i = 0; i < n; i++)
+        {
+            converted.setf(i, moving.getf(i));
+        }
+        return converted;
+    }
+
+    /**
+     * Samples the pixels of a row between xStart and xEnd, whose positions in
+     * the moving image are given by (x0 + x * dx, y0 + x * dy). All positions
+     * must be within the moving image.
+     */
+    private static final void sampleRow(Object source, int sizeX2, double x0, double y0, double dx, double dy,
+            Object target, int offset, int xStart, int xEnd)
+    {
+        // rows of integer translations are shifted copies of moving rows
+        if (dx == 1 && dy == 0 && x0 == Math.floor(x0))
+        {
+            int srcOffset = (int) Math.round(y0) * sizeX2 + (int) x0 + xStart;
+            System.arraycopy(source, srcOffset, target, offset + xStart, xEnd - xStart);
+            return;
+        }
+
+        if (source instanceof byte[])
+        {
+            byte[] src = (byte[]) source;
+            byte[] res = (byte[]) target;
+            for (int x = xStart; x < xEnd; x++)
+            {
+                int xi = (int) Math.round(x0 + x * dx);
+                int yi = (int) Math.round(y0 + x * dy);
+                res[offset + x] = src[yi * sizeX2 + xi];
+            }
+        }
+        else if (source instanceof short[])
+        {
+            short[] src = (short[]) source;
+            short[] res = (short[]) target;
+            for (int x = xStart; x < xEnd; x++)
+            {
+                int xi = (int) Math.round(x0 + x * dx);
+                int yi = (int) Math.round(y0 + x * dy);
+                res[offset + x] = src[yi * sizeX2 + xi];
+            }
+        }
+        else if (source instanceof float[])
+        {
+            float[] src = (float[]) source;
+            float[] res = (float[]) target;
+            for (int x = xStart; x < xEnd; x++)
+            {
+                int xi = (int) Math.round(x0 + x * dx);
+                int yi = (int) Math.round(y0 + x * dy);
+                res[offset + x] = src[yi * sizeX2 + xi];
+            }
+        }
+        else if (source instanceof int[])
+        {
+            int[] src = (int[]) source;
+            int[] res = (int[]) target;
+            for (int x = xStart; x < xEnd; x++)
+            {
+                int xi = (int) Math.round(x0 + x * dx);
+                int yi = (int) Math.round(y0 + x * dy);
+                res[offset + x] = src[yi * sizeX2 + xi];
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("Can not manage pixel arrays of type " + source.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Copies a single value between two pixel arrays with the same type.
+     */
+    private static final void copyValue(Object source, int srcIndex, Object target, int tgtIndex)
+    {
+        if (source instanceof byte[])
+        {
+            ((byte[]) target)[tgtIndex] = ((byte[]) source)[srcIndex];
+        }
+        else if (source instanceof short[])
+        {
+            ((short[]) target)[tgtIndex] = ((short[]) source)[srcIndex];
+        }
+        else if (source instanceof float[])
+        {
+            ((float[]) target)[tgtIndex] = ((float[]) source)[srcIndex];
+        }
+        else if (source instanceof int[])
+        {
+            ((int[]) target)[tgtIndex] = ((int[]) source)[srcIndex];
+        }
+        else
+        {
+            throw new IllegalArgumentException("Can not manage pixel arrays of type " + source.getClass().getSimpleName());
+        }
+    }
+}
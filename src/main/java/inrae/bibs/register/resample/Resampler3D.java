@@ -0,0 +1,828 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import inrae.bibs.register.RowPairDisplay;
+import inrae.bibs.register.Transform3D;
+import inrae.bibs.register.transforms.AffineTransform3D;
+import inrae.bibs.util.Parallel;
+import inrae.bibs.util.ProgressCounter;
+
+/**
+ * Resamples a 3D moving image on the sampling grid of a reference image.
+ *
+ * Values are read from and written to the pixel arrays of the slices, using a
+ * sampling kernel specialized for the interpolation method and for the data
+ * type of the moving image. The interpolation method is nearest-neighbor by
+ * default, and can be changed to trilinear, cubic or cubic B-spline
+ * interpolation. For B-spline interpolation, the coefficients of the moving
+ * image are obtained from the default BSplineCoefficientCache, the first time
+ * the moving image is resampled by this resampler.
+ *
+ * For affine transforms (including translations), the position in the moving
+ * image of the first voxel of each row is computed once, and the positions of
+ * the other voxels of the row are obtained from the first column of the affine
+ * matrix. This avoids the creation of intermediate points for each voxel.
+ * Other transforms are processed voxel by voxel.
+ *
+ * By default, rotations around the Y or the Z axis with linear or cubic
+ * interpolation are computed by decomposition into three shears, each shear
+ * translating lines of the image with interpolation weights computed once per
+ * line (see ShearRotation). Rotations around several axes are not decomposed.
+ * Affine transforms with a diagonal matrix, such as scalings used for
+ * changing the resolution of an image, are always computed by separable
+ * passes using tables of neighbors and weights along each axis (see
+ * SeparableResampler).
+ *
+ * The slices of the result image are processed in parallel, using by default
+ * the number of threads specified in ImageJ preferences. When rows of the
+ * result image cross many slices of the moving image, the result image is
+ * processed by cubic tiles to keep the accessed part of the moving image
+ * within the processor cache.
+ *
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	Transform3D transfo = new Translation3D(5, 4, 3);
+ *	Resampler3D resampler = new Resampler3D(transfo);
+ *	ImageStack result = resampler.resample(refStack, movingStack);
+ *}</pre>
+ *
+ * @author dlegland
+ *
+ */
+public class Resampler3D
+{
+    // ===================================================================
+    // Inner enumeration
+
+    /**
+     * The orthogonal planes of the reference image that can be resampled
+     * independently of the whole image. For each plane, the first axis of the
+     * plane corresponds to the columns of the result image, and the second
+     * axis to the rows. The YZ plane is oriented such that it can be displayed
+     * next to the XY plane.
+     */
+    public enum Plane
+    {
+        /** The plane with constant z, with size (sizeX, sizeY) */
+        XY,
+        /** The plane with constant y, with size (sizeX, sizeZ) */
+        XZ,
+        /** The plane with constant x, with size (sizeZ, sizeY) */
+        YZ;
+    }
+
+
+    // ===================================================================
+    // Static constants
+
+    /**
+     * The value of the tile size indicating that it should be chosen from
+     * the transform.
+     */
+    public static final int AUTO_TILE_SIZE = -1;
+
+    /** The minimal edge of the tiles chosen automatically */
+    private static final int MIN_TILE_SIZE = 8;
+
+    /** The maximal edge of the tiles chosen automatically */
+    private static final int MAX_TILE_SIZE = 64;
+
+    /**
+     * The amount of memory that the moving image footprint of a tile should
+     * not exceed, corresponding to a typical L2 cache size.
+     */
+    private static final double CACHE_SIZE = 256 * 1024;
+
+
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Returns the twelve coefficients of the affine matrix corresponding to
+     * the given transform, or null if the transform is not affine.
+     *
+     * @param transform
+     *            the transform
+     * @return the affine coefficients, in row-major order, or null if the
+     *         transform is not affine.
+     */
+    public static final double[] affineCoefficients(Transform3D transform)
+    {
+        return affineCoefficients(transform, null);
+    }
+
+    /**
+     * Writes the twelve coefficients of the affine matrix corresponding to
+     * the given transform into the given array, and returns the array, or
+     * null if the transform is not affine.
+     *
+     * @param transform
+     *            the transform
+     * @param coeffs
+     *            the array to write the coefficients into, or null to allocate
+     *            a new array
+     * @return the affine coefficients, in row-major order, or null if the
+     *         transform is not affine.
+     */
+    public static final double[] affineCoefficients(Transform3D transform, double[] coeffs)
+    {
+        if (transform instanceof AffineTransform3D)
+        {
+            return ((AffineTransform3D) transform).getCoefficients(coeffs);
+        }
+        return null;
+    }
+
+    /**
+     * Chooses the size of the tiles used for traversing the result image,
+     * depending on the coefficients of the affine transform.
+     *
+     * When rows of the result image are mapped within a single slice of the
+     * moving image, rows are processed in row-major order, and this method
+     * returns 0. When a row crosses several slices of the moving image (for
+     * example after a rotation around the X or Y axes), the result image is
+     * processed by cubic tiles, whose edge is chosen such that the part of the
+     * moving image mapped by a tile fits within the processor cache.
+     *
+     * @param coeffs
+     *            the coefficients of the affine transform, in row-major order
+     * @param sizeX
+     *            the size of the result image along the X axis
+     * @param bitDepth
+     *            the bit depth of the moving image
+     * @return the edge of the tiles, or 0 for row-major order
+     */
+    public static final int chooseTileSize(double[] coeffs, int sizeX, int bitDepth)
+    {
+        // rows that stay within a moving slice are read contiguously
+        if (Math.abs(coeffs[8]) * sizeX < 2)
+        {
+            return 0;
+        }
+
+        // the extent within the moving image of a tile with unit edge
+        double extentX = Math.abs(coeffs[0]) + Math.abs(coeffs[1]) + Math.abs(coeffs[2]);
+        double extentY = Math.abs(coeffs[4]) + Math.abs(coeffs[5]) + Math.abs(coeffs[6]);
+        double extentZ = Math.abs(coeffs[8]) + Math.abs(coeffs[9]) + Math.abs(coeffs[10]);
+        double volume = Math.max(extentX * extentY * extentZ, 1e-3);
+
+        // choose the largest tile whose footprint fits into the cache
+        int bytesPerVoxel = Math.max(bitDepth / 8, 1);
+        int tile = (int) Math.cbrt(CACHE_SIZE / (volume * bytesPerVoxel));
+        tile = (tile / 8) * 8;
+        return Math.min(Math.max(tile, MIN_TILE_SIZE), MAX_TILE_SIZE);
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The transform from reference space to moving image space */
+    final Transform3D transform;
+
+    /**
+     * The coefficients of the transform, computed once when the resampler is
+     * created, or null if the transform is not affine. The array is shared by
+     * all the computations, and is never modified after its creation.
+     */
+    private final double[] coeffs;
+
+    /** The number of threads used for computing the result */
+    int threadCount = Parallel.defaultThreadCount();
+
+    /**
+     * The edge of the cubic tiles used for traversing the result image, 0 for
+     * row-major order, or AUTO_TILE_SIZE for automatic choice.
+     */
+    int tileSize = AUTO_TILE_SIZE;
+
+    /** The method used to interpolate the values of the moving image */
+    Interpolation interpolation = Interpolation.NEAREST;
+
+    /**
+     * Indicates whether rotations around the Y or the Z axis should be
+     * computed by decomposition into shears (the default).
+     */
+    boolean shearRotation = true;
+
+    /**
+     * The last moving image interpolated with B-splines, and its B-spline
+     * coefficients, such that the coefficient cache is accessed only once per
+     * resampler.
+     */
+    private ImageStack coefficientsSource = null;
+    private ImageStack coefficients = null;
+
+
+    // ===================================================================
+    // Constructor
+
+    /**
+     * Creates a new resampler for the given transform. The coefficients of
+     * affine transforms are read once, such that the transform should not be
+     * modified after the creation of the resampler.
+     *
+     * @param transform
+     *            the geometric transformation applied to each point in the
+     *            reference image
+     */
+    public Resampler3D(Transform3D transform)
+    {
+        this.transform = transform;
+        this.coeffs = affineCoefficients(transform, new double[12]);
+    }
+
+
+    // ===================================================================
+    // Accessors
+
+    /**
+     * @return the number of threads used for computing the result
+     */
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * Changes the number of threads used for computing the result. Slabs of
+     * slices of the result are distributed over the threads. The result does
+     * not depend on the number of threads.
+     *
+     * @param threadCount
+     *            the number of threads used for computing the result
+     */
+    public void setThreadCount(int threadCount)
+    {
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("Number of threads must be at least 1, not " + threadCount);
+        }
+        this.threadCount = threadCount;
+    }
+
+
+    /**
+     * @return the edge of the tiles used for traversing the result image, 0
+     *         for row-major order, or AUTO_TILE_SIZE for automatic choice.
+     */
+    public int getTileSize()
+    {
+        return tileSize;
+    }
+
+    /**
+     * Changes the way the result image is traversed. When tile size is
+     * positive, the result image is processed by cubic tiles with the
+     * specified edge, in order to improve the locality of memory accesses in
+     * the moving image. Tiling is only used for affine transforms. The result
+     * does not depend on the tile size.
+     *
+     * @param tileSize
+     *            the edge of the tiles, 0 for row-major order, or
+     *            AUTO_TILE_SIZE to choose the tile size from the transform
+     * @see #chooseTileSize(double[], int, int)
+     */
+    public void setTileSize(int tileSize)
+    {
+        if (tileSize < 0 && tileSize != AUTO_TILE_SIZE)
+        {
+            throw new IllegalArgumentException("Tile size must be positive or zero, not " + tileSize);
+        }
+        this.tileSize = tileSize;
+    }
+
+
+    /**
+     * @return the method used to interpolate the values of the moving image
+     */
+    public Interpolation getInterpolation()
+    {
+        return interpolation;
+    }
+
+    /**
+     * Changes the method used to interpolate the values of the moving image.
+     * The extent of the result does not depend on the interpolation method.
+     *
+     * @param interpolation
+     *            the interpolation method
+     */
+    public void setInterpolation(Interpolation interpolation)
+    {
+        if (interpolation == null)
+        {
+            throw new IllegalArgumentException("Interpolation must not be null");
+        }
+        this.interpolation = interpolation;
+    }
+
+
+    /**
+     * @return true if rotations around the Y or the Z axis are computed by
+     *         decomposition into shears
+     */
+    public boolean isShearRotation()
+    {
+        return shearRotation;
+    }
+
+    /**
+     * Chooses whether the resample method computes the rotations around the
+     * Y or the Z axis (followed by a translation) by decomposition into three
+     * shears, when linear or cubic interpolation is used. Shears are used by
+     * default, and the result then differs slightly from trilinear or
+     * tricubic interpolation, in particular near the borders of the moving
+     * image. Other
+     * transforms and interpolation methods are not affected. In particular,
+     * the rows of the rotations around the X axis are translated rows of the
+     * moving image, that are already computed efficiently. Compositions of
+     * rotations around several axes, such as the general transforms of the
+     * Motion model, are computed by the general resampling.
+     *
+     * @param shearRotation
+     *            true to decompose rotations into shears
+     * @see ShearRotation
+     */
+    public void setShearRotation(boolean shearRotation)
+    {
+        this.shearRotation = shearRotation;
+    }
+
+
+    // ===================================================================
+    // Resampling methods
+
+    /**
+     * Computes the result of the transform applied to the moving image, using
+     * the reference image to define the position of the sampling grid.
+     *
+     * @param refStack
+     *            the image used for sampling the reference grid
+     * @param movingStack
+     *            the image to interpolate
+     * @return a new image with the same size and type as the reference image
+     */
+    public ImageStack resample(ImageStack refStack, ImageStack movingStack)
+    {
+        // retrieve result image size
+        int sizeX = refStack.getWidth();
+        int sizeY = refStack.getHeight();
+        int sizeZ = refStack.getSize();
+        int bitDepth = refStack.getBitDepth();
+
+        // create result image
+        ImageStack resultStack = ImageStack.create(sizeX, sizeY, sizeZ, bitDepth);
+        Object[] resSlices = resultStack.getImageArray();
+
+        // the coefficients of the transform, if it is affine
+        double[] coeffs = this.coeffs;
+
+        // rotations around the Y or Z axis, decomposed into shears
+        ShearRotation shears = this.shearRotation ? ShearRotation.create(coeffs, this.interpolation) : null;
+        if (shears != null)
+        {
+            IJ.showStatus("Apply rotation to image");
+            shears.threadCount = this.threadCount;
+            shears.resample(movingStack, resSlices, sizeX, sizeY, sizeZ);
+            IJ.showStatus("image transformed");
+            return resultStack;
+        }
+        ImageStack source = samplingSource(movingStack);
+
+        // scaling along the axes, computed by separable passes
+        SeparableResampler separable = SeparableResampler.create(coeffs, this.interpolation);
+        if (separable != null)
+        {
+            IJ.showStatus("Apply scaling to image");
+            separable.threadCount = this.threadCount;
+            separable.resample(source, resSlices, sizeX, sizeY, sizeZ);
+            IJ.showStatus("image transformed");
+            return resultStack;
+        }
+
+        // choose the traversal order of the result image
+        int tile = 0;
+        if (coeffs != null)
+        {
+            tile = this.tileSize == AUTO_TILE_SIZE ? chooseTileSize(coeffs, sizeX, source.getBitDepth()) : this.tileSize;
+        }
+
+        IJ.showStatus("Apply transform to image");
+        if (tile > 0)
+        {
+            resampleTiles(coeffs, tile, source, resSlices, sizeX, sizeY, sizeZ, bitDepth);
+        }
+        else
+        {
+            // iterate over slabs of slices of result image
+            ProgressCounter progress = new ProgressCounter(sizeZ);
+            Parallel.forEachChunk(sizeZ, this.threadCount, (z0, z1) -> 
+            {
+                // choose the sampling method from the types of images
+                RowSampler sampler = RowSampler.create(source, bitDepth, sizeX, this.interpolation);
+                for (int z = z0; z < z1; z++)
+                {
+                    if (coeffs != null)
+                    {
+                        resampleAffineBlock(coeffs, sampler, resSlices, sizeX, 0, sizeX, 0, sizeY, z, z + 1);
+                    }
+                    else
+                    {
+                        resampleSlice(z, sizeY, sampler, resSlices[z], sizeX);
+                    }
+                    progress.increment();
+                }
+            });
+        }
+        IJ.showStatus("image transformed");
+
+        return resultStack;
+    }
+
+    /**
+     * Computes a single slice of the result of the transform applied to the
+     * moving image. The slice is computed within the calling thread, and is
+     * the same as the corresponding slice of the result of the resample
+     * method.
+     *
+     * @param refStack
+     *            the image used for sampling the reference grid
+     * @param movingStack
+     *            the image to interpolate
+     * @param z
+     *            the index of the slice to compute, starting from 0
+     * @return a new slice with the same size and type as the slices of the
+     *         reference image
+     */
+    public ImageProcessor resampleSlice(ImageStack refStack, ImageStack movingStack, int z)
+    {
+        // retrieve result image size
+        int sizeX = refStack.getWidth();
+        int sizeY = refStack.getHeight();
+        int sizeZ = refStack.getSize();
+        int bitDepth = refStack.getBitDepth();
+        if (z < 0 || z >= sizeZ)
+        {
+            throw new IllegalArgumentException("Slice index out of bounds: " + z);
+        }
+
+        // create result slice
+        ImageProcessor result = ImageStack.create(sizeX, sizeY, 1, bitDepth).getProcessor(1);
+        Object[] resSlices = new Object[sizeZ];
+        resSlices[z] = result.getPixels();
+
+        RowSampler sampler = RowSampler.create(samplingSource(movingStack), bitDepth, sizeX, this.interpolation);
+        double[] coeffs = this.coeffs;
+        if (coeffs != null)
+        {
+            resampleAffineBlock(coeffs, sampler, resSlices, sizeX, 0, sizeX, 0, sizeY, z, z + 1);
+        }
+        else
+        {
+            resampleSlice(z, sizeY, sampler, resSlices[z], sizeX);
+        }
+        return result;
+    }
+
+    /**
+     * Computes the display of the reference image and of the result of the
+     * transform applied to the moving image, without storing the result of
+     * the transform. Each row of the moving image is resampled into a row
+     * buffer, and directly combined with the reference row by the display.
+     * The result is the same as computing the display from the result of the
+     * resample method.
+     *
+     * @param refStack
+     *            the image used for sampling the reference grid
+     * @param movingStack
+     *            the image to interpolate
+     * @param display
+     *            the method used to combine the reference and transformed
+     *            images
+     * @return the display of the pair of images, with the same size as the
+     *         reference image
+     */
+    public ImageStack resampleAndCombine(ImageStack refStack, ImageStack movingStack, RowPairDisplay display)
+    {
+        // retrieve result image size
+        int sizeX = refStack.getWidth();
+        int sizeY = refStack.getHeight();
+        int sizeZ = refStack.getSize();
+
+        // create result image, that will be populated by slices
+        ImageStack resultStack = new ImageStack(sizeX, sizeY, sizeZ);
+        double[] coeffs = this.coeffs;
+        ImageStack source = samplingSource(movingStack);
+
+        IJ.showStatus("Apply transform and compute display");
+        ProgressCounter progress = new ProgressCounter(sizeZ);
+        Parallel.forEachChunk(sizeZ, this.threadCount, (z0, z1) -> 
+        {
+            RowSampler sampler = RowSampler.create(source, refStack.getBitDepth(), sizeX, this.interpolation);
+            ImageProcessor row = ImageStack.create(sizeX, 1, 1, refStack.getBitDepth()).getProcessor(1);
+            for (int z = z0; z < z1; z++)
+            {
+                ImageProcessor resSlice = combineSlice(coeffs, sampler, row, refStack, display, z);
+                resultStack.setPixels(resSlice.getPixels(), z + 1);
+                progress.increment();
+            }
+        });
+        IJ.showStatus("display computed");
+
+        return resultStack;
+    }
+
+    /**
+     * Computes a single slice of the display of the reference image and of the
+     * result of the transform applied to the moving image. The slice is
+     * computed within the calling thread, without storing the slice of the
+     * transformed image.
+     *
+     * @param refStack
+     *            the image used for sampling the reference grid
+     * @param movingStack
+     *            the image to interpolate
+     * @param display
+     *            the method used to combine the reference and transformed
+     *            images
+     * @param z
+     *            the index of the slice to compute, starting from 0
+     * @return the display of the slice
+     */
+    public ImageProcessor resampleAndCombineSlice(ImageStack refStack, ImageStack movingStack, RowPairDisplay display, int z)
+    {
+        if (z < 0 || z >= refStack.getSize())
+        {
+            throw new IllegalArgumentException("Slice index out of bounds: " + z);
+        }
+        int sizeX = refStack.getWidth();
+        RowSampler sampler = RowSampler.create(samplingSource(movingStack), refStack.getBitDepth(), sizeX, this.interpolation);
+        ImageProcessor row = ImageStack.create(sizeX, 1, 1, refStack.getBitDepth()).getProcessor(1);
+        return combineSlice(this.coeffs, sampler, row, refStack, display, z);
+    }
+
+    /**
+     * Computes a slice of the display, by resampling each row of the moving
+     * image into the row buffer, and combining it with the reference slice.
+     */
+    private ImageProcessor combineSlice(double[] coeffs, RowSampler sampler, ImageProcessor row, 
+            ImageStack refStack, RowPairDisplay display, int z)
+    {
+        int sizeX = refStack.getWidth();
+        int sizeY = refStack.getHeight();
+        ImageProcessor refSlice = refStack.getProcessor(z + 1);
+        ImageProcessor resSlice = display.createSlice(refSlice);
+        Object rowPixels = row.getPixels();
+
+        // the position of each voxel of the row within moving image, for non affine transforms
+        double[] xs = coeffs == null ? new double[sizeX] : null;
+        double[] ys = coeffs == null ? new double[sizeX] : null;
+        double[] zs = coeffs == null ? new double[sizeX] : null;
+
+        for (int y = 0; y < sizeY; y++)
+        {
+            if (coeffs != null)
+            {
+                // position of the first voxel of the row within moving image
+                double x0 = y * coeffs[1] + z * coeffs[2] + coeffs[3];
+                double y0 = y * coeffs[5] + z * coeffs[6] + coeffs[7];
+                double z0 = y * coeffs[9] + z * coeffs[10] + coeffs[11];
+                sampler.sampleRow(x0, y0, z0, coeffs[0], coeffs[4], coeffs[8], rowPixels, 0, 0, sizeX);
+            }
+            else
+            {
+                fillRow(xs, ys, zs, y, z);
+                transform.transform(xs, ys, zs, xs, ys, zs, sizeX);
+                sampler.sampleRow(xs, ys, zs, rowPixels, 0, sizeX);
+            }
+            display.combineRow(refSlice, row, resSlice, y);
+        }
+        return resSlice;
+    }
+
+    /**
+     * Computes a planar section of the result of the transform applied to the
+     * moving image. The section is computed within the calling thread.
+     *
+     * @param refStack
+     *            the image used for sampling the reference grid
+     * @param movingStack
+     *            the image to interpolate
+     * @param plane
+     *            the orientation of the section
+     * @param position
+     *            the position of the section along the axis orthogonal to the
+     *            plane, starting from 0
+     * @return a new image with the same type as the slices of the reference
+     *         image
+     */
+    public ImageProcessor resamplePlane(ImageStack refStack, ImageStack movingStack, Plane plane, int position)
+    {
+        // retrieve reference image size
+        int sizeX = refStack.getWidth();
+        int sizeY = refStack.getHeight();
+        int sizeZ = refStack.getSize();
+        int bitDepth = refStack.getBitDepth();
+
+        // the position of the first voxel of the section, and the increments
+        // along the columns (u) and the rows (v) of the section
+        int[] origin;
+        int[] du;
+        int[] dv;
+        int sizeU;
+        int sizeV;
+        switch (plane)
+        {
+        case XY:
+            origin = new int[] {0, 0, position};
+            du = new int[] {1, 0, 0};
+            dv = new int[] {0, 1, 0};
+            sizeU = sizeX;
+            sizeV = sizeY;
+            break;
+        case XZ:
+            origin = new int[] {0, position, 0};
+            du = new int[] {1, 0, 0};
+            dv = new int[] {0, 0, 1};
+            sizeU = sizeX;
+            sizeV = sizeZ;
+            break;
+        case YZ:
+            origin = new int[] {position, 0, 0};
+            du = new int[] {0, 0, 1};
+            dv = new int[] {0, 1, 0};
+            sizeU = sizeZ;
+            sizeV = sizeY;
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown plane: " + plane);
+        }
+
+        // create result image
+        ImageProcessor result = ImageStack.create(sizeU, sizeV, 1, bitDepth).getProcessor(1);
+        Object pixels = result.getPixels();
+        RowSampler sampler = RowSampler.create(samplingSource(movingStack), bitDepth, sizeU, this.interpolation);
+
+        double[] coeffs = this.coeffs;
+        if (coeffs != null)
+        {
+            // increment of position when moving along the rows of the section
+            double dx = coeffs[0] * du[0] + coeffs[1] * du[1] + coeffs[2] * du[2];
+            double dy = coeffs[4] * du[0] + coeffs[5] * du[1] + coeffs[6] * du[2];
+            double dz = coeffs[8] * du[0] + coeffs[9] * du[1] + coeffs[10] * du[2];
+
+            for (int v = 0; v < sizeV; v++)
+            {
+                // position of the first voxel of the row within reference and moving images
+                int px = origin[0] + v * dv[0];
+                int py = origin[1] + v * dv[1];
+                int pz = origin[2] + v * dv[2];
+                double x0 = px * coeffs[0] + py * coeffs[1] + pz * coeffs[2] + coeffs[3];
+                double y0 = px * coeffs[4] + py * coeffs[5] + pz * coeffs[6] + coeffs[7];
+                double z0 = px * coeffs[8] + py * coeffs[9] + pz * coeffs[10] + coeffs[11];
+
+                sampler.sampleRow(x0, y0, z0, dx, dy, dz, pixels, v * sizeU, 0, sizeU);
+            }
+        }
+        else
+        {
+            // the position of each voxel of the row within moving image
+            double[] xs = new double[sizeU];
+            double[] ys = new double[sizeU];
+            double[] zs = new double[sizeU];
+
+            for (int v = 0; v < sizeV; v++)
+            {
+                for (int u = 0; u < sizeU; u++)
+                {
+                    xs[u] = origin[0] + u * du[0] + v * dv[0];
+                    ys[u] = origin[1] + u * du[1] + v * dv[1];
+                    zs[u] = origin[2] + u * du[2] + v * dv[2];
+                }
+                transform.transform(xs, ys, zs, xs, ys, zs, sizeU);
+                sampler.sampleRow(xs, ys, zs, pixels, v * sizeU, sizeU);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the image read by the samplers: the moving image itself, or its
+     * B-spline coefficients for B-spline interpolation.
+     */
+    private synchronized ImageStack samplingSource(ImageStack movingStack)
+    {
+        if (this.interpolation != Interpolation.BSPLINE)
+        {
+            return movingStack;
+        }
+        if (movingStack != this.coefficientsSource)
+        {
+            this.coefficients = BSplineCoefficientCache.getDefault().getCoefficients(movingStack);
+            this.coefficientsSource = movingStack;
+        }
+        return this.coefficients;
+    }
+
+    /**
+     * Computes the values of the result image by processing cubic tiles of
+     * voxels. Tiles are distributed over the threads.
+     */
+    private void resampleTiles(double[] coeffs, int tile, ImageStack source, Object[] resSlices, int sizeX, int sizeY, int sizeZ, int bitDepth)
+    {
+        // number of tiles in each dimension
+        int nTilesX = (sizeX + tile - 1) / tile;
+        int nTilesY = (sizeY + tile - 1) / tile;
+        int nTilesZ = (sizeZ + tile - 1) / tile;
+        int nTiles = nTilesX * nTilesY * nTilesZ;
+
+        ProgressCounter progress = new ProgressCounter(nTiles);
+        Parallel.forEachChunk(nTiles, this.threadCount, (t0, t1) -> 
+        {
+            RowSampler sampler = RowSampler.create(source, bitDepth, sizeX, this.interpolation);
+            for (int t = t0; t < t1; t++)
+            {
+                // convert tile index into tile bounds
+                int x0 = (t % nTilesX) * tile;
+                int y0 = ((t / nTilesX) % nTilesY) * tile;
+                int z0 = (t / (nTilesX * nTilesY)) * tile;
+                resampleAffineBlock(coeffs, sampler, resSlices, sizeX,
+                        x0, Math.min(x0 + tile, sizeX), 
+                        y0, Math.min(y0 + tile, sizeY), 
+                        z0, Math.min(z0 + tile, sizeZ));
+                progress.increment();
+            }
+        });
+    }
+
+    /**
+     * Computes the values of a block of voxels of the result image, using the
+     * coefficients of an affine transform. Positions of voxels are computed
+     * from the position of the first voxel of each row of the result image,
+     * such that the result does not depend on the block decomposition.
+     */
+    private static final void resampleAffineBlock(double[] coeffs, RowSampler sampler, Object[] resSlices, int sizeX, 
+            int xStart, int xEnd, int yStart, int yEnd, int zStart, int zEnd)
+    {
+        // increment of position when moving along the row
+        double dx = coeffs[0];
+        double dy = coeffs[4];
+        double dz = coeffs[8];
+
+        for (int z = zStart; z < zEnd; z++)
+        {
+            Object slice = resSlices[z];
+            for (int y = yStart; y < yEnd; y++)
+            {
+                // position of the first voxel of the row within moving image
+                double x0 = y * coeffs[1] + z * coeffs[2] + coeffs[3];
+                double y0 = y * coeffs[5] + z * coeffs[6] + coeffs[7];
+                double z0 = y * coeffs[9] + z * coeffs[10] + coeffs[11];
+
+                sampler.sampleRow(x0, y0, z0, dx, dy, dz, slice, y * sizeX, xStart, xEnd);
+            }
+        }
+    }
+
+    /**
+     * Computes the values of a slice of the result image, by applying the
+     * transform to each voxel.
+     */
+    private void resampleSlice(int z, int sizeY, RowSampler sampler, Object slice, int sizeX)
+    {
+        // the position of each voxel of the row within moving image
+        double[] xs = new double[sizeX];
+        double[] ys = new double[sizeX];
+        double[] zs = new double[sizeX];
+
+        for (int y = 0; y < sizeY; y++)
+        {
+            fillRow(xs, ys, zs, y, z);
+            transform.transform(xs, ys, zs, xs, ys, zs, sizeX);
+            sampler.sampleRow(xs, ys, zs, slice, y * sizeX, sizeX);
+        }
+    }
+
+    /**
+     * Fills the coordinate arrays with the positions of the voxels of a row
+     * of the result image.
+     */
+    private static final void fillRow(double[] xs, double[] ys, double[] zs, int y, int z)
+    {
+        for (int x = 0; x < xs.length; x++)
+        {
+            xs[x] = x;
+        }
+        Arrays.fill(ys, y);
+        Arrays.fill(zs, z);
+    }
+}
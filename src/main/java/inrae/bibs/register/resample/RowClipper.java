@@ -0,0 +1,150 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+/**
+ * Computes the range of voxels of a row of the result image that are mapped
+ * within the bounds of the moving image.
+ *
+ * When the transform is affine, the positions of the voxels of a row within the
+ * moving image are located on a line segment. The intersection of the segment
+ * with the bounds of the moving image is computed analytically for each
+ * dimension, and the extremities of the range are then adjusted such that the
+ * index computed for each voxel within the range is exactly the same as the
+ * one computed by the sampling loop. Samplers can then process the voxels
+ * within the range without checking bounds, and fill the voxels outside of the
+ * range in a single operation.
+ *
+ * The index of a voxel can be computed either by rounding its position
+ * (nearest-neighbor interpolation), or by taking the floor of its position
+ * (first neighbor used by linear or cubic interpolation).
+ *
+ * Instances are not thread-safe.
+ *
+ * @author dlegland
+ *
+ */
+final class RowClipper
+{
+    /** The index of the first voxel within the range */
+    int start;
+
+    /** The index after the last voxel within the range */
+    int end;
+
+    /**
+     * Initializes the range of voxels.
+     *
+     * @param start
+     *            the index of the first voxel of the range
+     * @param end
+     *            the index after the last voxel of the range
+     */
+    void reset(int start, int end)
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return true if the range does not contain any voxel.
+     */
+    boolean isEmpty()
+    {
+        return start >= end;
+    }
+
+    /**
+     * Restricts the current range to the voxels x such that the index
+     * <code>Math.round(a + x * d)</code> is comprised between 0 and size-1.
+     *
+     * @param a
+     *            the coordinate of the first voxel of the row
+     * @param d
+     *            the increment of coordinate between two consecutive voxels
+     * @param size
+     *            the size of the moving image along the dimension
+     */
+    void clipRounded(double a, double d, int size)
+    {
+        clip(a, d, 0, size, true);
+    }
+
+    /**
+     * Restricts the current range to the voxels x such that the index
+     * <code>Math.floor(a + x * d)</code> is greater than or equal to min, and
+     * lower than max. Used by interpolating samplers to identify the voxels
+     * whose neighbors are all within the moving image.
+     *
+     * @param a
+     *            the coordinate of the first voxel of the row
+     * @param d
+     *            the increment of coordinate between two consecutive voxels
+     * @param min
+     *            the smallest admissible index
+     * @param max
+     *            the index after the largest admissible index
+     */
+    void clipFloor(double a, double d, int min, int max)
+    {
+        clip(a, d, min, max, false);
+    }
+
+    private void clip(double a, double d, int min, int max, boolean rounded)
+    {
+        if (start >= end)
+        {
+            return;
+        }
+
+        // case of a coordinate constant along the row
+        if (d == 0)
+        {
+            if (!isInside(a, d, start, min, max, rounded))
+            {
+                end = start;
+            }
+            return;
+        }
+
+        // range of positions whose index is within bounds
+        double shift = rounded ? 0.5 : 0.0;
+        double t1 = (min - shift - a) / d;
+        double t2 = (max - shift - a) / d;
+        double tMin = Math.min(t1, t2);
+        double tMax = Math.max(t1, t2);
+
+        // approximate range of voxel indices, clamped to current range
+        int s = (int) Math.min(Math.max(Math.ceil(tMin), start), end);
+        int e = (int) Math.max(Math.min(Math.floor(tMax) + 1, end), s);
+
+        // adjust the extremities using the same computation as the samplers
+        while (s < e && !isInside(a, d, s, min, max, rounded))
+        {
+            s++;
+        }
+        while (e > s && !isInside(a, d, e - 1, min, max, rounded))
+        {
+            e--;
+        }
+        while (s > start && isInside(a, d, s - 1, min, max, rounded))
+        {
+            s--;
+        }
+        while (e < end && isInside(a, d, e, min, max, rounded))
+        {
+            e++;
+        }
+
+        this.start = s;
+        this.end = e;
+    }
+
+    private static final boolean isInside(double a, double d, int x, int min, int max, boolean rounded)
+    {
+        double pos = a + x * d;
+        double index = rounded ? Math.round(pos) : Math.floor(pos);
+        return index >= min && index < max;
+    }
+}
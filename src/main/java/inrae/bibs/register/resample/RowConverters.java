@@ -0,0 +1,209 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+/**
+ * Converts rows of pixel values between arrays of different data types. The
+ * conversion rules are the same as when values are read as double from one
+ * Image3D and written into another Image3D: values are clamped to the range
+ * of the destination type, rounded when converted to bytes, and truncated when
+ * converted to shorts.
+ *
+ * Rows of double values, obtained by linear or cubic interpolation, can also
+ * be converted. In that case, values are clamped and rounded to the nearest
+ * integer for both byte and short types.
+ *
+ * Each conversion is implemented by a simple loop without method calls, that
+ * can be easily optimized by the compiler.
+ *
+ * @see inrae.bibs.register.image.Image3D
+ *
+ * @author dlegland
+ *
+ */
+public class RowConverters
+{
+    /**
+     * Private constructor to prevent class instantiation.
+     */
+    private RowConverters()
+    {
+    }
+
+    /**
+     * Converts a row of values from the source array into the target array,
+     * choosing the conversion depending on the type of both arrays. Arrays
+     * must be arrays of byte, short or float. The source array can also be an
+     * array of double.
+     *
+     * @param source
+     *            the array containing the values to convert
+     * @param srcOffset
+     *            the index of the first value to convert within source array
+     * @param target
+     *            the array to write the converted values into
+     * @param tgtOffset
+     *            the index of the first value to write within target array
+     * @param n
+     *            the number of values to convert
+     */
+    public static final void convert(Object source, int srcOffset, Object target, int tgtOffset, int n)
+    {
+        if (source instanceof byte[])
+        {
+            byte[] src = (byte[]) source;
+            if (target instanceof byte[])
+            {
+                System.arraycopy(src, srcOffset, target, tgtOffset, n);
+                return;
+            }
+            if (target instanceof short[])
+            {
+                byteToShort(src, srcOffset, (short[]) target, tgtOffset, n);
+                return;
+            }
+            if (target instanceof float[])
+            {
+                byteToFloat(src, srcOffset, (float[]) target, tgtOffset, n);
+                return;
+            }
+        }
+        else if (source instanceof short[])
+        {
+            short[] src = (short[]) source;
+            if (target instanceof byte[])
+            {
+                shortToByte(src, srcOffset, (byte[]) target, tgtOffset, n);
+                return;
+            }
+            if (target instanceof short[])
+            {
+                System.arraycopy(src, srcOffset, target, tgtOffset, n);
+                return;
+            }
+            if (target instanceof float[])
+            {
+                shortToFloat(src, srcOffset, (float[]) target, tgtOffset, n);
+                return;
+            }
+        }
+        else if (source instanceof float[])
+        {
+            float[] src = (float[]) source;
+            if (target instanceof byte[])
+            {
+                floatToByte(src, srcOffset, (byte[]) target, tgtOffset, n);
+                return;
+            }
+            if (target instanceof short[])
+            {
+                floatToShort(src, srcOffset, (short[]) target, tgtOffset, n);
+                return;
+            }
+            if (target instanceof float[])
+            {
+                System.arraycopy(src, srcOffset, target, tgtOffset, n);
+                return;
+            }
+        }
+        else if (source instanceof double[])
+        {
+            double[] src = (double[]) source;
+            if (target instanceof byte[])
+            {
+                doubleToByte(src, srcOffset, (byte[]) target, tgtOffset, n);
+                return;
+            }
+            if (target instanceof short[])
+            {
+                doubleToShort(src, srcOffset, (short[]) target, tgtOffset, n);
+                return;
+            }
+            if (target instanceof float[])
+            {
+                doubleToFloat(src, srcOffset, (float[]) target, tgtOffset, n);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Can not convert from "
+                + source.getClass().getSimpleName() + " to "
+                + target.getClass().getSimpleName());
+    }
+
+    private static final void byteToShort(byte[] src, int srcOffset, short[] tgt, int tgtOffset, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            tgt[tgtOffset + i] = (short) (src[srcOffset + i] & 0x00FF);
+        }
+    }
+
+    private static final void byteToFloat(byte[] src, int srcOffset, float[] tgt, int tgtOffset, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            tgt[tgtOffset + i] = src[srcOffset + i] & 0x00FF;
+        }
+    }
+
+    private static final void shortToByte(short[] src, int srcOffset, byte[] tgt, int tgtOffset, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            tgt[tgtOffset + i] = (byte) Math.min(src[srcOffset + i] & 0x00FFFF, 255);
+        }
+    }
+
+    private static final void shortToFloat(short[] src, int srcOffset, float[] tgt, int tgtOffset, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            tgt[tgtOffset + i] = src[srcOffset + i] & 0x00FFFF;
+        }
+    }
+
+    private static final void floatToByte(float[] src, int srcOffset, byte[] tgt, int tgtOffset, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            // use double to round in the same way as ByteStackWrapper
+            double value = Math.max(Math.min(src[srcOffset + i], 255.0), 0.0);
+            tgt[tgtOffset + i] = (byte) (value + .5);
+        }
+    }
+
+    private static final void floatToShort(float[] src, int srcOffset, short[] tgt, int tgtOffset, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            tgt[tgtOffset + i] = (short) Math.max(Math.min(src[srcOffset + i], 65535.0f), 0.0f);
+        }
+    }
+
+    private static final void doubleToByte(double[] src, int srcOffset, byte[] tgt, int tgtOffset, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            double value = Math.max(Math.min(src[srcOffset + i], 255.0), 0.0);
+            tgt[tgtOffset + i] = (byte) (value + .5);
+        }
+    }
+
+    private static final void doubleToShort(double[] src, int srcOffset, short[] tgt, int tgtOffset, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            double value = Math.max(Math.min(src[srcOffset + i], 65535.0), 0.0);
+            tgt[tgtOffset + i] = (short) (value + .5);
+        }
+    }
+
+    private static final void doubleToFloat(double[] src, int srcOffset, float[] tgt, int tgtOffset, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            tgt[tgtOffset + i] = (float) src[srcOffset + i];
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import ij.ImageStack;
+
+/**
+ * Samples rows of a moving 3D image, and writes the sampled values into the
+ * pixel array of a slice of the result.
+ *
+ * Implementations are specialized for an interpolation method and for the
+ * data type of the moving image, and are chosen once per resampling by the
+ * static factory. Instances are not thread-safe, as they contain row buffers.
+ * A new sampler should be created for each thread.
+ *
+ * @see NearestRowSampler
+ * @see InterpolatingRowSampler
+ *
+ * @author dlegland
+ *
+ */
+abstract class RowSampler
+{
+    // ===================================================================
+    // Static factory
+
+    /**
+     * Creates a new sampler for the given moving image and interpolation
+     * method.
+     *
+     * @param movingStack
+     *            the image to sample, or its B-spline coefficients for B-spline
+     *            interpolation
+     * @param targetBitDepth
+     *            the bit depth of the result image
+     * @param rowLength
+     *            the maximal number of voxels in a row of the result image
+     * @param interpolation
+     *            the interpolation method
+     * @return a new sampler adapted to the moving image type
+     */
+    static final RowSampler create(ImageStack movingStack, int targetBitDepth, int rowLength, Interpolation interpolation)
+    {
+        switch (interpolation)
+        {
+        case NEAREST:
+            return NearestRowSampler.create(movingStack, targetBitDepth, rowLength);
+        case LINEAR:
+            return LinearRowSampler.create(movingStack, rowLength);
+        case CUBIC:
+            return CubicRowSampler.create(movingStack, rowLength);
+        case BSPLINE:
+            // the moving image must contain the B-spline coefficients
+            return new BSplineRowSampler(movingStack, rowLength);
+        default:
+            throw new IllegalArgumentException("Unknown interpolation: " + interpolation);
+        }
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The size of the moving image */
+    final int sizeX;
+    final int sizeY;
+    final int sizeZ;
+
+    /** Used to compute the range of voxels within the moving image */
+    final RowClipper clipper = new RowClipper();
+
+
+    // ===================================================================
+    // Constructor
+
+    protected RowSampler(ImageStack movingStack)
+    {
+        this.sizeX = movingStack.getWidth();
+        this.sizeY = movingStack.getHeight();
+        this.sizeZ = movingStack.getSize();
+    }
+
+
+    // ===================================================================
+    // Clipping
+
+    /**
+     * Computes the range of voxels of the row whose nearest voxel is within
+     * the moving image, and stores it in the clipper.
+     */
+    final void clipRow(double x0, double y0, double z0, double dx, double dy, double dz, int xStart, int xEnd)
+    {
+        clipper.reset(xStart, xEnd);
+        clipper.clipRounded(x0, dx, sizeX);
+        clipper.clipRounded(y0, dy, sizeY);
+        clipper.clipRounded(z0, dz, sizeZ);
+        if (clipper.isEmpty())
+        {
+            clipper.start = clipper.end = xStart;
+        }
+    }
+
+    /**
+     * Checks if the nearest voxel of the specified position is within the
+     * moving image.
+     */
+    final boolean isRoundedInside(double x, double y, double z)
+    {
+        long xi = Math.round(x);
+        long yi = Math.round(y);
+        long zi = Math.round(z);
+        return xi >= 0 && xi < sizeX && yi >= 0 && yi < sizeY && zi >= 0 && zi < sizeZ;
+    }
+
+
+    // ===================================================================
+    // Abstract methods
+
+    /**
+     * Samples the voxels of a row between xStart and xEnd, whose positions in
+     * the moving image are given by (x0 + x * dx, y0 + x * dy, z0 + x * dz).
+     * Voxels whose nearest voxel is outside of the moving image are set to
+     * zero. The range of voxels within the moving image is computed before
+     * sampling, so that the inner loop does not need to check bounds.
+     *
+     * @param x0
+     *            the x-coordinate of the first voxel of the row
+     * @param y0
+     *            the y-coordinate of the first voxel of the row
+     * @param z0
+     *            the z-coordinate of the first voxel of the row
+     * @param dx
+     *            the x-increment between consecutive voxels of the row
+     * @param dy
+     *            the y-increment between consecutive voxels of the row
+     * @param dz
+     *            the z-increment between consecutive voxels of the row
+     * @param target
+     *            the pixel array of the result slice
+     * @param offset
+     *            the index of the first voxel of the row within target array
+     * @param xStart
+     *            the index of the first voxel to sample within the row
+     * @param xEnd
+     *            the index after the last voxel to sample within the row
+     */
+    abstract void sampleRow(double x0, double y0, double z0,
+            double dx, double dy, double dz, Object target, int offset, int xStart, int xEnd);
+
+    /**
+     * Samples the n voxels of a row whose positions in the moving image are
+     * given by arrays of coordinates. Voxels whose nearest voxel is outside of
+     * the moving image are set to zero.
+     *
+     * @param xs
+     *            the x-coordinates of the voxels of the row
+     * @param ys
+     *            the y-coordinates of the voxels of the row
+     * @param zs
+     *            the z-coordinates of the voxels of the row
+     * @param target
+     *            the pixel array of the result slice
+     * @param offset
+     *            the index of the first voxel of the row within target array
+     * @param n
+     *            the number of voxels within the row
+     */
+    abstract void sampleRow(double[] xs, double[] ys, double[] zs, Object target, int offset, int n);
+}
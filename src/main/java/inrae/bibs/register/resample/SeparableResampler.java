@@ -0,0 +1,530 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import java.util.Arrays;
+
+import ij.ImageStack;
+import inrae.bibs.util.Parallel;
+
+/**
+ * Resamples a 3D image transformed by an affine transform whose matrix is
+ * diagonal, i.e. a scaling along the axes followed by a translation. Such
+ * transforms are typically used for changing the resolution of an image.
+ *
+ * As each coordinate of the moving image depends only on the corresponding
+ * coordinate of the result, the indices of the neighbors and the
+ * interpolation weights are computed once for each position along each axis,
+ * and stored into tables. Nearest-neighbor interpolation then reduces to
+ * copying the values at the tabulated indices. For the other interpolation
+ * methods, the separable kernel is applied by one-dimensional passes: for
+ * each slice of the result, the slices of the moving image are combined
+ * along the Z axis into a plane buffer, then for each row the rows of the
+ * plane buffer are combined along the Y axis into a line buffer, and finally
+ * the values of the row are interpolated along the line buffer. The number
+ * of operations per voxel is proportional to the number of neighbors along
+ * each axis, instead of their product.
+ *
+ * The neighbors and the weights are the same as for the general resampling,
+ * including near the borders of the moving image, and the voxels whose
+ * nearest voxel is outside of the moving image are left to zero. The results
+ * only differ by the rounding errors due to the order of the operations.
+ *
+ * @see Resampler3D
+ * @see Resampler2D
+ *
+ * @author dlegland
+ *
+ */
+final class SeparableResampler
+{
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Creates a new separable resampler for the given affine transform, or
+     * returns null if the linear part of the transform is not diagonal, or if
+     * the transform is a translation, whose rows are efficiently computed by
+     * the general resampling.
+     *
+     * @param coeffs
+     *            the twelve coefficients of the affine transform, in row-major
+     *            order
+     * @param interpolation
+     *            the interpolation method
+     * @return a new separable resampler, or null if the transform can not be
+     *         managed
+     */
+    static final SeparableResampler create(double[] coeffs, Interpolation interpolation)
+    {
+        if (coeffs == null)
+        {
+            return null;
+        }
+        for (int i = 0; i < 3; i++)
+        {
+            for (int j = 0; j < 3; j++)
+            {
+                if (i != j && coeffs[i * 4 + j] != 0)
+                {
+                    return null;
+                }
+            }
+        }
+        if (coeffs[0] == 1 && coeffs[5] == 1 && coeffs[10] == 1)
+        {
+            return null;
+        }
+        return new SeparableResampler(coeffs, interpolation);
+    }
+
+
+    // ===================================================================
+    // Inner class
+
+    /**
+     * The neighbors and the weights of the positions along one axis of the
+     * result. Only the positions within the range [start, end), whose
+     * nearest voxel is within the moving image, are tabulated. The index of
+     * the k-th neighbor of position i is stored in
+     * <code>indices[(i - start) * tapCount + k]</code>.
+     */
+    private static final class AxisTable
+    {
+        final int start;
+        final int end;
+        final int[] indices;
+        final double[] weights;
+
+        /** The smallest and the largest indices of the neighbors */
+        int minIndex = Integer.MAX_VALUE;
+        int maxIndex = Integer.MIN_VALUE;
+
+        AxisTable(int start, int end, int tapCount)
+        {
+            this.start = start;
+            this.end = end;
+            this.indices = new int[(end - start) * tapCount];
+            this.weights = new double[(end - start) * tapCount];
+        }
+
+        boolean isEmpty()
+        {
+            return start >= end;
+        }
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The coefficients of the affine transform */
+    final double[] coeffs;
+
+    final Interpolation interpolation;
+    final int firstTap;
+    final int tapCount;
+
+    /** The number of threads used for computing the result */
+    int threadCount = Parallel.defaultThreadCount();
+
+
+    // ===================================================================
+    // Constructor
+
+    private SeparableResampler(double[] coeffs, Interpolation interpolation)
+    {
+        this.coeffs = coeffs;
+        this.interpolation = interpolation;
+        switch (interpolation)
+        {
+        case NEAREST:
+            this.firstTap = 0;
+            this.tapCount = 1;
+            break;
+        case LINEAR:
+            this.firstTap = 0;
+            this.tapCount = 2;
+            break;
+        default:
+            this.firstTap = -1;
+            this.tapCount = 4;
+            break;
+        }
+    }
+
+
+    // ===================================================================
+    // Resampling
+
+    /**
+     * Computes the result of the transform applied to the moving image. The
+     * voxels of the result whose nearest voxel is outside of the moving image
+     * are not modified, and are expected to be zero.
+     *
+     * @param movingStack
+     *            the image to interpolate, or its B-spline coefficients for
+     *            B-spline interpolation
+     * @param resSlices
+     *            the pixel arrays of the slices of the result image
+     * @param sizeX
+     *            the size of the result image along the X axis
+     * @param sizeY
+     *            the size of the result image along the Y axis
+     * @param sizeZ
+     *            the size of the result image along the Z axis
+     */
+    void resample(ImageStack movingStack, Object[] resSlices, int sizeX, int sizeY, int sizeZ)
+    {
+        int sizeX2 = movingStack.getWidth();
+        int sizeY2 = movingStack.getHeight();
+        int sizeZ2 = movingStack.getSize();
+
+        AxisTable tableX = createTable(coeffs[3], coeffs[0], sizeX, sizeX2);
+        AxisTable tableY = createTable(coeffs[7], coeffs[5], sizeY, sizeY2);
+        AxisTable tableZ = createTable(coeffs[11], coeffs[10], sizeZ, sizeZ2);
+        if (tableX.isEmpty() || tableY.isEmpty() || tableZ.isEmpty())
+        {
+            return;
+        }
+
+        Object[] slices = new Object[sizeZ2];
+        for (int z = 0; z < sizeZ2; z++)
+        {
+            slices[z] = movingStack.getPixels(z + 1);
+        }
+
+        if (this.interpolation == Interpolation.NEAREST)
+        {
+            Parallel.forEachChunk(tableZ.end - tableZ.start, this.threadCount, (z0, z1) ->
+            {
+                for (int z = tableZ.start + z0; z < tableZ.start + z1; z++)
+                {
+                    Object slice = slices[tableZ.indices[z - tableZ.start]];
+                    gatherSlice(slice, sizeX2, tableX, tableY, resSlices[z], sizeX);
+                }
+            });
+            return;
+        }
+
+        // the box of the moving image containing all the neighbors
+        int xLo = tableX.minIndex;
+        int nx = tableX.maxIndex + 1 - xLo;
+        int yLo = tableY.minIndex;
+        int ny = tableY.maxIndex + 1 - yLo;
+
+        if (sizeZ2 == 1)
+        {
+            // planar moving image: the rows are read directly from the slice
+            Parallel.forEachChunk(tableY.end - tableY.start, this.threadCount, (y0, y1) ->
+            {
+                double[] line = new double[nx];
+                double[] row = new double[sizeX];
+                for (int y = tableY.start + y0; y < tableY.start + y1; y++)
+                {
+                    Arrays.fill(line, 0.0);
+                    combineRows(slices[0], xLo, sizeX2, tableY, y, 1.0, line);
+                    for (int z = tableZ.start; z < tableZ.end; z++)
+                    {
+                        interpolateLine(line, tableX, row, resSlices[z], y * sizeX);
+                    }
+                }
+            });
+            return;
+        }
+
+        // combining the slices into a plane buffer is worth only if the rows
+        // of the plane buffer are used by several rows of the result
+        boolean usePlane = ny < (tableY.end - tableY.start) * (tapCount - 1);
+
+        Parallel.forEachChunk(tableZ.end - tableZ.start, this.threadCount, (z0, z1) ->
+        {
+            double[] plane = usePlane ? new double[nx * ny] : null;
+            double[] line = new double[nx];
+            double[] row = new double[sizeX];
+            for (int z = tableZ.start + z0; z < tableZ.start + z1; z++)
+            {
+                int t0 = (z - tableZ.start) * tapCount;
+                if (usePlane)
+                {
+                    // combine the slices of the moving image along the Z axis
+                    Arrays.fill(plane, 0.0);
+                    for (int k = 0; k < tapCount; k++)
+                    {
+                        double w = tableZ.weights[t0 + k];
+                        if (w == 0)
+                        {
+                            continue;
+                        }
+                        Object slice = slices[tableZ.indices[t0 + k]];
+                        for (int r = 0; r < ny; r++)
+                        {
+                            accumulate(slice, (yLo + r) * sizeX2 + xLo, w, plane, r * nx, nx);
+                        }
+                    }
+                }
+
+                for (int y = tableY.start; y < tableY.end; y++)
+                {
+                    Arrays.fill(line, 0.0);
+                    if (usePlane)
+                    {
+                        combineRows(plane, -yLo * nx, nx, tableY, y, 1.0, line);
+                    }
+                    else
+                    {
+                        // combine the rows of the slices along both axes
+                        for (int k = 0; k < tapCount; k++)
+                        {
+                            double w = tableZ.weights[t0 + k];
+                            if (w != 0)
+                            {
+                                combineRows(slices[tableZ.indices[t0 + k]], xLo, sizeX2, tableY, y, w, line);
+                            }
+                        }
+                    }
+                    interpolateLine(line, tableX, row, resSlices[z], y * sizeX);
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes the table of neighbors and weights along one axis, for the
+     * positions <code>t + i * s</code> of the moving image.
+     */
+    private AxisTable createTable(double t, double s, int size, int movingSize)
+    {
+        // range of positions whose nearest voxel is within the moving image,
+        // computed in the same way as the general resampling
+        RowClipper clipper = new RowClipper();
+        clipper.reset(0, size);
+        clipper.clipRounded(t, s, movingSize);
+        int start = clipper.isEmpty() ? 0 : clipper.start;
+        int end = clipper.isEmpty() ? 0 : clipper.end;
+
+        AxisTable table = new AxisTable(start, end, tapCount);
+        double[] w = new double[tapCount];
+        for (int i = start; i < end; i++)
+        {
+            double pos = t + i * s;
+            int offset = (i - start) * tapCount;
+            if (this.interpolation == Interpolation.NEAREST)
+            {
+                table.indices[offset] = (int) Math.round(pos);
+                table.weights[offset] = 1.0;
+            }
+            else
+            {
+                double floor = Math.floor(pos);
+                int base = (int) floor + firstTap;
+                computeWeights(pos - floor, w);
+                for (int k = 0; k < tapCount; k++)
+                {
+                    table.indices[offset + k] = borderIndex(base + k, movingSize);
+                    table.weights[offset + k] = w[k];
+                }
+            }
+            for (int k = 0; k < tapCount; k++)
+            {
+                table.minIndex = Math.min(table.minIndex, table.indices[offset + k]);
+                table.maxIndex = Math.max(table.maxIndex, table.indices[offset + k]);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Adds the rows of the source around the specified row of the result,
+     * multiplied by their weights along the Y axis and by a common weight, to
+     * the line buffer. The element with indices (x, y) of the moving image is stored at
+     * index <code>srcOffset + y * srcStride + x - xLo</code> of the source.
+     */
+    private void combineRows(Object source, int srcOffset, int srcStride, AxisTable tableY, int y,
+            double weight, double[] line)
+    {
+        int t0 = (y - tableY.start) * tapCount;
+        for (int j = 0; j < tapCount; j++)
+        {
+            double w = tableY.weights[t0 + j];
+            if (w != 0)
+            {
+                accumulate(source, srcOffset + tableY.indices[t0 + j] * srcStride, w * weight, line, 0, line.length);
+            }
+        }
+    }
+
+    /**
+     * Computes a row of the result by interpolating along the line buffer,
+     * whose first element corresponds to the smallest X index of the
+     * neighbors.
+     */
+    private void interpolateLine(double[] line, AxisTable tableX, double[] row, Object target, int tgtOffset)
+    {
+        int xLo = tableX.minIndex;
+        int[] indices = tableX.indices;
+        double[] weights = tableX.weights;
+        int i = 0;
+        if (tapCount == 2)
+        {
+            for (int x = tableX.start; x < tableX.end; x++, i += 2)
+            {
+                row[x] = weights[i] * line[indices[i] - xLo] + weights[i + 1] * line[indices[i + 1] - xLo];
+            }
+        }
+        else
+        {
+            for (int x = tableX.start; x < tableX.end; x++, i += 4)
+            {
+                row[x] = weights[i] * line[indices[i] - xLo] + weights[i + 1] * line[indices[i + 1] - xLo]
+                        + weights[i + 2] * line[indices[i + 2] - xLo] + weights[i + 3] * line[indices[i + 3] - xLo];
+            }
+        }
+        RowConverters.convert(row, tableX.start, target, tgtOffset + tableX.start, tableX.end - tableX.start);
+    }
+
+    /**
+     * Copies the values of a slice of the moving image at the tabulated
+     * indices into a slice of the result, converting the values if the types
+     * of the slices differ.
+     */
+    private static final void gatherSlice(Object slice, int sizeX2, AxisTable tableX, AxisTable tableY,
+            Object target, int sizeX)
+    {
+        int start = tableX.start;
+        int n = tableX.end - start;
+        int[] xi = tableX.indices;
+        boolean sameType = slice.getClass() == target.getClass();
+        Object buffer = sameType ? target : createArray(slice, n);
+        for (int y = tableY.start; y < tableY.end; y++)
+        {
+            int srcOffset = tableY.indices[y - tableY.start] * sizeX2;
+            int tgtOffset = y * sizeX + start;
+            int bufOffset = sameType ? tgtOffset : 0;
+            if (slice instanceof byte[])
+            {
+                byte[] src = (byte[]) slice;
+                byte[] res = (byte[]) buffer;
+                for (int i = 0; i < n; i++)
+                {
+                    res[bufOffset + i] = src[srcOffset + xi[i]];
+                }
+            }
+            else if (slice instanceof short[])
+            {
+                short[] src = (short[]) slice;
+                short[] res = (short[]) buffer;
+                for (int i = 0; i < n; i++)
+                {
+                    res[bufOffset + i] = src[srcOffset + xi[i]];
+                }
+            }
+            else if (slice instanceof float[])
+            {
+                float[] src = (float[]) slice;
+                float[] res = (float[]) buffer;
+                for (int i = 0; i < n; i++)
+                {
+                    res[bufOffset + i] = src[srcOffset + xi[i]];
+                }
+            }
+            else if (slice instanceof int[])
+            {
+                int[] src = (int[]) slice;
+                int[] res = (int[]) buffer;
+                for (int i = 0; i < n; i++)
+                {
+                    res[bufOffset + i] = src[srcOffset + xi[i]];
+                }
+            }
+            else
+            {
+                throw new IllegalArgumentException("Can not manage pixel arrays of type " + slice.getClass().getSimpleName());
+            }
+
+            if (!sameType)
+            {
+                RowConverters.convert(buffer, 0, target, tgtOffset, n);
+            }
+        }
+    }
+
+    private static final Object createArray(Object slice, int n)
+    {
+        if (slice instanceof byte[]) return new byte[n];
+        if (slice instanceof short[]) return new short[n];
+        if (slice instanceof float[]) return new float[n];
+        throw new IllegalArgumentException("Can not convert pixel arrays of type " + slice.getClass().getSimpleName());
+    }
+
+    /**
+     * Adds the n values of the source starting at srcOffset, multiplied by a
+     * weight, to the values of the destination starting at dstOffset.
+     */
+    private static final void accumulate(Object source, int srcOffset, double w, double[] dst, int dstOffset, int n)
+    {
+        if (source instanceof byte[])
+        {
+            byte[] src = (byte[]) source;
+            for (int i = 0; i < n; i++)
+            {
+                dst[dstOffset + i] += w * (src[srcOffset + i] & 0x00FF);
+            }
+        }
+        else if (source instanceof short[])
+        {
+            short[] src = (short[]) source;
+            for (int i = 0; i < n; i++)
+            {
+                dst[dstOffset + i] += w * (src[srcOffset + i] & 0x00FFFF);
+            }
+        }
+        else if (source instanceof float[])
+        {
+            float[] src = (float[]) source;
+            for (int i = 0; i < n; i++)
+            {
+                dst[dstOffset + i] += w * src[srcOffset + i];
+            }
+        }
+        else if (source instanceof double[])
+        {
+            double[] src = (double[]) source;
+            for (int i = 0; i < n; i++)
+            {
+                dst[dstOffset + i] += w * src[srcOffset + i];
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("Can not manage pixel arrays of type " + source.getClass().getSimpleName());
+        }
+    }
+
+    private void computeWeights(double t, double[] weights)
+    {
+        switch (this.interpolation)
+        {
+        case LINEAR:
+            weights[0] = 1 - t;
+            weights[1] = t;
+            break;
+        case CUBIC:
+            CubicRowSampler.cubicWeights(t, weights);
+            break;
+        default:
+            BSplineRowSampler.bsplineWeights(t, weights);
+            break;
+        }
+    }
+
+    private int borderIndex(int index, int size)
+    {
+        if (this.interpolation == Interpolation.BSPLINE)
+        {
+            return BSplineRowSampler.mirrorIndex(index, size);
+        }
+        return Math.min(Math.max(index, 0), size - 1);
+    }
+}
@@ -0,0 +1,565 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import java.util.Arrays;
+
+import ij.ImageStack;
+import inrae.bibs.util.Parallel;
+
+/**
+ * Resamples a 3D image transformed by a rotation around the Y or the Z axis
+ * followed by a translation, by decomposing the rotation into three
+ * shears (Paeth, 1986; Unser et al., 1995, "Convolution-based interpolation
+ * for fast, high-quality rotation of images").
+ *
+ * Within the plane of the rotation, the rotation by an angle theta is written
+ * as the product of three shears: a shear along the first axis with
+ * coefficient -tan(theta/2), a shear along the second axis with coefficient
+ * sin(theta), and again a shear along the first axis. Each shear translates
+ * the lines of the image along one axis, by an amount that depends on the
+ * position of the line. As all the voxels of a line are translated by the
+ * same amount, the interpolation weights are computed once per line, and each
+ * pass reads the image with consecutive accesses. The translation along the
+ * rotation axis is applied by a fourth pass when it is not zero. Rotations by
+ * more than 90 degrees are obtained by rotating the result by 180 degrees,
+ * that only requires a permutation of the voxels.
+ *
+ * Each pass uses one-dimensional linear or cubic interpolation, whose
+ * neighbors outside of the image are replaced by the closest voxel within the
+ * image. Intermediate results are stored as float images. As for the general
+ * resampling, the voxels whose nearest voxel is outside of the moving image
+ * are set to zero.
+ *
+ * Within the image, the results differ from the ones of trilinear or tricubic
+ * interpolation by the interpolation error of the intermediate passes, but
+ * linear functions of the coordinates are reproduced exactly.
+ *
+ * Only rotations around a single axis, among Y and Z, are decomposed.
+ * Compositions of rotations around several axes, such as the Motion model of
+ * the 3D registration plugin with more than one non-zero angle, are computed
+ * by the general resampling. For this model, the decomposition is used only
+ * when the rotation is around the Y axis or around the Z axis alone.
+ *
+ * @see Resampler3D#setShearRotation(boolean)
+ * @see Resampler2D#setShearRotation(boolean)
+ *
+ * @author dlegland
+ *
+ */
+final class ShearRotation
+{
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Creates a new shear rotation for the given affine transform, or returns
+     * null if the transform is not a rotation around the Y or the Z axis
+     * followed by a translation, or if the interpolation method can not be
+     * decomposed into one-dimensional passes.
+     *
+     * @param coeffs
+     *            the twelve coefficients of the affine transform, in row-major
+     *            order
+     * @param interpolation
+     *            the interpolation method, that must be linear or cubic
+     * @return a new shear rotation, or null if the transform or the
+     *         interpolation can not be managed
+     */
+    static final ShearRotation create(double[] coeffs, Interpolation interpolation)
+    {
+        if (coeffs == null || (interpolation != Interpolation.LINEAR && interpolation != Interpolation.CUBIC))
+        {
+            return null;
+        }
+
+        // identify the rotation axis, whose row and column of the matrix
+        // correspond to the identity
+        for (int w = 2; w >= 0; w--)
+        {
+            if (!isUnitAxis(coeffs, w))
+            {
+                continue;
+            }
+
+            int p = w == 0 ? 1 : 0;
+            int q = w == 2 ? 1 : 2;
+            double c = coeffs[p * 4 + p];
+            double s = coeffs[q * 4 + p];
+            if (c != coeffs[q * 4 + q] || s != -coeffs[p * 4 + q] || Math.abs(c * c + s * s - 1) > 1e-12)
+            {
+                return null;
+            }
+            if (w == 0 || (s == 0 && c > 0))
+            {
+                // rows of rotations around the X axis are translated rows of
+                // the moving image, that are efficiently managed by the
+                // general resampling, as well as translations
+                return null;
+            }
+            return new ShearRotation(coeffs, w, p, q, Math.atan2(s, c), interpolation);
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the row and the column of the linear part of the matrix
+     * corresponding to the specified axis are those of the identity.
+     */
+    private static final boolean isUnitAxis(double[] coeffs, int axis)
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            double expected = i == axis ? 1 : 0;
+            if (coeffs[axis * 4 + i] != expected || coeffs[i * 4 + axis] != expected)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    // ===================================================================
+    // Inner class
+
+    /**
+     * A float image defined on a box of the integer grid. The voxel with
+     * indices (i, j, k) has coordinates (origin[0]+i, origin[1]+j,
+     * origin[2]+k), and is stored in <code>slices[k][j * size[0] + i]</code>.
+     */
+    private static final class Volume
+    {
+        final int[] origin;
+        final int[] size;
+        final float[][] slices;
+
+        Volume(int[] origin, int[] size)
+        {
+            this.origin = origin;
+            this.size = size;
+            this.slices = new float[size[2]][size[0] * size[1]];
+        }
+
+        Volume(int[] origin, int[] size, float[][] slices)
+        {
+            this.origin = origin;
+            this.size = size;
+            this.slices = slices;
+        }
+    }
+
+
+    // ===================================================================
+    // Class variables
+
+    /** The coefficients of the affine transform */
+    final double[] coeffs;
+
+    /** The rotation axis, and the first and second axes of the rotation plane */
+    final int axisW;
+    final int axisP;
+    final int axisQ;
+
+    /** Indicates whether the result must be rotated by 180 degrees */
+    final boolean flip;
+
+    /** The coefficients of the first and third shears, and of the second shear */
+    final double shearP;
+    final double shearQ;
+
+    final Interpolation interpolation;
+    final int firstTap;
+    final int tapCount;
+
+    /** The number of threads used for each pass */
+    int threadCount = Parallel.defaultThreadCount();
+
+
+    // ===================================================================
+    // Constructor
+
+    private ShearRotation(double[] coeffs, int axisW, int axisP, int axisQ, double theta, Interpolation interpolation)
+    {
+        this.coeffs = coeffs;
+        this.axisW = axisW;
+        this.axisP = axisP;
+        this.axisQ = axisQ;
+
+        // reduce the angle to [-pi/2, pi/2] by a rotation of 180 degrees
+        this.flip = Math.abs(theta) > Math.PI / 2;
+        if (this.flip)
+        {
+            theta -= Math.copySign(Math.PI, theta);
+        }
+        this.shearP = -Math.tan(theta / 2);
+        this.shearQ = Math.sin(theta);
+
+        this.interpolation = interpolation;
+        this.firstTap = interpolation == Interpolation.CUBIC ? -1 : 0;
+        this.tapCount = interpolation == Interpolation.CUBIC ? 4 : 2;
+    }
+
+
+    // ===================================================================
+    // Resampling
+
+    /**
+     * Computes the result of the transform applied to the moving image.
+     *
+     * @param movingStack
+     *            the image to interpolate
+     * @param resSlices
+     *            the pixel arrays of the slices of the result image
+     * @param sizeX
+     *            the size of the result image along the X axis
+     * @param sizeY
+     *            the size of the result image along the Y axis
+     * @param sizeZ
+     *            the size of the result image along the Z axis
+     */
+    void resample(ImageStack movingStack, Object[] resSlices, int sizeX, int sizeY, int sizeZ)
+    {
+        int[] refSize = new int[] {sizeX, sizeY, sizeZ};
+        Volume volume = toVolume(movingStack);
+        int[] movingSize = volume.size;
+
+        // the grid of the reference image, flipped within the rotation plane
+        // for rotations by more than 90 degrees
+        int[] refOrigin = new int[3];
+        if (flip)
+        {
+            refOrigin[axisP] = 1 - refSize[axisP];
+            refOrigin[axisQ] = 1 - refSize[axisQ];
+        }
+
+        // translation along the rotation axis, using a driver axis different
+        // from X to combine whole rows
+        double dw = coeffs[axisW * 4 + 3];
+        if (dw != 0 || refSize[axisW] != volume.size[axisW])
+        {
+            volume = shear(volume, axisW, axisW == 1 ? 2 : 1, 0, dw, refOrigin[axisW], refSize[axisW]);
+        }
+
+        // translation within the rotation plane, distributed over the shears
+        double dp = coeffs[axisP * 4 + 3];
+        double dq = coeffs[axisQ * 4 + 3];
+
+        // the range of the first axis required by the last shear
+        double a = shearP;
+        int qMin = refOrigin[axisQ];
+        int qMax = refOrigin[axisQ] + refSize[axisQ] - 1;
+        double pMin = refOrigin[axisP] + a * (a >= 0 ? qMin : qMax);
+        double pMax = refOrigin[axisP] + refSize[axisP] - 1 + a * (a >= 0 ? qMax : qMin);
+        int uOrigin = (int) Math.floor(pMin) + firstTap;
+        int uSize = (int) Math.floor(pMax) + firstTap + tapCount - uOrigin;
+
+        volume = shear(volume, axisP, axisQ, a, dp - a * dq, uOrigin, uSize);
+        volume = shear(volume, axisQ, axisP, shearQ, dq, refOrigin[axisQ], refSize[axisQ]);
+        volume = shear(volume, axisP, axisQ, a, 0, refOrigin[axisP], refSize[axisP]);
+
+        writeResult(volume, resSlices, refSize, movingSize);
+    }
+
+    /**
+     * Converts the moving image into a float volume. Float slices are used
+     * directly, as the passes do not modify their input.
+     */
+    private Volume toVolume(ImageStack stack)
+    {
+        int sizeX = stack.getWidth();
+        int sizeY = stack.getHeight();
+        int sizeZ = stack.getSize();
+        float[][] slices = new float[sizeZ][];
+        for (int z = 0; z < sizeZ; z++)
+        {
+            Object pixels = stack.getPixels(z + 1);
+            if (pixels instanceof float[])
+            {
+                slices[z] = (float[]) pixels;
+            }
+            else
+            {
+                slices[z] = new float[sizeX * sizeY];
+                RowConverters.convert(pixels, 0, slices[z], 0, sizeX * sizeY);
+            }
+        }
+        return new Volume(new int[3], new int[] {sizeX, sizeY, sizeZ}, slices);
+    }
+
+    /**
+     * Writes the values of the final volume into the result slices, setting
+     * to zero the voxels whose nearest voxel is outside of the moving image,
+     * and rotating by 180 degrees if necessary.
+     */
+    private void writeResult(Volume volume, Object[] resSlices, int[] refSize, int[] movingSize)
+    {
+        int sizeX = refSize[0];
+        int sizeY = refSize[1];
+        int sizeZ = refSize[2];
+
+        Parallel.forEachChunk(sizeZ, this.threadCount, (z0, z1) ->
+        {
+            RowClipper clipper = new RowClipper();
+            double[] row = new double[sizeX];
+            for (int z = z0; z < z1; z++)
+            {
+                for (int y = 0; y < sizeY; y++)
+                {
+                    // range of voxels whose nearest voxel is within moving image
+                    clipper.reset(0, sizeX);
+                    clipper.clipRounded(y * coeffs[1] + z * coeffs[2] + coeffs[3], coeffs[0], movingSize[0]);
+                    clipper.clipRounded(y * coeffs[5] + z * coeffs[6] + coeffs[7], coeffs[4], movingSize[1]);
+                    clipper.clipRounded(y * coeffs[9] + z * coeffs[10] + coeffs[11], coeffs[8], movingSize[2]);
+                    int start = clipper.isEmpty() ? 0 : clipper.start;
+                    int end = clipper.isEmpty() ? 0 : clipper.end;
+
+                    // the rotation plane contains the X axis, that is
+                    // reversed together with the second axis of the plane
+                    // for rotations by more than 90 degrees
+                    int ys = flip && axisQ == 1 ? sizeY - 1 - y : y;
+                    int zs = flip && axisQ == 2 ? sizeZ - 1 - z : z;
+                    float[] values = volume.slices[zs];
+                    int offset = ys * sizeX;
+
+                    Arrays.fill(row, 0, start, 0.0);
+                    for (int x = start; x < end; x++)
+                    {
+                        row[x] = values[offset + (flip ? sizeX - 1 - x : x)];
+                    }
+                    Arrays.fill(row, end, sizeX, 0.0);
+                    RowConverters.convert(row, 0, resSlices[z], y * sizeX, sizeX);
+                }
+            }
+        });
+    }
+
+
+    // ===================================================================
+    // Shear passes
+
+    /**
+     * Translates the lines of the volume along one axis, by an amount that
+     * depends on the coordinate along another axis. The voxel of the result
+     * with coordinate c along the axis is interpolated at the coordinate
+     * <code>c + a * d + t</code> of the input volume, where d is the
+     * coordinate along the driver axis. The result has the same extent as the
+     * input volume, except along the shifted axis.
+     *
+     * @param src
+     *            the input volume
+     * @param axis
+     *            the axis along which lines are translated
+     * @param driver
+     *            the axis whose coordinate determines the translation
+     * @param a
+     *            the shear coefficient
+     * @param t
+     *            the translation common to all the lines
+     * @param origin
+     *            the first coordinate of the result along the axis
+     * @param size
+     *            the size of the result along the axis
+     * @return the sheared volume
+     */
+    private Volume shear(Volume src, int axis, int driver, double a, double t, int origin, int size)
+    {
+        int[] resOrigin = src.origin.clone();
+        int[] resSize = src.size.clone();
+        resOrigin[axis] = origin;
+        resSize[axis] = size;
+        Volume res = new Volume(resOrigin, resSize);
+
+        // for each position along the driver axis, the offset of the first
+        // neighbor and the interpolation weights
+        int nd = src.size[driver];
+        int[] offsets = new int[nd];
+        double[][] weights = new double[nd][tapCount];
+        for (int d = 0; d < nd; d++)
+        {
+            double pos = origin + a * (src.origin[driver] + d) + t - src.origin[axis];
+            double floor = Math.floor(pos);
+            offsets[d] = (int) floor + firstTap;
+            computeWeights(pos - floor, weights[d]);
+        }
+
+        Parallel.forEachChunk(res.size[2], this.threadCount, (z0, z1) ->
+        {
+            for (int z = z0; z < z1; z++)
+            {
+                for (int y = 0; y < res.size[1]; y++)
+                {
+                    if (axis == 0)
+                    {
+                        int d = driver == 1 ? y : z;
+                        shiftRow(src.slices[z], y * src.size[0], src.size[0], offsets[d], weights[d],
+                                res.slices[z], y * res.size[0], res.size[0]);
+                    }
+                    else if (driver == 0)
+                    {
+                        combineColumns(src, axis, offsets, weights, res.slices[z], y * res.size[0], y, z);
+                    }
+                    else
+                    {
+                        int d = driver == 1 ? y : z;
+                        combineRows(src, axis, offsets[d], weights[d], res.slices[z], y * res.size[0], y, z);
+                    }
+                }
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Interpolates a row of the input volume translated along the X axis.
+     * Element x of the result combines the elements x + offset + k of the
+     * source row.
+     */
+    private void shiftRow(float[] src, int srcOffset, int srcSize, int offset, double[] w,
+            float[] res, int resOffset, int resSize)
+    {
+        // range of elements whose neighbors are all within the source row
+        int x0 = Math.min(Math.max(-offset, 0), resSize);
+        int x1 = Math.max(Math.min(srcSize - offset - tapCount + 1, resSize), x0);
+
+        int maxIndex = srcSize - 1;
+        for (int x = 0; x < x0; x++)
+        {
+            res[resOffset + x] = (float) clampedSum(src, srcOffset, x + offset, maxIndex, w);
+        }
+        int i0 = srcOffset + offset;
+        if (tapCount == 2)
+        {
+            double w0 = w[0];
+            double w1 = w[1];
+            for (int x = x0; x < x1; x++)
+            {
+                res[resOffset + x] = (float) (w0 * src[i0 + x] + w1 * src[i0 + x + 1]);
+            }
+        }
+        else
+        {
+            double w0 = w[0];
+            double w1 = w[1];
+            double w2 = w[2];
+            double w3 = w[3];
+            for (int x = x0; x < x1; x++)
+            {
+                int i = i0 + x;
+                res[resOffset + x] = (float) (w0 * src[i] + w1 * src[i + 1] + w2 * src[i + 2] + w3 * src[i + 3]);
+            }
+        }
+        for (int x = x1; x < resSize; x++)
+        {
+            res[resOffset + x] = (float) clampedSum(src, srcOffset, x + offset, maxIndex, w);
+        }
+    }
+
+    private double clampedSum(float[] src, int srcOffset, int index, int maxIndex, double[] w)
+    {
+        double sum = 0;
+        for (int k = 0; k < tapCount; k++)
+        {
+            sum += w[k] * src[srcOffset + Math.min(Math.max(index + k, 0), maxIndex)];
+        }
+        return sum;
+    }
+
+    /**
+     * Computes a row of the result of a translation along the Y or Z axis
+     * that is the same for all the voxels of the row, by combining rows of
+     * the input volume.
+     */
+    private void combineRows(Volume src, int axis, int offset, double[] w,
+            float[] res, int resOffset, int y, int z)
+    {
+        int sizeX = src.size[0];
+        int maxIndex = src.size[axis] - 1;
+        int pos = axis == 1 ? y : z;
+        for (int k = 0; k < tapCount; k++)
+        {
+            int r = Math.min(Math.max(pos + offset + k, 0), maxIndex);
+            float[] slice = axis == 1 ? src.slices[z] : src.slices[r];
+            int srcOffset = (axis == 1 ? r : y) * sizeX;
+            double wk = w[k];
+            if (k == 0)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    res[resOffset + x] = (float) (wk * slice[srcOffset + x]);
+                }
+            }
+            else
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    res[resOffset + x] += (float) (wk * slice[srcOffset + x]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes a row of the result of a translation along the Y or Z axis
+     * that depends on the X coordinate. Each voxel of the row combines the
+     * voxels of the input volume with the same X coordinate.
+     */
+    private void combineColumns(Volume src, int axis, int[] offsets, double[][] weights,
+            float[] res, int resOffset, int y, int z)
+    {
+        int sizeX = src.size[0];
+        int maxIndex = src.size[axis] - 1;
+        int pos = axis == 1 ? y : z;
+        float[][] slices = src.slices;
+        for (int x = 0; x < sizeX; x++)
+        {
+            double[] w = weights[x];
+            int r0 = pos + offsets[x];
+            double sum = 0;
+            if (r0 >= 0 && r0 + tapCount - 1 <= maxIndex)
+            {
+                // all the neighbors are within the input volume
+                if (axis == 1)
+                {
+                    float[] slice = slices[z];
+                    int index = r0 * sizeX + x;
+                    for (int k = 0; k < tapCount; k++, index += sizeX)
+                    {
+                        sum += w[k] * slice[index];
+                    }
+                }
+                else
+                {
+                    int index = y * sizeX + x;
+                    for (int k = 0; k < tapCount; k++)
+                    {
+                        sum += w[k] * slices[r0 + k][index];
+                    }
+                }
+            }
+            else
+            {
+                for (int k = 0; k < tapCount; k++)
+                {
+                    int r = Math.min(Math.max(r0 + k, 0), maxIndex);
+                    sum += w[k] * (axis == 1 ? slices[z][r * sizeX + x] : slices[r][y * sizeX + x]);
+                }
+            }
+            res[resOffset + x] = (float) sum;
+        }
+    }
+
+    private void computeWeights(double t, double[] weights)
+    {
+        if (tapCount == 2)
+        {
+            weights[0] = 1 - t;
+            weights[1] = t;
+        }
+        else
+        {
+            CubicRowSampler.cubicWeights(t, weights);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+/**
+ * Resampling engines used for applying a transform to a moving image, using
+ * the sampling grid of a reference image.
+ * 
+ * @author dlegland
+ *
+ */
+package inrae.bibs.register.resample;
@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package inrae.bibs.register.transforms;
+
+import inrae.bibs.register.Point2D;
+import inrae.bibs.register.Transform2D;
+
+/**
+ * A 2D transform that can be represented by an affine matrix. The parametric
+ * models of planar transforms implement this interface, such that they can be
+ * reduced to the six coefficients of their matrix, computed once per
+ * transform and not once per point. The interface also contains static
+ * methods for creating common 2D affine transforms.
+ *
+ * @see MatrixAffineTransform2D
+ * @see AffineTransform3D
+ *
+ * @author dlegland
+ *
+ */
+public interface AffineTransform2D extends Transform2D
+{
+    // ===================================================================
+    // Static factories
+
+    /**
+     * Creates a translation by the given point.
+     *
+     * @param point
+     *            the point representing the amount of translation
+     * @return a new instance of AffineTransform2D representing a translation
+     */
+    public static AffineTransform2D createTranslation(Point2D point)
+    {
+        return createTranslation(point.getX(), point.getY());
+    }
+
+    /**
+     * Creates a translation by the given amounts.
+     *
+     * @param dx
+     *            the translation along the X axis
+     * @param dy
+     *            the translation along the Y axis
+     * @return a new instance of AffineTransform2D representing a translation
+     */
+    public static AffineTransform2D createTranslation(double dx, double dy)
+    {
+        return new MatrixAffineTransform2D(
+                1, 0, dx,
+                0, 1, dy);
+    }
+
+    /**
+     * Creates a scaling by the given coefficients, centered on the origin.
+     *
+     * @param sx
+     *            the scaling along the X axis
+     * @param sy
+     *            the scaling along the Y axis
+     * @return a new instance of AffineTransform2D representing a scaling
+     */
+    public static AffineTransform2D createScaling(double sx, double sy)
+    {
+        return new MatrixAffineTransform2D(
+                sx,  0, 0,
+                 0, sy, 0);
+    }
+
+    /**
+     * Creates a rotation around the origin.
+     *
+     * @param theta
+     *            the angle of rotation, in radians
+     * @return a new instance of AffineTransform2D representing the rotation
+     */
+    public static AffineTransform2D createRotation(double theta)
+    {
+        double cot = Math.cos(theta);
+        double sit = Math.sin(theta);
+        return new MatrixAffineTransform2D(
+                cot, -sit, 0,
+                sit,  cot, 0);
+    }
+
+    /**
+     * Creates a rotation around the specified center.
+     *
+     * @param center
+     *            the center of the rotation
+     * @param theta
+     *            the angle of rotation, in radians
+     * @return a new instance of AffineTransform2D representing the rotation
+     */
+    public static AffineTransform2D createRotation(Point2D center, double theta)
+    {
+        double cot = Math.cos(theta);
+        double sit = Math.sin(theta);
+        double x0 = center.getX();
+        double y0 = center.getY();
+        return new MatrixAffineTransform2D(
+                cot, -sit, x0 - cot * x0 + sit * y0,
+                sit,  cot, y0 - sit * x0 - cot * y0);
+    }
+
+    /**
+     * Creates a shear parallel to the axes.
+     *
+     * @param shx
+     *            the shear factor along the X axis, multiplied by y
+     * @param shy
+     *            the shear factor along the Y axis, multiplied by x
+     * @return a new instance of AffineTransform2D representing the shear
+     */
+    public static AffineTransform2D createShear(double shx, double shy)
+    {
+        return new MatrixAffineTransform2D(
+                  1, shx, 0,
+                shy,   1, 0);
+    }
+
+
+    // ===================================================================
+    // Interface declaration
+
+    /**
+     * Returns the 3x3 matrix corresponding to the affine transform. The last
+     * row of the matrix is [0 0 1].
+     *
+     * @return the 3x3 affine matrix
+     */
+    public double[][] affineMatrix();
+
+
+    // ===================================================================
+    // default methods
+
+    /**
+     * Computes the composition of this transform with another affine
+     * transform. The resulting transform first applies the other transform,
+     * then this transform.
+     *
+     * @param that
+     *            the transform to apply first
+     * @return the composition of the two transforms, as a single matrix
+     */
+    public default AffineTransform2D compose(AffineTransform2D that)
+    {
+        double[][] m1 = this.affineMatrix();
+        double[][] m2 = that.affineMatrix();
+        double n00 = m1[0][0] * m2[0][0] + m1[0][1] * m2[1][0];
+        double n01 = m1[0][0] * m2[0][1] + m1[0][1] * m2[1][1];
+        double n02 = m1[0][0] * m2[0][2] + m1[0][1] * m2[1][2] + m1[0][2];
+        double n10 = m1[1][0] * m2[0][0] + m1[1][1] * m2[1][0];
+        double n11 = m1[1][0] * m2[0][1] + m1[1][1] * m2[1][1];
+        double n12 = m1[1][0] * m2[0][2] + m1[1][1] * m2[1][2] + m1[1][2];
+        return new MatrixAffineTransform2D(n00, n01, n02, n10, n11, n12);
+    }
+
+    /**
+     * Returns a matrix transform equivalent to this transform. Modifications
+     * of the result do not modify this transform.
+     *
+     * @return a new matrix transform with the coefficients of this transform
+     */
+    public default MatrixAffineTransform2D toMatrix()
+    {
+        return new MatrixAffineTransform2D(this);
+    }
+
+    /**
+     * Computes the inverse of this transform.
+     *
+     * @return the inverse transform, as a single matrix
+     * @throws RuntimeException
+     *             if the linear part of the matrix is singular
+     */
+    public default AffineTransform2D inverse()
+    {
+        double[][] mat = this.affineMatrix();
+        return MatrixAffineTransform2D.invert(
+                mat[0][0], mat[0][1], mat[0][2],
+                mat[1][0], mat[1][1], mat[1][2]);
+    }
+
+    /**
+     * Transforms a batch of points by computing the affine matrix once.
+     */
+    @Override
+    public default void transform(double[] xs, double[] ys, double[] xsOut, double[] ysOut, int n)
+    {
+        double[][] mat = affineMatrix();
+        double m00 = mat[0][0], m01 = mat[0][1], m02 = mat[0][2];
+        double m10 = mat[1][0], m11 = mat[1][1], m12 = mat[1][2];
+        for (int i = 0; i < n; i++)
+        {
+            double x = xs[i];
+            double y = ys[i];
+            xsOut[i] = x * m00 + y * m01 + m02;
+            ysOut[i] = x * m10 + y * m11 + m12;
+        }
+    }
+
+    /**
+     * Transforms a batch of interleaved points by computing the affine matrix
+     * once.
+     */
+    @Override
+    public default void transform(double[] coords, int srcOffset, double[] coordsOut, int dstOffset, int n)
+    {
+        double[][] mat = affineMatrix();
+        double m00 = mat[0][0], m01 = mat[0][1], m02 = mat[0][2];
+        double m10 = mat[1][0], m11 = mat[1][1], m12 = mat[1][2];
+        for (int i = 0; i < 2 * n; i += 2)
+        {
+            double x = coords[srcOffset + i];
+            double y = coords[srcOffset + i + 1];
+            coordsOut[dstOffset + i] = x * m00 + y * m01 + m02;
+            coordsOut[dstOffset + i + 1] = x * m10 + y * m11 + m12;
+        }
+    }
+}
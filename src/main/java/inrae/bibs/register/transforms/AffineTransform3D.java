@@ -50,6 +50,25 @@ public interface AffineTransform3D extends Transform3D
                 0, 0, 1, dz);
     }
     
+    /**
+     * Creates a scaling along the main axes, centered on the origin.
+     * 
+     * @param sx
+     *            the scaling factor along the X axis
+     * @param sy
+     *            the scaling factor along the Y axis
+     * @param sz
+     *            the scaling factor along the Z axis
+     * @return a new instance of AffineTransform3D representing the scaling
+     */
+    public static AffineTransform3D createScaling(double sx, double sy, double sz)
+    {
+        return new MatrixAffineTransform3D(
+                sx,  0,  0, 0,
+                 0, sy,  0, 0,
+                 0,  0, sz, 0);
+    }
+    
     /**
      * Creates a rotation around the X axis.
      * 
@@ -101,6 +120,55 @@ public interface AffineTransform3D extends Transform3D
                   0,    0,   1,  0);
     }
     
+    /**
+     * Creates the transform that rotates around the X axis, then around the
+     * Y axis and around the Z axis, the rotations being centered on the
+     * specified point, and that finally translates by the specified shift.
+     * The result is the same as the composition of the corresponding
+     * translations and rotations, but is computed as a single matrix.
+     * 
+     * @param center
+     *            the center of the rotations
+     * @param thetaX
+     *            the angle of rotation around the X axis, in radians
+     * @param thetaY
+     *            the angle of rotation around the Y axis, in radians
+     * @param thetaZ
+     *            the angle of rotation around the Z axis, in radians
+     * @param shift
+     *            the translation applied after the rotations
+     * @return a new instance of AffineTransform3D
+     */
+    public static AffineTransform3D createCenteredRotation(Point3D center, double thetaX, double thetaY, double thetaZ, Point3D shift)
+    {
+        double cx = Math.cos(thetaX), sx = Math.sin(thetaX);
+        double cy = Math.cos(thetaY), sy = Math.sin(thetaY);
+        double cz = Math.cos(thetaZ), sz = Math.sin(thetaZ);
+        
+        // rotation matrix Rz * Ry * Rx
+        double m00 = cz * cy;
+        double m01 = cz * sy * sx - sz * cx;
+        double m02 = cz * sy * cx + sz * sx;
+        double m10 = sz * cy;
+        double m11 = sz * sy * sx + cz * cx;
+        double m12 = sz * sy * cx - cz * sx;
+        double m20 = -sy;
+        double m21 = cy * sx;
+        double m22 = cy * cx;
+        
+        // translation such that the center is mapped to center + shift
+        double x0 = center.getX();
+        double y0 = center.getY();
+        double z0 = center.getZ();
+        double m03 = x0 + shift.getX() - (m00 * x0 + m01 * y0 + m02 * z0);
+        double m13 = y0 + shift.getY() - (m10 * x0 + m11 * y0 + m12 * z0);
+        double m23 = z0 + shift.getZ() - (m20 * x0 + m21 * y0 + m22 * z0);
+        return new MatrixAffineTransform3D(
+                m00, m01, m02, m03, 
+                m10, m11, m12, m13, 
+                m20, m21, m22, m23);
+    }
+    
     
     // ===================================================================
     // Interface declaration
@@ -127,22 +195,163 @@ public interface AffineTransform3D extends Transform3D
      */
     public default AffineTransform3D compose(AffineTransform3D that)
     {
-        double[][] m1 = this.affineMatrix();
-        double[][] m2 = that.affineMatrix();
-        double n00 = m1[0][0] * m2[0][0] + m1[0][1] * m2[1][0] + m1[0][2] * m2[2][0];
-        double n01 = m1[0][0] * m2[0][1] + m1[0][1] * m2[1][1] + m1[0][2] * m2[2][1];
-        double n02 = m1[0][0] * m2[0][2] + m1[0][1] * m2[1][2] + m1[0][2] * m2[2][2];
-        double n03 = m1[0][0] * m2[0][3] + m1[0][1] * m2[1][3] + m1[0][2] * m2[2][3] + m1[0][3];
-        double n10 = m1[1][0] * m2[0][0] + m1[1][1] * m2[1][0] + m1[1][2] * m2[2][0];
-        double n11 = m1[1][0] * m2[0][1] + m1[1][1] * m2[1][1] + m1[1][2] * m2[2][1];
-        double n12 = m1[1][0] * m2[0][2] + m1[1][1] * m2[1][2] + m1[1][2] * m2[2][2];
-        double n13 = m1[1][0] * m2[0][3] + m1[1][1] * m2[1][3] + m1[1][2] * m2[2][3] + m1[1][3];
-        double n20 = m1[2][0] * m2[0][0] + m1[2][1] * m2[1][0] + m1[2][2] * m2[2][0];
-        double n21 = m1[2][0] * m2[0][1] + m1[2][1] * m2[1][1] + m1[2][2] * m2[2][1];
-        double n22 = m1[2][0] * m2[0][2] + m1[2][1] * m2[1][2] + m1[2][2] * m2[2][2];
-        double n23 = m1[2][0] * m2[0][3] + m1[2][1] * m2[1][3] + m1[2][2] * m2[2][3] + m1[2][3];
-        return new MatrixAffineTransform3D(n00, n01, n02, n03, n10, n11, n12, n13, n20, n21, n22, n23);
+        return new MatrixAffineTransform3D().setProduct(this, that);
     }
 
+    /**
+     * Returns a matrix transform equivalent to this transform. Modifications
+     * of the result do not modify this transform.
+     * 
+     * @return a new matrix transform with the coefficients of this transform
+     */
+    public default MatrixAffineTransform3D toMatrix()
+    {
+        return new MatrixAffineTransform3D(this);
+    }
+
+    /**
+     * Computes the composition this * that, and stores the result into the
+     * destination transform, that may be one of the operands. No memory is
+     * allocated when both transforms are matrix transforms.
+     * 
+     * @param that
+     *            the transform to apply first
+     * @param dest
+     *            the transform to store the result into
+     * @return the destination transform
+     */
+    public default MatrixAffineTransform3D compose(AffineTransform3D that, MatrixAffineTransform3D dest)
+    {
+        return dest.setProduct(this, that);
+    }
+
+    /**
+     * Computes the composition that * this, such that the other transform is
+     * applied after this transform, and stores the result into the
+     * destination transform, that may be one of the operands. This is the
+     * equivalent method of the 'preConcatenate' method in
+     * java.awt.geom.AffineTransform.
+     * 
+     * @param that
+     *            the transform to apply last
+     * @param dest
+     *            the transform to store the result into
+     * @return the destination transform
+     */
+    public default MatrixAffineTransform3D preConcatenate(AffineTransform3D that, MatrixAffineTransform3D dest)
+    {
+        return dest.setProduct(that, this);
+    }
 
+    /**
+     * Computes the inverse of this transform, and stores the result into the
+     * destination transform, that may be this transform.
+     * 
+     * @param dest
+     *            the transform to store the result into
+     * @return the destination transform
+     * @throws RuntimeException
+     *             if the linear part of the matrix is singular
+     */
+    public default MatrixAffineTransform3D invert(MatrixAffineTransform3D dest)
+    {
+        return dest.setTransform(this).invert();
+    }
+
+    /**
+     * Returns the twelve coefficients of the affine matrix, in row-major
+     * order.
+     * 
+     * @param coeffs
+     *            the array to write the coefficients into, or null to allocate
+     *            a new array
+     * @return the array of coefficients
+     */
+    public default double[] getCoefficients(double[] coeffs)
+    {
+        if (coeffs == null)
+        {
+            coeffs = new double[12];
+        }
+        double[][] mat = affineMatrix();
+        for (int i = 0; i < 3; i++)
+        {
+            System.arraycopy(mat[i], 0, coeffs, 4 * i, 4);
+        }
+        return coeffs;
+    }
+
+    /**
+     * Transforms a single point given as an array of three coordinates, and
+     * writes the result into the destination array, that may be the same as
+     * the input array.
+     * 
+     * @param point
+     *            the coordinates of the point
+     * @param dest
+     *            the array to write the coordinates of the transformed point
+     *            into
+     * @return the destination array
+     */
+    public default double[] transform(double[] point, double[] dest)
+    {
+        transform(point, 0, dest, 0, 1);
+        return dest;
+    }
+
+    /**
+     * Computes the inverse of this affine transform.
+     * 
+     * @return the inverse transform, as a single matrix
+     * @throws RuntimeException
+     *             if the linear part of the matrix is singular
+     */
+    public default AffineTransform3D inverse()
+    {
+        return new MatrixAffineTransform3D(this).invert();
+    }
+
+    /**
+     * Transforms a batch of points by computing the affine matrix once.
+     */
+    @Override
+    public default void transform(double[] xs, double[] ys, double[] zs,
+            double[] xsOut, double[] ysOut, double[] zsOut, int n)
+    {
+        double[][] mat = affineMatrix();
+        double[] row0 = mat[0];
+        double[] row1 = mat[1];
+        double[] row2 = mat[2];
+        for (int i = 0; i < n; i++)
+        {
+            double x = xs[i];
+            double y = ys[i];
+            double z = zs[i];
+            xsOut[i] = x * row0[0] + y * row0[1] + z * row0[2] + row0[3];
+            ysOut[i] = x * row1[0] + y * row1[1] + z * row1[2] + row1[3];
+            zsOut[i] = x * row2[0] + y * row2[1] + z * row2[2] + row2[3];
+        }
+    }
+
+    /**
+     * Transforms a batch of interleaved points by computing the affine matrix
+     * once.
+     */
+    @Override
+    public default void transform(double[] coords, int srcOffset, double[] coordsOut, int dstOffset, int n)
+    {
+        double[][] mat = affineMatrix();
+        double[] row0 = mat[0];
+        double[] row1 = mat[1];
+        double[] row2 = mat[2];
+        for (int i = 0; i < 3 * n; i += 3)
+        {
+            double x = coords[srcOffset + i];
+            double y = coords[srcOffset + i + 1];
+            double z = coords[srcOffset + i + 2];
+            coordsOut[dstOffset + i] = x * row0[0] + y * row0[1] + z * row0[2] + row0[3];
+            coordsOut[dstOffset + i + 1] = x * row1[0] + y * row1[1] + z * row1[2] + row1[3];
+            coordsOut[dstOffset + i + 2] = x * row2[0] + y * row2[1] + z * row2[2] + row2[3];
+        }
+    }
 }
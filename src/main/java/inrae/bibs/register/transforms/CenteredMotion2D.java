@@ -4,13 +4,18 @@
 package inrae.bibs.register.transforms;
 
 import inrae.bibs.register.Point2D;
-import inrae.bibs.register.Transform2D;
 
 /**
+ * Transformation model for a centered motion: rotation around the specified
+ * center, followed by a translation.
+ * 
+ * As a motion is an affine transform, the model can be reduced to the
+ * coefficients of its affine matrix.
+ * 
  * @author dlegland
  *
  */
-public class CenteredMotion2D implements Transform2D
+public class CenteredMotion2D implements AffineTransform2D
 {
     public double centerX = 0.0;
     public double centerY = 0.0;
@@ -28,15 +33,55 @@ public class CenteredMotion2D implements Transform2D
         this.shiftY = ty;
     }
     
+    @Override
+    public double[][] affineMatrix()
+    {
+        return CenteredSimilarity2D.centeredSimilarityMatrix(centerX, centerY, 1.0, angleDeg, shiftX, shiftY);
+    }
+
     @Override
     public Point2D transform(Point2D point)
     {
-        Point2D pc = point.translate(-centerX, -centerY);
-        Point2D pcr = pc.rotate(Math.toRadians(angleDeg));
-        Point2D pcrt = pcr.translate(shiftX, shiftY);
-        Point2D pcrtc = pcrt.translate(centerX, centerY);
+        double theta = Math.toRadians(angleDeg);
+        double cot = Math.cos(theta);
+        double sit = Math.sin(theta);
+
+        // rotate around center, then translate
+        double xc = point.getX() - centerX;
+        double yc = point.getY() - centerY;
+        double xr = xc * cot - yc * sit;
+        double yr = xc * sit + yc * cot;
+        return new Point2D(xr + shiftX + centerX, yr + shiftY + centerY);
+    }
+
+    @Override
+    public void transform(double[] xs, double[] ys, double[] xsOut, double[] ysOut, int n)
+    {
+        double theta = Math.toRadians(angleDeg);
+        double cot = Math.cos(theta);
+        double sit = Math.sin(theta);
+        for (int i = 0; i < n; i++)
+        {
+            double xc = xs[i] - centerX;
+            double yc = ys[i] - centerY;
+            xsOut[i] = xc * cot - yc * sit + shiftX + centerX;
+            ysOut[i] = xc * sit + yc * cot + shiftY + centerY;
+        }
+    }
 
-        return pcrtc;
+    @Override
+    public void transform(double[] coords, int srcOffset, double[] coordsOut, int dstOffset, int n)
+    {
+        double theta = Math.toRadians(angleDeg);
+        double cot = Math.cos(theta);
+        double sit = Math.sin(theta);
+        for (int i = 0; i < 2 * n; i += 2)
+        {
+            double xc = coords[srcOffset + i] - centerX;
+            double yc = coords[srcOffset + i + 1] - centerY;
+            coordsOut[dstOffset + i] = xc * cot - yc * sit + shiftX + centerX;
+            coordsOut[dstOffset + i + 1] = xc * sit + yc * cot + shiftY + centerY;
+        }
     }
 
 }
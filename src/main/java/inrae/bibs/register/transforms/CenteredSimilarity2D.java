@@ -4,17 +4,48 @@
 package inrae.bibs.register.transforms;
 
 import inrae.bibs.register.Point2D;
-import inrae.bibs.register.Transform2D;
 
 /**
  * Transformation model for a centered similarity: rotation+scaling around the
  * specified center, followed by a translation.
  * 
+ * As a similarity is an affine transform, the model can be reduced to the
+ * coefficients of its affine matrix.
+ * 
  * @author dlegland
  *
  */
-public class CenteredSimilarity2D implements Transform2D
+public class CenteredSimilarity2D implements AffineTransform2D
 {
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Computes the affine matrix of a similarity around a center, followed by
+     * a translation.
+     */
+    static final double[][] centeredSimilarityMatrix(double centerX, double centerY, double k,
+            double angleDeg, double shiftX, double shiftY)
+    {
+        double theta = Math.toRadians(angleDeg);
+        double cot = Math.cos(theta);
+        double sit = Math.sin(theta);
+        double m00 = k * cot;
+        double m01 = -k * sit;
+        double m10 = k * sit;
+        double m11 = k * cot;
+        double m02 = -m00 * centerX - m01 * centerY + shiftX + centerX;
+        double m12 = -m10 * centerX - m11 * centerY + shiftY + centerY;
+        return new double[][] {
+                { m00, m01, m02 },
+                { m10, m11, m12 },
+                { 0, 0, 1 } };
+    }
+
+
+    // ===================================================================
+    // Class members
+
     public double centerX = 0.0;
     public double centerY = 0.0;
     
@@ -34,6 +65,12 @@ public class CenteredSimilarity2D implements Transform2D
         this.shiftY = ty;
     }
     
+    @Override
+    public double[][] affineMatrix()
+    {
+        return centeredSimilarityMatrix(centerX, centerY, Math.pow(2, logScaling), angleDeg, shiftX, shiftY);
+    }
+
     @Override
     public Point2D transform(Point2D point)
     {
@@ -57,4 +94,35 @@ public class CenteredSimilarity2D implements Transform2D
         return new Point2D(xcsr + shiftX + centerX, ycsr + shiftY + centerY);
     }
 
+    @Override
+    public void transform(double[] xs, double[] ys, double[] xsOut, double[] ysOut, int n)
+    {
+        double k = Math.pow(2, logScaling);
+        double theta = Math.toRadians(angleDeg);
+        double cot = Math.cos(theta);
+        double sit = Math.sin(theta);
+        for (int i = 0; i < n; i++)
+        {
+            double xcs = k * (xs[i] - centerX);
+            double ycs = k * (ys[i] - centerY);
+            xsOut[i] = xcs * cot - ycs * sit + shiftX + centerX;
+            ysOut[i] = xcs * sit + ycs * cot + shiftY + centerY;
+        }
+    }
+
+    @Override
+    public void transform(double[] coords, int srcOffset, double[] coordsOut, int dstOffset, int n)
+    {
+        double k = Math.pow(2, logScaling);
+        double theta = Math.toRadians(angleDeg);
+        double cot = Math.cos(theta);
+        double sit = Math.sin(theta);
+        for (int i = 0; i < 2 * n; i += 2)
+        {
+            double xcs = k * (coords[srcOffset + i] - centerX);
+            double ycs = k * (coords[srcOffset + i + 1] - centerY);
+            coordsOut[dstOffset + i] = xcs * cot - ycs * sit + shiftX + centerX;
+            coordsOut[dstOffset + i + 1] = xcs * sit + ycs * cot + shiftY + centerY;
+        }
+    }
 }
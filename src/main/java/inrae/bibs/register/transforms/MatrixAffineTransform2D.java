@@ -0,0 +1,290 @@
+/**
+ *
+ */
+package inrae.bibs.register.transforms;
+
+import inrae.bibs.register.Point2D;
+
+/**
+ * A 2D affine transform represented by the six coefficients of its matrix.
+ *
+ * Besides the methods of AffineTransform2D that return new transforms, the
+ * coefficients can be modified in place by the concatenate, preConcatenate,
+ * invert and setTransform methods, such that long sequences of operations do
+ * not create intermediate objects.
+ *
+ * @see MatrixAffineTransform3D
+ *
+ * @author dlegland
+ *
+ */
+public class MatrixAffineTransform2D implements AffineTransform2D
+{
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Computes the inverse of the affine transform with the specified
+     * coefficients.
+     */
+    static final MatrixAffineTransform2D invert(
+            double m00, double m01, double m02,
+            double m10, double m11, double m12)
+    {
+        return new MatrixAffineTransform2D(m00, m01, m02, m10, m11, m12).invert();
+    }
+
+
+    // ===================================================================
+    // Class members
+
+    // coefficients for x coordinate.
+    protected double m00, m01, m02;
+
+    // coefficients for y coordinate.
+    protected double m10, m11, m12;
+
+
+    // ===================================================================
+    // Constructors
+
+    /**
+     * Empty constructor, that creates an instance of the identity transform.
+     */
+    public MatrixAffineTransform2D()
+    {
+        m00 = 1;
+        m01 = 0;
+        m02 = 0;
+        m10 = 0;
+        m11 = 1;
+        m12 = 0;
+    }
+
+    public MatrixAffineTransform2D(
+            double xx, double yx, double tx,
+            double xy, double yy, double ty)
+    {
+        m00 = xx;
+        m01 = yx;
+        m02 = tx;
+        m10 = xy;
+        m11 = yy;
+        m12 = ty;
+    }
+
+    /**
+     * Creates a new matrix transform with the coefficients of the specified
+     * affine transform.
+     *
+     * @param transform
+     *            the transform to copy
+     */
+    public MatrixAffineTransform2D(AffineTransform2D transform)
+    {
+        setTransform(transform);
+    }
+
+
+    // ===================================================================
+    // In-place modification methods
+
+    /**
+     * Replaces the coefficients of this transform by those of the specified
+     * transform.
+     *
+     * @param transform
+     *            the transform to copy
+     * @return this transform
+     */
+    public MatrixAffineTransform2D setTransform(AffineTransform2D transform)
+    {
+        if (transform instanceof MatrixAffineTransform2D)
+        {
+            MatrixAffineTransform2D mat = (MatrixAffineTransform2D) transform;
+            return setTransform(mat.m00, mat.m01, mat.m02, mat.m10, mat.m11, mat.m12);
+        }
+        double[][] mat = transform.affineMatrix();
+        return setTransform(mat[0][0], mat[0][1], mat[0][2], mat[1][0], mat[1][1], mat[1][2]);
+    }
+
+    /**
+     * Replaces the coefficients of this transform.
+     *
+     * @return this transform
+     */
+    public MatrixAffineTransform2D setTransform(
+            double xx, double yx, double tx,
+            double xy, double yy, double ty)
+    {
+        m00 = xx;
+        m01 = yx;
+        m02 = tx;
+        m10 = xy;
+        m11 = yy;
+        m12 = ty;
+        return this;
+    }
+
+    /**
+     * Replaces this transform by its composition with another transform, such
+     * that the other transform is applied first: this = this * that.
+     *
+     * @param that
+     *            the transform to apply first
+     * @return this transform
+     */
+    public MatrixAffineTransform2D concatenate(MatrixAffineTransform2D that)
+    {
+        return setTransform(
+                m00 * that.m00 + m01 * that.m10,
+                m00 * that.m01 + m01 * that.m11,
+                m00 * that.m02 + m01 * that.m12 + m02,
+                m10 * that.m00 + m11 * that.m10,
+                m10 * that.m01 + m11 * that.m11,
+                m10 * that.m02 + m11 * that.m12 + m12);
+    }
+
+    /**
+     * Replaces this transform by its composition with another transform, such
+     * that the other transform is applied last: this = that * this.
+     *
+     * @param that
+     *            the transform to apply last
+     * @return this transform
+     */
+    public MatrixAffineTransform2D preConcatenate(MatrixAffineTransform2D that)
+    {
+        return setTransform(
+                that.m00 * m00 + that.m01 * m10,
+                that.m00 * m01 + that.m01 * m11,
+                that.m00 * m02 + that.m01 * m12 + that.m02,
+                that.m10 * m00 + that.m11 * m10,
+                that.m10 * m01 + that.m11 * m11,
+                that.m10 * m02 + that.m11 * m12 + that.m12);
+    }
+
+    /**
+     * Replaces this transform by its inverse.
+     *
+     * @return this transform
+     * @throws RuntimeException
+     *             if the linear part of the matrix is singular
+     */
+    public MatrixAffineTransform2D invert()
+    {
+        double det = determinant();
+        if (Math.abs(det) < 1e-12)
+        {
+            throw new RuntimeException("Affine transform is not invertible");
+        }
+        return setTransform(
+                m11 / det, -m01 / det, (m01 * m12 - m02 * m11) / det,
+                -m10 / det, m00 / det, (m02 * m10 - m00 * m12) / det);
+    }
+
+
+    // ===================================================================
+    // Accessors
+
+    /**
+     * @return the determinant of the linear part of the matrix
+     */
+    public double determinant()
+    {
+        return m00 * m11 - m01 * m10;
+    }
+
+    /**
+     * Returns the six coefficients of the matrix, in row-major order.
+     *
+     * @param coeffs
+     *            the array to write the coefficients into, or null
+     * @return the array of coefficients
+     */
+    public double[] getCoefficients(double[] coeffs)
+    {
+        if (coeffs == null)
+        {
+            coeffs = new double[6];
+        }
+        coeffs[0] = m00;
+        coeffs[1] = m01;
+        coeffs[2] = m02;
+        coeffs[3] = m10;
+        coeffs[4] = m11;
+        coeffs[5] = m12;
+        return coeffs;
+    }
+
+
+    // ===================================================================
+    // Methods implementing AffineTransform2D
+
+    @Override
+    public double[][] affineMatrix()
+    {
+        return new double[][] {
+                { this.m00, this.m01, this.m02 },
+                { this.m10, this.m11, this.m12 },
+                { 0, 0, 1 } };
+    }
+
+    /**
+     * Computes the composition with another transform, using directly the
+     * coefficients of matrix transforms.
+     */
+    @Override
+    public AffineTransform2D compose(AffineTransform2D that)
+    {
+        if (!(that instanceof MatrixAffineTransform2D))
+        {
+            return AffineTransform2D.super.compose(that);
+        }
+        return new MatrixAffineTransform2D(this).concatenate((MatrixAffineTransform2D) that);
+    }
+
+    @Override
+    public AffineTransform2D inverse()
+    {
+        return invert(m00, m01, m02, m10, m11, m12);
+    }
+
+
+    // ===================================================================
+    // Methods implementing Transform2D
+
+    @Override
+    public Point2D transform(Point2D p)
+    {
+        double x = p.getX();
+        double y = p.getY();
+        return new Point2D(
+                x * m00 + y * m01 + m02,
+                x * m10 + y * m11 + m12);
+    }
+
+    @Override
+    public void transform(double[] xs, double[] ys, double[] xsOut, double[] ysOut, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            double x = xs[i];
+            double y = ys[i];
+            xsOut[i] = x * m00 + y * m01 + m02;
+            ysOut[i] = x * m10 + y * m11 + m12;
+        }
+    }
+
+    @Override
+    public void transform(double[] coords, int srcOffset, double[] coordsOut, int dstOffset, int n)
+    {
+        for (int i = 0; i < 2 * n; i += 2)
+        {
+            double x = coords[srcOffset + i];
+            double y = coords[srcOffset + i + 1];
+            coordsOut[dstOffset + i] = x * m00 + y * m01 + m02;
+            coordsOut[dstOffset + i + 1] = x * m10 + y * m11 + m12;
+        }
+    }
+}
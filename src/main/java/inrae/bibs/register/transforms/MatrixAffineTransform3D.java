@@ -6,10 +6,34 @@ package inrae.bibs.register.transforms;
 import inrae.bibs.register.Point3D;
 
 /**
+ * A 3D affine transform represented by the twelve coefficients of its matrix.
  * 
+ * Besides the methods of AffineTransform3D that return new transforms, the
+ * coefficients can be modified in place by the concatenate, preConcatenate,
+ * invert and setTransform methods. Together with the methods of
+ * AffineTransform3D that write into a destination transform or array, they
+ * allow to compose and invert transforms without allocating memory.
+ * 
+ * @see MatrixAffineTransform2D
  */
 public class MatrixAffineTransform3D implements AffineTransform3D
 {
+    // ===================================================================
+    // Static methods
+
+    /**
+     * Computes the inverse of the affine transform with the specified
+     * coefficients.
+     */
+    static final MatrixAffineTransform3D invert(
+            double m00, double m01, double m02, double m03, 
+            double m10, double m11, double m12, double m13, 
+            double m20, double m21, double m22, double m23)
+    {
+        return new MatrixAffineTransform3D(m00, m01, m02, m03, m10, m11, m12, m13, m20, m21, m22, m23).invert();
+    }
+    
+    
     // ===================================================================
     // Class members
 
@@ -65,6 +89,159 @@ public class MatrixAffineTransform3D implements AffineTransform3D
     }
     
 
+    /**
+     * Creates a new matrix transform with the coefficients of the specified
+     * affine transform.
+     * 
+     * @param transform
+     *            the transform to copy
+     */
+    public MatrixAffineTransform3D(AffineTransform3D transform)
+    {
+        setTransform(transform);
+    }
+    
+    
+    // ===================================================================
+    // In-place modification methods
+    
+    /**
+     * Replaces the coefficients of this transform by those of the specified
+     * transform.
+     * 
+     * @param transform
+     *            the transform to copy
+     * @return this transform
+     */
+    public MatrixAffineTransform3D setTransform(AffineTransform3D transform)
+    {
+        if (transform instanceof MatrixAffineTransform3D)
+        {
+            MatrixAffineTransform3D mat = (MatrixAffineTransform3D) transform;
+            return setTransform(
+                    mat.m00, mat.m01, mat.m02, mat.m03, 
+                    mat.m10, mat.m11, mat.m12, mat.m13, 
+                    mat.m20, mat.m21, mat.m22, mat.m23);
+        }
+        double[][] mat = transform.affineMatrix();
+        return setTransform(
+                mat[0][0], mat[0][1], mat[0][2], mat[0][3], 
+                mat[1][0], mat[1][1], mat[1][2], mat[1][3], 
+                mat[2][0], mat[2][1], mat[2][2], mat[2][3]);
+    }
+    
+    /**
+     * Replaces the coefficients of this transform.
+     * 
+     * @return this transform
+     */
+    public MatrixAffineTransform3D setTransform(
+            double xx, double yx, double zx, double tx, 
+            double xy, double yy, double zy, double ty, 
+            double xz, double yz, double zz, double tz)
+    {
+        m00 = xx;
+        m01 = yx;
+        m02 = zx;
+        m03 = tx;
+        m10 = xy;
+        m11 = yy;
+        m12 = zy;
+        m13 = ty;
+        m20 = xz;
+        m21 = yz;
+        m22 = zz;
+        m23 = tz;
+        return this;
+    }
+    
+    /**
+     * Replaces this transform by its composition with another transform, such
+     * that the other transform is applied first: this = this * that.
+     * 
+     * @param that
+     *            the transform to apply first
+     * @return this transform
+     */
+    public MatrixAffineTransform3D concatenate(AffineTransform3D that)
+    {
+        return setProduct(this, that);
+    }
+    
+    /**
+     * Replaces this transform by its composition with another transform, such
+     * that the other transform is applied last: this = that * this.
+     * 
+     * @param that
+     *            the transform to apply last
+     * @return this transform
+     */
+    public MatrixAffineTransform3D preConcatenate(AffineTransform3D that)
+    {
+        return setProduct(that, this);
+    }
+    
+    /**
+     * Replaces this transform by its inverse.
+     * 
+     * @return this transform
+     * @throws RuntimeException
+     *             if the linear part of the matrix is singular
+     */
+    public MatrixAffineTransform3D invert()
+    {
+        // cofactors of the linear part
+        double c00 = m11 * m22 - m12 * m21;
+        double c01 = m02 * m21 - m01 * m22;
+        double c02 = m01 * m12 - m02 * m11;
+        double c10 = m12 * m20 - m10 * m22;
+        double c11 = m00 * m22 - m02 * m20;
+        double c12 = m02 * m10 - m00 * m12;
+        double c20 = m10 * m21 - m11 * m20;
+        double c21 = m01 * m20 - m00 * m21;
+        double c22 = m00 * m11 - m01 * m10;
+        double det = m00 * c00 + m01 * c10 + m02 * c20;
+        if (Math.abs(det) < 1e-12)
+        {
+            throw new RuntimeException("Affine transform is not invertible");
+        }
+        
+        double n00 = c00 / det, n01 = c01 / det, n02 = c02 / det;
+        double n10 = c10 / det, n11 = c11 / det, n12 = c12 / det;
+        double n20 = c20 / det, n21 = c21 / det, n22 = c22 / det;
+        return setTransform(
+                n00, n01, n02, -(n00 * m03 + n01 * m13 + n02 * m23), 
+                n10, n11, n12, -(n10 * m03 + n11 * m13 + n12 * m23), 
+                n20, n21, n22, -(n20 * m03 + n21 * m13 + n22 * m23));
+    }
+    
+    /**
+     * Replaces the coefficients of this transform by those of the product
+     * t1 * t2. This transform may be one of the operands. No memory is
+     * allocated when both operands are matrix transforms.
+     */
+    MatrixAffineTransform3D setProduct(AffineTransform3D t1, AffineTransform3D t2)
+    {
+        MatrixAffineTransform3D a = t1 instanceof MatrixAffineTransform3D ? (MatrixAffineTransform3D) t1 : new MatrixAffineTransform3D(t1);
+        MatrixAffineTransform3D b = t2 instanceof MatrixAffineTransform3D ? (MatrixAffineTransform3D) t2 : new MatrixAffineTransform3D(t2);
+        
+        // all the coefficients are computed before being assigned
+        return setTransform(
+                a.m00 * b.m00 + a.m01 * b.m10 + a.m02 * b.m20, 
+                a.m00 * b.m01 + a.m01 * b.m11 + a.m02 * b.m21, 
+                a.m00 * b.m02 + a.m01 * b.m12 + a.m02 * b.m22, 
+                a.m00 * b.m03 + a.m01 * b.m13 + a.m02 * b.m23 + a.m03, 
+                a.m10 * b.m00 + a.m11 * b.m10 + a.m12 * b.m20, 
+                a.m10 * b.m01 + a.m11 * b.m11 + a.m12 * b.m21, 
+                a.m10 * b.m02 + a.m11 * b.m12 + a.m12 * b.m22, 
+                a.m10 * b.m03 + a.m11 * b.m13 + a.m12 * b.m23 + a.m13, 
+                a.m20 * b.m00 + a.m21 * b.m10 + a.m22 * b.m20, 
+                a.m20 * b.m01 + a.m21 * b.m11 + a.m22 * b.m21, 
+                a.m20 * b.m02 + a.m21 * b.m12 + a.m22 * b.m22, 
+                a.m20 * b.m03 + a.m21 * b.m13 + a.m22 * b.m23 + a.m23);
+    }
+    
+    
     // ===================================================================
     // Methods implementing AffineTransform3D
     
@@ -79,6 +256,35 @@ public class MatrixAffineTransform3D implements AffineTransform3D
     }
 
     
+    @Override
+    public double[] getCoefficients(double[] coeffs)
+    {
+        if (coeffs == null)
+        {
+            coeffs = new double[12];
+        }
+        coeffs[0] = m00;
+        coeffs[1] = m01;
+        coeffs[2] = m02;
+        coeffs[3] = m03;
+        coeffs[4] = m10;
+        coeffs[5] = m11;
+        coeffs[6] = m12;
+        coeffs[7] = m13;
+        coeffs[8] = m20;
+        coeffs[9] = m21;
+        coeffs[10] = m22;
+        coeffs[11] = m23;
+        return coeffs;
+    }
+    
+    @Override
+    public AffineTransform3D inverse()
+    {
+        return new MatrixAffineTransform3D(this).invert();
+    }
+    
+    
     // ===================================================================
     // Methods implementing Transform3D
     
@@ -94,4 +300,32 @@ public class MatrixAffineTransform3D implements AffineTransform3D
                 x * m20 + y * m21 + z * m22 + m23);
     }
 
+    @Override
+    public void transform(double[] xs, double[] ys, double[] zs,
+            double[] xsOut, double[] ysOut, double[] zsOut, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            double x = xs[i];
+            double y = ys[i];
+            double z = zs[i];
+            xsOut[i] = x * m00 + y * m01 + z * m02 + m03;
+            ysOut[i] = x * m10 + y * m11 + z * m12 + m13;
+            zsOut[i] = x * m20 + y * m21 + z * m22 + m23;
+        }
+    }
+
+    @Override
+    public void transform(double[] coords, int srcOffset, double[] coordsOut, int dstOffset, int n)
+    {
+        for (int i = 0; i < 3 * n; i += 3)
+        {
+            double x = coords[srcOffset + i];
+            double y = coords[srcOffset + i + 1];
+            double z = coords[srcOffset + i + 2];
+            coordsOut[dstOffset + i] = x * m00 + y * m01 + z * m02 + m03;
+            coordsOut[dstOffset + i + 1] = x * m10 + y * m11 + z * m12 + m13;
+            coordsOut[dstOffset + i + 2] = x * m20 + y * m21 + z * m22 + m23;
+        }
+    }
 }
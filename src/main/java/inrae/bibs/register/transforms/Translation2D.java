@@ -4,15 +4,17 @@
 package inrae.bibs.register.transforms;
 
 import inrae.bibs.register.Point2D;
-import inrae.bibs.register.Transform2D;
 
 /**
  * A 2D translation defined by the shift in each dimension.
  * 
+ * A translation is an affine transform, whose matrix is the identity with the
+ * shift in the last column.
+ * 
  * @author dlegland
  *
  */
-public class Translation2D implements Transform2D
+public class Translation2D implements AffineTransform2D
 {
     public double shiftX = 0.0;
     public double shiftY = 0.0;
@@ -23,10 +25,44 @@ public class Translation2D implements Transform2D
         this.shiftY = ty;
     }
     
+    @Override
+    public double[][] affineMatrix()
+    {
+        return new double[][] {
+                { 1, 0, shiftX },
+                { 0, 1, shiftY },
+                { 0, 0, 1 } };
+    }
+    
+    @Override
+    public AffineTransform2D inverse()
+    {
+        return new Translation2D(-shiftX, -shiftY);
+    }
+    
     @Override
     public Point2D transform(Point2D point)
     {
         return new Point2D(point.getX() + shiftX, point.getY() + shiftY);
     }
 
+    @Override
+    public void transform(double[] xs, double[] ys, double[] xsOut, double[] ysOut, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            xsOut[i] = xs[i] + shiftX;
+            ysOut[i] = ys[i] + shiftY;
+        }
+    }
+
+    @Override
+    public void transform(double[] coords, int srcOffset, double[] coordsOut, int dstOffset, int n)
+    {
+        for (int i = 0; i < 2 * n; i += 2)
+        {
+            coordsOut[dstOffset + i] = coords[srcOffset + i] + shiftX;
+            coordsOut[dstOffset + i + 1] = coords[srcOffset + i + 1] + shiftY;
+        }
+    }
 }
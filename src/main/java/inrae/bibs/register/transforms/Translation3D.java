@@ -3,16 +3,20 @@
  */
 package inrae.bibs.register.transforms;
 
+import java.util.Arrays;
+
 import inrae.bibs.register.Point3D;
-import inrae.bibs.register.Transform3D;
 
 /**
  * A 3D translation defined by the shift in each dimension.
  * 
+ * A translation is an affine transform, whose matrix is the identity with the
+ * shift in the last column.
+ * 
  * @author dlegland
  *
  */
-public class Translation3D implements Transform3D
+public class Translation3D implements AffineTransform3D
 {
     public double shiftX = 0.0;
     public double shiftY = 0.0;
@@ -25,10 +29,65 @@ public class Translation3D implements Transform3D
         this.shiftZ = tz;
     }
     
+    @Override
+    public double[][] affineMatrix()
+    {
+        return new double[][] {
+                { 1, 0, 0, shiftX },
+                { 0, 1, 0, shiftY },
+                { 0, 0, 1, shiftZ },
+                { 0, 0, 0, 1 } };
+    }
+
+    @Override
+    public double[] getCoefficients(double[] coeffs)
+    {
+        if (coeffs == null)
+        {
+            coeffs = new double[12];
+        }
+        Arrays.fill(coeffs, 0, 12, 0.0);
+        coeffs[0] = 1;
+        coeffs[3] = shiftX;
+        coeffs[5] = 1;
+        coeffs[7] = shiftY;
+        coeffs[10] = 1;
+        coeffs[11] = shiftZ;
+        return coeffs;
+    }
+
+    @Override
+    public AffineTransform3D inverse()
+    {
+        return new Translation3D(-shiftX, -shiftY, -shiftZ);
+    }
+    
     @Override
     public Point3D transform(Point3D point)
     {
         return new Point3D(point.getX() + shiftX, point.getY() + shiftY, point.getZ() + shiftZ);
     }
 
+    @Override
+    public void transform(double[] xs, double[] ys, double[] zs,
+            double[] xsOut, double[] ysOut, double[] zsOut, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            xsOut[i] = xs[i] + shiftX;
+            ysOut[i] = ys[i] + shiftY;
+            zsOut[i] = zs[i] + shiftZ;
+        }
+    }
+
+    @Override
+    public void transform(double[] coords, int srcOffset, double[] coordsOut, int dstOffset, int n)
+    {
+        for (int i = 0; i < 3 * n; i += 3)
+        {
+            coordsOut[dstOffset + i] = coords[srcOffset + i] + shiftX;
+            coordsOut[dstOffset + i + 1] = coords[srcOffset + i + 1] + shiftY;
+            coordsOut[dstOffset + i + 2] = coords[srcOffset + i + 2] + shiftZ;
+        }
+    }
 }
@@ -0,0 +1,211 @@
+/**
+ * 
+ */
+package inrae.bibs.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.Prefs;
+
+/**
+ * Executes loops over a range of indices using several threads. The range is
+ * split into chunks of consecutive indices (for example slabs of slices), and
+ * each thread processes the chunks one after the other until the whole range
+ * has been processed.
+ * 
+ * If the thread that calls the loop is interrupted, the remaining chunks are
+ * not processed, and a CancellationException is thrown.
+ * 
+ * <p>
+ * Example of use:
+ *<pre>{@code
+ *	Parallel.forEachChunk(sizeZ, nThreads, (z0, z1) -> {
+ *	    for (int z = z0; z < z1; z++)
+ *	    {
+ *	        processSlice(z);
+ *	    }
+ *	});
+ *}</pre>
+ * 
+ * @author dlegland
+ *
+ */
+public class Parallel
+{
+    // ===================================================================
+    // Inner interface
+
+    /**
+     * The operation applied on a chunk of indices.
+     */
+    public interface RangeTask
+    {
+        /**
+         * Processes the indices between start (inclusive) and end (exclusive).
+         * 
+         * @param start
+         *            the first index of the chunk
+         * @param end
+         *            the index after the last index of the chunk
+         */
+        public void run(int start, int end);
+    }
+    
+    
+    // ===================================================================
+    // Static members
+
+    /**
+     * The number of chunks created for each thread, to balance the work load
+     * between threads, and to check cancellation regularly.
+     */
+    private static final int CHUNKS_PER_THREAD = 16;
+    
+    /**
+     * The pool of threads shared by all parallel loops. Threads are created
+     * on demand, and reused by subsequent calls.
+     */
+    private static ExecutorService executor = null;
+    
+    
+    // ===================================================================
+    // Static methods
+
+    /**
+     * @return the default number of threads, as defined in ImageJ
+     *         preferences.
+     */
+    public static final int defaultThreadCount()
+    {
+        return Prefs.getThreads();
+    }
+    
+    /**
+     * Applies the task on each chunk of indices between 0 and count, using the
+     * specified number of threads. The method returns when all the indices
+     * have been processed.
+     * 
+     * @param count
+     *            the number of indices to process
+     * @param nThreads
+     *            the maximum number of threads to use
+     * @param task
+     *            the task to apply on each chunk of indices
+     * @throws CancellationException
+     *             if the calling thread was interrupted during computation
+     */
+    public static final void forEachChunk(int count, int nThreads, RangeTask task)
+    {
+        nThreads = Math.max(Math.min(nThreads, count), 1);
+        
+        // compute the number of indices within each chunk
+        int chunkSize = Math.max(count / (nThreads * CHUNKS_PER_THREAD), 1);
+        AtomicInteger nextChunk = new AtomicInteger(0);
+        
+        // the thread that requested the computation, used to check
+        // cancellation
+        Thread caller = Thread.currentThread();
+        Runnable worker = () -> {
+            int start;
+            while ((start = nextChunk.getAndAdd(chunkSize)) < count)
+            {
+                if (caller.isInterrupted())
+                {
+                    throw new CancellationException("Computation was cancelled");
+                }
+                task.run(start, Math.min(start + chunkSize, count));
+            }
+        };
+        
+        // avoid thread management for sequential processing
+        if (nThreads == 1)
+        {
+            worker.run();
+            return;
+        }
+        
+        // run workers on the thread pool, the current thread acting as one of
+        // the workers
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>(nThreads - 1);
+        for (int i = 0; i < nThreads - 1; i++)
+        {
+            futures.add(getExecutor().submit(worker));
+        }
+        worker.run();
+        
+        // wait for the other workers to terminate
+        for (Future<?> future : futures)
+        {
+            waitFor(future);
+        }
+    }
+    
+    /**
+     * Checks if the current thread was interrupted, and throws a
+     * CancellationException in that case. This method can be called within
+     * long computations to allow their cancellation.
+     * 
+     * @throws CancellationException
+     *             if the current thread was interrupted
+     */
+    public static final void checkCancelled()
+    {
+        if (Thread.currentThread().isInterrupted())
+        {
+            throw new CancellationException("Computation was cancelled");
+        }
+    }
+    
+    private static final void waitFor(Future<?> future)
+    {
+        try
+        {
+            future.get();
+        }
+        catch (InterruptedException ex)
+        {
+            // restore interruption status, such that other workers stop
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Computation was cancelled");
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+    
+    private static final synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "Simple_Register worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+    
+    /**
+     * Private constructor to prevent class instantiation.
+     */
+    private Parallel()
+    {
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * 
+ */
+package inrae.bibs.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+
+/**
+ * Counts the number of processed items, possibly from several threads, and
+ * reports the progression to ImageJ progress bar.
+ * 
+ * To avoid flooding the progress bar when many small items are processed (for
+ * example the rows of a large image), the progress bar is updated only when
+ * the progression increases by at least one percent.
+ * 
+ * @author dlegland
+ *
+ */
+public class ProgressCounter
+{
+    /** The number of steps reported to the progress bar */
+    private static final int STEPS = 100;
+    
+    /** The total number of items to process */
+    final int total;
+    
+    /** The number of items processed so far */
+    final AtomicInteger count = new AtomicInteger(0);
+    
+    /**
+     * Creates a new progress counter.
+     * 
+     * @param total
+     *            the total number of items to process
+     */
+    public ProgressCounter(int total)
+    {
+        this.total = total;
+    }
+    
+    /**
+     * Increments the number of processed items, and updates the progress bar.
+     * This method can be called from several threads.
+     */
+    public void increment()
+    {
+        increment(1);
+    }
+    
+    /**
+     * Increments the number of processed items by the specified amount, and
+     * updates the progress bar if the progression has changed significantly.
+     * This method can be called from several threads.
+     * 
+     * @param n
+     *            the number of items processed since last call
+     */
+    public void increment(int n)
+    {
+        int current = count.addAndGet(n);
+        
+        // update progress bar only if the current step has changed
+        if (current * (long) STEPS / total != (current - n) * (long) STEPS / total)
+        {
+            IJ.showProgress(current, total);
+        }
+    }
+    
+    /**
+     * @return the number of items processed so far.
+     */
+    public int getCount()
+    {
+        return count.get();
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * Some utilities for multi-threaded processing and progress report.
+ * 
+ * @author dlegland
+ */
+package inrae.bibs.util;
@@ -3,16 +3,38 @@
  */
 package inrae.bibs.register;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.io.StringWriter;
+
 import org.junit.Test;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import inrae.bibs.register.display.CheckerBoardDisplay;
+import inrae.bibs.register.display.DifferenceOfIntensitiesDisplay;
+import inrae.bibs.register.display.LazyResultStack;
+import inrae.bibs.register.display.MagentaGreenDisplay;
+import inrae.bibs.register.display.SumOfIntensitiesDisplay;
+import inrae.bibs.register.image.Image3D;
+import inrae.bibs.register.image.Images3D;
+import inrae.bibs.register.io.JsonRegistrationWriter;
+import inrae.bibs.register.resample.Interpolation;
+import inrae.bibs.register.resample.Resampler3D;
+import inrae.bibs.register.transforms.AffineTransform2D;
+import inrae.bibs.register.transforms.AffineTransform3D;
+import inrae.bibs.register.transforms.CenteredMotion2D;
+import inrae.bibs.register.transforms.CenteredSimilarity2D;
+import inrae.bibs.register.transforms.MatrixAffineTransform2D;
+import inrae.bibs.register.transforms.MatrixAffineTransform3D;
 import inrae.bibs.register.transforms.Translation2D;
 import inrae.bibs.register.transforms.Translation3D;
 
@@ -65,4 +87,782 @@ public class RegistrationTest
         assertEquals(imageStack.getSize(), result.getSize());
     }
 
+    /**
+     * Checks that the resampling using affine coefficients gives the same
+     * result as the resampling pixel by pixel, for various 2D transforms and
+     * image types.
+     */
+    @Test
+    public void testComputeTransformedImage_ImageProcessor_Affine()
+    {
+        String fileName = getClass().getResource("/sample_images/wheatGrain_tomo_180_1_z630.tif").getFile();
+        ImagePlus imagePlus = IJ.openImage(fileName);
+        assertNotNull(imagePlus);
+        ImageProcessor image = imagePlus.getProcessor();
+        
+        Point2D center = new Point2D(image.getWidth() / 2, image.getHeight() / 2);
+        Transform2D[] transforms = new Transform2D[] {
+                new Translation2D(30.2, -20.7),
+                new CenteredMotion2D(center, 23.0, 12.5, -8.0),
+                new CenteredSimilarity2D(center, 0.3, -40.0, 5.0, 7.0)};
+        ImageProcessor[] movingImages = new ImageProcessor[] {image, image.convertToFloat(), image.convertToRGB()};
+        
+        for (Transform2D transform : transforms)
+        {
+            // the same transform, processed pixel by pixel
+            Transform2D generic = p -> transform.transform(p);
+            for (ImageProcessor moving : movingImages)
+            {
+                ImageProcessor expected = Registration.computeTransformedImage(moving, generic, moving);
+                ImageProcessor result = Registration.computeTransformedImage(moving, transform, moving);
+                for (int i = 0; i < image.getPixelCount(); i++)
+                {
+                    assertEquals(expected.getf(i), result.getf(i), 0.0);
+                }
+            }
+            
+            // mixed types
+            ImageProcessor expected = Registration.computeTransformedImage(image, generic, movingImages[1]);
+            ImageProcessor result = Registration.computeTransformedImage(image, transform, movingImages[1]);
+            for (int i = 0; i < image.getPixelCount(); i++)
+            {
+                assertEquals(expected.getf(i), result.getf(i), 0.0);
+            }
+        }
+    }
+    
+    /**
+     * Checks that the 2D result does not depend on the number of threads.
+     */
+    @Test
+    public void testComputeTransformedImage_ImageProcessor_MultiThread()
+    {
+        String fileName = getClass().getResource("/sample_images/wheatGrain_tomo_180_1_z630.tif").getFile();
+        ImagePlus imagePlus = IJ.openImage(fileName);
+        assertNotNull(imagePlus);
+        ImageProcessor image = imagePlus.getProcessor();
+        
+        Point2D center = new Point2D(image.getWidth() / 2, image.getHeight() / 2);
+        Transform2D transfo = new CenteredMotion2D(center, 23.0, 12.5, -8.0);
+        
+        ImageProcessor expected = Registration.computeTransformedImage(image, transfo, image, 1);
+        ImageProcessor result = Registration.computeTransformedImage(image, transfo, image, 4);
+        assertArrayEquals((byte[]) expected.getPixels(), (byte[]) result.getPixels());
+        
+        ImageProcessor display1 = new MagentaGreenDisplay().compute(image, expected);
+        ImageProcessor display2 = new MagentaGreenDisplay().compute(image, result);
+        assertArrayEquals((int[]) display1.getPixels(), (int[]) display2.getPixels());
+    }
+    
+    /**
+     * Checks that the resampling of an ImageStack with an affine transform
+     * gives the same result as the voxel-wise transform of the Image3D.
+     */
+    @Test
+    public void testComputeTransformedImage_ImageStack_Rotation()
+    {
+        String fileName = getClass().getResource("/sample_images/L_100_1_sub05.tif").getFile();
+        ImagePlus imagePlus = IJ.openImage(fileName);
+        assertNotNull(imagePlus);
+        ImageStack imageStack = imagePlus.getImageStack();
+        
+        AffineTransform3D transfo = AffineTransform3D.createTranslation(30, 35, 40)
+                .compose(AffineTransform3D.createRotationOx(Math.toRadians(12)))
+                .compose(AffineTransform3D.createRotationOz(Math.toRadians(-23)))
+                .compose(AffineTransform3D.createTranslation(-27, -34, -37));
+        
+        ImageStack result = Registration.computeTransformedImage(imageStack, transfo, imageStack);
+        
+        Image3D image = Images3D.createWrapper(imageStack);
+        Image3D expected = Registration.computeTransformedImage(image, transfo, image);
+        assertSameValues(expected, Images3D.createWrapper(result));
+    }
+    
+    /**
+     * Checks that the multi-threaded resampling gives the same result as the
+     * sequential one.
+     */
+    @Test
+    public void testComputeTransformedImage_ImageStack_MultiThread()
+    {
+        String fileName = getClass().getResource("/sample_images/L_100_1_sub05.tif").getFile();
+        ImagePlus imagePlus = IJ.openImage(fileName);
+        assertNotNull(imagePlus);
+        ImageStack imageStack = imagePlus.getImageStack();
+        
+        AffineTransform3D transfo = AffineTransform3D.createTranslation(30, 35, 40)
+                .compose(AffineTransform3D.createRotationOy(Math.toRadians(8)))
+                .compose(AffineTransform3D.createTranslation(-27, -34, -37));
+        
+        ImageStack expected = Registration.computeTransformedImage(imageStack, transfo, imageStack, 1);
+        ImageStack result = Registration.computeTransformedImage(imageStack, transfo, imageStack, 4);
+        assertSameValues(Images3D.createWrapper(expected), Images3D.createWrapper(result));
+    }
+    
+    /**
+     * Checks the conversion of values when the moving image and the reference
+     * image have different types.
+     */
+    @Test
+    public void testComputeTransformedImage_ImageStack_MixedTypes()
+    {
+        String fileName = getClass().getResource("/sample_images/L_100_1_sub05.tif").getFile();
+        ImagePlus imagePlus = IJ.openImage(fileName);
+        assertNotNull(imagePlus);
+        ImageStack imageStack = imagePlus.getImageStack();
+        
+        // create a float image with values out of the range of 8-bits images
+        int sizeX = imageStack.getWidth();
+        int sizeY = imageStack.getHeight();
+        int sizeZ = imageStack.getSize();
+        ImageStack floatStack = ImageStack.create(sizeX, sizeY, sizeZ, 32);
+        for (int z = 0; z < sizeZ; z++)
+        {
+            for (int y = 0; y < sizeY; y++)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    floatStack.setVoxel(x, y, z, imageStack.getVoxel(x, y, z) * 1.7 - 20.3);
+                }
+            }
+        }
+        
+        AffineTransform3D transfo = AffineTransform3D.createTranslation(30, 35, 40)
+                .compose(AffineTransform3D.createRotationOz(Math.toRadians(15)))
+                .compose(AffineTransform3D.createTranslation(-27, -34, -37));
+        
+        // float to byte
+        ImageStack result = Registration.computeTransformedImage(imageStack, transfo, floatStack);
+        Image3D expected = Registration.computeTransformedImage(Images3D.createWrapper(imageStack), transfo, Images3D.createWrapper(floatStack));
+        assertSameValues(expected, Images3D.createWrapper(result));
+        
+        // byte to float
+        result = Registration.computeTransformedImage(floatStack, transfo, imageStack);
+        expected = Registration.computeTransformedImage(Images3D.createWrapper(floatStack), transfo, Images3D.createWrapper(imageStack));
+        assertSameValues(expected, Images3D.createWrapper(result));
+    }
+    
+    /**
+     * Checks that the resampling by tiles gives the same result as the
+     * resampling in row-major order.
+     */
+    @Test
+    public void testComputeTransformedImage_ImageStack_Tiles()
+    {
+        String fileName = getClass().getResource("/sample_images/L_100_1_sub05.tif").getFile();
+        ImagePlus imagePlus = IJ.openImage(fileName);
+        assertNotNull(imagePlus);
+        ImageStack imageStack = imagePlus.getImageStack();
+        
+        AffineTransform3D transfo = AffineTransform3D.createTranslation(30, 35, 40)
+                .compose(AffineTransform3D.createRotationOy(Math.toRadians(35)))
+                .compose(AffineTransform3D.createRotationOx(Math.toRadians(-20)))
+                .compose(AffineTransform3D.createTranslation(-27, -34, -37));
+        
+        Resampler3D resampler = new Resampler3D(transfo);
+        resampler.setTileSize(0);
+        ImageStack expected = resampler.resample(imageStack, imageStack);
+        resampler.setTileSize(16);
+        ImageStack result = resampler.resample(imageStack, imageStack);
+        assertSameValues(Images3D.createWrapper(expected), Images3D.createWrapper(result));
+    }
+    
+    /**
+     * Checks that the slices of the lazy result stack are the same as the
+     * slices of the display computed for the whole image.
+     */
+    @Test
+    public void testLazyResultStack()
+    {
+        String fileName = getClass().getResource("/sample_images/L_100_1_sub05.tif").getFile();
+        ImagePlus imagePlus = IJ.openImage(fileName);
+        assertNotNull(imagePlus);
+        ImageStack imageStack = imagePlus.getImageStack();
+        
+        AffineTransform3D transfo = AffineTransform3D.createTranslation(30, 35, 40)
+                .compose(AffineTransform3D.createRotationOz(Math.toRadians(25)))
+                .compose(AffineTransform3D.createTranslation(-27, -34, -37));
+        ImagePairDisplay display = new MagentaGreenDisplay();
+        
+        ImageStack registered = Registration.computeTransformedImage(imageStack, transfo, imageStack);
+        ImageStack expected = display.compute(imageStack, registered);
+        
+        LazyResultStack result = new LazyResultStack(imageStack, imageStack, transfo, display, 4);
+        assertEquals(expected.getSize(), result.getSize());
+        assertEquals(24, result.getBitDepth());
+        for (int n : new int[] {40, 41, 10, 75, 1, 40, 39})
+        {
+            assertArrayEquals((int[]) expected.getPixels(n), (int[]) result.getProcessor(n).getPixels());
+        }
+        result.dispose();
+    }
+    
+    /**
+     * Checks that the planes computed by the resampler are the same as the
+     * sections of the whole result image.
+     */
+    @Test
+    public void testResamplePlane()
+    {
+        String fileName = getClass().getResource("/sample_images/L_100_1_sub05.tif").getFile();
+        ImagePlus imagePlus = IJ.openImage(fileName);
+        assertNotNull(imagePlus);
+        ImageStack imageStack = imagePlus.getImageStack();
+        
+        AffineTransform3D transfo = AffineTransform3D.createTranslation(30, 35, 40)
+                .compose(AffineTransform3D.createRotationOy(Math.toRadians(35)))
+                .compose(AffineTransform3D.createTranslation(-27, -34, -37));
+        
+        Resampler3D resampler = new Resampler3D(transfo);
+        ImageStack expected = resampler.resample(imageStack, imageStack);
+        
+        ImageProcessor planeXY = resampler.resamplePlane(imageStack, imageStack, Resampler3D.Plane.XY, 30);
+        ImageProcessor planeXZ = resampler.resamplePlane(imageStack, imageStack, Resampler3D.Plane.XZ, 20);
+        ImageProcessor planeYZ = resampler.resamplePlane(imageStack, imageStack, Resampler3D.Plane.YZ, 25);
+        assertEquals(imageStack.getSize(), planeXZ.getHeight());
+        assertEquals(imageStack.getSize(), planeYZ.getWidth());
+        for (int y = 0; y < imageStack.getHeight(); y++)
+        {
+            for (int x = 0; x < imageStack.getWidth(); x++)
+            {
+                assertEquals(expected.getVoxel(x, y, 30), planeXY.getf(x, y), 0.0);
+            }
+        }
+        for (int z = 0; z < imageStack.getSize(); z++)
+        {
+            for (int x = 0; x < imageStack.getWidth(); x++)
+            {
+                assertEquals(expected.getVoxel(x, 20, z), planeXZ.getf(x, z), 0.0);
+            }
+            for (int y = 0; y < imageStack.getHeight(); y++)
+            {
+                assertEquals(expected.getVoxel(25, y, z), planeYZ.getf(z, y), 0.0);
+            }
+        }
+    }
+    
+    /**
+     * Checks that the fused computation of display gives the same result as
+     * the computation of the display from the registered image.
+     */
+    @Test
+    public void testResampleAndCombine()
+    {
+        String fileName = getClass().getResource("/sample_images/L_100_1_sub05.tif").getFile();
+        ImagePlus imagePlus = IJ.openImage(fileName);
+        assertNotNull(imagePlus);
+        ImageStack imageStack = imagePlus.getImageStack();
+        
+        AffineTransform3D transfo = AffineTransform3D.createTranslation(30, 35, 40)
+                .compose(AffineTransform3D.createRotationOz(Math.toRadians(20)))
+                .compose(AffineTransform3D.createTranslation(-27, -34, -37));
+        Transform3D nonAffine = p -> transfo.transform(p);
+        
+        RowPairDisplay[] displays = new RowPairDisplay[] {
+                new CheckerBoardDisplay(10), new MagentaGreenDisplay(), 
+                new SumOfIntensitiesDisplay(), new DifferenceOfIntensitiesDisplay()};
+        for (Transform3D transform : new Transform3D[] {transfo, nonAffine})
+        {
+            ImageStack registered = Registration.computeTransformedImage(imageStack, transform, imageStack);
+            for (RowPairDisplay display : displays)
+            {
+                ImageStack expected = display.compute(imageStack, registered);
+                ImageStack result = new Resampler3D(transform).resampleAndCombine(imageStack, imageStack, display);
+                assertEquals(expected.getBitDepth(), result.getBitDepth());
+                for (int n = 1; n <= expected.getSize(); n++)
+                {
+                    Object pixels = expected.getPixels(n);
+                    if (pixels instanceof int[])
+                    {
+                        assertArrayEquals((int[]) pixels, (int[]) result.getPixels(n));
+                    }
+                    else if (pixels instanceof float[])
+                    {
+                        assertArrayEquals((float[]) pixels, (float[]) result.getPixels(n), 0.0f);
+                    }
+                    else
+                    {
+                        assertArrayEquals((byte[]) pixels, (byte[]) result.getPixels(n));
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks that the copy of rows used for translations with integer shifts
+     * gives the same result as the voxel-wise transform, for 3D and 2D images.
+     */
+    @Test
+    public void testComputeTransformedImage_IntegerTranslation()
+    {
+        String fileName = getClass().getResource("/sample_images/L_100_1_sub05.tif").getFile();
+        ImagePlus imagePlus = IJ.openImage(fileName);
+        assertNotNull(imagePlus);
+        ImageStack imageStack = imagePlus.getImageStack();
+        ImageStack floatStack = imageStack.convertToFloat();
+        
+        Transform3D[] transforms = new Transform3D[] {
+                new Translation3D(3, -2, 1), 
+                new Translation3D(-4, 2.6, -1.3), 
+                AffineTransform3D.createTranslation(500, 0, 0), 
+                AffineTransform3D.createTranslation(-5, 3, 2) };
+        for (Transform3D transfo : transforms)
+        {
+            ImageStack result = Registration.computeTransformedImage(imageStack, transfo, imageStack);
+            Image3D expected = Registration.computeTransformedImage(Images3D.createWrapper(imageStack), transfo, Images3D.createWrapper(imageStack));
+            assertSameValues(expected, Images3D.createWrapper(result));
+            
+            // mixed types
+            result = Registration.computeTransformedImage(floatStack, transfo, imageStack);
+            expected = Registration.computeTransformedImage(Images3D.createWrapper(floatStack), transfo, Images3D.createWrapper(imageStack));
+            assertSameValues(expected, Images3D.createWrapper(result));
+        }
+        
+        ImageProcessor image = imageStack.getProcessor(10);
+        ImageProcessor[] movingImages = new ImageProcessor[] {image, image.convertToFloat(), image.convertToRGB()};
+        Translation2D translation = new Translation2D(-7, 4.3);
+        for (ImageProcessor moving : movingImages)
+        {
+            ImageProcessor expected = Registration.computeTransformedImage(moving, p -> translation.transform(p), moving);
+            ImageProcessor result = Registration.computeTransformedImage(moving, translation, moving);
+            for (int i = 0; i < image.getPixelCount(); i++)
+            {
+                assertEquals(expected.getf(i), result.getf(i), 0.0);
+            }
+        }
+    }
+    
+    /**
+     * Checks that linear, cubic and B-spline interpolation give the same
+     * result as nearest-neighbor interpolation for integer translations.
+     */
+    @Test
+    public void testComputeTransformedImage_ImageStack_IntegerShift()
+    {
+        String fileName = getClass().getResource("/sample_images/L_100_1_sub05.tif").getFile();
+        ImagePlus imagePlus = IJ.openImage(fileName);
+        assertNotNull(imagePlus);
+        ImageStack imageStack = imagePlus.getImageStack();
+        
+        Transform3D[] transforms = new Transform3D[] {
+                new Translation3D(3, -2, 1), 
+                AffineTransform3D.createTranslation(-4, 5, 2) };
+        for (Transform3D transfo : transforms)
+        {
+            ImageStack expected = Registration.computeTransformedImage(imageStack, transfo, imageStack, Interpolation.NEAREST);
+            for (Interpolation interp : new Interpolation[] {Interpolation.LINEAR, Interpolation.CUBIC, Interpolation.BSPLINE})
+            {
+                ImageStack result = Registration.computeTransformedImage(imageStack, transfo, imageStack, interp);
+                assertSameValues(Images3D.createWrapper(expected), Images3D.createWrapper(result));
+            }
+        }
+    }
+    
+    /**
+     * Checks that linear, cubic and B-spline interpolation reproduce the
+     * values of a linear function of the coordinates, for voxels far from the
+     * borders. As the B-spline coefficients are computed with mirror boundary
+     * conditions, a larger margin is used for B-spline interpolation.
+     */
+    @Test
+    public void testComputeTransformedImage_ImageStack_LinearRamp()
+    {
+        int size = 24;
+        ImageStack ramp = ImageStack.create(size, size, size, 32);
+        for (int z = 0; z < size; z++)
+        {
+            for (int y = 0; y < size; y++)
+            {
+                for (int x = 0; x < size; x++)
+                {
+                    ramp.setVoxel(x, y, z, 2 * x + 3 * y + 5 * z);
+                }
+            }
+        }
+        
+        AffineTransform3D rotation = AffineTransform3D.createTranslation(12, 12, 12)
+                .compose(AffineTransform3D.createRotationOx(Math.toRadians(17)))
+                .compose(AffineTransform3D.createRotationOz(Math.toRadians(-31)))
+                .compose(AffineTransform3D.createTranslation(-11.7, -12.2, -11.9));
+        Transform3D[] transforms = new Transform3D[] {
+                new Translation3D(0.3, -1.25, 0.5), rotation, p -> rotation.transform(p) };
+        
+        for (Transform3D transfo : transforms)
+        {
+            for (Interpolation interp : new Interpolation[] {Interpolation.LINEAR, Interpolation.CUBIC, Interpolation.BSPLINE})
+            {
+                int margin = interp == Interpolation.BSPLINE ? 8 : 1;
+                ImageStack result = Registration.computeTransformedImage(ramp, transfo, ramp, interp);
+                for (int z = 0; z < size; z++)
+                {
+                    for (int y = 0; y < size; y++)
+                    {
+                        for (int x = 0; x < size; x++)
+                        {
+                            Point3D p = transfo.transform(new Point3D(x, y, z));
+                            if (p.x < margin || p.x > size - 2 - margin || p.y < margin || p.y > size - 2 - margin 
+                                    || p.z < margin || p.z > size - 2 - margin)
+                            {
+                                continue;
+                            }
+                            double expected = 2 * p.x + 3 * p.y + 5 * p.z;
+                            assertEquals(expected, result.getVoxel(x, y, z), 1e-3);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks linear, cubic and B-spline interpolation of 2D images, for float
+     * and color images.
+     */
+    @Test
+    public void testComputeTransformedImage_ImageProcessor_Interpolation()
+    {
+        int size = 40;
+        FloatProcessor ramp = new FloatProcessor(size, size);
+        ColorProcessor colorRamp = new ColorProcessor(size, size);
+        for (int y = 0; y < size; y++)
+        {
+            for (int x = 0; x < size; x++)
+            {
+                ramp.setf(x, y, 2 * x + 3 * y);
+                colorRamp.set(x, y, ((5 * x) << 16) | ((4 * y) << 8) | 100);
+            }
+        }
+        
+        CenteredMotion2D motion = new CenteredMotion2D(new Point2D(20, 20), 23, 0.4, -1.3);
+        Transform2D[] transforms = new Transform2D[] {
+                new Translation2D(0.3, -1.25), motion, p -> motion.transform(p) };
+        
+        for (Transform2D transfo : transforms)
+        {
+            for (Interpolation interp : new Interpolation[] {Interpolation.LINEAR, Interpolation.CUBIC, Interpolation.BSPLINE})
+            {
+                // cubic rotations are decomposed into shears, less accurate near the borders
+                int margin = interp == Interpolation.BSPLINE || (interp == Interpolation.CUBIC && transfo == motion) ? 8 : 1;
+                ImageProcessor result = Registration.computeTransformedImage(ramp, transfo, ramp, interp);
+                ImageProcessor colorResult = Registration.computeTransformedImage(colorRamp, transfo, colorRamp, interp);
+                for (int y = 0; y < size; y++)
+                {
+                    for (int x = 0; x < size; x++)
+                    {
+                        Point2D p = transfo.transform(new Point2D(x, y));
+                        if (p.getX() < margin || p.getX() > size - 2 - margin || p.getY() < margin || p.getY() > size - 2 - margin)
+                        {
+                            continue;
+                        }
+                        assertEquals(2 * p.getX() + 3 * p.getY(), result.getf(x, y), 1e-3);
+                        
+                        int rgb = colorResult.get(x, y);
+                        assertEquals(5 * p.getX(), (rgb >> 16) & 0x00FF, 0.51);
+                        assertEquals(4 * p.getY(), (rgb >> 8) & 0x00FF, 0.51);
+                        assertEquals(100, rgb & 0x00FF);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks that the decomposition of rotations into shears reproduces the
+     * values of a linear function of the coordinates, and gives the same
+     * extent as the general resampling.
+     */
+    @Test
+    public void testResample_ShearRotation()
+    {
+        int size = 40;
+        ImageStack ramp = ImageStack.create(size, size, size, 32);
+        for (int z = 0; z < size; z++)
+        {
+            for (int y = 0; y < size; y++)
+            {
+                for (int x = 0; x < size; x++)
+                {
+                    ramp.setVoxel(x, y, z, 2 * x + 3 * y + 5 * z);
+                }
+            }
+        }
+        
+        double c = size / 2.0;
+        AffineTransform3D[] rotations = new AffineTransform3D[] {
+                AffineTransform3D.createRotationOy(Math.toRadians(30)),
+                AffineTransform3D.createRotationOz(Math.toRadians(-35)),
+                AffineTransform3D.createRotationOz(Math.toRadians(150)) };
+        for (AffineTransform3D rotation : rotations)
+        {
+            AffineTransform3D transfo = AffineTransform3D.createTranslation(c + 0.3, c - 0.7, c + 0.45)
+                    .compose(rotation)
+                    .compose(AffineTransform3D.createTranslation(-c, -c, -c));
+            for (Interpolation interp : new Interpolation[] {Interpolation.LINEAR, Interpolation.CUBIC})
+            {
+                Resampler3D resampler = new Resampler3D(transfo);
+                resampler.setInterpolation(interp);
+                resampler.setShearRotation(false);
+                ImageStack expected = resampler.resample(ramp, ramp);
+                resampler.setShearRotation(true);
+                ImageStack result = resampler.resample(ramp, ramp);
+                
+                for (int z = 0; z < size; z++)
+                {
+                    for (int y = 0; y < size; y++)
+                    {
+                        for (int x = 0; x < size; x++)
+                        {
+                            assertEquals(expected.getVoxel(x, y, z) == 0, result.getVoxel(x, y, z) == 0);
+                            Point3D p = transfo.transform(new Point3D(x, y, z));
+                            if (p.x < 8 || p.x > size - 9 || p.y < 8 || p.y > size - 9 || p.z < 8 || p.z > size - 9)
+                            {
+                                continue;
+                            }
+                            assertEquals(2 * p.x + 3 * p.y + 5 * p.z, result.getVoxel(x, y, z), 1e-3);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks that scalings along the axes, computed by separable passes, give
+     * the same results as the voxel-by-voxel resampling.
+     */
+    @Test
+    public void testResample_Scaling()
+    {
+        String fileName = getClass().getResource("/sample_images/L_100_1_sub05.tif").getFile();
+        ImagePlus imagePlus = IJ.openImage(fileName);
+        assertNotNull(imagePlus);
+        ImageStack imageStack = imagePlus.getImageStack();
+        int sizeX = imageStack.getWidth();
+        int sizeY = imageStack.getHeight();
+        int sizeZ = imageStack.getSize();
+
+        AffineTransform3D[] scalings = new AffineTransform3D[] {
+                AffineTransform3D.createScaling(2, 2, 2),
+                AffineTransform3D.createTranslation(0.3, -2.6, 1.2).compose(AffineTransform3D.createScaling(0.75, 1.5, 0.6)),
+                AffineTransform3D.createTranslation(sizeX - 1, 0.5, 0).compose(AffineTransform3D.createScaling(-1.8, 1, 2.5)) };
+        for (AffineTransform3D transfo : scalings)
+        {
+            Transform3D wrapper = p -> transfo.transform(p);
+            ImageStack refStack = ImageStack.create(sizeX / 2 + 3, sizeY / 2 + 5, sizeZ / 2 + 2, 32);
+            for (Interpolation interp : Interpolation.values())
+            {
+                Resampler3D resampler = new Resampler3D(transfo);
+                resampler.setInterpolation(interp);
+                Resampler3D resampler2 = new Resampler3D(wrapper);
+                resampler2.setInterpolation(interp);
+
+                // nearest neighbor values are copied
+                double tol = interp == Interpolation.NEAREST ? 0.0 : 1e-3;
+                assertSameValues(Images3D.createWrapper(resampler2.resample(refStack, imageStack)),
+                        Images3D.createWrapper(resampler.resample(refStack, imageStack)), tol);
+            }
+        }
+    }
+    
+    /**
+     * Checks that the batch transforms of the shipped transforms give the same
+     * results as the transform of single points, including when the output
+     * arrays are the input arrays.
+     */
+    @Test
+    public void testTransform_Batch()
+    {
+        int n = 5;
+        double[] xs = new double[] {0, 1.5, -3.2, 10, 7.25};
+        double[] ys = new double[] {2, -4.5, 0.3, 8, 1};
+        double[] zs = new double[] {-1, 0, 5.5, 3, 12};
+
+        Transform2D[] transforms2d = new Transform2D[] {
+                new Translation2D(3.2, -1.5),
+                new CenteredMotion2D(new Point2D(5, 4), 30, 1.5, -2),
+                new CenteredSimilarity2D(new Point2D(5, 4), 0.3, -20, 2, 1) };
+        for (Transform2D transfo : transforms2d)
+        {
+            double[] xsOut = new double[n];
+            double[] ysOut = new double[n];
+            transfo.transform(xs, ys, xsOut, ysOut, n);
+            double[] coords = new double[2 * n + 1];
+            for (int i = 0; i < n; i++)
+            {
+                coords[2 * i + 1] = xs[i];
+                coords[2 * i + 2] = ys[i];
+            }
+            transfo.transform(coords, 1, coords, 1, n);
+            for (int i = 0; i < n; i++)
+            {
+                Point2D p = transfo.transform(new Point2D(xs[i], ys[i]));
+                assertEquals(p.getX(), xsOut[i], 1e-12);
+                assertEquals(p.getY(), ysOut[i], 1e-12);
+                assertEquals(p.getX(), coords[2 * i + 1], 1e-12);
+                assertEquals(p.getY(), coords[2 * i + 2], 1e-12);
+            }
+        }
+
+        Transform3D[] transforms3d = new Transform3D[] {
+                new Translation3D(3.2, -1.5, 0.7),
+                AffineTransform3D.createTranslation(1, 2, 3).compose(AffineTransform3D.createRotationOy(0.4)),
+                p -> new Point3D(p.getX() * p.getY(), p.getZ(), 1) };
+        for (Transform3D transfo : transforms3d)
+        {
+            double[] xsOut = xs.clone();
+            double[] ysOut = ys.clone();
+            double[] zsOut = zs.clone();
+            transfo.transform(xsOut, ysOut, zsOut, xsOut, ysOut, zsOut, n);
+            double[] coords = new double[3 * n];
+            for (int i = 0; i < n; i++)
+            {
+                coords[3 * i] = xs[i];
+                coords[3 * i + 1] = ys[i];
+                coords[3 * i + 2] = zs[i];
+            }
+            double[] coordsOut = new double[3 * n + 2];
+            transfo.transform(coords, 0, coordsOut, 2, n);
+            for (int i = 0; i < n; i++)
+            {
+                Point3D p = transfo.transform(new Point3D(xs[i], ys[i], zs[i]));
+                assertEquals(p.getX(), xsOut[i], 1e-12);
+                assertEquals(p.getY(), ysOut[i], 1e-12);
+                assertEquals(p.getZ(), zsOut[i], 1e-12);
+                assertEquals(p.getX(), coordsOut[3 * i + 2], 1e-12);
+                assertEquals(p.getY(), coordsOut[3 * i + 3], 1e-12);
+                assertEquals(p.getZ(), coordsOut[3 * i + 4], 1e-12);
+            }
+        }
+    }
+    
+    /**
+     * Checks the matrices computed directly for the affine transforms, and
+     * their inverses.
+     */
+    @Test
+    public void testAffineTransform_MatrixAndInverse()
+    {
+        // rotations around a center computed as a single matrix
+        double a1 = 0.3, a2 = -0.5, a3 = 1.2;
+        AffineTransform3D chain = AffineTransform3D.createTranslation(4, -2, 1)
+                .compose(AffineTransform3D.createTranslation(10, 20, 30))
+                .compose(AffineTransform3D.createRotationOz(a3))
+                .compose(AffineTransform3D.createRotationOy(a2))
+                .compose(AffineTransform3D.createRotationOx(a1))
+                .compose(AffineTransform3D.createTranslation(-10, -20, -30));
+        AffineTransform3D flat = AffineTransform3D.createCenteredRotation(new Point3D(10, 20, 30), a1, a2, a3, new Point3D(4, -2, 1));
+        double[][] expected = chain.affineMatrix();
+        double[][] mat = flat.affineMatrix();
+        for (int i = 0; i < 3; i++)
+        {
+            assertArrayEquals(expected[i], mat[i], 1e-10);
+        }
+
+        // inverses of 3D transforms
+        Point3D p3 = new Point3D(3.5, -2, 7);
+        for (AffineTransform3D transfo : new AffineTransform3D[] {flat, new Translation3D(1, 2, 3)})
+        {
+            Point3D q = transfo.inverse().transform(transfo.transform(p3));
+            assertEquals(p3.getX(), q.getX(), 1e-10);
+            assertEquals(p3.getY(), q.getY(), 1e-10);
+            assertEquals(p3.getZ(), q.getZ(), 1e-10);
+        }
+
+        // matrices and inverses of 2D transforms
+        Point2D center = new Point2D(20, 10);
+        AffineTransform2D[] transforms2d = new AffineTransform2D[] {
+                new Translation2D(3, -4),
+                new CenteredMotion2D(center, 25, 3, -4),
+                new CenteredSimilarity2D(center, 0.5, -40, 3, -4) };
+        Point2D p2 = new Point2D(7.5, -3);
+        for (AffineTransform2D transfo : transforms2d)
+        {
+            Point2D expectedPoint = transfo.transform(p2);
+            Point2D q = new MatrixAffineTransform2D().compose(transfo).transform(p2);
+            assertEquals(expectedPoint.getX(), q.getX(), 1e-10);
+            assertEquals(expectedPoint.getY(), q.getY(), 1e-10);
+            q = transfo.inverse().transform(expectedPoint);
+            assertEquals(p2.getX(), q.getX(), 1e-10);
+            assertEquals(p2.getY(), q.getY(), 1e-10);
+        }
+    }
+    
+    /**
+     * Checks the in-place operations on 2D matrix transforms, and their
+     * serialization.
+     */
+    @Test
+    public void testMatrixAffineTransform2D_InPlace() throws IOException
+    {
+        Point2D center = new Point2D(20, 10);
+        AffineTransform2D rotation = AffineTransform2D.createRotation(center, Math.toRadians(30));
+        Point2D p = rotation.transform(center);
+        assertEquals(20, p.getX(), 1e-10);
+        assertEquals(10, p.getY(), 1e-10);
+
+        MatrixAffineTransform2D scaling = AffineTransform2D.createScaling(2, 0.5).toMatrix();
+        MatrixAffineTransform2D similarity = new CenteredSimilarity2D(center, 0.5, -40, 3, -4).toMatrix();
+        double[] expected = ((MatrixAffineTransform2D) similarity.compose(scaling)).getCoefficients(null);
+        assertArrayEquals(expected, new MatrixAffineTransform2D(similarity).concatenate(scaling).getCoefficients(null), 1e-12);
+        assertArrayEquals(expected, new MatrixAffineTransform2D(scaling).preConcatenate(similarity).getCoefficients(null), 1e-12);
+
+        // the product of a transform with its inverse is the identity
+        MatrixAffineTransform2D inv = new MatrixAffineTransform2D(similarity).invert();
+        assertArrayEquals(new double[] {1, 0, 0, 0, 1, 0}, inv.concatenate(similarity).getCoefficients(null), 1e-12);
+
+        StringWriter buffer = new StringWriter();
+        new JsonRegistrationWriter(buffer).writeTransform(scaling);
+        assertTrue(buffer.toString().contains("AffineTransform2D"));
+    }
+
+    /**
+     * Test the in-place and into-destination operations of 3D matrix
+     * transforms, including the aliasing of the destination with an operand.
+     */
+    @Test
+    public void testMatrixAffineTransform3D_InPlace()
+    {
+        Point3D center = new Point3D(10, 20, 30);
+        MatrixAffineTransform3D rotation = AffineTransform3D.createCenteredRotation(center, 0.3, -0.5, 1.2, new Point3D(4, -2, 1)).toMatrix();
+        Translation3D shift = new Translation3D(1, 2, 3);
+        double[] expected = rotation.compose(shift).getCoefficients(null);
+        
+        MatrixAffineTransform3D dest = new MatrixAffineTransform3D();
+        assertArrayEquals(expected, rotation.compose(shift, dest).getCoefficients(null), 1e-12);
+        assertArrayEquals(expected, shift.preConcatenate(rotation, dest).getCoefficients(null), 1e-12);
+        assertArrayEquals(expected, new MatrixAffineTransform3D(rotation).concatenate(shift).getCoefficients(null), 1e-12);
+        
+        // the destination may be one of the operands
+        dest.setTransform(shift).preConcatenate(rotation);
+        assertArrayEquals(expected, dest.getCoefficients(new double[12]), 1e-12);
+        
+        // the product of a transform with its inverse is the identity
+        rotation.invert(dest).concatenate(rotation);
+        assertArrayEquals(new double[] {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0}, dest.getCoefficients(null), 1e-12);
+        
+        double[] point = new double[] {3.5, -2, 7};
+        Point3D q = rotation.transform(new Point3D(3.5, -2, 7));
+        rotation.transform(point, point);
+        assertArrayEquals(new double[] {q.getX(), q.getY(), q.getZ()}, point, 1e-12);
+    }
+    
+    private static final void assertSameValues(Image3D expected, Image3D image)
+    {
+        assertSameValues(expected, image, 0.0);
+    }
+    
+    private static final void assertSameValues(Image3D expected, Image3D image, double tol)
+    {
+        for (int z = 0; z < expected.getSize(2); z++)
+        {
+            for (int y = 0; y < expected.getSize(1); y++)
+            {
+                for (int x = 0; x < expected.getSize(0); x++)
+                {
+                    assertEquals(expected.getValue(x, y, z), image.getValue(x, y, z), tol);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,99 @@
+/**
+ *
+ */
+package inrae.bibs.register.fft;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.process.FloatProcessor;
+import inrae.bibs.register.Point2D;
+import inrae.bibs.register.transforms.AffineTransform2D;
+import inrae.bibs.register.transforms.CenteredSimilarity2D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class FourierMellinTest
+{
+    /**
+     * Test method for {@link inrae.bibs.register.fft.FourierMellin#estimate(ij.process.ImageProcessor, ij.process.ImageProcessor)}.
+     */
+    @Test
+    public void testEstimate()
+    {
+        int sizeX = 128, sizeY = 120;
+        Point2D center = new Point2D(sizeX / 2.0, sizeY / 2.0);
+        double[][] blobs = createBlobs(60, center, 40);
+        FloatProcessor reference = createImage(sizeX, sizeY, blobs, null);
+
+        // the second angle can only be distinguished from its opposite using
+        // the translation peak
+        FourierMellin estimator = new FourierMellin();
+        for (double[] params : new double[][] { {12.0, 0.15, 3.0, -2.0}, {150.0, -0.2, -4.0, 5.0} })
+        {
+            CenteredSimilarity2D sim = new CenteredSimilarity2D(center, params[1], params[0], params[2], params[3]);
+            FloatProcessor moving = createImage(sizeX, sizeY, blobs, sim.inverse());
+
+            CenteredSimilarity2D res = estimator.estimate(reference, moving);
+            assertEquals(center.getX(), res.centerX, 1e-10);
+            assertEquals(center.getY(), res.centerY, 1e-10);
+            assertEquals(params[0], res.angleDeg, 0.3);
+            assertEquals(params[1], res.logScaling, 0.02);
+            assertEquals(params[2], res.shiftX, 0.3);
+            assertEquals(params[3], res.shiftY, 0.3);
+        }
+    }
+
+    /**
+     * Creates random blobs within a disk, each blob being defined by its
+     * center, its size, and its intensity.
+     */
+    private static final double[][] createBlobs(int count, Point2D center, double radius)
+    {
+        Random random = new Random(3);
+        double[][] blobs = new double[count][];
+        for (int i = 0; i < count; i++)
+        {
+            double rho = radius * Math.sqrt(random.nextDouble());
+            double theta = 2 * Math.PI * random.nextDouble();
+            blobs[i] = new double[] {
+                    center.getX() + rho * Math.cos(theta), center.getY() + rho * Math.sin(theta), 
+                    1.5 + 2.5 * random.nextDouble(), 20 + 80 * random.nextDouble() };
+        }
+        return blobs;
+    }
+
+    /**
+     * Creates the image of the blobs, transformed by the inverse of the
+     * specified transform, or not transformed if the inverse is null.
+     */
+    private static final FloatProcessor createImage(int sizeX, int sizeY, double[][] blobs, AffineTransform2D inverse)
+    {
+        FloatProcessor image = new FloatProcessor(sizeX, sizeY);
+        for (int y = 0; y < sizeY; y++)
+        {
+            for (int x = 0; x < sizeX; x++)
+            {
+                Point2D p = new Point2D(x, y);
+                if (inverse != null)
+                {
+                    p = inverse.transform(p);
+                }
+                double value = 0;
+                for (double[] blob : blobs)
+                {
+                    double dx = p.getX() - blob[0];
+                    double dy = p.getY() - blob[1];
+                    value += blob[3] * Math.exp(-(dx * dx + dy * dy) / (2 * blob[2] * blob[2]));
+                }
+                image.setf(x, y, (float) value);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package inrae.bibs.register.fft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import inrae.bibs.register.transforms.Translation2D;
+import inrae.bibs.register.transforms.Translation3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class PhaseCorrelationTest
+{
+    /**
+     * Test method for {@link inrae.bibs.register.fft.FFT3D#forward(double[], double[], double[])}.
+     */
+    @Test
+    public void testFFT3D()
+    {
+        // sizes involving radices 2, 3, 4 and generic radices
+        int sizeX = 10, sizeY = 12, sizeZ = 7;
+        FFT3D fft = new FFT3D(sizeX, sizeY, sizeZ);
+        fft.setThreadCount(2);
+
+        Random random = new Random(12);
+        double[] values = new double[fft.length()];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = random.nextDouble() - 0.5;
+        }
+        double[] re = new double[fft.spectrumLength()];
+        double[] im = new double[fft.spectrumLength()];
+        fft.forward(values, re, im);
+
+        // compare some coefficients with the definition of the transform
+        int sizeXh = sizeX / 2 + 1;
+        for (int[] k : new int[][] { {0, 0, 0}, {1, 0, 0}, {5, 3, 2}, {2, 11, 6}, {4, 7, 1} })
+        {
+            double sumRe = 0, sumIm = 0;
+            for (int z = 0; z < sizeZ; z++)
+            {
+                for (int y = 0; y < sizeY; y++)
+                {
+                    for (int x = 0; x < sizeX; x++)
+                    {
+                        double angle = -2 * Math.PI * ((double) k[0] * x / sizeX + (double) k[1] * y / sizeY + (double) k[2] * z / sizeZ);
+                        double v = values[(z * sizeY + y) * sizeX + x];
+                        sumRe += v * Math.cos(angle);
+                        sumIm += v * Math.sin(angle);
+                    }
+                }
+            }
+            int index = (k[2] * sizeY + k[1]) * sizeXh + k[0];
+            assertEquals(sumRe, re[index], 1e-10);
+            assertEquals(sumIm, im[index], 1e-10);
+        }
+
+        // the inverse transform returns the original values
+        double[] res = new double[fft.length()];
+        fft.inverse(re, im, res);
+        for (int i = 0; i < values.length; i++)
+        {
+            assertEquals(values[i], res[i], 1e-12);
+        }
+    }
+
+    /**
+     * Test method for {@link inrae.bibs.register.fft.PhaseCorrelation#estimate(ij.process.ImageProcessor, ij.process.ImageProcessor)}.
+     */
+    @Test
+    public void testEstimate2D()
+    {
+        // images with sizes that are not powers of two
+        Translation2D shift = new Translation2D(7.3, -4.6);
+        FloatProcessor reference = new FloatProcessor(100, 90);
+        FloatProcessor moving = new FloatProcessor(100, 90);
+        for (int y = 0; y < 90; y++)
+        {
+            for (int x = 0; x < 100; x++)
+            {
+                reference.setf(x, y, (float) blobs(x, y, 0));
+                moving.setf(x, y, (float) blobs(x - shift.shiftX, y - shift.shiftY, 0));
+            }
+        }
+
+        PhaseCorrelation estimator = new PhaseCorrelation();
+        Translation2D res = estimator.estimate(reference, moving);
+        assertEquals(shift.shiftX, res.shiftX, 0.1);
+        assertEquals(shift.shiftY, res.shiftY, 0.1);
+        assertTrue(estimator.getPeakValue() > 0.5);
+
+        // swapping images reverses the translation
+        res = estimator.estimate(moving, reference);
+        assertEquals(-shift.shiftX, res.shiftX, 0.1);
+        assertEquals(-shift.shiftY, res.shiftY, 0.1);
+    }
+
+    /**
+     * Test method for {@link inrae.bibs.register.fft.PhaseCorrelation#estimate(ij.ImageStack, ij.ImageStack)}.
+     */
+    @Test
+    public void testEstimate3D()
+    {
+        Translation3D shift = new Translation3D(-3.4, 2.0, 1.7);
+        ImageStack reference = ImageStack.create(40, 36, 30, 32);
+        ImageStack moving = ImageStack.create(40, 36, 30, 32);
+        for (int z = 0; z < 30; z++)
+        {
+            for (int y = 0; y < 36; y++)
+            {
+                for (int x = 0; x < 40; x++)
+                {
+                    reference.setVoxel(x, y, z, blobs(x, y, z));
+                    moving.setVoxel(x, y, z, 2 * blobs(x - shift.shiftX, y - shift.shiftY, z - shift.shiftZ) + 10);
+                }
+            }
+        }
+
+        PhaseCorrelation estimator = new PhaseCorrelation();
+        estimator.setThreadCount(2);
+        Translation3D res = estimator.estimate(reference, moving);
+        assertEquals(shift.shiftX, res.shiftX, 0.1);
+        assertEquals(shift.shiftY, res.shiftY, 0.1);
+        assertEquals(shift.shiftZ, res.shiftZ, 0.1);
+    }
+
+    /**
+     * A function with several blobs of different sizes.
+     */
+    private static final double blobs(double x, double y, double z)
+    {
+        double d1 = (x - 14) * (x - 14) + (y - 17) * (y - 17) + (z - 12) * (z - 12);
+        double d2 = (x - 30) * (x - 30) + (y - 24) * (y - 24) + (z - 18) * (z - 18);
+        double d3 = (x - 22) * (x - 22) + (y - 10) * (y - 10) + (z - 15) * (z - 15);
+        return 100 * Math.exp(-d1 / (2 * 3 * 3)) + 60 * Math.exp(-d2 / (2 * 5 * 5)) + 80 * Math.exp(-d3 / (2 * 2 * 2));
+    }
+}
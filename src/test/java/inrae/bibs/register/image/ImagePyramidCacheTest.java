@@ -0,0 +1,111 @@
+/**
+ *
+ */
+package inrae.bibs.register.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * @author dlegland
+ *
+ */
+public class ImagePyramidCacheTest
+{
+    /**
+     * Test method for {@link inrae.bibs.register.image.ImagePyramid#reduce(ij.ImageStack, int)}.
+     */
+    @Test
+    public void testReduce()
+    {
+        // constant images remain constant, planar images remain planar
+        ImageStack image = ImageStack.create(11, 8, 1, 16);
+        Images3D.fill(image, 1000);
+        ImageStack reduced = ImagePyramid.reduce(image, 2);
+        assertEquals(6, reduced.getWidth());
+        assertEquals(4, reduced.getHeight());
+        assertEquals(1, reduced.getSize());
+        assertEquals(16, reduced.getBitDepth());
+        assertEquals(1000, reduced.getVoxel(5, 3, 0), 0.0);
+
+        // voxel (x, y, z) of level 2 corresponds to voxel 4 * (x, y, z) of
+        // the image, and linear ramps are preserved within the image
+        ImageStack ramp = createStack(20, 20, 20);
+        ImageStack level2 = new ImagePyramid(ramp).getLevel(2);
+        assertEquals(5, level2.getSize());
+        assertEquals(ramp.getVoxel(8, 8, 12), level2.getVoxel(2, 2, 3), 1e-3);
+
+        // channels of color images are reduced independently
+        ImageStack rgb = ImageStack.create(8, 8, 4, 24);
+        Images3D.fill(rgb, 0x204080);
+        ImageStack reducedRGB = ImagePyramid.reduce(rgb, 2);
+        assertEquals(24, reducedRGB.getBitDepth());
+        assertEquals(2, reducedRGB.getSize());
+        assertEquals(0x204080, ((int[]) reducedRGB.getPixels(1))[5] & 0x00FFFFFF);
+    }
+
+    /**
+     * Test method for {@link inrae.bibs.register.image.ImagePyramidCache#getLevel(ij.ImagePlus, int)}.
+     */
+    @Test
+    public void testGetLevel()
+    {
+        // the budget allows to keep the levels of a single image
+        long bytes = 4L * (8 * 8 * 8 + 4 * 4 * 4);
+        ImagePyramidCache cache = new ImagePyramidCache(bytes + 10);
+        ImagePlus image1 = new ImagePlus("image1", createStack(16, 16, 16));
+        ImagePlus image2 = new ImagePlus("image2", createStack(16, 16, 16));
+
+        // level zero is the image itself
+        assertSame(image1.getStack(), cache.getLevel(image1, 0));
+
+        ImageStack level2 = cache.getLevel(image1, 2);
+        assertEquals(4, level2.getWidth());
+        assertSame(level2, cache.getLevel(image1, 2));
+        assertEquals(bytes, cache.getUsedBytes());
+
+        // signaled modification of the image leads to a new pyramid
+        image1.getStack().setVoxel(3, 4, 2, 100);
+        ImageChangeTracker.markModified(image1.getStack());
+        ImageStack level2b = cache.getLevel(image1, 2);
+        assertNotSame(level2, level2b);
+        assertEquals(1, cache.size());
+
+        // as well as the replacement of a slice
+        image1.getStack().setPixels(new float[16 * 16], 3);
+        assertNotSame(level2b, cache.getLevel(image1, 2));
+
+        // the pyramid of the first image is discarded
+        cache.getLevel(image2, 2);
+        assertEquals(1, cache.size());
+        assertEquals(bytes, cache.getUsedBytes());
+
+        cache.remove(image2);
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Creates a float image containing a linear ramp.
+     */
+    private static final ImageStack createStack(int sizeX, int sizeY, int sizeZ)
+    {
+        ImageStack stack = ImageStack.create(sizeX, sizeY, sizeZ, 32);
+        for (int z = 0; z < sizeZ; z++)
+        {
+            for (int y = 0; y < sizeY; y++)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    stack.setVoxel(x, y, z, x * 2 + y * 3 + z * 5);
+                }
+            }
+        }
+        return stack;
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ *
+ */
+package inrae.bibs.register.optim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import inrae.bibs.register.Point2D;
+import inrae.bibs.register.Point3D;
+import inrae.bibs.register.transforms.AffineTransform2D;
+import inrae.bibs.register.transforms.CenteredMotion2D;
+import inrae.bibs.register.transforms.Translation3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class IntensityRegistrationTest
+{
+    /**
+     * Test method for {@link inrae.bibs.register.optim.IntensityRegistration#register2D(java.util.function.Function, double[], double[])}.
+     */
+    @Test
+    public void testRegister2D_Motion()
+    {
+        // the moving image is the reference image transformed by the inverse
+        // of the motion to recover
+        Point2D center = new Point2D(32, 32);
+        CenteredMotion2D motion = new CenteredMotion2D(center, 8.0, 3.4, -2.2);
+        AffineTransform2D inverse = motion.inverse();
+        FloatProcessor reference = new FloatProcessor(64, 64);
+        FloatProcessor moving = new FloatProcessor(64, 64);
+        for (int y = 0; y < 64; y++)
+        {
+            for (int x = 0; x < 64; x++)
+            {
+                reference.setf(x, y, (float) blobs(x, y, 0));
+                Point2D p = inverse.transform(new Point2D(x, y));
+                moving.setf(x, y, (float) blobs(p.getX(), p.getY(), 0));
+            }
+        }
+
+        for (ImageMetric metric : new ImageMetric[] {
+                new MeanSquaredError(reference, moving), new NormalizedCrossCorrelation(reference, moving) })
+        {
+            double[] initial = new double[] {0, 0, 0};
+            assertTrue(metric.evaluate2D(new CenteredMotion2D(center, 0, 0, 0)) > metric.evaluate2D(motion));
+
+            IntensityRegistration registration = new IntensityRegistration(metric, new NelderMeadOptimizer());
+            double[] params = registration.register2D(p -> new CenteredMotion2D(center, p[2], p[0], p[1]), initial, new double[] {1, 1, 1});
+            assertEquals(3.4, params[0], 0.05);
+            assertEquals(-2.2, params[1], 0.05);
+            assertEquals(8.0, params[2], 0.1);
+        }
+    }
+
+    /**
+     * Test method for {@link inrae.bibs.register.optim.IntensityRegistration#register3D(java.util.function.Function, double[], double[])}.
+     */
+    @Test
+    public void testRegister3D_Translation()
+    {
+        int size = 24;
+        Point3D shift = new Point3D(1.6, -2.3, 0.8);
+        ImageStack reference = ImageStack.create(size, size, size, 32);
+        ImageStack moving = ImageStack.create(size, size, size, 32);
+        for (int z = 0; z < size; z++)
+        {
+            for (int y = 0; y < size; y++)
+            {
+                for (int x = 0; x < size; x++)
+                {
+                    reference.setVoxel(x, y, z, blobs(x, y, z));
+                    moving.setVoxel(x, y, z, 2 * blobs(x - shift.getX(), y - shift.getY(), z - shift.getZ()) + 10);
+                }
+            }
+        }
+
+        // correlation is not sensitive to the change of intensity
+        ImageMetric metric = new NormalizedCrossCorrelation(reference, moving);
+        metric.setThreadCount(2);
+        Optimizer optimizer = new PatternSearchOptimizer();
+        optimizer.setParameterTolerance(1e-3);
+        IntensityRegistration registration = new IntensityRegistration(metric, optimizer);
+        double[] params = registration.register3D(p -> new Translation3D(p[0], p[1], p[2]), new double[3], new double[] {1, 1, 1});
+        assertEquals(shift.getX(), params[0], 0.05);
+        assertEquals(shift.getY(), params[1], 0.05);
+        assertEquals(shift.getZ(), params[2], 0.05);
+        assertTrue(optimizer.getBestValue() < 1e-3);
+    }
+
+    /**
+     * A smooth function with two blobs of different sizes.
+     */
+    private static final double blobs(double x, double y, double z)
+    {
+        double d1 = (x - 14) * (x - 14) + (y - 17) * (y - 17) + (z - 12) * (z - 12);
+        double d2 = (x - 40) * (x - 40) + (y - 24) * (y - 24) + (z - 8) * (z - 8);
+        return 100 * Math.exp(-d1 / (2 * 5 * 5)) + 60 * Math.exp(-d2 / (2 * 9 * 9));
+    }
+}
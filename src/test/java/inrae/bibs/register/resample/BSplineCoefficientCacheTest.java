@@ -0,0 +1,105 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import inrae.bibs.register.image.ImageChangeTracker;
+
+/**
+ * @author dlegland
+ *
+ */
+public class BSplineCoefficientCacheTest
+{
+    /**
+     * Test method for {@link inrae.bibs.register.resample.BSplineCoefficientCache#getCoefficients(ij.ImageStack)}.
+     */
+    @Test
+    public void testGetCoefficients_Reuse()
+    {
+        BSplineCoefficientCache cache = new BSplineCoefficientCache(1 << 20);
+        ImageStack image = createStack(10, 8, 6);
+
+        ImageStack coeffs = cache.getCoefficients(image);
+        assertEquals(32, coeffs.getBitDepth());
+        assertEquals(1, cache.size());
+        assertEquals(4L * 10 * 8 * 6, cache.getUsedBytes());
+
+        // the same coefficients are returned while the image is not modified
+        assertSame(coeffs, cache.getCoefficients(image));
+
+        // signaled modification of the image leads to new coefficients
+        image.setVoxel(3, 4, 2, 100);
+        ImageChangeTracker.markModified(image);
+        ImageStack coeffs2 = cache.getCoefficients(image);
+        assertNotSame(coeffs, coeffs2);
+        assertEquals(1, cache.size());
+
+        // another image with the same content uses another entry
+        ImageStack image2 = image.duplicate();
+        assertNotSame(coeffs2, cache.getCoefficients(image2));
+        assertEquals(2, cache.size());
+
+        cache.remove(image);
+        assertEquals(1, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    /**
+     * Test method for {@link inrae.bibs.register.resample.BSplineCoefficientCache#getCoefficients(ij.ImageStack)}.
+     */
+    @Test
+    public void testGetCoefficients_Eviction()
+    {
+        // the budget allows to keep the coefficients of two images
+        long bytes = 4L * 10 * 8 * 6;
+        BSplineCoefficientCache cache = new BSplineCoefficientCache(2 * bytes + 10);
+        ImageStack image1 = createStack(10, 8, 6);
+        ImageStack image2 = createStack(10, 8, 6);
+        ImageStack image3 = createStack(10, 8, 6);
+
+        ImageStack coeffs1 = cache.getCoefficients(image1);
+        cache.getCoefficients(image2);
+
+        // access the first image, such that the second one is discarded
+        assertSame(coeffs1, cache.getCoefficients(image1));
+        cache.getCoefficients(image3);
+        assertEquals(2, cache.size());
+        assertEquals(2 * bytes, cache.getUsedBytes());
+        assertSame(coeffs1, cache.getCoefficients(image1));
+
+        // images larger than the budget are not cached
+        ImageStack large = createStack(20, 20, 20);
+        ImageStack coeffs = cache.getCoefficients(large);
+        assertEquals(20, coeffs.getSize());
+        assertEquals(2, cache.size());
+
+        cache.setMaxBytes(bytes);
+        assertEquals(1, cache.size());
+    }
+
+    private static final ImageStack createStack(int sizeX, int sizeY, int sizeZ)
+    {
+        ImageStack stack = ImageStack.create(sizeX, sizeY, sizeZ, 8);
+        for (int z = 0; z < sizeZ; z++)
+        {
+            for (int y = 0; y < sizeY; y++)
+            {
+                for (int x = 0; x < sizeX; x++)
+                {
+                    stack.setVoxel(x, y, z, (x * 7 + y * 3 + z * 11) % 256);
+                }
+            }
+        }
+        return stack;
+    }
+}
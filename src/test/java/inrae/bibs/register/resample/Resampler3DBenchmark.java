@@ -0,0 +1,175 @@
+/**
+ * 
+ */
+package inrae.bibs.register.resample;
+
+import java.util.Locale;
+import java.util.Random;
+
+import ij.ImageStack;
+import inrae.bibs.register.Transform3D;
+import inrae.bibs.register.transforms.AffineTransform3D;
+import inrae.bibs.register.transforms.MatrixAffineTransform3D;
+import inrae.bibs.register.transforms.Translation3D;
+
+/**
+ * Measures the running time of the 3D resampling for various settings. This
+ * is not a unit test, and must be run manually using the main method.
+ * 
+ * @author dlegland
+ *
+ */
+public class Resampler3DBenchmark
+{
+    /** The number of runs for each measure, the best time is retained */
+    static final int NUMBER_OF_RUNS = 5;
+    
+    public static void main(String[] args)
+    {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        System.out.println(String.format(Locale.ENGLISH, "Resampling of a %d^3 8-bits stack", size));
+        
+        ImageStack stack = createRandomStack(size, 8);
+        
+        // oblique rotation around the center of the image
+        Transform3D transfo = createCenteredRotation(size, 20, 30, 10);
+        
+        System.out.println("Tile size (rotation around X and Y axes)");
+        for (int tileSize : new int[] {0, 16, 32, 64, Resampler3D.AUTO_TILE_SIZE})
+        {
+            Resampler3D resampler = new Resampler3D(transfo);
+            resampler.setThreadCount(1);
+            resampler.setTileSize(tileSize);
+            String name = tileSize == Resampler3D.AUTO_TILE_SIZE ? "auto" : (tileSize == 0 ? "row-major" : Integer.toString(tileSize));
+            printTime(name, measure(resampler, stack));
+        }
+        
+        System.out.println("Nearest-neighbor translation");
+        String[] names = new String[] {"integer shift", "sub-voxel shift"};
+        Transform3D[] shifts = new Transform3D[] {new Translation3D(2, -1, 1), new Translation3D(2.3, -1.6, 0.7)};
+        for (int i = 0; i < shifts.length; i++)
+        {
+            Resampler3D resampler = new Resampler3D(shifts[i]);
+            resampler.setThreadCount(1);
+            printTime(names[i], measure(resampler, stack));
+        }
+        
+        System.out.println("Interpolation (rotation around X and Y axes)");
+        for (Interpolation interp : Interpolation.values())
+        {
+            Resampler3D resampler = new Resampler3D(transfo);
+            resampler.setThreadCount(1);
+            resampler.setInterpolation(interp);
+            printTime(interp.getLabel(), measure(resampler, stack));
+        }
+        
+        System.out.println("Shear decomposition (rotation around Y axis, then around Z axis)");
+        Transform3D[] axisRotations = new Transform3D[] {
+                createCenteredRotation(size, 0, 25, 0), createCenteredRotation(size, 0, 0, 25) };
+        for (Transform3D rotation : axisRotations)
+        {
+            for (Interpolation interp : new Interpolation[] {Interpolation.LINEAR, Interpolation.CUBIC})
+            {
+                for (boolean shears : new boolean[] {false, true})
+                {
+                    Resampler3D resampler = new Resampler3D(rotation);
+                    resampler.setThreadCount(1);
+                    resampler.setInterpolation(interp);
+                    resampler.setShearRotation(shears);
+                    printTime(interp.getLabel() + (shears ? " (shears)" : ""), measure(resampler, stack));
+                }
+            }
+        }
+        
+        System.out.println("Separable passes (downsampling by a factor 2)");
+        ImageStack halfStack = ImageStack.create(size / 2, size / 2, size / 2, 8);
+        Transform3D scaling = new MatrixAffineTransform3D(2, 0, 0, 0.5, 0, 2, 0, 0.5, 0, 0, 2, 0.5);
+        // a negligible off-diagonal coefficient prevents the use of separable passes
+        Transform3D nearlyScaling = new MatrixAffineTransform3D(2, 1e-12, 0, 0.5, 0, 2, 0, 0.5, 0, 0, 2, 0.5);
+        for (Interpolation interp : Interpolation.values())
+        {
+            for (Transform3D transform : new Transform3D[] {nearlyScaling, scaling})
+            {
+                Resampler3D resampler = new Resampler3D(transform);
+                resampler.setThreadCount(1);
+                resampler.setInterpolation(interp);
+                String name = interp.getLabel() + (transform == scaling ? " (separable)" : "");
+                printTime(name, measure(resampler, halfStack, stack));
+            }
+        }
+        
+        System.out.println("Interpolation (sub-voxel translation)");
+        Transform3D translation = new Translation3D(2.3, -1.6, 0.7);
+        for (Interpolation interp : Interpolation.values())
+        {
+            Resampler3D resampler = new Resampler3D(translation);
+            resampler.setThreadCount(1);
+            resampler.setInterpolation(interp);
+            printTime(interp.getLabel(), measure(resampler, stack));
+        }
+    }
+    
+    /**
+     * Creates a 3D image of the specified size, filled with random values.
+     */
+    static final ImageStack createRandomStack(int size, int bitDepth)
+    {
+        ImageStack stack = ImageStack.create(size, size, size, bitDepth);
+        Random random = new Random(42);
+        for (int z = 0; z < size; z++)
+        {
+            for (int y = 0; y < size; y++)
+            {
+                for (int x = 0; x < size; x++)
+                {
+                    stack.setVoxel(x, y, z, random.nextInt(256));
+                }
+            }
+        }
+        return stack;
+    }
+    
+    /**
+     * Creates a rotation around the center of an image with the given size,
+     * using angles in degrees around the X, Y and Z axes.
+     */
+    static final AffineTransform3D createCenteredRotation(int size, double angleX, double angleY, double angleZ)
+    {
+        double c = size / 2.0;
+        return AffineTransform3D.createTranslation(c, c, c)
+                .compose(AffineTransform3D.createRotationOz(Math.toRadians(angleZ)))
+                .compose(AffineTransform3D.createRotationOy(Math.toRadians(angleY)))
+                .compose(AffineTransform3D.createRotationOx(Math.toRadians(angleX)))
+                .compose(AffineTransform3D.createTranslation(-c, -c, -c));
+    }
+    
+    /**
+     * Returns the best running time of the resampler, in milliseconds.
+     */
+    static final double measure(Resampler3D resampler, ImageStack stack)
+    {
+        return measure(resampler, stack, stack);
+    }
+    
+    /**
+     * Returns the best running time of the resampler using different
+     * reference and moving images, in milliseconds.
+     */
+    static final double measure(Resampler3D resampler, ImageStack refStack, ImageStack movingStack)
+    {
+        double best = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < NUMBER_OF_RUNS; i++)
+        {
+            long t0 = System.nanoTime();
+            resampler.resample(refStack, movingStack);
+            long t1 = System.nanoTime();
+            best = Math.min(best, (t1 - t0) / 1e6);
+        }
+        return best;
+    }
+    
+    static final void printTime(String name, double timeInMillis)
+    {
+        System.out.println(String.format(Locale.ENGLISH, "  %-20s %10.2f ms", name, timeInMillis));
+    }
+}
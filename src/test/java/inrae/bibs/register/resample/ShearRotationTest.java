@@ -0,0 +1,67 @@
+/**
+ *
+ */
+package inrae.bibs.register.resample;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import inrae.bibs.register.Point3D;
+import inrae.bibs.register.Transform3D;
+import inrae.bibs.register.transforms.AffineTransform3D;
+import inrae.bibs.register.transforms.Translation3D;
+
+/**
+ * @author dlegland
+ *
+ */
+public class ShearRotationTest
+{
+    /**
+     * Test method for {@link inrae.bibs.register.resample.ShearRotation#create(double[], Interpolation)}.
+     *
+     * Checks which transforms of the Motion model of the 3D registration
+     * plugin, that rotates around the X, then the Y and the Z axes, can be
+     * decomposed into shears.
+     */
+    @Test
+    public void testCreate_MotionModel()
+    {
+        // rotations around a single axis among Y and Z
+        assertNotNull(create(createMotion(0, 0, 25), Interpolation.LINEAR));
+        assertNotNull(create(createMotion(0, -30, 0), Interpolation.CUBIC));
+        assertNotNull(create(createMotion(0, 0, 150), Interpolation.LINEAR));
+
+        // rotations around the X axis use the general resampling
+        assertNull(create(createMotion(20, 0, 0), Interpolation.LINEAR));
+
+        // compositions of rotations around several axes use the general resampling
+        assertNull(create(createMotion(0, 10, 25), Interpolation.LINEAR));
+        assertNull(create(createMotion(5, 0, 25), Interpolation.LINEAR));
+        assertNull(create(createMotion(5, 10, 25), Interpolation.LINEAR));
+
+        // translations, and interpolations that are not decomposed into passes
+        assertNull(create(createMotion(0, 0, 0), Interpolation.LINEAR));
+        assertNull(create(new Translation3D(1.5, -2, 0.5), Interpolation.LINEAR));
+        assertNull(create(createMotion(0, 0, 25), Interpolation.NEAREST));
+        assertNull(create(createMotion(0, 0, 25), Interpolation.BSPLINE));
+    }
+
+    /**
+     * Creates a transform of the Motion model, with angles in degrees, as in
+     * the 3D registration plugin.
+     */
+    private static final Transform3D createMotion(double thetaX, double thetaY, double thetaZ)
+    {
+        return AffineTransform3D.createCenteredRotation(new Point3D(20, 20, 20),
+                Math.toRadians(thetaX), Math.toRadians(thetaY), Math.toRadians(thetaZ),
+                new Point3D(1.5, -2, 0.5));
+    }
+
+    private static final ShearRotation create(Transform3D transform, Interpolation interpolation)
+    {
+        return ShearRotation.create(Resampler3D.affineCoefficients(transform), interpolation);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package inrae.bibs.register.transforms;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import inrae.bibs.register.Point3D;
+
+/**
+ * Measures the running time and the memory allocated by the operations on 3D
+ * affine transforms, comparing the methods returning new transforms with the
+ * in-place and into-destination variants. This is not a unit test, and must
+ * be run manually using the main method.
+ *
+ * The allocated memory is obtained from the extension of the ThreadMXBean
+ * provided by HotSpot virtual machines.
+ *
+ * @author dlegland
+ *
+ */
+public class AffineTransform3DBenchmark
+{
+    /** The number of operations for each measure */
+    static final int NUMBER_OF_OPERATIONS = 10_000_000;
+
+    /** Used to prevent the elimination of the computations */
+    static double sink = 0;
+
+    public static void main(String[] args)
+    {
+        MatrixAffineTransform3D rotation = AffineTransform3D.createCenteredRotation(
+                new Point3D(10, 20, 30), 0.3, -0.5, 1.2, new Point3D(4, -2, 1)).toMatrix();
+        MatrixAffineTransform3D shift = AffineTransform3D.createTranslation(1, 2, 3).toMatrix();
+        MatrixAffineTransform3D dest = new MatrixAffineTransform3D();
+        double[] coeffs = new double[12];
+        double[] point = new double[] {3.5, -2, 7};
+
+        System.out.println("Composition");
+        measure("compose", () -> sink += ((MatrixAffineTransform3D) rotation.compose(shift)).m03);
+        measure("compose into destination", () -> sink += rotation.compose(shift, dest).m03);
+        measure("concatenate in place", () -> sink += dest.setTransform(rotation).concatenate(shift).m03);
+        measure("preConcatenate in place", () -> sink += dest.setTransform(shift).preConcatenate(rotation).m03);
+
+        System.out.println("Inversion");
+        measure("inverse", () -> sink += ((MatrixAffineTransform3D) rotation.inverse()).m03);
+        measure("invert into destination", () -> sink += rotation.invert(dest).m03);
+
+        System.out.println("Coefficients and points");
+        measure("affineMatrix", () -> sink += rotation.affineMatrix()[0][3]);
+        measure("getCoefficients", () -> sink += rotation.getCoefficients(coeffs)[3]);
+        measure("transform(Point3D)", () -> sink += rotation.transform(new Point3D(3.5, -2, 7)).getX());
+        measure("transform(double[], double[])", () -> sink += rotation.transform(point, coeffs)[0]);
+    }
+
+    private static final void measure(String name, Runnable operation)
+    {
+        // warm-up
+        for (int i = 0; i < NUMBER_OF_OPERATIONS / 10; i++)
+        {
+            operation.run();
+        }
+
+        long bytes0 = allocatedBytes();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < NUMBER_OF_OPERATIONS; i++)
+        {
+            operation.run();
+        }
+        long t1 = System.nanoTime();
+        long bytes1 = allocatedBytes();
+
+        System.out.println(String.format(Locale.ENGLISH, "  %-32s %7.2f ns/op %8.1f bytes/op", name,
+                (t1 - t0) / (double) NUMBER_OF_OPERATIONS,
+                (bytes1 - bytes0) / (double) NUMBER_OF_OPERATIONS));
+    }
+
+    private static final long allocatedBytes()
+    {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}